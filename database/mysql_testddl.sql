@@ -163,6 +163,43 @@ create table test_uni_child (
 )
 //
 
+-- ---------------------------------------------------------------------------
+-- Table: test_keyed
+-- This table has a composite key, to test that the EntityUtil leaves
+-- entities it can't load in batches by id alone.
+create table test_keyed (
+    code                       VARCHAR(50) NOT NULL,
+    seq                        INT NOT NULL,
+    description                VARCHAR(2000),
+    CONSTRAINT test_keyed_pk
+        PRIMARY KEY (code, seq)
+)
+//
+
+-- ---------------------------------------------------------------------------
+-- Table: test_tagged, test_tagged_tag
+-- The tags are a collection inside a component of test_tagged, to test that
+-- the EntityUtil leaves collections it can't fetch by name alone.
+create table test_tagged (
+    id                         INT NOT NULL,
+    version                    INT DEFAULT 0 NOT NULL,
+    code                       VARCHAR(50) NOT NULL,
+    color                      VARCHAR(50),
+    CONSTRAINT test_tagged_pk
+        PRIMARY KEY (id)
+)
+//
+
+create table test_tagged_tag (
+    test_tagged_id             INT NOT NULL,
+    tag                        VARCHAR(50) NOT NULL,
+    CONSTRAINT test_tagged_tag_pk
+        PRIMARY KEY (test_tagged_id, tag),
+    CONSTRAINT tagged_tag_tagged_id_fk
+        FOREIGN KEY (test_tagged_id) REFERENCES test_tagged(id)
+)
+//
+
 alter table test_uni_child
     add constraint uni_child_parent_id_fk
         foreign key(test_parent_id)
@@ -170,6 +170,45 @@ alter table test_uni_child
     add constraint uni_child_parent_code_unq
         unique(test_parent_id, code);
 
+/*============================================================================*/
+/* Table: test_keyed
+/* This table has a composite key, to test that the EntityUtil leaves
+/* entities it can't load in batches by id alone.
+/*============================================================================*/
+create table test_keyed (
+    code                       VARCHAR2(50) NOT NULL,
+    seq                        NUMBER(9) NOT NULL,
+    description                VARCHAR2(2000),
+    CONSTRAINT test_keyed_pk
+        PRIMARY KEY (code, seq)
+);
+
+/*============================================================================*/
+/* Table: test_tagged, test_tagged_tag
+/* The tags are a collection inside a component of test_tagged, to test that
+/* the EntityUtil leaves collections it can't fetch by name alone.
+/*============================================================================*/
+create table test_tagged (
+    id                         NUMBER(18) NOT NULL,
+    version                    NUMBER(18) DEFAULT 0 NOT NULL,
+    code                       VARCHAR2(50) NOT NULL,
+    color                      VARCHAR2(50),
+    CONSTRAINT test_tagged_pk
+        PRIMARY KEY (id)
+);
+
+create table test_tagged_tag (
+    test_tagged_id             NUMBER(18) NOT NULL,
+    tag                        VARCHAR2(50) NOT NULL,
+    CONSTRAINT test_tagged_tag_pk
+        PRIMARY KEY (test_tagged_id, tag)
+);
+
+alter table test_tagged_tag
+    add constraint tagged_tag_tagged_id_fk
+        foreign key(test_tagged_id)
+            references test_tagged(id);
+
 /*-------------------------------------------------------------------------*/
 /* Create trigger on the test_parent table to test triggers on an update.  */
 /* Updates work differently than inserts in the persistence layer.         *
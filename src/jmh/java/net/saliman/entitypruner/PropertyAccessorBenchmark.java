@@ -0,0 +1,118 @@
+package net.saliman.entitypruner;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of reading one attribute of an entity each of the ways
+ * the Entity Pruner can: looking the getter up on every call, the way the
+ * pruner used to, invoking a cached <code>Method</code>, going through a
+ * {@link PropertyAccessor}, going through the {@link GeneratedAccessor} in
+ * the entity's default plan, and calling the getter directly.  Run it with
+ * <code>gradle jmh</code>.
+ *
+ * @author Steven C. Saliman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PropertyAccessorBenchmark {
+    private TestSetParentEntity entity;
+    private Method getter;
+    private PruningPlan.Attribute handleAttribute;
+    private PruningPlan.Attribute generatedAttribute;
+
+    /**
+     * Build the entity and bind each way of reading its code.
+     * @throws Exception if the getter can't be found.
+     */
+    @Setup
+    public void setUp() throws Exception {
+        entity = new TestSetParentEntity();
+        entity.setCode("benchmark");
+        getter = TestSetParentEntity.class.getMethod("getCode");
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        handleAttribute = find(plan, "code");
+        generatedAttribute = find(plan.withDefaultAccessor(), "code");
+        if ( handleAttribute.isGenerated() || !generatedAttribute.isGenerated() ) {
+            throw new IllegalStateException("The plans don't use the accessors " +
+                                            "this benchmark is meant to compare");
+        }
+    }
+
+    /**
+     * @return the code, read by looking the getter up first.
+     * @throws Exception if the getter can't be called.
+     */
+    @Benchmark
+    public Object lookupAndInvoke() throws Exception {
+        return entity.getClass().getMethod("getCode").invoke(entity);
+    }
+
+    /**
+     * @return the code, read by invoking a getter that was looked up once.
+     * @throws Exception if the getter can't be called.
+     */
+    @Benchmark
+    public Object cachedMethod() throws Exception {
+        return getter.invoke(entity);
+    }
+
+    /**
+     * @return the code, read through the attribute's method handles.
+     * @throws Exception if the getter can't be called.
+     */
+    @Benchmark
+    public Object propertyAccessor() throws Exception {
+        return handleAttribute.getValue(entity);
+    }
+
+    /**
+     * @return the code, read through the generated accessor the pruner uses
+     *         by default.
+     * @throws Exception if the getter can't be called.
+     */
+    @Benchmark
+    public Object generatedAccessor() throws Exception {
+        return generatedAttribute.getValue(entity);
+    }
+
+    /**
+     * @return the code, read by calling the getter.
+     */
+    @Benchmark
+    public Object direct() {
+        return entity.getCode();
+    }
+
+    /**
+     * Helper method to find an attribute by name.
+     * @param plan the plan with the attribute.
+     * @param name the name of the attribute we want.
+     * @return the attribute.
+     */
+    private static PruningPlan.Attribute find(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                return attribute;
+            }
+        }
+        throw new IllegalArgumentException("No attribute named " + name);
+    }
+}
@@ -0,0 +1,104 @@
+package net.saliman.entitypruner;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how pruning a batch with
+ * {@link EntityPrunerHibernateJpa#prune(java.util.Collection, PruneSpec, ForkJoinPool)}
+ * scales with the number of threads in the pool.  Each root is a parent with
+ * its own children, which is what a list endpoint usually prunes.  A batch
+ * can only be pruned once, so a fresh one is built before each call.  With
+ * one thread, the batch is pruned sequentially, without the pool.  Run it
+ * with <code>gradle jmh -PjmhArgs=PruneBatch</code>.
+ *
+ * @author Steven C. Saliman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PruneBatchBenchmark {
+    @Param({"1", "2", "4", "8"})
+    private int threads;
+    @Param({"20000"})
+    private int parents;
+    @Param({"10"})
+    private int children;
+
+    private EntityPrunerHibernateJpa pruner;
+    private ForkJoinPool pool;
+    private int oldThreshold;
+    private List<TestSetParentEntity> batch;
+
+    /**
+     * Make the pruner and the pool for this number of threads.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        pruner = new EntityPrunerHibernateJpa();
+        pool = new ForkJoinPool(threads);
+        oldThreshold = EntityPrunerHibernateJpa.getParallelThreshold();
+        EntityPrunerHibernateJpa.setParallelThreshold(threads > 1 ? 1 : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Build a fresh batch to prune.
+     */
+    @Setup(Level.Invocation)
+    public void buildBatch() {
+        batch = new ArrayList<TestSetParentEntity>(parents);
+        for ( int i = 0; i < parents; i++ ) {
+            TestSetParentEntity parent = new TestSetParentEntity();
+            parent.setCode("parent" + i);
+            parent.setChildren(new HashSet<TestSetChildEntity>());
+            for ( int j = 0; j < children; j++ ) {
+                TestSetChildEntity child = new TestSetChildEntity();
+                child.setCode("child" + j);
+                child.setParent(parent);
+                parent.getChildren().add(child);
+            }
+            batch.add(parent);
+        }
+    }
+
+    /**
+     * Shut the pool down and put the threshold back.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdown();
+        EntityPrunerHibernateJpa.setParallelThreshold(oldThreshold);
+    }
+
+    /**
+     * @return the pruned batch.
+     */
+    @Benchmark
+    public Object prune() {
+        pruner.prune(batch, PruneSpec.ALL, pool);
+        return batch;
+    }
+}
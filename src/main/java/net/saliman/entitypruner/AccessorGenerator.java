@@ -0,0 +1,347 @@
+package net.saliman.entitypruner;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.LoaderClassPath;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class generates a {@link GeneratedAccessor} for a class of entity at
+ * runtime, for entities that weren't compiled with the
+ * {@link PrunableEntityProcessor}.  The generated class is a subclass of
+ * <code>GeneratedAccessor</code> in the entity's own package and class
+ * loader, with a <code>switch</code> in each method that calls the entity's
+ * getters and setters, or reads and writes its fields, directly.  We use
+ * Javassist to build the class, since Hibernate already depends on it, and
+ * it lets us write the methods as source instead of bytecode.
+ * <p>
+ * Only the accessor is generated.  The pruning itself, with its proxy and
+ * collection checks and the walk through the graph, is still done by the
+ * {@link EntityPruner} for every class of entity, which calls the accessor
+ * wherever it used to call a getter or setter through reflection.
+ * <p>
+ * Generation is best effort.  If the class can't be built, for example
+ * because the entity's class loader can't see the Entity Pruner, or a
+ * security manager won't let us define classes, we log the reason and
+ * remember the failure so the caller keeps using reflection for that
+ * class.
+ *
+ * @author Steven C. Saliman
+ */
+final class AccessorGenerator {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(AccessorGenerator.class);
+    /** The suffix we add to an entity's class name to name its accessor */
+    private static final String SUFFIX = "$$EntityPrunerAccessor";
+    /**
+     * The Javassist pool for each class loader we've generated accessors
+     * in.  Javassist caches every class it reads, so sharing a pool means
+     * the types an entity uses are only read once for all the entities in
+     * its loader.  The keys are weak so an application's loader can still
+     * be discarded, and the pools only hold their loader weakly.
+     */
+    private static final Map<ClassLoader, ClassPool> POOLS =
+        new WeakHashMap<ClassLoader, ClassPool>();
+
+    /**
+     * This is a utility class with only static methods.
+     */
+    private AccessorGenerator() {
+    }
+
+    /**
+     * Gets the generated accessor for a class.  If the annotation processor
+     * wrote one, we use that, otherwise we generate one if this is the first
+     * time we've been asked.
+     * @param clazz the class of entity.
+     * @param attributes the attributes the accessor needs to handle.
+     * @return the accessor, or <code>null</code> if one couldn't be
+     *         generated.
+     */
+    static GeneratedAccessor forClass(Class<?> clazz,
+            List<PruningPlan.Attribute> attributes) {
+        GeneratedAccessor registered = AccessorRegistry.lookup(clazz);
+        if ( registered != null ) {
+            return registered;
+        }
+        ClassMetadata metadata = ClassMetadata.forClass(clazz);
+        GeneratedAccessor accessor = metadata.generatedAccessor;
+        if ( accessor != null || metadata.accessorFailed ) {
+            return accessor;
+        }
+        // Unlike the rest of the metadata, we can't let two threads do this
+        // at once, because a class loader can only define a name once.
+        synchronized ( metadata ) {
+            if ( metadata.generatedAccessor == null && !metadata.accessorFailed ) {
+                try {
+                    metadata.generatedAccessor = generate(clazz, attributes);
+                } catch (Exception e) {
+                    LOG.warn("Can't generate an accessor for " + clazz.getName() +
+                             ", using reflection instead: " + e.getMessage());
+                    LOG.debug("Accessor generation failed", e);
+                    metadata.accessorFailed = true;
+                } catch (LinkageError e) {
+                    LOG.warn("Can't generate an accessor for " + clazz.getName() +
+                             ", using reflection instead: " + e.getMessage());
+                    LOG.debug("Accessor generation failed", e);
+                    metadata.accessorFailed = true;
+                }
+            }
+            return metadata.generatedAccessor;
+        }
+    }
+
+    /**
+     * Build, define and instantiate the accessor class for an entity.
+     * @param clazz the class of entity.
+     * @param attributes the attributes to number.
+     * @return the new accessor.
+     * @throws Exception if Javassist can't compile or define the class.
+     */
+    private static GeneratedAccessor generate(Class<?> clazz,
+            List<PruningPlan.Attribute> attributes) throws Exception {
+        LOG.debug("Generating an accessor for " + clazz.getName());
+        int size = attributes.size();
+        boolean[] gets = new boolean[size];
+        boolean[] sets = new boolean[size];
+        boolean[] fieldSets = new boolean[size];
+        String[] names = new String[size];
+        String entityName = typeName(clazz);
+        StringBuilder get = new StringBuilder();
+        StringBuilder set = new StringBuilder();
+        StringBuilder setField = new StringBuilder();
+        for ( int i = 0; i < size; i++ ) {
+            PropertyAccessor accessor = attributes.get(i).getAccessor();
+            names[i] = attributes.get(i).getName();
+            Field field = accessor.getField();
+            Method getter = accessor.getGetterMethod();
+            Method setter = accessor.getSetterMethod();
+            boolean fieldReadable = isReachable(clazz, field);
+            boolean fieldWritable = fieldReadable
+                    && !Modifier.isFinal(field.getModifiers());
+            // Use the same member the PropertyAccessor would, or leave the
+            // attribute to the PropertyAccessor.
+            if ( getter != null ? isReachable(clazz, getter) : fieldReadable ) {
+                gets[i] = true;
+                String read = getter != null
+                        ? "e." + getter.getName() + "()"
+                        : "e." + field.getName();
+                Class<?> type = getter != null ? getter.getReturnType() : field.getType();
+                get.append("case ").append(i).append(": return ")
+                   .append(box(type, read)).append(";\n");
+            }
+            if ( setter != null ? isReachable(clazz, setter) : fieldWritable ) {
+                sets[i] = true;
+                String value = unbox(field.getType(), "value");
+                set.append("case ").append(i).append(": ");
+                if ( setter != null ) {
+                    set.append("e.").append(setter.getName()).append("(")
+                       .append(value).append(");");
+                } else {
+                    set.append("e.").append(field.getName()).append(" = ")
+                       .append(value).append(";");
+                }
+                set.append(" return;\n");
+            }
+            if ( fieldWritable ) {
+                fieldSets[i] = true;
+                setField.append("case ").append(i).append(": e.")
+                        .append(field.getName()).append(" = ")
+                        .append(unbox(field.getType(), "value"))
+                        .append("; return;\n");
+            }
+        }
+
+        ClassLoader loader = clazz.getClassLoader();
+        ClassPool pool = getPool(loader);
+        // Javassist pools aren't safe to compile in from two threads at
+        // once, and entities in the same loader share one.
+        synchronized ( pool ) {
+            CtClass ct = pool.makeClass(clazz.getName() + SUFFIX);
+            try {
+                ct.setSuperclass(pool.get(GeneratedAccessor.class.getName()));
+                ct.addConstructor(CtNewConstructor.defaultConstructor(ct));
+                ct.addMethod(CtNewMethod.make(
+                        method("public Object get(Object entity, int index)",
+                               entityName, get, "return null;"), ct));
+                ct.addMethod(CtNewMethod.make(
+                        method("public void set(Object entity, int index, Object value)",
+                               entityName, set, "return;"), ct));
+                ct.addMethod(CtNewMethod.make(
+                        method("public void setField(Object entity, int index, Object value)",
+                               entityName, setField, "return;"), ct));
+                Class<?> generated = ct.toClass(loader, clazz.getProtectionDomain());
+                GeneratedAccessor accessor = (GeneratedAccessor)generated.newInstance();
+                accessor.init(clazz, names, gets, sets, fieldSets);
+                return accessor;
+            } finally {
+                ct.detach();
+            }
+        }
+    }
+
+    /**
+     * Helper method to get the Javassist pool for a class loader, creating
+     * it if this is the first accessor we've generated in the loader.
+     * @param loader the entity's class loader, or <code>null</code> for the
+     *        bootstrap loader.
+     * @return the pool.
+     */
+    private static ClassPool getPool(ClassLoader loader) {
+        synchronized ( POOLS ) {
+            ClassPool pool = POOLS.get(loader);
+            if ( pool == null ) {
+                pool = new ClassPool(true);
+                pool.insertClassPath(new ClassClassPath(GeneratedAccessor.class));
+                if ( loader != null ) {
+                    pool.insertClassPath(new LoaderClassPath(loader));
+                }
+                POOLS.put(loader, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Helper method to build the source of one of the generated methods.
+     * @param signature the method's signature.
+     * @param entityName the name of the entity class.
+     * @param cases the cases of the switch.
+     * @param end the statement that ends the method, which the compiler
+     *        insists on even though the default case throws.
+     * @return the source of the method.
+     */
+    private static String method(String signature, String entityName,
+            StringBuilder cases, String end) {
+        return signature + " {\n" +
+               entityName + " e = (" + entityName + ")$1;\n" +
+               "switch ($2) {\n" + cases +
+               "default: throw new IllegalArgumentException(" +
+               "\"No generated access for attribute \" + $2);\n" +
+               "}\n" + end + "\n}";
+    }
+
+    /**
+     * Helper method to decide whether code in the entity's package can use a
+     * field or method directly.  We only use public members of public
+     * classes, and members that aren't private in the entity's own runtime
+     * package.  Protected members of a parent in another package can't be
+     * reached, since the accessor isn't a subclass of the entity.  The
+     * {@link PrunableEntityProcessor} follows the same rules.
+     * @param clazz the class of entity, whose package the accessor is in.
+     * @param member the field or method we want to use.
+     * @return <code>true</code> if generated code can use the member.
+     */
+    private static boolean isReachable(Class<?> clazz, Member member) {
+        int modifiers = member.getModifiers();
+        if ( Modifier.isStatic(modifiers) || Modifier.isPrivate(modifiers) ) {
+            return false;
+        }
+        Class<?> declaringClass = member.getDeclaringClass();
+        if ( Modifier.isPublic(modifiers)
+                && Modifier.isPublic(declaringClass.getModifiers()) ) {
+            return true;
+        }
+        return samePackage(clazz, declaringClass);
+    }
+
+    /**
+     * Helper method to see if two classes are in the same runtime package,
+     * which means the same package name and the same class loader.
+     * @param a the first class.
+     * @param b the second class.
+     * @return <code>true</code> if the classes share a runtime package.
+     */
+    private static boolean samePackage(Class<?> a, Class<?> b) {
+        if ( a.getClassLoader() != b.getClassLoader() ) {
+            return false;
+        }
+        return packageName(a).equals(packageName(b));
+    }
+
+    /**
+     * @param clazz a class.
+     * @return the name of the class' package, or an empty string.
+     */
+    private static String packageName(Class<?> clazz) {
+        String name = clazz.getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(0, dot);
+    }
+
+    /**
+     * Helper method to get the name of a type as it would appear in source.
+     * @param type the type.
+     * @return the source name, with brackets for arrays.
+     */
+    private static String typeName(Class<?> type) {
+        if ( type.isArray() ) {
+            return typeName(type.getComponentType()) + "[]";
+        }
+        return type.getName();
+    }
+
+    /**
+     * Helper method to wrap an expression in the code needed to box it.
+     * @param type the type of the expression.
+     * @param expression the expression.
+     * @return an expression of an object type.
+     */
+    private static String box(Class<?> type, String expression) {
+        if ( !type.isPrimitive() ) {
+            return expression;
+        }
+        return wrapper(type).getName() + ".valueOf(" + expression + ")";
+    }
+
+    /**
+     * Helper method to convert an <code>Object</code> expression to the
+     * given type.
+     * @param type the type we need.
+     * @param expression the expression to convert.
+     * @return an expression of the given type.
+     */
+    private static String unbox(Class<?> type, String expression) {
+        if ( !type.isPrimitive() ) {
+            return "(" + typeName(type) + ")" + expression;
+        }
+        return "((" + wrapper(type).getName() + ")" + expression + ")." +
+               type.getName() + "Value()";
+    }
+
+    /**
+     * @param type a primitive type.
+     * @return the wrapper class for the type.
+     */
+    private static Class<?> wrapper(Class<?> type) {
+        if ( type == int.class ) {
+            return Integer.class;
+        } else if ( type == long.class ) {
+            return Long.class;
+        } else if ( type == boolean.class ) {
+            return Boolean.class;
+        } else if ( type == double.class ) {
+            return Double.class;
+        } else if ( type == float.class ) {
+            return Float.class;
+        } else if ( type == short.class ) {
+            return Short.class;
+        } else if ( type == byte.class ) {
+            return Byte.class;
+        }
+        return Character.class;
+    }
+}
@@ -0,0 +1,86 @@
+package net.saliman.entitypruner;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class finds the {@link GeneratedAccessor}s written by the
+ * {@link PrunableEntityProcessor} when an application was compiled.  The
+ * processor lists them in
+ * <code>META-INF/services/net.saliman.entitypruner.GeneratedAccessor</code>,
+ * so we can load them with a <code>ServiceLoader</code>, without scanning
+ * anything.
+ * <p>
+ * Each class loader's index is read once, the first time we are asked about
+ * a class from that loader, and every accessor it lists is attached to its
+ * entity class' {@link ClassMetadata}.  Loaders are held weakly, so an
+ * application that is redeployed doesn't keep its old classes alive.
+ *
+ * @author Steven C. Saliman
+ */
+final class AccessorRegistry {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(AccessorRegistry.class);
+    /** The class loaders whose index we've already read. */
+    private static final Map<ClassLoader, Boolean> LOADED =
+        new WeakHashMap<ClassLoader, Boolean>();
+
+    /**
+     * This is a utility class with only static methods.
+     */
+    private AccessorRegistry() {
+    }
+
+    /**
+     * Gets the accessor the annotation processor wrote for a class.
+     * @param clazz the class of entity.
+     * @return the accessor for the class, or <code>null</code> if the class
+     *         wasn't compiled with the processor.
+     */
+    static GeneratedAccessor lookup(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        if ( loader == null ) {
+            return null;
+        }
+        load(loader);
+        return ClassMetadata.forClass(clazz).registeredAccessor;
+    }
+
+    /**
+     * Read the index of accessors visible to a class loader, if we haven't
+     * already.  A bad entry is logged and skipped, since it only means that
+     * one class will be pruned with reflection.
+     * @param loader the class loader to read.
+     */
+    private static void load(ClassLoader loader) {
+        synchronized ( LOADED ) {
+            if ( LOADED.containsKey(loader) ) {
+                return;
+            }
+            LOADED.put(loader, Boolean.TRUE);
+            int count = 0;
+            Iterator<GeneratedAccessor> iterator =
+                ServiceLoader.load(GeneratedAccessor.class, loader).iterator();
+            while ( true ) {
+                try {
+                    if ( !iterator.hasNext() ) {
+                        break;
+                    }
+                    GeneratedAccessor accessor = iterator.next();
+                    ClassMetadata.forClass(accessor.getEntityClass())
+                        .registeredAccessor = accessor;
+                    count++;
+                } catch (ServiceConfigurationError e) {
+                    LOG.warn("Skipping a generated accessor: " + e.getMessage());
+                }
+            }
+            LOG.debug("Found " + count + " generated accessors for " + loader);
+        }
+    }
+}
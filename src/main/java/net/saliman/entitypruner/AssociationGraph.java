@@ -0,0 +1,343 @@
+package net.saliman.entitypruner;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hibernate.EntityMode;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.metadata.CollectionMetadata;
+import org.hibernate.persister.collection.AbstractCollectionPersister;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.CollectionType;
+import org.hibernate.type.EntityType;
+import org.hibernate.type.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An <code>AssociationGraph</code> describes the entities mapped by a
+ * Hibernate <code>SessionFactory</code> and the associations between them.
+ * It is built once, from Hibernate's own mapping metadata, instead of from
+ * the annotations on the entity classes, so it gives the right answers no
+ * matter how the entities were mapped: field annotations, method
+ * annotations, or XML.
+ * <p>
+ * For each entity, the graph knows which attributes are persistent, the
+ * name and type of the identifier, and for each collection, its Hibernate
+ * role and, if the collection is the inverse side of a bidirectional
+ * association, the name of the child's attribute that refers back to the
+ * parent.  Hibernate doesn't keep the "mappedBy" of an inverse collection,
+ * so we find it the same way the database does: it is the child's
+ * many-to-one that uses the collection's key columns.
+ * <p>
+ * The graph also caches the {@link PruningPlan}s built from it.  Classes
+ * that aren't mapped by the session factory get the plain reflection based
+ * plan.
+ *
+ * @author Steven C. Saliman
+ * @see PruningPlan
+ */
+final class AssociationGraph {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(AssociationGraph.class);
+
+    private final Map<Class<?>, Node> nodes;
+    private final ConcurrentMap<Class<?>, PruningPlan> planMap =
+        new ConcurrentHashMap<Class<?>, PruningPlan>();
+
+    /**
+     * Build the graph for all the entities in a session factory.
+     * @param factory the Hibernate session factory with the mappings.
+     * @return the graph.  This will never be null.
+     */
+    static AssociationGraph build(SessionFactory factory) {
+        long start = System.currentTimeMillis();
+        Map<String, ClassMetadata> allMetadata = factory.getAllClassMetadata();
+        Map<Class<?>, Node> nodes = new HashMap<Class<?>, Node>();
+        for ( ClassMetadata metadata : allMetadata.values() ) {
+            Class<?> mappedClass = metadata.getMappedClass(EntityMode.POJO);
+            if ( mappedClass == null ) {
+                // dynamic map entities have nothing for us to prune.
+                continue;
+            }
+            nodes.put(mappedClass, buildNode(factory, metadata));
+        }
+        LOG.debug("Built the association graph for " + nodes.size() +
+                  " entities in " + (System.currentTimeMillis() - start) + "ms");
+        return new AssociationGraph(nodes);
+    }
+
+    /**
+     * Helper method to build the node for a single entity.
+     * @param factory the session factory with the mappings.
+     * @param metadata Hibernate's metadata for the entity.
+     * @return the node for the entity.
+     */
+    private static Node buildNode(SessionFactory factory, ClassMetadata metadata) {
+        Set<String> properties = new HashSet<String>();
+        Map<String, Edge> edges = new HashMap<String, Edge>();
+        String[] names = metadata.getPropertyNames();
+        for ( String name : names ) {
+            properties.add(name);
+            Type type = metadata.getPropertyType(name);
+            if ( type.isCollectionType() ) {
+                String role = ((CollectionType)type).getRole();
+                CollectionMetadata persister = factory.getCollectionMetadata(role);
+                Class<?> target = null;
+                String inverse = null;
+                if ( persister instanceof AbstractCollectionPersister ) {
+                    AbstractCollectionPersister collection =
+                        (AbstractCollectionPersister)persister;
+                    Type elementType = collection.getElementType();
+                    if ( elementType.isEntityType() ) {
+                        target = elementType.getReturnedClass();
+                        if ( collection.isInverse() ) {
+                            inverse = findInverse(factory, collection,
+                                    ((EntityType)elementType).getAssociatedEntityName());
+                        }
+                    }
+                }
+                edges.put(name, new Edge(role, target, inverse));
+            } else if ( type.isEntityType() ) {
+                // A one-to-one with a "mappedBy" is bound to the property on
+                // the other side.
+                EntityType entityType = (EntityType)type;
+                String inverse = null;
+                if ( entityType.isOneToOne() ) {
+                    inverse = entityType.getRHSUniqueKeyPropertyName();
+                }
+                edges.put(name, new Edge(null, entityType.getReturnedClass(),
+                                         inverse));
+            }
+        }
+        Class<?> idClass = null;
+        if ( metadata.getIdentifierType() != null ) {
+            idClass = metadata.getIdentifierType().getReturnedClass();
+        }
+        return new Node(metadata.getEntityName(),
+                        metadata.getIdentifierPropertyName(), idClass,
+                        properties, edges);
+    }
+
+    /**
+     * Helper method to find the child attribute that refers back to the
+     * owner of an inverse collection.  This is the child's many-to-one whose
+     * columns are the collection's key columns.
+     * @param factory the session factory with the mappings.
+     * @param collection the persister for the inverse collection.
+     * @param childEntityName the entity name of the children.
+     * @return the name of the child's parent attribute, or <code>null</code>
+     *         if we can't find one.
+     */
+    private static String findInverse(SessionFactory factory,
+            AbstractCollectionPersister collection, String childEntityName) {
+        ClassMetadata childMetadata = factory.getClassMetadata(childEntityName);
+        if ( !(childMetadata instanceof AbstractEntityPersister) ) {
+            return null;
+        }
+        AbstractEntityPersister child = (AbstractEntityPersister)childMetadata;
+        String[] keyColumns = collection.getKeyColumnNames();
+        for ( String name : child.getPropertyNames() ) {
+            Type type = child.getPropertyType(name);
+            if ( !type.isEntityType() ) {
+                continue;
+            }
+            String[] columns = child.getPropertyColumnNames(name);
+            if ( columns != null && columns.length == keyColumns.length ) {
+                boolean matches = true;
+                for ( int i = 0; i < columns.length && matches; i++ ) {
+                    matches = columns[i].equalsIgnoreCase(keyColumns[i]);
+                }
+                if ( matches ) {
+                    return name;
+                }
+            }
+        }
+        LOG.debug(collection.getRole() + " is inverse, but no attribute of " +
+                  childEntityName + " uses the key columns " +
+                  Arrays.toString(keyColumns));
+        return null;
+    }
+
+    /**
+     * Only {@link #build(SessionFactory)} creates graphs.
+     * @param nodes the nodes in the graph, indexed by class.
+     */
+    private AssociationGraph(Map<Class<?>, Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @return the classes of all the entities in the graph.
+     */
+    Set<Class<?>> getEntityClasses() {
+        return Collections.unmodifiableSet(nodes.keySet());
+    }
+
+    /**
+     * Gets the node for a class.  If the class itself isn't mapped, we'll
+     * use the closest mapped superclass, since the class may be a Hibernate
+     * proxy.
+     * @param clazz the class we want.
+     * @return the node for the class, or <code>null</code> if neither the
+     *         class nor any of its parents is mapped.
+     */
+    Node getNode(Class<?> clazz) {
+        Class<?> currClazz = clazz;
+        while ( currClazz != null && !currClazz.equals(Object.class) ) {
+            Node node = nodes.get(currClazz);
+            if ( node != null ) {
+                return node;
+            }
+            currClazz = currClazz.getSuperclass();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the plan for the given class, building it from this graph if
+     * this is the first time we've seen the class.
+     * @param clazz the class of entity we want to prune.
+     * @return the plan for the class.  This will never be null.
+     */
+    PruningPlan getPlan(Class<?> clazz) {
+        PruningPlan plan = planMap.get(clazz);
+        if ( plan == null ) {
+            Node node = getNode(clazz);
+            if ( node == null ) {
+                plan = PruningPlan.forClass(clazz);
+            } else {
+                plan = PruningPlan.forNode(clazz, node);
+            }
+            PruningPlan existing = planMap.putIfAbsent(clazz, plan);
+            if ( existing != null ) {
+                plan = existing;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * A mapped entity.
+     */
+    static final class Node {
+        private final String entityName;
+        private final String idName;
+        private final Class<?> idClass;
+        private final Set<String> properties;
+        private final Map<String, Edge> edges;
+
+        /**
+         * Create a node.
+         * @param entityName the Hibernate entity name.
+         * @param idName the name of the identifier attribute.
+         * @param idClass the type of the identifier.
+         * @param properties the names of the persistent attributes, not
+         *        including the identifier.
+         * @param edges the associations, indexed by attribute name.
+         */
+        private Node(String entityName, String idName, Class<?> idClass,
+                Set<String> properties, Map<String, Edge> edges) {
+            this.entityName = entityName;
+            this.idName = idName;
+            this.idClass = idClass;
+            this.properties = Collections.unmodifiableSet(properties);
+            this.edges = Collections.unmodifiableMap(edges);
+        }
+
+        /**
+         * @return the Hibernate entity name.
+         */
+        String getEntityName() {
+            return entityName;
+        }
+
+        /**
+         * @return the name of the identifier attribute, or <code>null</code>
+         *         if the entity doesn't have one.
+         */
+        String getIdName() {
+            return idName;
+        }
+
+        /**
+         * @return the type of the identifier.
+         */
+        Class<?> getIdClass() {
+            return idClass;
+        }
+
+        /**
+         * @param name the name of an attribute.
+         * @return <code>true</code> if Hibernate persists the attribute.
+         */
+        boolean isPersistent(String name) {
+            return properties.contains(name) || name.equals(idName);
+        }
+
+        /**
+         * @param name the name of an attribute.
+         * @return the association held in the attribute, or
+         *         <code>null</code> if the attribute isn't an association.
+         */
+        Edge getEdge(String name) {
+            return edges.get(name);
+        }
+    }
+
+    /**
+     * An association from one entity to another entity, or to a collection
+     * of them.
+     */
+    static final class Edge {
+        private final String role;
+        private final Class<?> targetClass;
+        private final String inverseName;
+
+        /**
+         * Create an edge.
+         * @param role the collection role, or <code>null</code> for a single
+         *        valued association.
+         * @param targetClass the class of the associated entities.
+         * @param inverseName the name of the target's attribute that refers
+         *        back to the owner.
+         */
+        private Edge(String role, Class<?> targetClass, String inverseName) {
+            this.role = role;
+            this.targetClass = targetClass;
+            this.inverseName = inverseName;
+        }
+
+        /**
+         * @return the Hibernate collection role, or <code>null</code> if this
+         *         isn't a collection.
+         */
+        String getRole() {
+            return role;
+        }
+
+        /**
+         * @return the class of the associated entities, or <code>null</code>
+         *         for a collection of values.
+         */
+        Class<?> getTargetClass() {
+            return targetClass;
+        }
+
+        /**
+         * @return the name of the target's attribute that refers back to the
+         *         owner, or <code>null</code> if this isn't the inverse side
+         *         of a bidirectional association.
+         */
+        String getInverseName() {
+            return inverseName;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.saliman.entitypruner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.Session;
+import org.hibernate.collection.AbstractPersistentCollection;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.collection.CollectionPersister;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A <code>BatchLoader</code> collects the uninitialized proxies and
+ * collections {@link EntityUtil} finds at one level of an object graph, and
+ * loads them with one query for each type of entity, or each collection
+ * role, instead of one query for each proxy or collection.
+ * <p>
+ * Proxies are loaded with <code>from Entity e where e.id in (:ids)</code>,
+ * and collections by fetching them into their owners with
+ * <code>select o from Owner o left join fetch o.role where o.id in
+ * (:ids)</code>.  Neither query touches the proxies or collections
+ * themselves.  The loaded entities and collection elements go into the
+ * session, so when the caller initializes a proxy or iterates a collection
+ * afterwards, Hibernate finds everything it needs without going back to the
+ * database.  The ids are sent in chunks, so no query has more than the
+ * batch size in its <code>IN</code> list.
+ * <p>
+ * Anything we can't batch, such as entities with composite keys, or
+ * collections that aren't keyed by their owner's id, is left alone, and
+ * gets loaded one at a time when the caller uses it, just like it always
+ * has.  A loader is meant to be used by a single thread for a single level
+ * of the graph.
+ *
+ * @author Steven C. Saliman
+ */
+final class BatchLoader {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(BatchLoader.class);
+
+    private final int batchSize;
+    /** The ids of the proxies we need, by entity name */
+    private final Map<String, Set<Serializable>> proxies =
+        new LinkedHashMap<String, Set<Serializable>>();
+    /** The keys of the collections we need, by role */
+    private final Map<String, Set<Serializable>> collections =
+        new LinkedHashMap<String, Set<Serializable>>();
+    /** The session that owns the proxies and collections */
+    private SessionImplementor session;
+
+    /**
+     * Make a loader.
+     * @param batchSize the most ids to put in a single query.  Values less
+     *        than 2 turn batching off.
+     */
+    BatchLoader(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Add a value to the next batch, if it is an uninitialized proxy or
+     * collection.  Anything else is ignored.
+     * @param value the value of an attribute, or an entity in the graph.
+     */
+    void add(Object value) {
+        if ( batchSize < 2 ) {
+            return;
+        }
+        if ( value instanceof HibernateProxy ) {
+            LazyInitializer initializer = ((HibernateProxy)value).getHibernateLazyInitializer();
+            if ( initializer.isUninitialized() && useSession(initializer.getSession()) ) {
+                add(proxies, initializer.getEntityName(), initializer.getIdentifier());
+            }
+        } else if ( value instanceof AbstractPersistentCollection ) {
+            AbstractPersistentCollection collection = (AbstractPersistentCollection)value;
+            if ( !collection.wasInitialized() && collection.getRole() != null
+                    && useSession(collection.getSession()) ) {
+                add(collections, collection.getRole(), collection.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if there is nothing to load.
+     */
+    boolean isEmpty() {
+        return proxies.isEmpty() && collections.isEmpty();
+    }
+
+    /**
+     * Load everything that has been added, then start over with an empty
+     * batch.
+     * @return the number of queries we ran.
+     */
+    int load() {
+        int queries = 0;
+        if ( session != null && session.isOpen() ) {
+            for ( Map.Entry<String, Set<Serializable>> entry : proxies.entrySet() ) {
+                queries += loadProxies(entry.getKey(), entry.getValue());
+            }
+            for ( Map.Entry<String, Set<Serializable>> entry : collections.entrySet() ) {
+                queries += loadCollections(entry.getKey(), entry.getValue());
+            }
+        }
+        proxies.clear();
+        collections.clear();
+        return queries;
+    }
+
+    /**
+     * Helper method to load the proxies for one type of entity.
+     * @param entityName the name of the entity.
+     * @param ids the ids of the proxies.
+     * @return the number of queries we ran.
+     */
+    private int loadProxies(String entityName, Set<Serializable> ids) {
+        // A single proxy is no better off in a batch.
+        if ( ids.size() < 2 ) {
+            return 0;
+        }
+        EntityPersister persister = session.getFactory().getEntityPersister(entityName);
+        if ( persister.getIdentifierType().isComponentType() ) {
+            return 0;
+        }
+        String query = "from " + entityName + " e where e.id in (:ids)";
+        return run(query, ids);
+    }
+
+    /**
+     * Helper method to load the collections for one role.
+     * @param role the collection role, which is the owner's entity name and
+     *        the name of the collection attribute.
+     * @param keys the keys of the collections.
+     * @return the number of queries we ran.
+     */
+    private int loadCollections(String role, Set<Serializable> keys) {
+        if ( keys.size() < 2 ) {
+            return 0;
+        }
+        CollectionPersister persister = session.getFactory().getCollectionPersister(role);
+        EntityPersister owner = persister.getOwnerEntityPersister();
+        String entityName = owner.getEntityName();
+        if ( !persister.getCollectionType().useLHSPrimaryKey()
+                || owner.getIdentifierType().isComponentType()
+                || !role.startsWith(entityName + ".") ) {
+            return 0;
+        }
+        String attribute = role.substring(entityName.length() + 1);
+        if ( attribute.indexOf('.') >= 0 ) {
+            // A collection inside a component.
+            return 0;
+        }
+        String query = "select o from " + entityName + " o left join fetch o." +
+                       attribute + " where o.id in (:ids)";
+        return run(query, keys);
+    }
+
+    /**
+     * Helper method to run a query in chunks of ids.  We don't need the
+     * results, since Hibernate keeps everything it loads in the session.
+     * @param query the query, with an <code>ids</code> parameter.
+     * @param ids the ids to load.
+     * @return the number of queries we ran.
+     */
+    private int run(String query, Set<Serializable> ids) {
+        List<Serializable> list = new ArrayList<Serializable>(ids);
+        int queries = 0;
+        for ( int start = 0; start < list.size(); start += batchSize ) {
+            List<Serializable> chunk =
+                list.subList(start, Math.min(start + batchSize, list.size()));
+            LOG.debug("Loading " + chunk.size() + " ids with " + query);
+            ((Session)session).createQuery(query)
+                .setParameterList("ids", chunk)
+                .list();
+            queries++;
+        }
+        return queries;
+    }
+
+    /**
+     * Helper method to make sure everything in a batch comes from the same
+     * session.  Anything from another session, or from no session at all,
+     * is left for Hibernate to deal with the usual way.
+     * @param s the session of a proxy or collection.
+     * @return <code>true</code> if we can use the session.
+     */
+    private boolean useSession(SessionImplementor s) {
+        if ( s == null || !(s instanceof Session) ) {
+            return false;
+        }
+        if ( session == null ) {
+            session = s;
+        }
+        return session == s;
+    }
+
+    /**
+     * Helper method to add an id to a group.
+     * @param groups the groups of ids.
+     * @param name the name of the group.
+     * @param id the id to add.
+     */
+    private static void add(Map<String, Set<Serializable>> groups, String name,
+            Serializable id) {
+        Set<Serializable> ids = groups.get(name);
+        if ( ids == null ) {
+            ids = new LinkedHashSet<Serializable>();
+            groups.put(name, ids);
+        }
+        ids.add(id);
+    }
+}
@@ -0,0 +1,87 @@
+package net.saliman.entitypruner;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class holds all of the reflective information the Entity Pruner has
+ * cached about a single class.  Instances are attached to the class itself
+ * through a <code>ClassValue</code>, which has two big advantages over the
+ * static maps we used to use:
+ * <p>
+ * 1) Lookups don't need to build or hash a string key.<br>
+ * 2) The metadata lives and dies with the class.  When an application's
+ * class loader is discarded, for example when an application is redeployed
+ * in GlassFish, the metadata for its classes can be garbage collected along
+ * with the classes, even if the Entity Pruner itself was loaded by a parent
+ * class loader.  Classes with the same name from different class loaders
+ * also get their own metadata.
+ * <p>
+ * The values in this class are filled in lazily by the classes that own
+ * them ({@link ReflectionUtil}, {@link MetadataIndex},
+ * {@link PropertyAccessor}, {@link PruningPlan}, {@link IdCodec},
+ * {@link AccessorGenerator} and {@link AccessorRegistry}).  Two threads may
+ * compute the same value at the same time, but since the values are always
+ * the same, the last one in wins and no harm is done.  The exceptions are
+ * the generated accessors, which are guarded by locks in the classes that
+ * set them.
+ *
+ * @author Steven C. Saliman
+ */
+final class ClassMetadata {
+    /** The metadata attached to each class. */
+    private static final ClassValue<ClassMetadata> METADATA =
+        new ClassValue<ClassMetadata>() {
+            @Override
+            protected ClassMetadata computeValue(Class<?> type) {
+                return new ClassMetadata();
+            }
+        };
+
+    /** Fields with both a getter and a setter */
+    volatile List<Field> beanFields;
+    /** Fields with at least a getter */
+    volatile List<Field> readableBeanFields;
+    /** Public methods of the class, indexed by name */
+    volatile Map<String, List<Method>> publicMethods;
+    /**
+     * Whether the {@link MetadataIndex} had the class, or <code>null</code>
+     * if we haven't looked yet
+     */
+    volatile Boolean indexed;
+    /** The pruning plan for the class */
+    volatile PruningPlan pruningPlan;
+    /** The codec for ids of this class, if it is the type of a primary key */
+    volatile IdCodec idCodec;
+    /** The accessor the annotation processor wrote for the class, if any */
+    volatile GeneratedAccessor registeredAccessor;
+    /** The generated accessor for the class, if one has been generated */
+    volatile GeneratedAccessor generatedAccessor;
+    /** Whether we tried and failed to generate an accessor for the class */
+    volatile boolean accessorFailed;
+    /** Fields of the class and its parents, indexed by name */
+    final ConcurrentMap<String, Field> fields =
+        new ConcurrentHashMap<String, Field>();
+    /** Accessors for fields declared by the class, indexed by name */
+    final ConcurrentMap<String, PropertyAccessor> accessors =
+        new ConcurrentHashMap<String, PropertyAccessor>();
+
+    /**
+     * Gets the metadata for the given class.
+     * @param clazz the class whose metadata we want.
+     * @return the metadata for the class.  This will never be null.
+     */
+    static ClassMetadata forClass(Class<?> clazz) {
+        return METADATA.get(clazz);
+    }
+
+    /**
+     * Only {@link #forClass(Class)} creates metadata.
+     */
+    private ClassMetadata() {
+    }
+}
@@ -0,0 +1,351 @@
+package net.saliman.entitypruner;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A <code>CollectionWindow</code> is the part of a child collection that a
+ * client wants, such as the second page of 50 children, ordered by code.
+ * Windows are given in an include path, right after the name of the
+ * collection, with the same options used to page through the results of a
+ * query: {@link Options#PAGE}, {@link Options#PER_PAGE} and
+ * {@link Options#ORDER}.  For example,
+ * <code>children[page=2,per_page=50,order=code]</code> includes the 51st
+ * to 100th children, and <code>children[order=code:desc,name]</code>
+ * includes all of the children, ordered by code in descending order, then
+ * by name.
+ * <p>
+ * Pages start at 1.  Without a <code>per_page</code>, the window has every
+ * element, and the page is ignored.  Without an <code>order</code>, the
+ * elements keep the order of the collection, which is only meaningful for
+ * lists and sorted sets.  Elements are ordered by simple attributes of the
+ * child entities; attributes that are <code>null</code> come first, in
+ * either direction and whatever the database would do by default.
+ * <p>
+ * When an entity's collection is windowed, the pruner records the window,
+ * and the size of the whole collection, as a {@link PrunedWindow} in the
+ * entity's window map, so only a {@link WindowedPrunableEntity} can have
+ * its collections windowed.  Windows are immutable, so they are thread
+ * safe.
+ *
+ * @author Steven C. Saliman
+ * @see PruneSpec
+ */
+public final class CollectionWindow {
+    /** What an order entry must look like: an attribute name and a direction. */
+    private static final Pattern ORDER_ENTRY =
+        Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\s*:\\s*(?i:asc|desc))?");
+
+    private final int page;
+    private final int perPage;
+    private final List<String> order;
+
+    /**
+     * Create a window.
+     * @param page the page we want, starting at 1.
+     * @param perPage the number of elements on a page, or 0 for all of them.
+     * @param order the attributes to order the elements by, each optionally
+     *        followed by <code>:desc</code>.  May be empty.
+     * @throws IllegalArgumentException if the page is less than 1, the
+     *         number per page is negative, or an order entry isn't a plain
+     *         attribute name with an optional <code>:asc</code> or
+     *         <code>:desc</code>.
+     */
+    public CollectionWindow(int page, int perPage, List<String> order) {
+        if ( page < 1 ) {
+            throw new IllegalArgumentException(page + " is not a valid " + Options.PAGE);
+        }
+        if ( perPage < 0 ) {
+            throw new IllegalArgumentException(perPage + " is not a valid " + Options.PER_PAGE);
+        }
+        if ( order != null ) {
+            for ( String attribute : order ) {
+                if ( !isValidOrder(attribute) ) {
+                    throw new IllegalArgumentException(attribute + " is not a valid " +
+                            Options.ORDER);
+                }
+            }
+        }
+        this.page = page;
+        this.perPage = perPage;
+        if ( order == null || order.isEmpty() ) {
+            this.order = Collections.emptyList();
+        } else {
+            this.order = Collections.unmodifiableList(new ArrayList<String>(order));
+        }
+    }
+
+    /**
+     * @return the page we want, starting at 1.
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * @return the number of elements on a page, or 0 for all of them.
+     */
+    public int getPerPage() {
+        return perPage;
+    }
+
+    /**
+     * @return the attributes to order the elements by, each optionally
+     *         followed by <code>:desc</code>.
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the position of the first element in the window, starting at
+     *         0.  A window so far out that the position doesn't fit in an
+     *         int starts at <code>Integer.MAX_VALUE</code>, which is past the
+     *         end of any collection we could hold.
+     */
+    public int getFirstResult() {
+        if ( perPage == 0 ) {
+            return 0;
+        }
+        return (int)Math.min((long)(page - 1) * perPage, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Check an entry of an order before we use it.  Entries end up in HQL,
+     * so anything but a plain attribute name, optionally followed by
+     * <code>:asc</code> or <code>:desc</code>, is rejected.
+     * @param attribute the entry, like <code>code:desc</code>.
+     * @return <code>true</code> if the entry is valid.
+     */
+    static boolean isValidOrder(String attribute) {
+        return attribute != null && ORDER_ENTRY.matcher(attribute).matches();
+    }
+
+    /**
+     * Build the HQL for a collection filter that returns the elements of
+     * the window in order.  The caller still needs to set the first and
+     * maximum results.  Each attribute in the order must be a persistent,
+     * simple attribute of the elements, so the client can't put anything
+     * in the query but the name of a column we'd have sent them anyway.
+     * @param elementClass the class of the elements in the collection.
+     * @return the filter, which may be empty if there is no order.
+     * @throws IllegalStateException if the elements don't have one of the
+     *         attributes.
+     */
+    String getFilter(Class<?> elementClass) {
+        PruningPlan plan = PruningPlan.forClass(elementClass);
+        StringBuilder filter = new StringBuilder();
+        for ( String attribute : order ) {
+            String name = getName(attribute);
+            if ( !isSortable(plan, name) ) {
+                throw new IllegalStateException(elementClass.getName() +
+                        " has no persistent attribute named " + name);
+            }
+            // HQL has no "nulls first", and databases don't agree on where
+            // nulls go, so we put them first ourselves.
+            filter.append(filter.length() == 0 ? "order by " : ", ");
+            filter.append("case when this.").append(name)
+                  .append(" is null then 0 else 1 end, ");
+            filter.append("this.").append(name);
+            if ( isDescending(attribute) ) {
+                filter.append(" desc");
+            }
+        }
+        return filter.toString();
+    }
+
+    /**
+     * Take the window out of a collection we already have in memory.
+     * @param elements the whole collection.
+     * @return the elements in the window, in order.
+     * @throws IllegalStateException if an element's attribute can't be read.
+     */
+    List<Object> apply(Collection<?> elements) {
+        List<Object> sorted = new ArrayList<Object>(elements);
+        if ( !order.isEmpty() ) {
+            Collections.sort(sorted, new ElementComparator());
+        }
+        int from = Math.min(getFirstResult(), sorted.size());
+        int to = perPage == 0 ? sorted.size()
+                              : (int)Math.min((long)from + perPage, sorted.size());
+        return new ArrayList<Object>(sorted.subList(from, to));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if ( this == obj ) {
+            return true;
+        }
+        if ( !(obj instanceof CollectionWindow) ) {
+            return false;
+        }
+        CollectionWindow other = (CollectionWindow)obj;
+        return page == other.page && perPage == other.perPage &&
+               order.equals(other.order);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * page + perPage) + order.hashCode();
+    }
+
+    /**
+     * @return the window in the same form it is given in an include path,
+     *         without the brackets.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(Options.PAGE).append('=').append(page);
+        if ( perPage > 0 ) {
+            text.append(',').append(Options.PER_PAGE).append('=').append(perPage);
+        }
+        for ( int i = 0; i < order.size(); i++ ) {
+            text.append(',');
+            if ( i == 0 ) {
+                text.append(Options.ORDER).append('=');
+            }
+            text.append(order.get(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Helper method to see if we can order elements by an attribute in the
+     * database.
+     * @param plan the plan for the class of the elements.
+     * @param name the name of the attribute.
+     * @return <code>true</code> if the attribute is a persistent attribute
+     *         that isn't an association.
+     */
+    private static boolean isSortable(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                FieldKind kind = attribute.getKind();
+                return !attribute.isTransient() && kind != FieldKind.ENTITY
+                       && !kind.isCollection();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to get the attribute name from an order entry.
+     * @param attribute the entry, like <code>code:desc</code>.
+     * @return the name, like <code>code</code>.
+     */
+    private static String getName(String attribute) {
+        int colon = attribute.indexOf(':');
+        return colon < 0 ? attribute : attribute.substring(0, colon).trim();
+    }
+
+    /**
+     * Helper method to see if an order entry is descending.
+     * @param attribute the entry.
+     * @return <code>true</code> if it ends with <code>:desc</code>.
+     */
+    private static boolean isDescending(String attribute) {
+        int colon = attribute.indexOf(':');
+        return colon >= 0 && "desc".equalsIgnoreCase(attribute.substring(colon + 1).trim());
+    }
+
+    /**
+     * Orders the elements of a collection in memory, the way the database
+     * would order them with the filter.  The attributes are looked up once
+     * for each class of element.
+     */
+    private final class ElementComparator implements Comparator<Object> {
+        private final Map<Class<?>, PruningPlan.Attribute[]> attributes =
+            new HashMap<Class<?>, PruningPlan.Attribute[]>();
+
+        @Override
+        public int compare(Object a, Object b) {
+            PruningPlan.Attribute[] aAttributes = getAttributes(a.getClass());
+            PruningPlan.Attribute[] bAttributes = getAttributes(b.getClass());
+            for ( int i = 0; i < order.size(); i++ ) {
+                int result = compareValues(read(a, aAttributes[i]),
+                                           read(b, bAttributes[i]),
+                                           isDescending(order.get(i)));
+                if ( result != 0 ) {
+                    return result;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Helper method to compare two values, with nulls first in either
+         * direction.
+         * @param a the first value.
+         * @param b the second value.
+         * @param descending whether larger values come first.
+         * @return the comparison.
+         */
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private int compareValues(Object a, Object b, boolean descending) {
+            if ( a == null || b == null ) {
+                return a == null ? (b == null ? 0 : -1) : 1;
+            }
+            if ( !(a instanceof Comparable) ) {
+                throw new IllegalStateException("Can't order by values of " +
+                        a.getClass().getName());
+            }
+            int result = ((Comparable)a).compareTo(b);
+            return descending ? -result : result;
+        }
+
+        /**
+         * Helper method to find the attributes we order a class of element
+         * by.
+         * @param clazz the class of element.
+         * @return the attributes, in the same order as the window's order.
+         * @throws IllegalStateException if the class doesn't have one of
+         *         the attributes.
+         */
+        private PruningPlan.Attribute[] getAttributes(Class<?> clazz) {
+            PruningPlan.Attribute[] found = attributes.get(clazz);
+            if ( found != null ) {
+                return found;
+            }
+            PruningPlan plan = PruningPlan.forClass(clazz).withDefaultAccessor();
+            found = new PruningPlan.Attribute[order.size()];
+            for ( int i = 0; i < found.length; i++ ) {
+                String name = getName(order.get(i));
+                for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                    if ( attribute.getName().equals(name) ) {
+                        found[i] = attribute;
+                    }
+                }
+                if ( found[i] == null ) {
+                    throw new IllegalStateException(clazz.getName() +
+                            " has no attribute named " + name);
+                }
+            }
+            attributes.put(clazz, found);
+            return found;
+        }
+
+        /**
+         * Helper method to read an attribute of an element.
+         * @param element the element.
+         * @param attribute the attribute.
+         * @return the value of the attribute.
+         */
+        private Object read(Object element, PruningPlan.Attribute attribute) {
+            try {
+                return attribute.getValue(element);
+            } catch (InvocationTargetException e) {
+                String msg = "Can't order by " + attribute.getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package net.saliman.entitypruner;
+
+/**
+ * Entities implement this interface, instead of just {@link PrunableEntity},
+ * to have the {@link EntityPruner} record the ids of uninitialized parents
+ * in a {@link FieldIdTable} instead of a <code>HashMap</code> of Strings.
+ * A table holds its entries in a few small arrays, indexed by the
+ * attribute's position in the entity class, and stores numeric ids as
+ * <code>long</code>s, so pruning a large page of entities with proxied
+ * parents creates far fewer objects.
+ * <p>
+ * The pruner only writes to the table, and reads the table before the
+ * fieldIdMap when it un-prunes, so clients that still use the fieldIdMap
+ * can keep doing so.  The simplest way to support them is to return
+ * {@link FieldIdTable#asMap()} from <code>getFieldIdMap</code> when the
+ * entity has a table.
+ *
+ * @author Steven C. Saliman
+ * @see FieldIdTable
+ */
+public interface CompactPrunableEntity extends PrunableEntity {
+    /**
+     * @return the table of field to ID mappings, or <code>null</code> if
+     *         the entity doesn't have one yet.
+     */
+    public FieldIdTable getFieldIdTable();
+
+    /**
+     * @param fieldIdTable the table of field to ID mappings to use.
+     */
+    public void setFieldIdTable(FieldIdTable fieldIdTable);
+}
@@ -1,6 +1,8 @@
 package net.saliman.entitypruner;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.ejb.Local;
 
@@ -146,6 +148,9 @@ public interface EntityPruner {
      * <code>depth</code> the maximum number of levels we want in the pruned
      * entity.  Use 1 for the entity itself, 2 for the entity and its children,
      * etc.<br>
+     * An included collection can be followed by a {@link CollectionWindow},
+     * such as <code>children[page=2,per_page=50,order=code]</code>, to keep
+     * just one page of the children.<br>
      * It is important to remember that pruning is done outside a transaction.
      * Specifying an include or select will <b>not</b> cause the EntityPruner
      * to fetch missing data from the database.  If you are specifying 
@@ -163,6 +168,83 @@ public interface EntityPruner {
      */
     public void prune(PrunableEntity entity, Map<String, String> options);
 
+    /**
+     * Prune the given entity using options that have already been parsed
+     * into a {@link PruneSpec}.  This works exactly like
+     * {@link #prune(PrunableEntity, Map)}, but callers that prune the same
+     * way many times can build the spec once and reuse it, instead of having
+     * the options map parsed on every call.
+     * @param entity the {@link PrunableEntity} to pruned
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem.
+     */
+    public void prune(PrunableEntity entity, PruneSpec spec);
+
+    /**
+     * Prune a batch of entities, such as the results of a query.  The result
+     * is the same as pruning a single entity that held all of them in a
+     * collection, but implementations are free to do the work on more than
+     * one thread.
+     * @param entities the entities to prune.  Nulls are ignored.
+     * @param spec the compiled options for each entity.  <code>null</code>
+     *        is the same as {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem.
+     */
+    public void prune(Collection<? extends PrunableEntity> entities,
+            PruneSpec spec);
+
+    /**
+     * Prune a batch of entities the same way as
+     * {@link #prune(Collection, PruneSpec)}, using the threads of the given
+     * pool.  The pool belongs to the caller, who is responsible for shutting
+     * it down; implementations never shut it down, and are free to prune
+     * small batches on the caller's thread anyway.
+     * @param entities the entities to prune.  Nulls are ignored.
+     * @param spec the compiled options for each entity.  <code>null</code>
+     *        is the same as {@link PruneSpec#ALL}.
+     * @param pool the pool to prune on, or <code>null</code> to prune on
+     *        the caller's thread.
+     * @throws IllegalStateException if there is a problem.
+     */
+    public void prune(Collection<? extends PrunableEntity> entities,
+            PruneSpec spec, ForkJoinPool pool);
+
+    /**
+     * Load the parts of the given entity that the options ask for, and
+     * prune it, in one call.  Unlike <code>prune</code>, this must be
+     * called while the session that loaded the entity is still open.
+     * <p>
+     * Pruning changes the entities, and those changes must never be saved,
+     * so every entity in the pruned graph is evicted from the session before
+     * this returns, along with anything the mappings cascade evictions to.
+     * Callers that still need the entity to be managed, to change it and
+     * save it in the same transaction for example, should populate it with
+     * {@link EntityUtil} instead, and prune it once they are done with it.
+     * <p>
+     * If an included collection has a {@link CollectionWindow} and hasn't
+     * been loaded yet, only the window is loaded, along with a count of the
+     * whole collection.
+     * @param entity the {@link PrunableEntity} to populate and prune.
+     * @param options a map of options and values, patterned after the Ruby on
+     *        Rails conventions.
+     * @throws IllegalStateException if there is a problem.
+     */
+    public void populateAndPrune(PrunableEntity entity, Map<String, String> options);
+
+    /**
+     * Load the parts of the given entity that the spec asks for, and prune
+     * it, in one call.  Unlike <code>prune</code>, this must be called
+     * while the session that loaded the entity is still open.  Like
+     * {@link #populateAndPrune(PrunableEntity, Map)}, this evicts the pruned
+     * graph from the session.
+     * @param entity the {@link PrunableEntity} to populate and prune.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem.
+     */
+    public void populateAndPrune(PrunableEntity entity, PruneSpec spec);
+
     /**
      * Un-prune the given entity so it can be saved by an ORM.  Basically this
      * means restoring the bidirectional references and restoring the 
@@ -175,4 +257,13 @@ public interface EntityPruner {
      */
     public void unprune(PrunableEntity entity);
 
+    /**
+     * Un-prune a batch of entities so they can be saved by an ORM.  Each
+     * entity is un-pruned the same way {@link #unprune(PrunableEntity)}
+     * would, but entities shared by several of them are only un-pruned once.
+     * @param entities the entities to un-prune.  Nulls are ignored.
+     * @throws IllegalStateException if something goes wrong
+     */
+    public void unprune(Collection<? extends PrunableEntity> entities);
+
 }
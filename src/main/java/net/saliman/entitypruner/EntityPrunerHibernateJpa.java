@@ -1,37 +1,50 @@
 package net.saliman.entitypruner;
 
 import java.io.Serializable;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.PostConstruct;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.persistence.EntityManager;
-import javax.persistence.Id;
-import javax.persistence.OneToMany;
-import javax.persistence.OneToOne;
+import javax.persistence.EntityManagerFactory;
 import javax.persistence.PersistenceContext;
-import javax.persistence.Transient;
+import javax.persistence.metamodel.EntityType;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
 import org.hibernate.collection.PersistentCollection;
 import org.hibernate.collection.PersistentList;
 import org.hibernate.collection.PersistentSet;
 import org.hibernate.collection.PersistentSortedSet;
 import org.hibernate.ejb.EntityManagerImpl;
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.impl.SessionImpl;
+import org.hibernate.intercept.AbstractFieldInterceptor;
+import org.hibernate.intercept.FieldInterceptionHelper;
+import org.hibernate.intercept.FieldInterceptor;
+import org.hibernate.intercept.LazyPropertyInitializer;
 import org.hibernate.proxy.HibernateProxy;
 import org.hibernate.proxy.LazyInitializer;
 import org.slf4j.Logger;
@@ -46,16 +59,17 @@ import org.springframework.transaction.annotation.Transactional;
  * container using a JPA transaction manager.
  * <p>
  * Entities must implement the {@link PrunableEntity} interface to be pruned
- * with this class.  This implementation is designed to work with entities 
- * that annotated at a field level.  It will still try to prune entities 
- * annotated at a method level, but you probably won't be very happy with the 
- * results.
+ * with this class.  This implementation reads and writes values through
+ * the entity's get and set methods, falling back to the fields themselves.
  * <p>
  * This class is heavily dependent on the JPA provider and the types of
  * collections Entities have.  This implementation only works with Hibernate, 
  * and at the moment, child collections must be either a <code>Set</code>,
- * <code>SortedSet</code> or <code>List</code>.  In Addition, the entities 
- * must use field annotations and not method annotations.
+ * <code>SortedSet</code> or <code>List</code>.  Associations are read from
+ * Hibernate's mapping metadata when the entity manager gives us access to
+ * it, so entities can be mapped with field annotations, method annotations
+ * or XML, as long as each attribute has a field with the same name.  If we
+ * can't get to the metadata, the entities must use field annotations.
  * <p>
  * Since the EntityPruner logs its activity, we recommend Entities implement
  * a <code>toString()</code> method.
@@ -73,10 +87,64 @@ import org.springframework.transaction.annotation.Transactional;
 public class EntityPrunerHibernateJpa implements EntityPruner {
     /** logger for the class */
     private static final Logger LOG = LoggerFactory.getLogger(EntityPruner.class);
+    /**
+     * The depth we prune to when no depth is given.  If we have an object
+     * graph more than 999 levels deep, we've got much bigger problems than
+     * the obvious bug this hard coded level will cause.
+     */
+    private static final int DEFAULT_DEPTH = 999;
+    /** The default for {@link #setParallelThreshold(int)}. */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1000;
+    /**
+     * System property with the smallest batch to prune in parallel, for
+     * containers where we can't call {@link #setParallelThreshold(int)}.
+     */
+    public static final String PARALLEL_THRESHOLD_PROPERTY =
+        "net.saliman.entitypruner.parallelThreshold";
+    /**
+     * System property that turns on warm-up when the container creates the
+     * first pruner in the class loader.  The property is read once, when
+     * the class is loaded.
+     * Use <code>true</code> to warm up on the container's thread, or
+     * <code>parallel</code> to warm up on a fork-join pool that is only
+     * kept until warm-up is done.
+     */
+    public static final String WARM_UP_PROPERTY = "net.saliman.entitypruner.warmUp";
+    /**
+     * System property that controls whether entities that weren't compiled
+     * with the {@link PrunableEntityProcessor} get an accessor generated the
+     * first time they are used.  Generated accessors call the entity's
+     * getters and setters directly, which the JIT compiler can inline.  The
+     * default is <code>true</code>; use <code>false</code> to read and write
+     * those entities through method handles instead, if an environment
+     * won't let us define classes.
+     */
+    public static final String GENERATE_ACCESSORS_PROPERTY =
+        "net.saliman.entitypruner.generateAccessors";
     
     @PersistenceContext(unitName="default")
     protected EntityManager entityManager;
 
+    /** Hibernate's view of the entities, built the first time we need it. */
+    private volatile AssociationGraph associationGraph;
+    /** Whether or not we've already tried to build the graph. */
+    private volatile boolean graphLoaded = false;
+
+    private static volatile int parallelThreshold =
+        Integer.getInteger(PARALLEL_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_THRESHOLD);
+
+    private static final boolean WARM_UP_ON_STARTUP =
+        Boolean.getBoolean(WARM_UP_PROPERTY)
+        || "parallel".equals(System.getProperty(WARM_UP_PROPERTY));
+    private static final boolean PARALLEL_WARM_UP =
+        "parallel".equals(System.getProperty(WARM_UP_PROPERTY));
+    /**
+     * Whether a pruner has already started warming up.  Containers create
+     * many pruners, but the metadata is shared, so only the first one needs
+     * to do it.
+     */
+    private static final AtomicBoolean warmUpStarted = new AtomicBoolean(false);
+
 	/**
      * Prune the given entity to prepare it for serializing for RMI, or
      * Marshalling to XML for SOAP or REST. It is very important that this 
@@ -100,7 +168,8 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * 2) Removal of circular references. This method tries to detect 
      *    bidirectional associations, and when found, the child's parent
      *    reference is set to null to prevent XML serialization problems.
-     *    This method uses the persistence annotations to detect these 
+     *    This method uses Hibernate's mappings (or the persistence
+     *    annotations) to detect these 
      *    bidirectional associations, which means that if an entity contains
      *    a <code>Transient</code> collection of entities that refer back to
      *    the parent, the circular reference will remain.  It is up to the
@@ -125,12 +194,8 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
     @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     @Override
     public void prune(PrunableEntity entity) {
-        // If we have an object graph more than 999 levels deep, we've 
-        // got much bigger problems than the obvious bug this hard coded
-        // level will cause.
-    	Map<String, String> options = new HashMap<String, String>();
-    	options.put(Options.DEPTH, Integer.toString(999));
-    	prune(entity, options);
+        // Without a depth, we use the default depth of 999.
+    	prune(entity, PruneSpec.ALL);
     }
 
     /**
@@ -177,9 +242,7 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      */
     @Override
     public void prune(PrunableEntity entity, int depth) {
-    	Map<String, String> options = new HashMap<String, String>();
-    	options.put(Options.DEPTH, Integer.toString(depth));
-    	prune(entity, options);
+    	prune(entity, PruneSpec.forDepth(depth));
     }
 
     /**
@@ -224,15 +287,22 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * moment, the EntityPruner supports the following options in the options
      * map:<br>
      * <code>include</code> a comma separated list of child collections to
-     * include in the results.  If null, all children will be loaded.<br>
+     * include in the results.  If null, all children will be loaded.  Paths
+     * like <code>children.grandchildren</code> include collections further
+     * down the graph.  See {@link PruneSpec} for the path syntax.<br>
      * <code>select</code> a comma separated list of attributes to include
      * in the results.  Having the names of a collection in the select option
-     * will have no effect on the results.  If there are no selects, all
-     * attributes will be loaded.<br>
+     * will have no effect on the results, but a path through a collection,
+     * like <code>children(code,description)</code>, selects attributes of
+     * the children.  If there are no selects, all attributes will be
+     * loaded.<br>
      * <code>depth</code> the maximum number of levels we want in the pruned
      * entity.  Use 1 for the entity itself, 2 for the entity and its children,
      * etc.  This attribute is secondary to the include or select attributes.
-     * The default is 1.<br>
+     * If no depth is given, the whole graph is pruned.<br>
+     * <code>traversal</code> the order to walk the graph in, either
+     * <code>depth_first</code> (the default) or <code>breadth_first</code>.
+     * See {@link Options#TRAVERSAL}.<br>
      * It is important to remember that pruning is done outside a transaction.
      * Specifying an include or select will <b>not</b> cause the EntityPruner
      * to fetch missing data from the database.  If you are specifying 
@@ -242,7 +312,13 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * <p>
      * When specifying both a depth and options, the <code>EntityPruner</code>
      * will include collections in the options, and then prune them to the 
-     * given depth.
+     * given depth.  An entity that can be reached through more than one path
+     * is pruned to the depth of the shortest one.
+     * <p>
+     * Every call prunes the whole graph it can reach, even entities that
+     * were pruned by an earlier call, so an entity can be pruned again with
+     * different options.  Data that was pruned out can't be restored though,
+     * so pruning again can only remove more.
      * @param entity the {@link PrunableEntity} to pruned
      * @param options a map of options and values, patterned after the Ruby on
      *        Rails conventions.
@@ -252,61 +328,264 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
     @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
     @Override
     public void prune(PrunableEntity entity, Map<String, String> options) {
+        prune(entity, PruneSpec.fromOptions(options));
+    }
+
+    /**
+     * Prune the given entity the way the given {@link PruneSpec} says.  This
+     * works exactly like {@link #prune(PrunableEntity, Map)}, but since the
+     * spec has already been parsed, a caller that prunes the same way over
+     * and over can build the spec once and keep it.
+     * @param entity the {@link PrunableEntity} to pruned
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem.
+     */
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    @Override
+    public void prune(PrunableEntity entity, PruneSpec spec) {
         // toString may be expensive...
-        LOG.trace("prune(PrunableEntity, int, String)");
+        LOG.trace("prune(PrunableEntity, PruneSpec)");
 
-        // First things first.  See if we've already started this one
         if ( entity == null ) {
         	return;
         }
-        // If we don't have a state when we start pruning, assume that we 
-        // created a new entity on the server and didn't specify a value.
-        // Assume unpruned and complete.
-        if ( entity.getPruningState() == null ) {
-        	entity.setPruningState(PruningState.UNPRUNED_COMPLETE);
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
         }
-        if ( entity.getPruningState().equals(PruningState.PRUNED_COMPLETE) ||
-        		entity.getPruningState().equals(PruningState.PRUNED_PARTIAL) ) {
+
+        // Walk the graph with a work queue instead of recursion so that deep
+        // graphs don't blow the stack.  Each entity is pruned with the part
+        // of the spec for the path that reached it.
+        // If no depth was given, use a large number.
+        Traversal traversal = new Traversal(entity,
+                spec.getDepth(DEFAULT_DEPTH), spec, spec.isBreadthFirst());
+        pruneAll(traversal, null, spec.isNoLoad());
+        finishPruning(traversal);
+    }
+
+    /**
+     * Prune a batch of entities, such as the results of a query, the way the
+     * given {@link PruneSpec} says.  The result is the same as pruning a
+     * single entity that held all of them in a collection: an entity that
+     * can be reached from more than one of them is pruned to the depth of
+     * the shortest path from any of them.
+     * <p>
+     * Pruning only looks at what Hibernate has already loaded, and never
+     * asks it for more, so once we've made sure we have Hibernate's mapping
+     * metadata, the work doesn't need the entity manager.  This prunes
+     * every batch on the caller's thread, since we don't start threads a
+     * container doesn't know about.  Use
+     * {@link #prune(Collection, PruneSpec, ForkJoinPool)} to prune on a pool.
+     * @param entities the entities to prune.  Nulls are ignored.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem.
+     */
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    @Override
+    public void prune(Collection<? extends PrunableEntity> entities,
+            PruneSpec spec) {
+        prune(entities, spec, null);
+    }
+
+    /**
+     * Prune a batch of entities the way
+     * {@link #prune(Collection, PruneSpec)} does, on the threads of the
+     * given pool.  Batches of at least {@link #getParallelThreshold()}
+     * entities are split up and pruned in parallel; smaller ones are pruned
+     * on the caller's thread, since splitting them up costs more than it
+     * saves.  Entities shared by several of them are only ever pruned by one
+     * thread at a time, and each one is only given its final state once all
+     * the threads are done.
+     * <p>
+     * The pool belongs to the caller, and is never shut down by the pruner.
+     * @param entities the entities to prune.  Nulls are ignored.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @param pool the pool to prune on, or <code>null</code> to prune on
+     *        the caller's thread.
+     * @throws IllegalStateException if there is a problem.
+     */
+    @Transactional(propagation=Propagation.NOT_SUPPORTED)
+    @TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    @Override
+    public void prune(Collection<? extends PrunableEntity> entities,
+            PruneSpec spec, ForkJoinPool pool) {
+        LOG.trace("prune(Collection, PruneSpec, ForkJoinPool)");
+        if ( entities == null || entities.isEmpty() ) {
             return;
         }
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
+        }
+        // Make sure the worker threads won't need the entity manager to find
+        // the mappings.
+        loadAssociationGraph();
 
-        // Convert the options into sets of unique keys.
-        String []split = {};
-        Set<String> includeSet = null;
-        if ( options != null && options.containsKey(Options.INCLUDE) ) {
-        	includeSet = new HashSet<String>();
-        	split = options.get(Options.INCLUDE).split(",");
-            for ( String i : split ) {
-            	includeSet.add(i.trim());
+        List<PrunableEntity> roots = new ArrayList<PrunableEntity>(entities);
+        int depth = spec.getDepth(DEFAULT_DEPTH);
+        if ( roots.size() < parallelThreshold || pool == null
+             || pool.getParallelism() < 2 ) {
+            Traversal traversal = new Traversal(roots, depth, spec,
+                                                spec.isBreadthFirst(), null);
+            pruneAll(traversal, null, spec.isNoLoad());
+            finishPruning(traversal);
+            return;
+        }
+        // Give each thread a few chunks, so a chunk with a lot of children
+        // doesn't leave the other threads waiting.
+        int chunk = Math.max(1, roots.size() / (pool.getParallelism() * 4));
+        PruneTask task = new PruneTask(roots, 0, roots.size(), chunk, depth,
+                                       spec, new Traversal.VisitTable());
+        pool.invoke(task);
+        for ( Traversal traversal : task.getTraversals() ) {
+            finishPruning(traversal);
+        }
+    }
+
+    /**
+     * Populate the given entity the way
+     * {@link EntityUtil#populateEntity(PrunableEntity, Map)} would, and
+     * prune it the way {@link #prune(PrunableEntity, Map)} would, in one
+     * call.  See {@link #populateAndPrune(PrunableEntity, PruneSpec)}.
+     * @param entity the {@link PrunableEntity} to populate and prune.
+     * @param options a map of options and values, patterned after the Ruby on
+     *        Rails conventions.
+     * @throws IllegalStateException if there is a problem.
+     */
+    @Transactional(propagation=Propagation.SUPPORTS)
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    @Override
+    public void populateAndPrune(PrunableEntity entity, Map<String, String> options) {
+        populateAndPrune(entity, PruneSpec.fromOptions(options));
+    }
+
+    /**
+     * Populate the given entity the way
+     * {@link EntityUtil#populate(PrunableEntity, PruneSpec)} would,
+     * and prune it the way {@link #prune(PrunableEntity, PruneSpec)} would,
+     * in one walk of the graph.  The graph is walked breadth first, one
+     * level at a time.  The proxies and collections the spec asks for at a
+     * level are loaded in batches, the same way populateEntity does it, then
+     * each entity at the level is initialized, de-proxied and pruned, which
+     * finds the entities at the next level.  When the spec has no depth, the
+     * graph is populated to a depth of 1, like populateEntity, and pruned
+     * to the same depth as <code>prune</code>, so parts of the graph that
+     * were already loaded are kept.
+     * <p>
+     * Entities that the spec doesn't ask us to populate, such as parents
+     * that aren't on an include or select path, are pruned once everything
+     * has been populated, so that a longer path can still populate them
+     * first.  An entity that is populated for one path, and later reached by
+     * another path that would populate more of it, is not populated again,
+     * since it has already been pruned.
+     * <p>
+     * Unlike <code>prune</code>, this needs the session the entity was
+     * loaded in, so it should be called from inside the transaction that
+     * loaded it.  Pruning changes the entities, which Hibernate must not
+     * save, so the session won't flush until we're done, and then every
+     * entity in the pruned graph is evicted from it.  Each one is evicted
+     * with the collections Hibernate gave it, so Hibernate evicts them with
+     * it, along with anything the mappings cascade evictions to, and then
+     * it gets its pruned collections back.  Entities are only evicted at the
+     * end, so Hibernate never has to load an entity we've already taken out
+     * of the session.  The rest of the session is left alone.
+     * @param entity the {@link PrunableEntity} to populate and prune.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @throws IllegalStateException if there is a problem, or if the
+     *         entity manager isn't backed by a Hibernate session.
+     */
+    @Transactional(propagation=Propagation.SUPPORTS)
+    @TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    @Override
+    public void populateAndPrune(PrunableEntity entity, PruneSpec spec) {
+        LOG.trace("populateAndPrune(PrunableEntity, PruneSpec)");
+        if ( entity == null ) {
+            return;
+        }
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
+        }
+        SessionImpl session = entityManager == null ? null : findSession();
+        if ( session == null ) {
+            throw new IllegalStateException("Can't populate an instance of " +
+                    entity.getClass() + ": there is no Hibernate session");
+        }
+        // If no depth was given, populate the way populateEntity does, and
+        // prune the way prune does.
+        Population population = new Population(session);
+        population.add(entity, spec, spec.getDepth(1));
+        Traversal traversal = new Traversal(entity,
+                spec.getDepth(DEFAULT_DEPTH), spec, true);
+        FlushMode flushMode = session.getFlushMode();
+        session.setFlushMode(FlushMode.MANUAL);
+        try {
+            populateAndPruneAll(traversal, population, spec.isNoLoad());
+            finishPruning(traversal);
+        } finally {
+            try {
+                // Even if we failed, nothing we changed may be saved.
+                evictAll(traversal, population);
+            } finally {
+                session.setFlushMode(flushMode);
             }
         }
-        
-        Set<String> selectSet = null;
-        if ( options != null && options.containsKey(Options.SELECT) ) {
-        	selectSet = new HashSet<String>();
-        	split = options.get(Options.SELECT).split(",");
-            for ( String i : split ) {
-            	selectSet.add(i.trim());
+    }
+
+    /**
+     * Helper method that prunes every entity a traversal gives us.  If the
+     * traversal is sharing its visits with other threads, each entity is
+     * locked while we prune it.
+     * @param traversal the traversal with the entities to prune.
+     * @param population the entities we populated, which need to be
+     *        evicted once they are pruned, or <code>null</code> if we're
+     *        only pruning.
+     * @param noLoad whether or not to prune without loading anything.
+     * @throws IllegalStateException if there is a problem.
+     */
+    private void pruneAll(Traversal traversal, Population population,
+            boolean noLoad) {
+        Traversal.Step step = traversal.next();
+        while ( step != null ) {
+            Object lock = traversal.getLock(step.getEntity());
+            if ( lock == null ) {
+                pruneEntity(step, traversal, population, noLoad);
+            } else {
+                synchronized ( lock ) {
+                    pruneEntity(step, traversal, population, noLoad);
+                }
             }
+            step = traversal.next();
         }
-        // If no depth was given, use a large number.
-        int depth = 999;
-        if ( options != null && options.containsKey(Options.DEPTH) ) {
-        	String depthStr = options.get(Options.DEPTH);
-        	try {
-        		depth = Integer.parseInt(depthStr);
-        	} catch(NumberFormatException nfe) {
-        		throw new IllegalArgumentException(depthStr +
-        				" is not a valid depth");
-        	}
-        }
-
-        // When we prune children, they may cause recursive calls to prune.
-        // Mark this as pruned so those recursive calls don't attempt to do it
-        // again.  At this point, assume we're producing a complete entity 
-        // until we discover otherwise.
-        entity.setPruningState(PruningState.PRUNED_COMPLETE);
-        
+    }
+
+    /**
+     * Helper method that prunes a single entity in the graph.  Entities that
+     * it refers to are added to the traversal to be pruned later, instead
+     * of being pruned recursively.  This may be called more than once for
+     * the same entity if it is reached again by a shorter path, so it needs
+     * to be safe to prune an entity again with a greater depth.
+     * @param step the step with the entity to prune, the depth to prune
+     *        it to (1 for just the entity, 2 for children, etc.), and the
+     *        spec with the collections and attributes to include.
+     * @param traversal the traversal that will prune the entities this one
+     *        refers to.
+     * @param population the entities we populated, which need to be
+     *        evicted once they are pruned, or <code>null</code> if we're
+     *        only pruning.
+     * @param noLoad whether or not to prune without loading anything.
+     * @throws IllegalStateException if there is a problem.
+     */
+    private void pruneEntity(Traversal.Step step, Traversal traversal,
+            Population population, boolean noLoad) {
+        PrunableEntity entity = step.getEntity();
+        int depth = step.getDepth();
+        PruneSpec spec = step.getSpec();
+        Traversal.Visit visit = step.getVisit();
         // We can't use the entity's toString() because some entities use 
         // parent objects in their toString() methods, which could be 
         // uninitialized proxies.  This means the entity itself can't be part
@@ -314,41 +593,77 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
         String msg = "Error pruning an instance of " + entity.getClass() + 
                      ": ";
         try {
-            List<Field> fields = ReflectionUtil.loadBeanFields(entity.getClass(), true);
-            for ( Field field : fields ) {
-                field.setAccessible(true);
-                Object value = getValue(field, entity);
+            PruningPlan plan = loadPlan(entity.getClass());
+            // Lazy properties live in the real entity, so we need it, and its
+            // interceptor, to know which ones Hibernate has loaded.
+            if ( entity instanceof HibernateProxy ) {
+                LazyInitializer initializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+                if ( !initializer.isUninitialized() ) {
+                    entity = (PrunableEntity)initializer.getImplementation();
+                }
+            }
+            FieldInterceptor interceptor = FieldInterceptionHelper.extractFieldInterceptor(entity);
+            for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                if ( interceptor != null && !interceptor.isInitialized(attribute.getName()) ) {
+                    // A lazy property Hibernate hasn't loaded.  Reading it
+                    // would load it, so leave it out.  It is treated like an
+                    // uninitialized proxy: if it is a parent whose id we can
+                    // find, we record the id, otherwise we record that it
+                    // wasn't loaded, so un-pruning doesn't take the null
+                    // for a value the client removed.  A basic property
+                    // that was left out makes the entity partial, just like
+                    // one that wasn't selected.
+                    if ( attribute.getKind() != FieldKind.PRIMITIVE ) {
+                        attribute.setFieldValue(entity, null);
+                    }
+                    Serializable unloadedId = null;
+                    if ( attribute.getKind() == FieldKind.ENTITY ) {
+                        unloadedId = findUnloadedId(entity, attribute, interceptor);
+                    }
+                    if ( unloadedId != null ) {
+                        recordId(entity, plan, attribute, unloadedId);
+                    } else {
+                        recordNotLoaded(entity, plan, attribute);
+                    }
+                    if ( attribute.getKind() != FieldKind.ENTITY
+                            && !attribute.getKind().isCollection() ) {
+                        visit.setPartial();
+                    }
+                    continue;
+                }
+                Object value = readValue(entity, attribute, interceptor, noLoad);
                 if ( value != null ) {
-                    if ( PrunableEntity.class.isAssignableFrom(value.getClass()) ) {
+                    if ( value instanceof PrunableEntity ) {
                         // If this is another Prunable entity, and we want to
                     	// include it, then de-proxy it, and set the field's 
                     	// value to the de-proxied value and prune it.
-                    	if ( selectSet != null &&
-                    			!selectSet.contains(field.getName()) ) {
-                    		field.set(entity, null);
-                    		entity.setPruningState(PruningState.PRUNED_PARTIAL);
+                    	if ( !spec.selects(attribute.getName()) ) {
+                    		attribute.setFieldValue(entity, null);
+                    		visit.setPartial();
                     	} else {
-                    		value = deproxy(entity, value, field.getName(), field.getType());
-                    		field.set(entity, value);
-                    		prune((PrunableEntity)value, depth-1);
+                    		value = deproxy(entity, value, plan, attribute);
+                    		attribute.setFieldValue(entity, value);
+                    		traversal.add((PrunableEntity)value, depth-1,
+                    		              spec.child(attribute.getName()));
                     	}
-                    } else if ( Collection.class.isAssignableFrom(field.getType()) ) {
+                    } else if ( attribute.getKind().isCollection() ) {
                         // Handle Collections. We already know it's not null,
                         // but we need to replace proxy collections with
                         // non proxy collections, or possibly prune out
                         // the collection.
-                        pruneCollection(entity, depth, includeSet, (Collection<?>)value, field);
+                        pruneCollection(entity, plan, depth, spec,
+                                        (Collection<?>)value, attribute,
+                                        traversal, visit, population);
                     } else {
                     	// This isn't a Prunable, or a collection, If we have
                     	// a "select" list, and it doesn't contain the current
                     	// attribute, prune it out and set the entity to a
                     	// partial state.  We can only do this if we're not
                     	// primitive - primitives can't be null.
-                    	if ( selectSet != null && 
-                    			!selectSet.contains(field.getName()) &&
-                    			!isPrimitive(field) ) {
-                    		field.set(entity, null);
-                    		entity.setPruningState(PruningState.PRUNED_PARTIAL);
+                    	if ( !spec.selects(attribute.getName()) &&
+                    			attribute.getKind() != FieldKind.PRIMITIVE ) {
+                    		attribute.setFieldValue(entity, null);
+                    		visit.setPartial();
                     	}
                     }
                 }
@@ -365,12 +680,300 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
         } catch (IllegalArgumentException e) {
             msg = msg + e.getMessage();
             throw new IllegalStateException(msg, e);
-        } catch (NoSuchMethodException e) {
+        }
+    }
+
+    /**
+     * Helper method to read an attribute of an entity we're pruning.
+     * Normally we use the getter, but in no-load mode (see
+     * {@link Options#NO_LOAD}), associations, and every attribute of an
+     * entity with lazy properties, are read straight from the field so that
+     * nothing in a getter can make Hibernate go to the database.
+     * @param entity the entity.
+     * @param attribute the attribute to read.
+     * @param interceptor the Hibernate interceptor for the entity's lazy
+     *        properties, or <code>null</code> if it doesn't have one.
+     * @param noLoad whether or not we're in no-load mode.
+     * @return the value of the attribute.
+     * @throws InvocationTargetException if the value can't be read.
+     */
+    private Object readValue(PrunableEntity entity, PruningPlan.Attribute attribute,
+            FieldInterceptor interceptor, boolean noLoad)
+            throws InvocationTargetException {
+        if ( noLoad && (interceptor != null
+                        || attribute.getKind() == FieldKind.ENTITY
+                        || attribute.getKind().isCollection()) ) {
+            return attribute.getFieldValue(entity);
+        }
+        return attribute.getValue(entity);
+    }
+
+    /**
+     * Helper method to populate and prune every entity a breadth-first
+     * traversal gives us, one level at a time.  Before we look at a level,
+     * we gather up every uninitialized proxy and collection we are going to
+     * need from it, and load them in batches (see {@link BatchLoader}), so
+     * initializing them afterwards doesn't need to go to the database.  Then
+     * each entity at the level is pruned, which adds the entities at the
+     * next level to the traversal.  Entities the population didn't reach
+     * are put aside, and pruned once there is nothing left to populate.
+     * @param traversal the breadth-first traversal to prune.
+     * @param population the entities to populate.
+     * @param noLoad whether or not to prune without loading anything.
+     * @throws IllegalStateException if there is a problem.
+     */
+    private void populateAndPruneAll(Traversal traversal,
+            Population population, boolean noLoad) {
+        List<Traversal.Step> postponed = new ArrayList<Traversal.Step>();
+        List<Traversal.Step> level = traversal.nextLevel();
+        while ( !level.isEmpty() ) {
+            List<Traversal.Step> steps = new ArrayList<Traversal.Step>(level.size());
+            List<Population.Reach> reaches = new ArrayList<Population.Reach>(level.size());
+            for ( Traversal.Step step : level ) {
+                Population.Reach reach = population.getReach(step.getEntity(),
+                                                             step.getSpec());
+                if ( reach == null ) {
+                    postponed.add(step);
+                } else {
+                    steps.add(step);
+                    reaches.add(reach);
+                }
+            }
+            // The entities at this level may be proxies themselves, if they
+            // came from a collection.
+            BatchLoader loader = new BatchLoader(EntityUtil.getBatchSize());
+            for ( Population.Reach reach : reaches ) {
+                loader.add(reach.entity);
+            }
+            loader.load();
+            List<Population.Pending> pending = new ArrayList<Population.Pending>();
+            for ( Population.Reach reach : reaches ) {
+                findPending(reach, pending, loader);
+            }
+            loader.load();
+            for ( Population.Pending p : pending ) {
+                populate(p, population);
+            }
+            for ( Traversal.Step step : steps ) {
+                pruneEntity(step, traversal, population, noLoad);
+            }
+            level = traversal.nextLevel();
+        }
+        for ( Traversal.Step step : postponed ) {
+            pruneEntity(step, traversal, population, noLoad);
+        }
+        pruneAll(traversal, population, noLoad);
+    }
+
+    /**
+     * Helper method to find the attributes of an entity that we need to
+     * populate, with the same rules {@link EntityUtil} uses.  Proxies and
+     * collections that haven't been loaded are added to the loader, except
+     * for collections with a {@link CollectionWindow}, since we only want
+     * to load their windows.
+     * @param reach the entity, and how to populate it.
+     * @param pending the list to add the attributes we need to.
+     * @param loader the loader for the next batch.
+     * @throws IllegalStateException if a value can't be read.
+     */
+    private void findPending(Population.Reach reach,
+            List<Population.Pending> pending, BatchLoader loader) {
+        PrunableEntity entity = reach.entity;
+        String msg = "Error populating an instance of " + entity.getClass() + ": ";
+        try {
+            if ( entity instanceof HibernateProxy ) {
+                // Already loaded by the batch, if it could be.
+                LazyInitializer initializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+                initializer.initialize();
+                entity = (PrunableEntity)initializer.getImplementation();
+            }
+            PruningPlan plan = loadPlan(entity.getClass());
+            for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                if ( !isWanted(attribute, reach.spec, reach.depth) ) {
+                    continue;
+                }
+                Object value = attribute.getValue(entity);
+                if ( value == null ) {
+                    continue;
+                }
+                if ( reach.spec.getWindow(attribute.getName()) == null ) {
+                    loader.add(value);
+                }
+                pending.add(new Population.Pending(reach, attribute, value));
+            }
+        } catch (InvocationTargetException e) {
             msg = msg + e.getMessage();
             throw new IllegalStateException(msg, e);
         }
     }
 
+    /**
+     * Helper method to populate one attribute, once everything it needs has
+     * been loaded.  Proxies are initialized, collections are iterated, or
+     * have their windows loaded, and the entities we need to follow are
+     * added to the population.
+     * @param pending the attribute to populate.
+     * @param population the entities that still need to be populated.
+     */
+    private void populate(Population.Pending pending, Population population) {
+        PruneSpec spec = pending.reach.spec;
+        int depth = pending.reach.depth;
+        String name = pending.attribute.getName();
+        PruneSpec childSpec = spec.child(name);
+        Object value = pending.value;
+        if ( value instanceof HibernateProxy ) {
+            LazyInitializer initializer = ((HibernateProxy)value).getHibernateLazyInitializer();
+            initializer.initialize();
+            value = initializer.getImplementation();
+        }
+        if ( value instanceof Collection ) {
+            // the iterator causes the children to be loaded, if the loader
+            // couldn't do it.
+            Collection<?> children = (Collection<?>)value;
+            CollectionWindow window = spec.getWindow(name);
+            if ( window != null ) {
+                children = EntityUtil.loadWindow(pending.reach.entity, children,
+                                                 pending.attribute, window);
+            }
+            for ( Object child : children ) {
+                // child needs one less than parent
+                population.add(child, childSpec, depth-1);
+            }
+        } else if ( childSpec != PruneSpec.ALL && value instanceof PrunableEntity ) {
+            // Only follow the entity if a path goes through it.
+            population.add(value, childSpec, depth-1);
+        }
+    }
+
+    /**
+     * Helper method to decide if an attribute should be populated.  We want
+     * an attribute if it is in the include or select list, or if we don't
+     * have a list and the depth is &gt; 1 for collections, &gt; 0 for
+     * entities.  These are the same rules {@link EntityUtil} uses.
+     * @param attribute the attribute.
+     * @param spec the spec for the entity.
+     * @param depth the depth to populate the entity to.
+     * @return <code>true</code> if the attribute should be populated.
+     */
+    private static boolean isWanted(PruningPlan.Attribute attribute,
+            PruneSpec spec, int depth) {
+        String name = attribute.getName();
+        if ( attribute.getKind() == FieldKind.ENTITY ) {
+            boolean selected = spec.hasSelects() && spec.selects(name);
+            return selected || (!spec.hasSelects() && depth > 0);
+        } else if ( attribute.getKind().isCollection() ) {
+            boolean included = spec.hasIncludes() && spec.includes(name);
+            return included || (!spec.hasIncludes() && depth > 1);
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to detach every entity a traversal visited from the
+     * session, so that pruning them can't change what Hibernate saves.  This
+     * includes entities we didn't populate, since a parent we only select is
+     * pruned too.  Each entity is evicted with the collections Hibernate gave
+     * it, so Hibernate evicts them with it, and won't see them as
+     * dereferenced when it flushes.  Then it gets its pruned collections
+     * back.
+     * @param traversal the traversal that did the pruning.
+     * @param population the entities we populated, with the collections
+     *        Hibernate gave them.
+     * @throws IllegalStateException if a collection can't be swapped.
+     */
+    private void evictAll(Traversal traversal, Population population) {
+        SessionImpl session = population.getSession();
+        for ( Traversal.Visit visit : traversal.getVisits() ) {
+            PrunableEntity entity = visit.getEntity();
+            Object real = entity;
+            if ( entity instanceof HibernateProxy ) {
+                LazyInitializer initializer = ((HibernateProxy)entity).getHibernateLazyInitializer();
+                if ( !initializer.isUninitialized() ) {
+                    real = initializer.getImplementation();
+                }
+            }
+            Map<PruningPlan.Attribute, Object> kept = population.getKept(real);
+            Map<PruningPlan.Attribute, Object> pruned = swap(real, kept);
+            try {
+                // If it isn't in the session, it came from somewhere else,
+                // or the mappings cascaded an eviction to it.
+                if ( session.contains(entity) ) {
+                    session.evict(entity);
+                }
+            } finally {
+                swap(real, pruned);
+            }
+        }
+    }
+
+    /**
+     * Helper method to put values into an entity's fields.
+     * @param entity the entity.
+     * @param values the values to put in, by attribute.  May be
+     *        <code>null</code>.
+     * @return the values the fields had before, or <code>null</code> if we
+     *         weren't given any values.
+     * @throws IllegalStateException if a value can't be swapped.
+     */
+    private Map<PruningPlan.Attribute, Object> swap(Object entity,
+            Map<PruningPlan.Attribute, Object> values) {
+        if ( values == null ) {
+            return null;
+        }
+        Map<PruningPlan.Attribute, Object> old =
+            new HashMap<PruningPlan.Attribute, Object>(values.size());
+        try {
+            for ( Map.Entry<PruningPlan.Attribute, Object> entry : values.entrySet() ) {
+                old.put(entry.getKey(), entry.getKey().getFieldValue(entity));
+                entry.getKey().setFieldValue(entity, entry.getValue());
+            }
+        } catch (IllegalAccessException e) {
+            String msg = "Error evicting an instance of " + entity.getClass() +
+                         ": " + e.getMessage();
+            throw new IllegalStateException(msg, e);
+        } catch (InvocationTargetException e) {
+            String msg = "Error evicting an instance of " + entity.getClass() +
+                         ": " + e.getMessage();
+            throw new IllegalStateException(msg, e);
+        }
+        return old;
+    }
+
+    /**
+     * Helper method to finish pruning once the traversal has visited every
+     * entity in the graph.  Now that we know the final depth of each entity,
+     * we can drop the collections that were too deep to keep, then we set
+     * the pruning state of each entity.  An entity that was already partial
+     * stays partial.
+     * @param traversal the traversal that did the pruning.
+     * @throws IllegalStateException if there is a problem.
+     */
+    private void finishPruning(Traversal traversal) {
+        for ( Traversal.Visit visit : traversal.getVisits() ) {
+            PrunableEntity entity = visit.getEntity();
+            if ( visit.getDepth() <= 1 ) {
+                for ( PruningPlan.Attribute attribute : visit.getDeferred() ) {
+                    try {
+                        attribute.setValue(entity, null);
+                    } catch (IllegalAccessException e) {
+                        String msg = "Error pruning an instance of " +
+                                     entity.getClass() + ": " + e.getMessage();
+                        throw new IllegalStateException(msg, e);
+                    } catch (InvocationTargetException e) {
+                        String msg = "Error pruning an instance of " +
+                                     entity.getClass() + ": " + e.getMessage();
+                        throw new IllegalStateException(msg, e);
+                    }
+                }
+            }
+            if ( visit.isPartial() || PruningFlags.isPartial(visit.getInitialFlags()) ) {
+                PruningFlags.set(entity, PruningFlags.PRUNED_PARTIAL);
+            } else {
+                PruningFlags.set(entity, PruningFlags.PRUNED_COMPLETE);
+            }
+        }
+    }
+
     /**
      * Un-prune the given entity so it can be saved by Hibernate.  Basically
      * this means replacing <code>null</code> collections with new 
@@ -394,63 +997,136 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
     @Override
     public void unprune(PrunableEntity entity) {
         LOG.trace("unprune(PrunableEntity)");
-        // bail if we're already un-pruned.  This avoids loops. The unpruner
-        // assumes that if the pruning state is missing, a client is giving
-        // us a partial object, since complete objects should have had a state.
-        // Assume a partially pruned state.
-        if ( entity == null ) {
+        // bail if we're already un-pruned.
+        if ( entity == null || PruningFlags.isUnpruned(PruningFlags.get(entity)) ) {
         	return;
         }
-        if ( entity.getPruningState() == null ) {
-        	entity.setPruningState(PruningState.PRUNED_PARTIAL);
-        }
-        if ( entity.getPruningState().equals(PruningState.UNPRUNED_COMPLETE) ||
-        		entity.getPruningState().equals(PruningState.UNPRUNED_PARTIAL) ) {
+        unpruneAll(new Traversal(entity, 0, false));
+    }
+
+    /**
+     * Un-prune a batch of entities so they can be saved by Hibernate.  Each
+     * entity is un-pruned the same way {@link #unprune(PrunableEntity)}
+     * would, but an entity that can be reached from more than one of them
+     * is only un-pruned once.
+     * <p>
+     * Un-pruning asks the Hibernate session for proxies, and sessions can't
+     * be shared between threads, so unlike pruning a batch, this always
+     * runs on the caller's thread.
+     * @param entities the entities to un-prune.  Nulls are ignored.
+     * @throws IllegalStateException if something goes wrong
+     */
+    @Transactional(propagation=Propagation.REQUIRED)
+    @TransactionAttribute(TransactionAttributeType.REQUIRED)
+    @Override
+    public void unprune(Collection<? extends PrunableEntity> entities) {
+        LOG.trace("unprune(Collection)");
+        if ( entities == null || entities.isEmpty() ) {
             return;
         }
-        
+        unpruneAll(new Traversal(entities, 0, PruneSpec.ALL, false, null));
+    }
+
+    /**
+     * Helper method that un-prunes every entity a traversal gives us, then
+     * sets their states.
+     * @param traversal the traversal with the entities to un-prune.
+     * @throws IllegalStateException if something goes wrong
+     */
+    private void unpruneAll(Traversal traversal) {
         // We're going to need to create new Hibernate proxy objects for 
         // uninitialized collections and parent entities.  When we do it for
         // parent entities, we need a SessionImpl, which we can get from the
         // EntitiyManager.
-        SessionImpl session = null;
-        Object delegate = entityManager.getDelegate();
-        if ( SessionImpl.class.isAssignableFrom(delegate.getClass()) ) {
-            session = ((SessionImpl)delegate);
-        } else if ( EntityManagerImpl.class.isAssignableFrom(delegate.getClass())){ 
-            session = (SessionImpl)((EntityManagerImpl)delegate).getSession();
-        } else {
-            LOG.warn("Can't refresh: " + delegate.getClass() +  " Is not a Session object");
+        SessionImpl session = findSession();
+        if ( session == null ) {
+            LOG.warn("Can't refresh: " + entityManager.getDelegate().getClass() +
+                     " Is not a Session object");
         }
 
-        // First matk set the appropriate state to avoid loops.
-        if ( entity.getPruningState().equals(PruningState.PRUNED_COMPLETE) ) {
-        	entity.setPruningState(PruningState.UNPRUNED_COMPLETE);
-        } else {
-        	entity.setPruningState(PruningState.UNPRUNED_PARTIAL);
+        // Walk the graph with a work queue instead of recursion so that deep
+        // graphs don't blow the stack.  Un-pruning doesn't have a depth.
+        Traversal.Step step = traversal.next();
+        while ( step != null ) {
+            unpruneEntity(step.getEntity(), step.getVisit(), session, traversal);
+            step = traversal.next();
+        }
+
+        // Now that we're done, set the states.  The unpruner assumes that if
+        // the pruning state is missing, a client is giving us a partial
+        // object, since complete objects should have had a state.
+        for ( Traversal.Visit visit : traversal.getVisits() ) {
+            byte state = visit.getInitialFlags();
+            if ( state == PruningFlags.PRUNED_COMPLETE && !visit.isPartial() ) {
+                PruningFlags.set(visit.getEntity(), PruningFlags.UNPRUNED_COMPLETE);
+            } else if ( !PruningFlags.isUnpruned(state) ) {
+                PruningFlags.set(visit.getEntity(), PruningFlags.UNPRUNED_PARTIAL);
+            }
+        }
+    }
+
+    /**
+     * Helper method that un-prunes a single entity in the graph.  Entities
+     * that it refers to are added to the traversal to be un-pruned later,
+     * instead of being un-pruned recursively.
+     * @param entity the entity to un-prune.
+     * @param visit what the traversal knows about the entity.
+     * @param session a Hibernate SessionImpl, used to ask Hibernate for proxy
+     *        objects.
+     * @param traversal the traversal that will un-prune the entities this
+     *        one refers to.
+     * @throws IllegalStateException if something goes wrong
+     */
+    private void unpruneEntity(PrunableEntity entity, Traversal.Visit visit,
+            SessionImpl session, Traversal traversal) {
+        // Entities that were never pruned, like ones that came straight from
+        // the database, have nothing to restore, and walking their
+        // collections could make Hibernate load them.
+        if ( PruningFlags.isUnpruned(visit.getInitialFlags()) ) {
+            return;
         }
+
         // We can't use the entity's toString() because some entities use 
         // parent objects in their toString() methods, which could be 
         // uninitialized proxies, which means we can't put the entity in the
         // error message
         String msg = "Error unpruning an instance of " + entity.getClass() + ": ";
         try {
-            List<Field> fields = ReflectionUtil.loadBeanFields(entity.getClass(), true);
-            Serializable entityId = findPrimaryKey(entity, fields);
-            for ( Field field : fields ) {
-                field.setAccessible(true);
-                Object value = getValue(field, entity);
-                if ( PrunableEntity.class.isAssignableFrom(field.getType()) ) {
+            PruningPlan plan = loadPlan(entity.getClass());
+            Serializable entityId = findPrimaryKey(entity, plan);
+            Set<String> notLoaded = null;
+            boolean hasFieldIds = (entity.getFieldIdMap() != null
+                                   && !entity.getFieldIdMap().isEmpty())
+                                  || entity instanceof CompactPrunableEntity;
+            for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                Object value = attribute.getValue(entity);
+                if ( hasFieldIds
+                        && (value == null || attribute.getKind() == FieldKind.PRIMITIVE)
+                        && isNotLoaded(entity, attribute) ) {
+                    // A lazy property or association we never had.  If the
+                    // client didn't give us a value, Hibernate should leave
+                    // it alone.
+                    if ( notLoaded == null ) {
+                        notLoaded = new HashSet<String>();
+                    }
+                    notLoaded.add(attribute.getName());
+                } else if ( attribute.getKind() == FieldKind.ENTITY ) {
                     // If this is another Prunable entity, restore the proxy
                     // class.  The helper method de-prunes it if necessary.
-                    reproxy(entity, (PrunableEntity)value, field, session);
-                } else if ( Collection.class.isAssignableFrom(field.getType()) ) {
+                    reproxy(entity, (PrunableEntity)value, attribute, session,
+                            traversal);
+                } else if ( attribute.getKind().isCollection() ) {
                     // un-pruning may result in a new collection.
-                    unpruneCollection(entity, entityId, (Collection<?>)value, field);
+                    boolean windowed = value != null && isWindowed(entity, attribute);
+                    unpruneCollection(entity, entityId, (Collection<?>)value,
+                                      attribute, traversal, windowed);
                 }
                 // The implied else block is for objects that don't need
                 // un-pruning.  Nothing needs to be done in that case
             }
+            if ( notLoaded != null ) {
+                restoreNotLoaded(entity, notLoaded, session, visit);
+            }
         } catch (InvocationTargetException e) {
             msg = msg + e.getMessage();
             throw new IllegalStateException(msg, e);
@@ -460,14 +1136,8 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
         } catch (SecurityException e) {
             msg = msg + e.getMessage();
             throw new IllegalStateException(msg, e);
-        } catch (NoSuchMethodException e) {
-            msg = msg + e.getMessage();
-            throw new IllegalStateException(msg, e);
         } catch (IllegalArgumentException e) {
             msg = msg + e.getMessage();
-            throw new IllegalStateException(msg, e);
-		} catch (InstantiationException e) {
-            msg = msg + e.getMessage();
             throw new IllegalStateException(msg, e);
 		}
     }
@@ -482,86 +1152,136 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * perfect, but it should take care of all of the most common data modeling
      * scenarios.
      * <p>
+     * If the spec has a {@link CollectionWindow} for the collection, only
+     * the children in the window are kept, in the window's order, and the
+     * window is recorded in the entity's window map with the size of the
+     * whole collection.  If the entity was populated, the window may have
+     * been loaded without loading the collection, in which case we use that.
+     * <p>
      * At the moment, this assumes that we are using Sets and not Lists for
      * our child collections. We are also assuming Hibernate as a JPA provider.
      * @param entity the entity containing the collection to prune
+     * @param plan the plan for the entity.
      * @param depth the depth to populate the entity to.  1 for just the 
      *        entity, 2 for children, etc.
-     * @param excludeSet a Set of attributes we want to prune out of the 
-     *        entity, regardless of depth.
+     * @param spec the spec for the entity, with the collections to include.
      * @param collection the original collection to prune
-     * @param field the field that holds this collection.
+     * @param attribute the attribute that holds this collection.
+     * @param traversal the traversal that will prune the children.
+     * @param visit what the traversal knows about the entity.
+     * @param population the entities we populated, which keeps the
+     *        collections Hibernate gave them until they are evicted, or
+     *        <code>null</code> if we're only pruning.
      * @throws IllegalAccessException 
-     * @throws InstantiationException 
      * @throws InvocationTargetException 
      * @throws IllegalStateException 
-     * @throws NoSuchMethodException 
-     * @throws IllegalArgumentException 
-     * @throws SecurityException 
      */
     @SuppressWarnings({ "unchecked", "rawtypes" })
     private void pruneCollection(PrunableEntity entity,
+                                        PruningPlan plan,
                                         int depth,
-                                        Set<String> includeSet,
+                                        PruneSpec spec,
                                         Collection<?> collection,
-                                        Field field) 
+                                        PruningPlan.Attribute attribute,
+                                        Traversal traversal,
+                                        Traversal.Visit visit,
+                                        Population population) 
                  throws IllegalAccessException, IllegalStateException,
-                        InvocationTargetException, SecurityException, IllegalArgumentException, NoSuchMethodException {
+                        InvocationTargetException {
         Collection newValue = null;
+        boolean included = spec.includes(attribute.getName());
+        if ( population != null && collection instanceof PersistentCollection ) {
+            population.keep(entity, attribute, collection);
+        }
         
         // We only need to deal with the collection if we want a depth > 1.
-        // Otherwise, we don't want any children.
-        if ( depth > 1 && (includeSet == null || includeSet.contains(field.getName())) ) {
-            if ( PersistentCollection.class.isAssignableFrom(collection.getClass()) ) {
-                if ( !((PersistentCollection)collection).wasInitialized() ) {
-                    // non-initialized, so prune with a null.
-                    newValue = null;
-                } else { 
-                    // replace the PersistentCollection with the appropriate
-                    // collection type.
-                    Class<?> fieldType = field.getType();
-                    if ( SortedSet.class.isAssignableFrom(fieldType) ) {
+        // Otherwise, we don't want any children, but this entity might still
+        // be reached by a shorter path, so we can't throw the collection away
+        // until the traversal is done.
+        if ( included && depth <= 1 && (!(collection instanceof PersistentCollection)
+                || ((PersistentCollection)collection).wasInitialized()) ) {
+            visit.defer(attribute);
+            return;
+        }
+        if ( depth > 1 && included ) {
+            CollectionWindow window = spec.getWindow(attribute.getName());
+            if ( window != null && !(entity instanceof WindowedPrunableEntity) ) {
+                throw new IllegalStateException("Can't prune " + attribute.getName() +
+                        " to a window: " + entity.getClass().getName() +
+                        " is not a WindowedPrunableEntity");
+            }
+            Collection<?> elements = collection;
+            long total = 0;
+            if ( collection instanceof PersistentCollection
+                    && !((PersistentCollection)collection).wasInitialized() ) {
+                // non-initialized, so prune with a null, unless we loaded
+                // its window.
+                PrunedWindow loaded = EntityUtil.findLoadedWindow(entity,
+                        attribute.getName(), window);
+                elements = loaded == null ? null : loaded.getElements();
+                total = loaded == null ? 0 : loaded.getTotal();
+            } else if ( window != null ) {
+                elements = window.apply(collection);
+                total = collection.size();
+            }
+            if ( elements == null ) {
+                newValue = null;
+            } else if ( collection instanceof PersistentCollection || window != null ) {
+                // replace the PersistentCollection with the appropriate
+                // collection type.  Windows keep their order.
+                switch ( attribute.getKind() ) {
+                    case SORTED_SET:
                         newValue = new TreeSet();
-                    } else if ( Set.class.isAssignableFrom(fieldType) ) {
-                        newValue = new HashSet();
-                    } else if ( List.class.isAssignableFrom(fieldType) ) {
+                        break;
+                    case SET:
+                        newValue = window == null ? new HashSet() : new LinkedHashSet();
+                        break;
+                    case LIST:
                         newValue = new ArrayList();
-                    } else {
-                        throw new IllegalStateException(fieldType + 
+                        break;
+                    default:
+                        throw new IllegalStateException(attribute.getType() + 
                                 " collections are not supported by the EntityPruner");
-                    }
-                    newValue.addAll(collection);
                 }
+                newValue.addAll(elements);
             } else {
                 // Just use the existing collection.
                 newValue = collection;
             }
+            if ( window != null && newValue != null ) {
+                recordWindow((WindowedPrunableEntity)entity, attribute,
+                             new PrunedWindow(window, total));
+                if ( newValue.size() < total ) {
+                    visit.setPartial();
+                }
+            }
         }
         if ( newValue != null ) {
             // Prune the children.
-            Field childsParent = null;
+            PruneSpec childSpec = spec.child(attribute.getName());
+            PropertyAccessor childsParent = null;
             boolean looked = false;
-            for ( Object child : collection ) {
+            for ( Object child : newValue ) {
                 // prune each child if the child is Persistable
-                if ( PrunableEntity.class.isAssignableFrom(child.getClass()) ) {
+                if ( child instanceof PrunableEntity ) {
                     // See if the child pointed to the parent.
                     // we only need to do this once...
                     if ( childsParent == null && !looked ) {
                         looked = true;
-                        childsParent = loadChildsParentField(entity, field,
+                        childsParent = loadChildsParentField(entity, attribute,
                                                              child.getClass());
                     }
                     // set the child's parent to null
                     if ( childsParent != null ) {
-                        childsParent.set(child, null);
+                        traversal.detach((PrunableEntity)child, childsParent);
                     }
                     // prune each child, but since the child is one level
                     // down, prune it to 1 less depth.
-                    prune((PrunableEntity)child, depth-1);
+                    traversal.add((PrunableEntity)child, depth-1, childSpec);
                 }
             }
         }
-        setValue(field, entity, newValue);
+        attribute.setValue(entity, newValue);
     }
     
     /**
@@ -576,26 +1296,32 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * entities are later saved to the database.
      * <p>
      * If the collection is not null, this method will detect bidirectional
-     * associations and re-inject the parent into each child after un-pruning
-     * the child.  It is done after so that we don't try to un-prune this
-     * object twice - it is entirely possible that we hit a child collection
-     * before we hit the pruned field.
+     * associations and re-inject the parent into each child.  The children
+     * are added to the traversal to be un-pruned later.  Since the traversal
+     * has already visited this entity, we won't try to un-prune it twice
+     * when the child's parent field is processed.
+     * <p>
+     * A collection that was pruned to a {@link CollectionWindow} only has
+     * some of the children, so once its children have been un-pruned, it is
+     * replaced just like a null collection.  Otherwise Hibernate would think
+     * the children outside the window had been removed.
      * <p>
      * This method assumes Hibernate as a provider.
      * @param entity the entity containing the collection to un-prune
      * @param entityId the primary key of the entity.
      * @param collection the child collection to un-prune
-     * @param field the field that contains the collection.
-     * @throws NoSuchMethodException 
-     * @throws SecurityException 
+     * @param attribute the attribute that contains the collection.
+     * @param traversal the traversal that will un-prune the children.
+     * @param windowed whether or not the collection was pruned to a window.
      * @throws InvocationTargetException 
      * @throws IllegalAccessException 
      * @throws IllegalStateException
      */
     private void unpruneCollection(PrunableEntity entity, Serializable entityId,
-                                   Collection<?> collection, Field field) 
-                 throws SecurityException, NoSuchMethodException, 
-                        IllegalStateException, IllegalAccessException,
+                                   Collection<?> collection,
+                                   PruningPlan.Attribute attribute,
+                                   Traversal traversal, boolean windowed) 
+                 throws IllegalStateException, IllegalAccessException,
                         InvocationTargetException {
         // GlassFish does some strange things when a null comes in for a
         // collection attribute.  It makes a collection that contains a null.
@@ -612,201 +1338,99 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
             }
         }
         
-        if ( collection == null ) {
-            // We only want to put in an empty PersistentCollection if:
-            // 1. The parent is persistent(it has an id) This is safe because
-            //    IDs don't change during the un-pruning process.
-            // 2. The collection is persistent (not Transient).
-            Annotation a = field.getAnnotation(Transient.class);
-            if ( (a == null) && (entity.isPersistent() ) ) {
-            	PersistentCollection value = null;
-                Class<?> fieldType = field.getType();
-                if ( SortedSet.class.isAssignableFrom(fieldType) ) {
-                    value = new PersistentSortedSet();
-                } else if ( Set.class.isAssignableFrom(fieldType) ) {
-                	value = new PersistentSet();
-                } else if ( List.class.isAssignableFrom(fieldType) ) {
-                	value = new PersistentList();
-                } else {
-                    throw new IllegalStateException(fieldType + 
-                            " collections are not supported by the EntityPruner");
-                }
-                // Set the collection's snapshot so we don't get
-                // "uninitialized transient collection" type errors.
-                String fieldName = entity.getClass().getName() + "." +
-                                   field.getName();
-                value.setSnapshot(entityId, fieldName, null);
-                setValue(field, entity, value);
-            }
-        } else {
+        if ( collection != null ) {
             // Note that in this case, we'll have a collection that isn't
             // a Hibernate PersistentCollection.  This is OK.
-            Field childsParent = null;
+            PropertyAccessor childsParent = null;
             boolean looked = false;
             for ( Object child : collection ) {
-                if ( PrunableEntity.class.isAssignableFrom(child.getClass()) ) {
-                    unprune((PrunableEntity)child);
+                if ( child instanceof PrunableEntity ) {
+                    traversal.add((PrunableEntity)child, 0);
                 }
-                // remember this needs to come last.
+                // The child won't be un-pruned until later, but the
+                // traversal has already visited this entity, so the child
+                // won't un-prune it again when it sees it as its parent.
                 // we only need to do this once...
                 if ( childsParent == null && !looked ) {
                     looked = true;
-                    childsParent = loadChildsParentField(entity, field,
+                    childsParent = loadChildsParentField(entity, attribute,
                                                          child.getClass());
                 }
                 if ( childsParent != null ) {
-                    childsParent.set(child, entity);
+                    childsParent.setFieldValue(child, entity);
                 }
             }
         }
+        if ( collection == null || windowed ) {
+            // We only want to put in an empty PersistentCollection if:
+            // 1. The parent is persistent(it has an id) This is safe because
+            //    IDs don't change during the un-pruning process.
+            // 2. The collection is persistent (not Transient).
+            if ( !attribute.isTransient() && entity.isPersistent() ) {
+            	PersistentCollection value = null;
+                switch ( attribute.getKind() ) {
+                    case SORTED_SET:
+                        value = new PersistentSortedSet();
+                        break;
+                    case SET:
+                        value = new PersistentSet();
+                        break;
+                    case LIST:
+                        value = new PersistentList();
+                        break;
+                    default:
+                        throw new IllegalStateException(attribute.getType() + 
+                                " collections are not supported by the EntityPruner");
+                }
+                // Set the collection's snapshot so we don't get
+                // "uninitialized transient collection" type errors.
+                value.setSnapshot(entityId, attribute.getRole(), null);
+                attribute.setValue(entity, value);
+            }
+        }
     }
 
     /**
-     * Helper to the helper that gets the child's parent field.
+     * Helper to the helper that gets the child's parent field.  The field is
+     * resolved and checked by the attribute the first time we see a class
+     * of parent with a class of child, so this only needs to work out the
+     * real class of the parent.
      * @param entity the entity containing the child
-     * @param field the field containing the child
+     * @param attribute the attribute containing the child
      * @param childClazz the class of the child
+     * @return the accessor for the child's parent field, or
+     *         <code>null</code> if the association isn't bidirectional.
+     * @throws NullPointerException if the child's parent field can't be
+     *         found, or can't hold the parent.
      */
-    private Field loadChildsParentField(PrunableEntity entity, Field field,
+    private PropertyAccessor loadChildsParentField(PrunableEntity entity,
+                                        PruningPlan.Attribute attribute,
                                         Class<?> childClazz) {
-        Field childsParent = null;
-        String mappedBy = null;
-        String msg = null;
-        // See if the current method has a OneToMany or OneToOne
-        // annotation with a "mappedBy" with indicates a 
-        // Bidirectional association.
-        Annotation a = field.getAnnotation(OneToMany.class);
-        if ( a != null ) {
-            mappedBy = ((OneToMany)a).mappedBy();
-        } else {
-            a = field.getAnnotation(OneToOne.class);
-            if ( a != null ) {
-                mappedBy = ((OneToOne)a).mappedBy();
-            }
+        String mappedBy = attribute.getMappedBy();
+        // If there was no "mappedBy", this isn't a bidirectional association.
+        if ( mappedBy == null ) {
+            return null;
         }
-        // if we got an annotation with a "mappedBy", process it
-        if ( (mappedBy != null) && (mappedBy.length() > 0) ) {
-            // convert case
-            try {
-                Class<?> currClazz = childClazz;
-                // We can't use getField for a private field...
-                while ( childsParent == null && !currClazz.equals(Object.class) ) {
-                    Field[] fields = currClazz.getDeclaredFields();
-                    for ( int i = 0; i < fields.length; i++ ) {
-                        if  ( fields[i].getName().equals(mappedBy) ) {
-                            childsParent = fields[i];
-                            childsParent.setAccessible(true);
-                            break;
-                        }
-                    }
-                    currClazz = currClazz.getSuperclass();
-                }
-                if ( childsParent == null ) {
-                    msg = "Entity " + entity + " has a child collecion " +
-                          "marked as bidrectional, but the child's parent " +
-                          "attribute (" + mappedBy + ") can't be found";
-                    LOG.warn(msg);
-                    throw new NullPointerException(msg);
-                }
-
-                // The parent entity may still be proxied, which has been 
-                // observed to cause errors, so let's fix that here.
-                // Since we do call by value in Java, there's no worries
-                // about changing the entity's value here.
-                if ( entity instanceof HibernateProxy ) {
-                    LazyInitializer initializer = ((HibernateProxy) entity).getHibernateLazyInitializer();
-                    if ( !initializer.isUninitialized() ) {
-                        entity = (PrunableEntity)initializer.getImplementation();
-                    } 
-                }
 
-                if ( !entity.getClass().isAssignableFrom(childsParent.getType()) ) {
-                    msg = "Entity " + entity + " has a child collecion " +
-                          "marked as bidrectional, but the child's parent " +
-                          "attribute (" + mappedBy + ") is the wrong type";
-                    LOG.warn(msg);
-                    throw new NullPointerException(msg);
-                }
-            } catch (SecurityException e) {
-                LOG.warn("Entity " + entity + " has a child collecion " +
-                         "marked as bidrectional, but the child doesn't " +
-                         "have a public field for the " + mappedBy +
-                         " attribute");
-            }
-        }
-        return childsParent;
-    }
-    
-    /**
-     * Gets the value from the given field.  We can't just use field.get 
-     * because Hibernate doesn't always store the value in the field. It seems
-     * to store it in some CGLIB field, using proxy methods to get to it. We,
-     * therefore, need to use those same proxies, or we won't be getting the 
-     * correct value.
-     * @param field the field object representing the field with the value
-     *        we want.
-     * @param entity the entity with the value we want
-     * @return the value for the given field in the given entity.
-     * @throws SecurityException
-     * @throws IllegalArgumentException
-     * @throws IllegalAccessException
-     * @throws InvocationTargetException
-     */
-    private Object getValue(Field field, PrunableEntity entity)
-                   throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-        // we need to call the method to get the proxy...
-        String name = field.getName();
-        name = name.substring(0,1).toUpperCase() + name.substring(1);
-        Class<?> type = field.getType();
-        if ( boolean.class.isAssignableFrom(type)
-                || Boolean.class.isAssignableFrom(type) ) {
-            name = "is" + name;
-        } else {
-            name = "get" + name;
-        }
-        Object value = null;
-        // Get the value.  We need to try using the "get" method first, but
-        // not all fields will have a method (SERIAL_VERSION_UID for example),
-        // so we need to get the actual field value if the method doesn't 
-        // exist.
-        try {
-            Method method = field.getDeclaringClass().getMethod(name);
-            value = method.invoke(entity);
-        } catch (NoSuchMethodException e) {
-            // not all fields will have a getter, so just get it from the
-            // field directly
-            value = field.get(entity);
+        // The parent entity may still be proxied, which has been 
+        // observed to cause errors, so let's fix that here.
+        Class<?> entityClazz = entity.getClass();
+        if ( entity instanceof HibernateProxy ) {
+            LazyInitializer initializer = ((HibernateProxy) entity).getHibernateLazyInitializer();
+            if ( !initializer.isUninitialized() ) {
+                entityClazz = initializer.getImplementation().getClass();
+            } 
         }
-        return value;
-    }
-    
-    /**
-     * Sets the value of the given field in the given entity. We can't just 
-     * use field.set because Hibernate doesn't always store the value in the 
-     * field. It seems to store it in some CGLIB field, using proxy methods to
-     * get to it. We, therefore, need to use those same proxies, or we won't 
-     * be setting the correct value.
-     * @param field the field we want to set.
-     * @param entity the entity we want to change
-     * @param value the value to set.
-     * @throws SecurityException 
-     * @throws InvocationTargetException 
-     * @throws IllegalAccessException 
-     * @throws IllegalArgumentException 
-     * @see #getValue(Field, PrunableEntity)
-     */
-    private void setValue(Field field, PrunableEntity entity, Object value)
-                   throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-        String name = field.getName();
-        name = name.substring(0,1).toUpperCase() + name.substring(1);
-        name = "set" + name;
-        // Try to set the value using the "set" method first.
-        try {
-            Method method = field.getDeclaringClass().getMethod(name, field.getType());
-            method.invoke(entity, new Object[] {value});
-        } catch (NoSuchMethodException e) {
-            field.set(entity, value);
+
+        PruningPlan.Inverse inverse = attribute.getInverse(entityClazz, childClazz);
+        if ( inverse.getProblem() != null ) {
+            String msg = "Entity " + entity + " has a child collecion " +
+                         "marked as bidrectional, but the child's parent " +
+                         "attribute (" + mappedBy + ") " + inverse.getProblem();
+            LOG.warn(msg);
+            throw new NullPointerException(msg);
         }
+        return inverse.getAccessor();
     }
     
     /**
@@ -825,67 +1449,255 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
      * EntityUtil is intended to be used to de-proxy an entity itself, and 
      * does not look at whether or not the proxy was initialized.
      * <p>
-     * We assume that all ID classes implement a toString method. This is 
-     * because different languages behave differently with different types
-     * of numbers.  For example, If a long number like 987654321 is sent to
-     * ActionScript, it will come back as "9.87654321E8"  The problem gets 
-     * worse if the number gets bigger.  We'll actually lose precision.  All
-     * the java number classes already have string constructors.
+     * IDs are stored as strings, using the {@link IdCodec} for the type of
+     * the declared entity's id. This is because different languages behave
+     * differently with different types of numbers.  For example, If a long
+     * number like 987654321 is sent to ActionScript, it will come back as
+     * "9.87654321E8"  The problem gets worse if the number gets bigger.
+     * We'll actually lose precision.  Entities that implement
+     * {@link CompactPrunableEntity} get a {@link FieldIdTable} instead of a
+     * fieldIdMap, which can hold numeric ids without converting them.
      * 
-     * @param <T> The class that we are casting to.
      * @param entity the entity containing the value we are de-proxying in
      * @param value The object to de-proxy
-     * @param fieldName the name of the field we're looking at.
-     * @param entityClass The class to cast to
-     * @return the original object, cast to the entity class, or null if the 
-     *         value represents an uninitialized proxy.
+     * @param plan the plan for the entity.
+     * @param attribute the attribute we're looking at.
+     * @return the original object, cast to the attribute's type, or null if
+     *         the value represents an uninitialized proxy.
      * @throws ClassCastException If we can't make the cast.
      */
-    private <T> T deproxy(PrunableEntity entity, Object value, String fieldName,
-            Class<T> entityClass) throws ClassCastException {
+    private Object deproxy(PrunableEntity entity, Object value, PruningPlan plan,
+            PruningPlan.Attribute attribute) throws ClassCastException {
         if ( value instanceof HibernateProxy ) {
             LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
             if ( !initializer.isUninitialized() ) {
-                return entityClass.cast(initializer.getImplementation());
+                return attribute.getType().cast(initializer.getImplementation());
             } 
             // This means we have an uninitialized proxy object.  We need
             // to prune it out to avoid lazy load problems, but we need to 
             // record the fact that it did have a value for unpruning later.
             // To avoid precision problems with different languages, we 
             // convert all Id's to strings.
-            Serializable proxyEntityId = initializer.getIdentifier();
-            Map<String, String> fieldIdMap = entity.getFieldIdMap();
-            if ( fieldIdMap == null ) {
-                fieldIdMap = new HashMap<String, String>();
-                entity.setFieldIdMap(fieldIdMap);
-            }
-            // TODO: If the ID field is a Date, get the ISO represantation.
-            fieldIdMap.put(fieldName, proxyEntityId.toString());
+            recordId(entity, plan, attribute, initializer.getIdentifier());
             return null;
         }
-        return entityClass.cast(value);
+        return attribute.getType().cast(value);
      }
 
+    /**
+     * Helper method to record the id of a parent we pruned without loading
+     * it, in the entity's fieldIdMap, or {@link FieldIdTable}, so
+     * un-pruning can restore a proxy for it.
+     * @param entity the entity we're pruning.
+     * @param plan the plan for the entity.
+     * @param attribute the attribute that held the parent.
+     * @param id the id of the parent.
+     */
+    private void recordId(PrunableEntity entity, PruningPlan plan,
+            PruningPlan.Attribute attribute, Serializable id) {
+        PruningPlan idPlan = loadPlan(attribute.getType());
+        if ( entity instanceof CompactPrunableEntity ) {
+            idPlan.storeId(loadFieldIdTable((CompactPrunableEntity)entity, plan),
+                           attribute, id);
+        } else {
+            loadFieldIdMap(entity).put(attribute.getName(), idPlan.formatId(id));
+        }
+    }
+
+    /**
+     * Helper method to find the id of a lazy parent that Hibernate hasn't
+     * loaded into an entity with lazy properties.  Hibernate keeps the
+     * state it loaded the entity with in the session, so if the entity is
+     * still in an open session, and that state has the parent, or a proxy
+     * for it, we can get the id without going to the database.  Parents
+     * mapped with <code>lazy="no-proxy"</code> aren't even selected until
+     * they are used, so there is no id to find for them.
+     * @param entity the entity we're pruning.
+     * @param attribute the attribute that holds the parent.
+     * @param interceptor the entity's interceptor.
+     * @return the id of the parent, or <code>null</code> if we can't find
+     *         it without loading anything.
+     */
+    private Serializable findUnloadedId(PrunableEntity entity,
+            PruningPlan.Attribute attribute, FieldInterceptor interceptor) {
+        if ( !(interceptor instanceof AbstractFieldInterceptor) ) {
+            return null;
+        }
+        SessionImplementor session = ((AbstractFieldInterceptor)interceptor).getSession();
+        if ( session == null || !session.isOpen() ) {
+            return null;
+        }
+        EntityEntry entry = session.getPersistenceContext().getEntry(entity);
+        if ( entry == null || entry.getLoadedState() == null ) {
+            return null;
+        }
+        Integer index = entry.getPersister().getEntityMetamodel()
+                             .getPropertyIndexOrNull(attribute.getName());
+        if ( index == null ) {
+            return null;
+        }
+        Object loaded = entry.getLoadedState()[index];
+        if ( loaded instanceof HibernateProxy ) {
+            return ((HibernateProxy)loaded).getHibernateLazyInitializer().getIdentifier();
+        }
+        if ( loaded == null || loaded == LazyPropertyInitializer.UNFETCHED_PROPERTY ) {
+            return null;
+        }
+        return session.getContextEntityIdentifier(loaded);
+    }
+
+    /**
+     * Helper method to record that we pruned a lazy property that Hibernate
+     * hadn't loaded, such as a LOB, or a parent or collection whose id we
+     * couldn't find.  The property is recorded in the entity's fieldIdMap,
+     * or {@link FieldIdTable}, with the value
+     * {@link PrunableEntity#NOT_LOADED}, the same way we record the ids of
+     * uninitialized proxies.
+     * @param entity the entity we're pruning.
+     * @param plan the plan for the entity.
+     * @param attribute the lazy property.
+     */
+    private void recordNotLoaded(PrunableEntity entity, PruningPlan plan,
+            PruningPlan.Attribute attribute) {
+        record(entity, plan, attribute, PrunableEntity.NOT_LOADED);
+    }
+
+    /**
+     * Helper method to record something about an attribute we pruned in the
+     * entity's fieldIdMap, or {@link FieldIdTable}, under the attribute's
+     * name.
+     * @param entity the entity we're pruning.
+     * @param plan the plan for the entity.
+     * @param attribute the attribute.
+     * @param value what to record.
+     */
+    private void record(PrunableEntity entity, PruningPlan plan,
+            PruningPlan.Attribute attribute, String value) {
+        if ( entity instanceof CompactPrunableEntity ) {
+            loadFieldIdTable((CompactPrunableEntity)entity, plan)
+                .putString(attribute.getSlot(), value);
+        } else {
+            loadFieldIdMap(entity).put(attribute.getName(), value);
+        }
+    }
+
+    /**
+     * Helper method to record the window we pruned a collection to in the
+     * entity's window map.
+     * @param entity the entity we're pruning.
+     * @param attribute the collection.
+     * @param window the window, with the size of the whole collection.
+     */
+    private void recordWindow(WindowedPrunableEntity entity,
+            PruningPlan.Attribute attribute, PrunedWindow window) {
+        Map<String, PrunedWindow> windowMap = entity.getWindowMap();
+        if ( windowMap == null ) {
+            windowMap = new HashMap<String, PrunedWindow>();
+            entity.setWindowMap(windowMap);
+        }
+        windowMap.put(attribute.getName(), window);
+    }
+
+    /**
+     * Helper method to see if a collection was pruned to a window.
+     * @param entity the entity we're un-pruning.
+     * @param attribute the collection.
+     * @return <code>true</code> if the entity's window map has a window for
+     *         the collection.
+     */
+    private boolean isWindowed(PrunableEntity entity, PruningPlan.Attribute attribute) {
+        if ( !(entity instanceof WindowedPrunableEntity) ) {
+            return false;
+        }
+        Map<String, PrunedWindow> windowMap = ((WindowedPrunableEntity)entity).getWindowMap();
+        return windowMap != null && windowMap.containsKey(attribute.getName());
+    }
+
+    /**
+     * Helper method to see if an attribute was recorded by
+     * {@link #recordNotLoaded(PrunableEntity, PruningPlan, PruningPlan.Attribute)}
+     * when the entity was pruned.
+     * @param entity the entity we're un-pruning.
+     * @param attribute the attribute to check.
+     * @return <code>true</code> if the attribute wasn't loaded when the
+     *         entity was pruned.
+     */
+    private boolean isNotLoaded(PrunableEntity entity, PruningPlan.Attribute attribute) {
+        return PrunableEntity.NOT_LOADED.equals(loadRecorded(entity, attribute));
+    }
+
+    /**
+     * Helper method to get what was recorded about an attribute when the
+     * entity was pruned.
+     * @param entity the entity we're un-pruning.
+     * @param attribute the attribute.
+     * @return what was recorded, or <code>null</code> if nothing was.
+     */
+    private String loadRecorded(PrunableEntity entity, PruningPlan.Attribute attribute) {
+        String recorded = null;
+        if ( entity instanceof CompactPrunableEntity ) {
+            FieldIdTable fieldIdTable = ((CompactPrunableEntity)entity).getFieldIdTable();
+            if ( fieldIdTable != null && fieldIdTable.size() > 0 ) {
+                recorded = fieldIdTable.getString(attribute.getSlot(), attribute.getName());
+            }
+        }
+        if ( recorded == null ) {
+            Map<String, String> fieldIdMap = entity.getFieldIdMap();
+            if ( fieldIdMap != null ) {
+                recorded = fieldIdMap.get(attribute.getName());
+            }
+        }
+        return recorded;
+    }
+
+    /**
+     * Helper method to get an entity's fieldIdMap, creating it if needed.
+     * @param entity the entity.
+     * @return the entity's fieldIdMap.
+     */
+    private Map<String, String> loadFieldIdMap(PrunableEntity entity) {
+        Map<String, String> fieldIdMap = entity.getFieldIdMap();
+        if ( fieldIdMap == null ) {
+            fieldIdMap = new HashMap<String, String>();
+            entity.setFieldIdMap(fieldIdMap);
+        }
+        return fieldIdMap;
+    }
+
+    /**
+     * Helper method to get a compact entity's {@link FieldIdTable}, creating
+     * it if needed.
+     * @param entity the entity.
+     * @param plan the plan for the entity.
+     * @return the entity's table.
+     */
+    private FieldIdTable loadFieldIdTable(CompactPrunableEntity entity, PruningPlan plan) {
+        FieldIdTable fieldIdTable = entity.getFieldIdTable();
+        if ( fieldIdTable == null ) {
+            fieldIdTable = plan.newFieldIdTable();
+            entity.setFieldIdTable(fieldIdTable);
+        }
+        return fieldIdTable;
+    }
+
     /**
      * Helper method used to replace null values with uninitialized proxy 
      * instances if necessary.
      * @param entity The entity containing the value we are re-proxying.
      * @param value The object to re-proxy.
-     * @param field the field we are looking at.
+     * @param attribute the attribute we are looking at.
      * @param session a Hibernate SessionImpl, used to ask Hibernate for proxy
      * objects.
+     * @param traversal the traversal that will un-prune the value.
      * @throws IllegalArgumentException
      * @throws IllegalAccessException
      * @throws InvocationTargetException 
-     * @throws InstantiationException 
-     * @throws NoSuchMethodException 
-     * @throws SecurityException 
      * @throws ClassCastException if the fieldIdMap contains a non-serializable
      * ID.
      */
     private void reproxy(PrunableEntity entity, PrunableEntity value,
-            Field field, SessionImpl session) throws IllegalArgumentException, IllegalAccessException, SecurityException, NoSuchMethodException, InstantiationException, InvocationTargetException {
-        field.setAccessible(true);
+            PruningPlan.Attribute attribute, SessionImpl session,
+            Traversal traversal) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
         // if value, we got good data, it means the client gave us real data,
         // unprune it.
         // if no value was sent, see if we have a parent id.  if we have one, 
@@ -895,110 +1707,595 @@ public class EntityPrunerHibernateJpa implements EntityPruner {
         // fetched data and the client deleted it.  In either case, null is the
         // correct new value.
         if ( value != null ) {
-            unprune((PrunableEntity)value);
+            traversal.add(value, 0);
         } else {
-        	String stringId = null;
-            Map<String, String> fieldIdMap = entity.getFieldIdMap();
-            if ( fieldIdMap != null ) {
-                stringId = fieldIdMap.get(field.getName());
+            // Compact entities keep their ids in a table, but a client that
+            // doesn't know about tables may have sent a fieldIdMap.
+            Serializable proxyEntityId = null;
+            if ( entity instanceof CompactPrunableEntity ) {
+                FieldIdTable fieldIdTable = ((CompactPrunableEntity)entity).getFieldIdTable();
+                if ( fieldIdTable != null && fieldIdTable.size() > 0 ) {
+                    proxyEntityId = loadPlan(attribute.getType())
+                        .loadId(fieldIdTable, attribute);
+                }
+            }
+            if ( proxyEntityId == null ) {
+                Map<String, String> fieldIdMap = entity.getFieldIdMap();
+                if ( fieldIdMap != null ) {
+                    String stringId = fieldIdMap.get(attribute.getName());
+                    if ( stringId != null ) {
+                        proxyEntityId = loadPlan(attribute.getType()).convertId(stringId);
+                    }
+                }
             }
-            if ( stringId != null ) {
+            if ( proxyEntityId != null ) {
                 // We know it is lazy fetched because the pruner wouldn't have 
                 // stored the id otherwise.  When I am in a less lazy mood, I'll 
                 // look at annotations to determine nullability.
-            	Serializable proxyEntityId = null;
-                proxyEntityId = convertPrimaryKey(field.getType(), stringId);
             	Object newValue = null;
-                newValue = session.internalLoad(field.getType().getName(), 
+                newValue = session.internalLoad(attribute.getType().getName(), 
                                                 proxyEntityId, false, true);
-                field.set(entity, newValue);
+                attribute.setFieldValue(entity, newValue);
             } else {
-                field.set(entity, null);
+                attribute.setFieldValue(entity, null);
+            }
+        }
+    }
+
+    /**
+     * Helper method to tell Hibernate that lazy properties and associations
+     * we pruned without loading still haven't been loaded.  We do this by
+     * giving the entity a
+     * new interceptor, just like the one Hibernate gave it when it was
+     * loaded, so that merging or updating the entity leaves the database
+     * values alone instead of overwriting them with <code>null</code>.
+     * <p>
+     * If the entity's class wasn't enhanced for lazy properties, Hibernate
+     * has no way to skip them, so the entity is left partial.
+     * @param entity the entity we're un-pruning.
+     * @param notLoaded the names of the properties that weren't loaded.
+     * @param session the Hibernate session, which may be <code>null</code>.
+     * @param visit what the traversal knows about the entity.
+     */
+    private void restoreNotLoaded(PrunableEntity entity, Set<String> notLoaded,
+            SessionImpl session, Traversal.Visit visit) {
+        if ( !FieldInterceptionHelper.isInstrumented(entity) ) {
+            LOG.warn(entity.getClass().getName() + " has lazy properties " +
+                     notLoaded + " that weren't loaded, but it isn't " +
+                     "instrumented, so it will be un-pruned as partial");
+            visit.setPartial();
+            return;
+        }
+        String entityName = entity.getClass().getName();
+        if ( session != null ) {
+            org.hibernate.metadata.ClassMetadata metadata =
+                session.getFactory().getClassMetadata(entity.getClass());
+            if ( metadata != null ) {
+                entityName = metadata.getEntityName();
             }
         }
+        FieldInterceptionHelper.injectFieldInterceptor(entity, entityName,
+                                                       notLoaded, session);
     }
     
+    /**
+     * Build and cache everything we need to prune each entity in a
+     * persistence unit, so the first request after a deploy doesn't have to.
+     * This is the same as calling
+     * {@link #warmUp(EntityManagerFactory, ForkJoinPool)} without a pool.
+     * @param factory the factory for the persistence unit.
+     * @return the number of entity classes that were prepared.
+     * @throws IllegalStateException if an entity can't be prepared.
+     */
+    public int warmUp(EntityManagerFactory factory) {
+        return warmUp(factory, null);
+    }
+
+    /**
+     * Build and cache everything we need to prune each entity in a
+     * persistence unit, so the first request after a deploy doesn't have to.
+     * The first time an entity class is pruned, we need to find its bean
+     * fields, look up and bind its getters and setters, and work out its
+     * bidirectional associations.  This method does that up front for every
+     * {@link PrunableEntity} the factory manages, as well as building
+     * Hibernate's association graph, if we haven't already.
+     * <p>
+     * The metadata is shared by every pruner in the class loader, so it only
+     * needs to be done once, no matter how many pruners the container
+     * creates.  How long it took, and how many classes were prepared, is
+     * logged at the INFO level.
+     * @param factory the factory for the persistence unit.
+     * @param pool the pool to prepare classes on, or <code>null</code> to
+     *        prepare them on the caller's thread.  The pool belongs to the
+     *        caller, and is left running.
+     * @return the number of entity classes that were prepared.
+     * @throws IllegalStateException if an entity can't be prepared.
+     */
+    public int warmUp(EntityManagerFactory factory, ForkJoinPool pool) {
+        long start = System.currentTimeMillis();
+        SessionFactory sessionFactory = null;
+        if ( factory instanceof HibernateEntityManagerFactory ) {
+            sessionFactory = ((HibernateEntityManagerFactory)factory).getSessionFactory();
+        }
+        AssociationGraph graph = loadAssociationGraph(sessionFactory);
+
+        // Hibernate knows about entities mapped in XML, the metamodel knows
+        // about entities from other providers, so we'll ask both.
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        if ( graph != null ) {
+            classes.addAll(graph.getEntityClasses());
+        }
+        for ( EntityType<?> type : factory.getMetamodel().getEntities() ) {
+            classes.add(type.getJavaType());
+        }
+        List<Class<?>> entityClasses = new ArrayList<Class<?>>(classes.size());
+        for ( Class<?> clazz : classes ) {
+            if ( clazz != null && PrunableEntity.class.isAssignableFrom(clazz) ) {
+                entityClasses.add(clazz);
+            }
+        }
+
+        if ( pool != null && entityClasses.size() > 1 ) {
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(entityClasses.size());
+            for ( final Class<?> clazz : entityClasses ) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        prepare(clazz);
+                        return null;
+                    }
+                });
+            }
+            try {
+                for ( Future<Void> future : pool.invokeAll(tasks) ) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                String msg = "Interrupted while warming up: ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (ExecutionException e) {
+                if ( e.getCause() instanceof RuntimeException ) {
+                    throw (RuntimeException)e.getCause();
+                }
+                String msg = "Can't warm up: ";
+                msg = msg + e.getCause();
+                throw new IllegalStateException(msg, e.getCause());
+            }
+        } else {
+            for ( Class<?> clazz : entityClasses ) {
+                prepare(clazz);
+            }
+        }
+        LOG.info("Prepared " + entityClasses.size() + " entity classes for " +
+                 "pruning in " + (System.currentTimeMillis() - start) + "ms");
+        return entityClasses.size();
+    }
+
+    /**
+     * Warm up when the container creates the pruner, if the
+     * {@link #WARM_UP_PROPERTY} system property asked us to.  Only the first
+     * pruner with an entity manager warms up; the rest of the pool shares
+     * its metadata.  A failure here is only logged, since the pruner will
+     * still work, just more slowly the first time it sees each entity.
+     */
+    @PostConstruct
+    public void warmUpOnStartup() {
+        if ( !WARM_UP_ON_STARTUP || entityManager == null
+             || !warmUpStarted.compareAndSet(false, true) ) {
+            return;
+        }
+        // A pool for warm-up is ours, so it mustn't outlive warm-up.
+        ForkJoinPool pool = null;
+        if ( PARALLEL_WARM_UP ) {
+            pool = new ForkJoinPool();
+        }
+        try {
+            warmUp(entityManager.getEntityManagerFactory(), pool);
+        } catch (RuntimeException e) {
+            LOG.warn("Warm-up failed, entities will be prepared the first " +
+                     "time they are pruned: " + e.getMessage());
+        } finally {
+            if ( pool != null ) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Helper method to build and cache the metadata for one entity class.
+     * Plans are built for both the pruner, which uses the association graph
+     * if it can, and {@link EntityUtil}, which always uses annotations.
+     * <p>
+     * The child's parent field of each bidirectional association is also
+     * resolved and checked here, for the declared class of the children, so
+     * a bad mapping is reported at startup instead of the first time it is
+     * pruned.
+     * @param clazz the class of entity to prepare.
+     */
+    private void prepare(Class<?> clazz) {
+        PruningPlan plan = loadPlan(clazz);
+        PruningPlan.forClass(clazz).withDefaultAccessor();
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getMappedBy() == null || attribute.getChildClass() == null ) {
+                continue;
+            }
+            PruningPlan.Inverse inverse =
+                attribute.getInverse(clazz, attribute.getChildClass());
+            if ( inverse.getProblem() != null ) {
+                LOG.warn(clazz.getName() + "." + attribute.getName() +
+                         " is marked as bidirectional, but the child's " +
+                         "parent attribute (" + attribute.getMappedBy() +
+                         ") " + inverse.getProblem());
+            }
+        }
+    }
+
+    /**
+     * Sets the smallest batch that will be pruned in parallel by
+     * {@link #prune(Collection, PruneSpec, ForkJoinPool)}, in every pruner
+     * in the class loader.  Smaller batches are pruned on the caller's
+     * thread, since splitting them up costs more than it saves.  The default
+     * comes from the {@link #PARALLEL_THRESHOLD_PROPERTY} system property,
+     * or is {@link #DEFAULT_PARALLEL_THRESHOLD} if it isn't set.  Use
+     * <code>Integer.MAX_VALUE</code> to never prune in parallel.
+     * @param threshold the smallest batch to prune in parallel.
+     */
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = threshold;
+    }
+
+    /**
+     * @return the smallest batch that will be pruned in parallel.  See
+     *         {@link #setParallelThreshold(int)}.
+     */
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * The entities a populate-and-prune pass has reached, with the spec and
+     * depth to populate each one to, the session to load them from, and the
+     * collections Hibernate gave each one, which it needs to see when the
+     * entity is evicted.  Entities are looked up by identity, since that is
+     * how the session knows them.
+     */
+    private static final class Population {
+        private final SessionImpl session;
+        private final Map<Object, Map<PruneSpec, Reach>> reached =
+            new IdentityHashMap<Object, Map<PruneSpec, Reach>>();
+        private final Map<Object, Map<PruningPlan.Attribute, Object>> kept =
+            new IdentityHashMap<Object, Map<PruningPlan.Attribute, Object>>();
+
+        /**
+         * @param session the session to load entities from.
+         */
+        Population(SessionImpl session) {
+            this.session = session;
+        }
+
+        /**
+         * Add an entity to populate, unless it was already added with the
+         * same spec and at least the same depth.
+         * @param entity the entity.  Anything that isn't a
+         *        {@link PrunableEntity} is ignored.
+         * @param spec the spec to populate it with.
+         * @param depth the depth to populate it to.
+         */
+        void add(Object entity, PruneSpec spec, int depth) {
+            if ( !(entity instanceof PrunableEntity) ) {
+                return;
+            }
+            Map<PruneSpec, Reach> reaches = reached.get(entity);
+            if ( reaches == null ) {
+                reaches = new HashMap<PruneSpec, Reach>();
+                reached.put(entity, reaches);
+            }
+            Reach existing = reaches.get(spec);
+            if ( existing == null || existing.depth < depth ) {
+                reaches.put(spec, new Reach((PrunableEntity)entity, spec, depth));
+            }
+        }
+
+        /**
+         * Gets how to populate an entity the traversal has reached.
+         * @param entity the entity.
+         * @param spec the spec the traversal reached it with.
+         * @return the entity, with the spec and the deepest depth it was
+         *         added with, or <code>null</code> if it wasn't added with
+         *         that spec, and doesn't need to be populated.
+         */
+        Reach getReach(PrunableEntity entity, PruneSpec spec) {
+            Map<PruneSpec, Reach> reaches = reached.get(entity);
+            return reaches == null ? null : reaches.get(spec);
+        }
+
+        /**
+         * Remember the collection Hibernate gave an entity, before pruning
+         * replaces it.  Only the first one is kept, since that is the one
+         * Hibernate knows about.
+         * @param entity the entity.
+         * @param attribute the attribute that holds the collection.
+         * @param collection the collection.
+         */
+        void keep(Object entity, PruningPlan.Attribute attribute,
+                Object collection) {
+            Map<PruningPlan.Attribute, Object> collections = kept.get(entity);
+            if ( collections == null ) {
+                collections = new HashMap<PruningPlan.Attribute, Object>();
+                kept.put(entity, collections);
+            }
+            if ( !collections.containsKey(attribute) ) {
+                collections.put(attribute, collection);
+            }
+        }
+
+        /**
+         * @param entity an entity.
+         * @return the collections Hibernate gave the entity, by attribute,
+         *         or <code>null</code> if pruning didn't replace any.
+         */
+        Map<PruningPlan.Attribute, Object> getKept(Object entity) {
+            return kept.get(entity);
+        }
+
+        /**
+         * @return the session to load entities from.
+         */
+        SessionImpl getSession() {
+            return session;
+        }
+
+        /**
+         * An entity to populate, with the spec and depth to populate it to.
+         */
+        static final class Reach {
+            final PrunableEntity entity;
+            final PruneSpec spec;
+            final int depth;
+
+            /**
+             * @param entity the entity.
+             * @param spec the spec to populate it with.
+             * @param depth the depth to populate it to.
+             */
+            Reach(PrunableEntity entity, PruneSpec spec, int depth) {
+                this.entity = entity;
+                this.spec = spec;
+                this.depth = depth;
+            }
+        }
+
+        /**
+         * An attribute of an entity we need to populate once its batch has
+         * been loaded.
+         */
+        static final class Pending {
+            final Reach reach;
+            final PruningPlan.Attribute attribute;
+            final Object value;
+
+            /**
+             * @param reach the entity, and how to populate it.
+             * @param attribute the attribute.
+             * @param value the value of the attribute.
+             */
+            Pending(Reach reach, PruningPlan.Attribute attribute, Object value) {
+                this.reach = reach;
+                this.attribute = attribute;
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * A task that prunes part of a batch.  Big parts are split in half, and
+     * parts no bigger than the chunk size are pruned with their own
+     * {@link Traversal}, sharing visits with the other parts.
+     */
+    private final class PruneTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final List<PrunableEntity> roots;
+        private final int from;
+        private final int to;
+        private final int chunk;
+        private final int depth;
+        private final PruneSpec spec;
+        private final Traversal.VisitTable table;
+        private final List<Traversal> traversals;
+
+        /**
+         * Create a task.
+         * @param roots the whole batch.
+         * @param from the index of the first root in this part.
+         * @param to the index after the last root in this part.
+         * @param chunk the biggest part to prune without splitting it.
+         * @param depth the depth to prune each root to.
+         * @param spec the spec for each root.
+         * @param table the visits shared by all the parts.
+         */
+        PruneTask(List<PrunableEntity> roots, int from, int to, int chunk,
+                int depth, PruneSpec spec, Traversal.VisitTable table) {
+            this(roots, from, to, chunk, depth, spec, table,
+                 Collections.synchronizedList(new ArrayList<Traversal>()));
+        }
+
+        /**
+         * Create a task for part of another task's batch.
+         * @param roots the whole batch.
+         * @param from the index of the first root in this part.
+         * @param to the index after the last root in this part.
+         * @param chunk the biggest part to prune without splitting it.
+         * @param depth the depth to prune each root to.
+         * @param spec the spec for each root.
+         * @param table the visits shared by all the parts.
+         * @param traversals where to put the traversal for each part.
+         */
+        private PruneTask(List<PrunableEntity> roots, int from, int to,
+                int chunk, int depth, PruneSpec spec,
+                Traversal.VisitTable table, List<Traversal> traversals) {
+            this.roots = roots;
+            this.from = from;
+            this.to = to;
+            this.chunk = chunk;
+            this.depth = depth;
+            this.spec = spec;
+            this.table = table;
+            this.traversals = traversals;
+        }
+
+        @Override
+        protected void compute() {
+            if ( to - from <= chunk ) {
+                Traversal traversal = new Traversal(roots.subList(from, to),
+                        depth, spec, spec.isBreadthFirst(), table);
+                pruneAll(traversal, null, spec.isNoLoad());
+                traversals.add(traversal);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new PruneTask(roots, from, middle, chunk, depth, spec,
+                                    table, traversals),
+                      new PruneTask(roots, middle, to, chunk, depth, spec,
+                                    table, traversals));
+        }
+
+        /**
+         * @return the traversals for every part, once the task is done.
+         */
+        List<Traversal> getTraversals() {
+            return traversals;
+        }
+    }
+
+    /**
+     * Helper method to get the {@link PruningPlan} for a class.  If we can
+     * get to Hibernate's mapping metadata, the plan will come from the
+     * {@link AssociationGraph}, which knows how the entity was really mapped.
+     * Otherwise, we'll have to settle for a plan built from the annotations
+     * on the entity's fields.
+     * @param clazz the class of entity we want to prune or un-prune.
+     * @return the plan for the class.
+     */
+    private PruningPlan loadPlan(Class<?> clazz) {
+        AssociationGraph graph = loadAssociationGraph();
+        PruningPlan plan;
+        if ( graph == null ) {
+            plan = PruningPlan.forClass(clazz);
+        } else {
+            plan = graph.getPlan(clazz);
+        }
+        return plan.withDefaultAccessor();
+    }
+
+    /**
+     * Helper method to get the {@link AssociationGraph}, building it from
+     * the given session factory if we haven't built one yet.  This lets
+     * {@link #warmUp(EntityManagerFactory, ForkJoinPool)} build the graph before
+     * we have an entity manager.
+     * @param factory the session factory to use, or <code>null</code> to
+     *        use the one behind our entity manager.
+     * @return the graph, or <code>null</code> if we can't build one.
+     */
+    private AssociationGraph loadAssociationGraph(SessionFactory factory) {
+        if ( factory != null ) {
+            synchronized ( this ) {
+                if ( !graphLoaded ) {
+                    associationGraph = AssociationGraph.build(factory);
+                    graphLoaded = true;
+                }
+            }
+        }
+        return loadAssociationGraph();
+    }
+
+    /**
+     * Helper method to build the {@link AssociationGraph} from the session
+     * factory behind our entity manager.  The graph is only built once. If
+     * there is no entity manager, or it isn't backed by Hibernate, we won't
+     * try again.
+     * @return the graph, or <code>null</code> if we can't build one.
+     */
+    private AssociationGraph loadAssociationGraph() {
+        if ( graphLoaded ) {
+            return associationGraph;
+        }
+        synchronized ( this ) {
+            if ( !graphLoaded ) {
+                SessionFactory factory = null;
+                try {
+                    factory = findSessionFactory();
+                } catch (RuntimeException e) {
+                    // Some containers won't give us a delegate outside a
+                    // transaction.  The annotations will have to do.
+                    LOG.debug("Can't get the session factory: " + e.getMessage());
+                }
+                if ( factory != null ) {
+                    associationGraph = AssociationGraph.build(factory);
+                } else {
+                    LOG.warn("No Hibernate session factory, entity " +
+                             "associations will be read from annotations");
+                }
+                graphLoaded = true;
+            }
+        }
+        return associationGraph;
+    }
+
+    /**
+     * Helper method to find the Hibernate session factory behind the entity
+     * manager.
+     * @return the session factory, or <code>null</code> if there isn't one.
+     */
+    private SessionFactory findSessionFactory() {
+        if ( entityManager == null ) {
+            return null;
+        }
+        EntityManagerFactory emf = entityManager.getEntityManagerFactory();
+        if ( emf instanceof HibernateEntityManagerFactory ) {
+            return ((HibernateEntityManagerFactory)emf).getSessionFactory();
+        }
+        Object delegate = entityManager.getDelegate();
+        if ( delegate instanceof Session ) {
+            return ((Session)delegate).getSessionFactory();
+        }
+        return null;
+    }
+
+    /**
+     * Helper method to find the Hibernate session behind the entity manager.
+     * @return the session, or <code>null</code> if the entity manager isn't
+     *         backed by one.
+     */
+    private SessionImpl findSession() {
+        Object delegate = entityManager.getDelegate();
+        if ( SessionImpl.class.isAssignableFrom(delegate.getClass()) ) {
+            return (SessionImpl)delegate;
+        } else if ( EntityManagerImpl.class.isAssignableFrom(delegate.getClass()) ) {
+            return (SessionImpl)((EntityManagerImpl)delegate).getSession();
+        }
+        return null;
+    }
+
     /**
      * Helper method to find the value of the primary key for an Entity.
-     * This method uses reflection to find the attribute with the JPA "Id"
-     * annotation.  If the entity doesn't have an "Id" annotation, we have
-     * bigger issues than the correct functioning of this method.
+     * The plan already knows which attribute has the JPA "Id" annotation.
+     * If the entity doesn't have an "Id" annotation, we have bigger issues
+     * than the correct functioning of this method.
      * @param entity the entity whose PrimaryKey we want.
-     * @param fields the <code>Field</code>s the entity has.
+     * @param plan the {@link PruningPlan} for the entity's class.
      * @return the value of the primary key for the given entity.
      * @throws InvocationTargetException 
      * @throws IllegalAccessException 
-     * @throws IllegalArgumentException 
-     * @throws SecurityException 
      * @throws ClassCastException if the entity contains a non-serializable
      * ID.
      */
-    private Serializable findPrimaryKey(PrunableEntity entity, List<Field> fields) throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-    	for ( Field field : fields ) {
-            Annotation a = field.getAnnotation(Id.class);
-            if ( a != null ) {
-            	return (Serializable)getValue(field, entity);
-            }
-    	}
-    	return null;
-    }
-    
-    /**
-     * Helper method to convert the primary key to the right class.  Most of
-     * the time the type will be correct, but numbers prove to be 
-     * particularly problematic.  For example, an Id that started out as a 
-     * Long, becomes an Integer after a round trip through BlazeDS. 
-     * @param entityClass The class of the entity holding the ID.
-     * @param id The current value of the id.
-     * @return the id, converted to the correct class.
-     * @throws NoSuchMethodException 
-     * @throws SecurityException 
-     * @throws InvocationTargetException 
-     * @throws IllegalAccessException 
-     * @throws InstantiationException 
-     * @throws IllegalArgumentException 
-     * @throws ClassCastException if the id is non-serializable
-     */
-    private Serializable convertPrimaryKey(Class<?> entityClass, String id) throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException, InvocationTargetException {
-    	Serializable newId = (Serializable)id;
-    	for ( Field field : ReflectionUtil.loadBeanFields(entityClass, true) ) {
-    		Annotation a = field.getAnnotation(Id.class);
-    		if ( a != null ) {
-    			// TODO: Look at the type's class.  If it is a date, 
-    			// construct using a date formatter.
-    			Constructor<?> c = field.getType().getConstructor(String.class);
-    			newId = (Serializable)c.newInstance(id);
-    		}
-    	}
-    	return newId;
-    }
-    
-    /**
-     * Helper method to determine if the given field holds a primitive value.
-     * @param field The field in question
-     * @return <code>true</code> if the field represents one of Java's 
-     * primitive values.
-     */
-    private boolean isPrimitive(Field field) {
-    	boolean primitive = false;
-    	Class<?> clazz = field.getType();
-    	if ( boolean.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( byte.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( char.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( short.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( int.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( long.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( float.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        } else if ( double.class.isAssignableFrom(clazz) ) {
-    		primitive = true;
-        }
-    	return primitive;
+    private Serializable findPrimaryKey(PrunableEntity entity, PruningPlan plan) throws IllegalAccessException, InvocationTargetException {
+        PruningPlan.Attribute idAttribute = plan.getIdAttribute();
+        if ( idAttribute == null ) {
+            return null;
+        }
+        return (Serializable)idAttribute.getValue(entity);
     }
 }
@@ -1,19 +1,22 @@
 package net.saliman.entitypruner;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
+import java.io.Serializable;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
-import javax.persistence.Transient;
+import javax.persistence.EntityManager;
 
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.collection.AbstractPersistentCollection;
 import org.hibernate.collection.PersistentCollection;
+import org.hibernate.engine.SessionImplementor;
 import org.hibernate.proxy.HibernateProxy;
 import org.hibernate.proxy.LazyInitializer;
 import org.slf4j.Logger;
@@ -40,6 +43,16 @@ import org.slf4j.LoggerFactory;
 public class EntityUtil {
     /** logger for the class */
     private static final Logger LOG = LoggerFactory.getLogger(EntityUtil.class);
+    /** The default for {@link #setBatchSize(int)}. */
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    /**
+     * System property with the batch size to use, for containers where we
+     * can't call {@link #setBatchSize(int)}.
+     */
+    public static final String BATCH_SIZE_PROPERTY = "net.saliman.entitypruner.batchSize";
+
+    private static volatile int batchSize =
+        Integer.getInteger(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE);
 
     /**
      * Determines if a collection has been initialized. This is most useful 
@@ -79,35 +92,33 @@ public class EntityUtil {
      * @throws IllegalStateException if we can't get one of the values.
      */
     public static void copyTransientData(PrunableEntity source, PrunableEntity dest) {
-        List<Field> fields = ReflectionUtil.loadBeanFields(source.getClass(), true);
-        for ( Field f : fields ) {
-            Annotation a = f.getAnnotation(Transient.class);
-            if ( a != null ) {
+        PruningPlan plan = PruningPlan.forClass(source.getClass()).withDefaultAccessor();
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.isTransient() ) {
                 try {
-                    f.setAccessible(true);
-                    setValue(f, dest, getValue(f, source));
+                    attribute.setValue(dest, attribute.getValue(source));
                 } catch (IllegalAccessException e) {
                     String msg = null;
                     msg = "Entity " + source + " has an inaccessable " +
-                       	 "or mismatched transient attribute: " + f.getName();
+                       	 "or mismatched transient attribute: " + attribute.getName();
                     LOG.warn(msg);
                     throw new IllegalStateException(msg);
                 } catch (SecurityException e) {
                     String msg = null;
                     msg = "Entity " + source + " has an inaccessable " +
-                       	 "or mismatched transient attribute: " + f.getName();
+                       	 "or mismatched transient attribute: " + attribute.getName();
                     LOG.warn(msg);
                     throw new IllegalStateException(msg);
 				} catch (IllegalArgumentException e) {
                     String msg = null;
                     msg = "Entity " + source + " has an inaccessable " +
-                       	 "or mismatched transient attribute: " + f.getName();
+                       	 "or mismatched transient attribute: " + attribute.getName();
                     LOG.warn(msg);
                     throw new IllegalStateException(msg);
 				} catch (InvocationTargetException e) {
                     String msg = null;
                     msg = "Entity " + source + " has an inaccessable " +
-                       	 "or mismatched transient attribute: " + f.getName();
+                       	 "or mismatched transient attribute: " + attribute.getName();
                     LOG.warn(msg);
                     throw new IllegalStateException(msg);
 				}
@@ -123,15 +134,27 @@ public class EntityUtil {
      * <p>
      * Supported options are:
      * <code>include</code> a comma separated list of child collections to
-     * populate.  This option does not cascade into children.<br>
+     * populate.  This option only cascades into children through paths like
+     * <code>children.grandchildren</code>.<br>
      * <code>select</code> a comma separated list of attributes to populate.
      * This list only has an effect on attributes that are entities
-     * themselves. This option does not cascade into children.<br>
+     * themselves. This option only cascades into children through paths
+     * like <code>parent(grandparent)</code>.  See {@link PruneSpec} for the
+     * path syntax.<br>
      * <code>depth</code> the minimum number of levels we want in the populated
      * entity.  Use 1 for the entity itself with all it's parents, 2 for the 
      * entity and its children, etc. If a select option is present, a depth of 0
      * can be used to avoid loading attributes that aren't wanted.
      * <p>
+     * A collection in the include option can have a {@link CollectionWindow},
+     * as in <code>children[page=2,per_page=50,order=code]</code>.  If the
+     * collection hasn't been loaded, only the window is loaded, with a
+     * collection filter, and the rest of the collection is counted with
+     * another.  The collection itself stays uninitialized, so Hibernate
+     * doesn't mistake the window for the collection, and the window is kept
+     * in the entity's window map until the entity is pruned, so only a
+     * {@link WindowedPrunableEntity} can have its collections windowed.
+     * <p>
      * This method also makes sure that any field that is a proxy is 
      * initialized.
      * <p>
@@ -141,117 +164,573 @@ public class EntityUtil {
      * @param options the map of options that should be used.
      */
     public static void populateEntity(PrunableEntity entity, Map<String, String> options) {
+        populate(entity, PruneSpec.fromOptions(options));
+    }
+
+    /**
+     * Populate the given entity using options that have already been parsed
+     * into a {@link PruneSpec}.  This works exactly like
+     * {@link #populateEntity(PrunableEntity, Map)}, but callers that populate
+     * the same way many times can build the spec once and reuse it.  If the
+     * spec has no depth, a depth of 1 is used.
+     * <p>
+     * This method can only be called within a session, or we'll get lazy 
+     * loading errors.
+     * @param entity the {@link PrunableEntity} entity to populate
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     */
+    public static void populate(PrunableEntity entity, PruneSpec spec) {
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
+        }
+        // If no depth was given, use a depth of one.
+        populateEntity(entity, spec, spec.getDepth(1));
+    }
+
+    /**
+     * Populate a list of entities, such as the results of a query, based on
+     * the given options.  This gives the same result as calling
+     * {@link #populateEntity(PrunableEntity, Map)} for each entity, but the
+     * graphs of all the entities are populated together, one level at a
+     * time, so the proxies and collections at each level are loaded in
+     * batches for the whole list (see {@link #setBatchSize(int)}), instead
+     * of a few queries for each entity.  Parents shared by several entities
+     * are only loaded once, and only populated once for each level.
+     * <p>
+     * This method can only be called within a session, or we'll get lazy 
+     * loading errors.
+     * @param entities the entities to populate.  Nulls are ignored.
+     * @param options the map of options that should be used.
+     * @return the number of SQL statements we ran.  See
+     *         {@link #populateEntities(Collection, PruneSpec)}.
+     */
+    public static int populateEntities(Collection<? extends PrunableEntity> entities,
+            Map<String, String> options) {
+        return populateEntities(entities, PruneSpec.fromOptions(options));
+    }
+
+    /**
+     * Populate a list of entities using options that have already been
+     * parsed into a {@link PruneSpec}.  This works exactly like
+     * {@link #populateEntities(Collection, Map)}.  If the spec has no depth,
+     * a depth of 1 is used.
+     * <p>
+     * The number returned is the number of SQL statements we ran in the
+     * entities' session: one for each batch, two for each window (one for
+     * the children in the window and one to count the rest), and one for
+     * each proxy or collection that had to be loaded on its own.  It is
+     * counted by us, not by the session factory, so work other sessions do
+     * at the same time is never included, and it doesn't need Hibernate's
+     * statistics.  Statements Hibernate adds on its own while loading
+     * something, such as for the eager associations of an entity, aren't
+     * counted.
+     * <p>
+     * This method can only be called within a session, or we'll get lazy 
+     * loading errors.
+     * @param entities the entities to populate.  Nulls are ignored.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @return the number of SQL statements we ran.
+     */
+    public static int populateEntities(Collection<? extends PrunableEntity> entities,
+            PruneSpec spec) {
+        if ( entities == null || entities.isEmpty() ) {
+            return 0;
+        }
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
+        }
+        // If no depth was given, use a depth of one.
+        int depth = spec.getDepth(1);
+        List<Level> level = new ArrayList<Level>(entities.size());
+        for ( PrunableEntity entity : entities ) {
+            if ( entity != null ) {
+                level.add(new Level(entity, spec, depth));
+            }
+        }
+        return populateLevels(level);
+    }
+
+    /**
+     * Find entities by their ids, and populate them based on the given
+     * options, in one or a few queries.  This gives the same result as
+     * finding each entity and calling
+     * {@link #populateEntity(PrunableEntity, Map)}, but instead of walking
+     * the graph and initializing proxies and collections as it finds them,
+     * it fetches everything the options ask for with a few JPQL queries
+     * that use <code>left join fetch</code>.  Each query fetches at most one
+     * collection, so we never multiply the rows of one collection by those
+     * of another.  This works best for graphs whose shape we know ahead of
+     * time, which is usually the case when the options come from a client.
+     * <p>
+     * The ids are sent to the database in batches (see
+     * {@link #setBatchSize(int)}).  Entities with composite keys can't be
+     * fetched this way, so they are found one at a time, and populated with
+     * {@link #populate(PrunableEntity, PruneSpec)}.
+     * <p>
+     * This method can only be called within a session, or we'll get lazy 
+     * loading errors.
+     * @param entityManager the entity manager to query with.
+     * @param type the class of the entities.
+     * @param ids the ids of the entities we want.
+     * @param options the map of options that should be used.
+     * @return the populated entities, in the order of their ids.  Ids that
+     *         aren't in the database are left out.
+     */
+    public static <T extends PrunableEntity> List<T> findPopulated(
+            EntityManager entityManager, Class<T> type,
+            Collection<? extends Serializable> ids, Map<String, String> options) {
+        return findPopulated(entityManager, type, ids, PruneSpec.fromOptions(options));
+    }
+
+    /**
+     * Find entities by their ids, and populate them using options that have
+     * already been parsed into a {@link PruneSpec}.  This works exactly like
+     * {@link #findPopulated(EntityManager, Class, Collection, Map)}.  If the
+     * spec has no depth, a depth of 1 is used.
+     * @param entityManager the entity manager to query with.
+     * @param type the class of the entities.
+     * @param ids the ids of the entities we want.
+     * @param spec the compiled options.  <code>null</code> is the same as
+     *        {@link PruneSpec#ALL}.
+     * @return the populated entities, in the order of their ids.  Ids that
+     *         aren't in the database are left out.
+     */
+    public static <T extends PrunableEntity> List<T> findPopulated(
+            EntityManager entityManager, Class<T> type,
+            Collection<? extends Serializable> ids, PruneSpec spec) {
+        List<T> result = new ArrayList<T>();
+        if ( ids == null || ids.isEmpty() ) {
+            return result;
+        }
+        if ( spec == null ) {
+            spec = PruneSpec.ALL;
+        }
+        List<Serializable> unique = new ArrayList<Serializable>(
+                new LinkedHashSet<Serializable>(ids));
+        FetchPlan plan = FetchPlan.forSpec(type, spec, spec.getDepth(1));
+        if ( !plan.isSupported() ) {
+            LOG.debug("Can't fetch " + type.getName() + " with joins, " +
+                      "populating one at a time");
+            for ( Serializable id : unique ) {
+                T entity = entityManager.find(type, id);
+                if ( entity != null ) {
+                    populate(entity, spec);
+                    result.add(entity);
+                }
+            }
+            return result;
+        }
+
+        Map<Object, T> found = new HashMap<Object, T>();
+        int size = Math.max(batchSize, 1);
+        for ( int start = 0; start < unique.size(); start += size ) {
+            List<Serializable> chunk =
+                unique.subList(start, Math.min(start + size, unique.size()));
+            List<String> queries = plan.getQueries();
+            List<T> roots = entityManager.createQuery(queries.get(0), type)
+                .setParameter("ids", chunk)
+                .getResultList();
+            for ( T root : roots ) {
+                found.put(findId(root), root);
+            }
+            for ( int i = 1; i < queries.size(); i++ ) {
+                entityManager.createQuery(queries.get(i))
+                    .setParameter("ids", chunk)
+                    .getResultList();
+            }
+        }
+        for ( Serializable id : unique ) {
+            T entity = found.get(id);
+            if ( entity != null ) {
+                result.add(entity);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Helper method to get the id of an entity we fetched.
+     * @param entity the entity.
+     * @return the entity's id.
+     * @throws IllegalStateException if the id can't be read.
+     */
+    private static Object findId(PrunableEntity entity) {
+        PruningPlan.Attribute id = PruningPlan.forClass(entity.getClass()).getIdAttribute();
+        return readValue(entity, id);
+    }
+
+    /**
+     * Helper method to populate a single entity.
+     * @param entity the {@link PrunableEntity} entity to populate
+     * @param spec the collections and attributes to populate.
+     * @param depth the depth to populate the entity to.
+     */
+    private static void populateEntity(PrunableEntity entity, PruneSpec spec,
+            int depth) {
         if ( entity == null ) {
             return;
         }
-        // Convert the options into sets of unique keys.
-        String []split = {};
-        Set<String> includeSet = null;
-        if ( options != null && options.containsKey(Options.INCLUDE) ) {
-        	includeSet = new HashSet<String>();
-        	split = options.get(Options.INCLUDE).split(",");
-            for ( String i : split ) {
-            	includeSet.add(i.trim());
+        List<Level> level = new ArrayList<Level>();
+        level.add(new Level(entity, spec, depth));
+        populateLevels(level);
+    }
+
+    /**
+     * Helper method that does the real work of populating entities.  The
+     * graph is populated one level at a time.  Before we look at a level, we
+     * gather up every uninitialized proxy and collection we are going to
+     * need from it, and load them in batches (see {@link BatchLoader}), so
+     * populating a list of entities takes a few queries for each level and
+     * type of entity, instead of a few queries for each entity.
+     * <p>
+     * Children are populated with the part of the spec for the attribute
+     * they came from, which is {@link PruneSpec#ALL} unless a path went
+     * through it, and one less than the depth of their parent.
+     * @param level the entities at the top of the graph, and how to
+     *        populate them.
+     * @return the number of SQL statements we ran.  See
+     *         {@link #populateEntities(Collection, PruneSpec)}.
+     */
+    private static int populateLevels(List<Level> level) {
+        int statements = 0;
+        while ( !level.isEmpty() ) {
+            level = merge(level);
+            // The entities at this level may be proxies themselves, if they
+            // came from a collection.
+            BatchLoader loader = new BatchLoader(batchSize);
+            for ( Level l : level ) {
+                loader.add(l.entity);
             }
-        }
-        
-        Set<String> selectSet = null;
-        if ( options != null && options.containsKey(Options.SELECT) ) {
-        	selectSet = new HashSet<String>();
-        	split = options.get(Options.SELECT).split(",");
-            for ( String i : split ) {
-            	selectSet.add(i.trim());
+            statements += loader.load();
+            List<Pending> pending = new ArrayList<Pending>();
+            for ( Level l : level ) {
+                // A proxy the loader couldn't batch is loaded when we read
+                // its attributes.
+                if ( isUninitialized(l.entity) ) {
+                    statements++;
+                }
+                findPending(l, pending, loader);
+            }
+            statements += loader.load();
+            List<Level> next = new ArrayList<Level>();
+            for ( Pending p : pending ) {
+                statements += populateAttribute(p, next);
             }
+            level = next;
         }
-        // If no depth was given, use a depth of one.
-        int depth = 1;
-        if ( options != null && options.containsKey(Options.DEPTH) ) {
-        	String depthStr = options.get(Options.DEPTH);
-        	try {
-        		depth = Integer.parseInt(depthStr);
-        	} catch(NumberFormatException nfe) {
-        		throw new IllegalArgumentException(depthStr +
-        				" is not a valid depth");
-        	}
+        return statements;
+    }
+
+    /**
+     * Helper method to see if a value will have to go to the database when
+     * we use it.
+     * @param value an entity or the value of an attribute.
+     * @return <code>true</code> if the value is a proxy or persistent
+     *         collection that hasn't been loaded.
+     */
+    private static boolean isUninitialized(Object value) {
+        if ( value instanceof HibernateProxy ) {
+            return ((HibernateProxy)value).getHibernateLazyInitializer().isUninitialized();
         }
-        
-        // set up the options for recursive calls.  We need to do this with 
-        // a copy of the original options in case the caller wants to doo 
-        // something else with the original options.
-        // At the moment, only the depth is needed.  Includes and selects 
-        // don't cascade.
-        Map<String, String> newOptions = new HashMap<String, String>();
-        if ( options != null ) {
-        	newOptions.put(Options.DEPTH, Integer.toString(depth-1));
+        return value instanceof PersistentCollection
+               && !((PersistentCollection)value).wasInitialized();
+    }
+
+    /**
+     * Helper method to merge the entities in a level that can be reached
+     * from more than one entity in the level above, such as a parent shared
+     * by many children, so we only populate them once.  Entities reached
+     * with the same spec are populated to the greatest of their depths.
+     * @param level the level.
+     * @return the level, without the duplicates.
+     */
+    private static List<Level> merge(List<Level> level) {
+        if ( level.size() < 2 ) {
+            return level;
+        }
+        List<Level> merged = new ArrayList<Level>(level.size());
+        Map<PrunableEntity, Integer> positions = new IdentityHashMap<PrunableEntity, Integer>();
+        for ( Level l : level ) {
+            Integer position = positions.get(l.entity);
+            if ( position == null ) {
+                positions.put(l.entity, merged.size());
+                merged.add(l);
+                continue;
+            }
+            Level existing = merged.get(position);
+            if ( !existing.spec.equals(l.spec) ) {
+                // Different paths want different things from it.
+                merged.add(l);
+            } else if ( l.depth > existing.depth ) {
+                merged.set(position, l);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Helper method to find the attributes of an entity that we need to
+     * populate.  Proxies and collections that haven't been loaded are added
+     * to the loader, except for collections with a {@link CollectionWindow},
+     * since we only want to load their windows.
+     * <p>
+     * We're interested in an attribute if it is in the include or select
+     * list, or if we don't have a list and the depth is &gt; 1 for
+     * collections, &gt; 0 for entities.
+     * @param level the entity, and how to populate it.
+     * @param pending the list to add the attributes we need to.
+     * @param loader the loader for the next batch.
+     */
+    private static void findPending(Level level, List<Pending> pending,
+            BatchLoader loader) {
+        PrunableEntity entity = level.entity;
+        PruneSpec spec = level.spec;
+        int depth = level.depth;
+        PruningPlan plan = PruningPlan.forClass(entity.getClass()).withDefaultAccessor();
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            String name = attribute.getName();
+            boolean wanted = false;
+            if ( attribute.getKind() == FieldKind.ENTITY ) {
+                boolean selected = spec.hasSelects() && spec.selects(name);
+                wanted = selected || (!spec.hasSelects() && depth > 0);
+            } else if ( attribute.getKind().isCollection() ) {
+                boolean included = spec.hasIncludes() && spec.includes(name);
+                wanted = included || (!spec.hasIncludes() && depth > 1);
+            }
+            if ( wanted ) {
+                Object value = readValue(entity, attribute);
+                if ( value != null ) {
+                    // We only want the windows of windowed collections.
+                    if ( spec.getWindow(name) == null ) {
+                        loader.add(value);
+                    }
+                    pending.add(new Pending(level, attribute, value));
+                }
+            }
         }
-        
-        // Loop through fields.  Make sure proxies are initialized, and if 
-        // the value is a collection, and we're interested in a collection or
-        // persistable, fetch it from the database.
-        // We're interested if the field is in the include or select list, or
-        // if we don't have a list and the depth is > 1 for collections, > 0 
-        // for persistables.
-        List<Field> fields = ReflectionUtil.loadBeanFields(entity.getClass(), true);
-        for ( Field f : fields ) {
-            try {
-            	if ( PrunableEntity.class.isAssignableFrom(f.getType())) {
-            		boolean selected = selectSet != null && selectSet.contains(f.getName());
-            		if ( selected || (selectSet == null && depth > 0) ) {
-            			Object value = getValue(f, entity);
-            			if ( value instanceof HibernateProxy ) {
-            				LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
-            				initializer.initialize();
-            			}
-            		}
-                } else if ( Collection.class.isAssignableFrom(f.getType()) ) {
-                	boolean included = includeSet != null &&  includeSet.contains(f.getName());
-                	if ( included || (includeSet == null && depth > 1) ) {
-                		f.setAccessible(true);
-                		Collection<?> collection;
-                		collection = (Collection<?>)getValue(f, entity);
-                		if ( collection != null ) {
-                			for ( Object value : collection ) {
-                				// the iterator causes the children to be loaded. 
-                				// We need the recursive call to de-proxy.
-                				if ( PrunableEntity.class.isAssignableFrom(value.getClass()) ) {
-                					// child needs one less than parent
-                					populateEntity((PrunableEntity)value, newOptions);
-                				}
-                			}
-                		}
-                	}
+    }
+
+    /**
+     * Helper method to populate one attribute, once everything it needs has
+     * been loaded.  Proxies are initialized, collections are iterated, and
+     * the entities we need to follow are added to the next level.
+     * @param pending the attribute to populate.
+     * @param next the next level of the graph.
+     * @return the number of SQL statements we ran.
+     */
+    private static int populateAttribute(Pending pending, List<Level> next) {
+        PruneSpec spec = pending.level.spec;
+        int depth = pending.level.depth;
+        String name = pending.attribute.getName();
+        PruneSpec childSpec = spec.child(name);
+        Object value = pending.value;
+        int statements = isUninitialized(value) ? 1 : 0;
+        if ( value instanceof Collection ) {
+            // the iterator causes the children to be loaded, if the loader
+            // couldn't do it.  We need the next level to de-proxy.  With a
+            // window, we only load and follow the children the pruner will
+            // keep.
+            Collection<?> children = (Collection<?>)value;
+            CollectionWindow window = spec.getWindow(name);
+            if ( window != null ) {
+                children = loadWindow(pending.level.entity, children,
+                                      pending.attribute, window);
+                // If the collection still hasn't been loaded, we loaded the
+                // window and counted the rest instead.
+                if ( isUninitialized(value) ) {
+                    statements = 2;
                 }
-            } catch (IllegalStateException e) {
-                String msg = null;
-                msg = "Entity " + entity + " has an inaccessable " +
-                "attribute: " + f.getName();
-                LOG.warn(msg);
-                throw new IllegalStateException(msg);
-            } catch (IllegalAccessException e) {
-                String msg = null;
-                msg = "Entity " + entity + " has an inaccessable " +
-                "attribute: " + f.getName();
-                LOG.warn(msg);
-                throw new IllegalStateException(msg);
-            } catch (SecurityException e) {
-                String msg = null;
-                msg = "Entity " + entity + " has an inaccessable " +
-                "attribute: " + f.getName();
-                LOG.warn(msg);
-                throw new IllegalStateException(msg);
-            } catch (IllegalArgumentException e) {
-                String msg = null;
-                msg = "Entity " + entity + " has an inaccessable " +
-                "attribute: " + f.getName();
-                LOG.warn(msg);
-                throw new IllegalStateException(msg);
-            } catch (InvocationTargetException e) {
-                String msg = null;
-                msg = "Entity " + entity + " has an inaccessable " +
-                "attribute: " + f.getName();
-                LOG.warn(msg);
-                throw new IllegalStateException(msg);
             }
+            for ( Object child : children ) {
+                if ( child instanceof PrunableEntity ) {
+                    // child needs one less than parent
+                    next.add(new Level((PrunableEntity)child, childSpec, depth-1));
+                }
+            }
+        } else {
+            if ( value instanceof HibernateProxy ) {
+                LazyInitializer initializer = ((HibernateProxy) value).getHibernateLazyInitializer();
+                initializer.initialize();
+                value = initializer.getImplementation();
+            }
+            // Only follow the entity if a path goes through it.
+            if ( childSpec != PruneSpec.ALL && value instanceof PrunableEntity ) {
+                next.add(new Level((PrunableEntity)value, childSpec, depth-1));
+            }
+        }
+        return statements;
+    }
+
+    /**
+     * Get the children in a collection's window.  If the collection hasn't
+     * been loaded, we only load the window, with a collection filter, and
+     * count the rest of the collection with another.  The collection itself
+     * stays uninitialized, and the window is kept in the entity's window
+     * map until the pruner prunes the collection.  A collection that is
+     * already loaded has its window taken in memory.
+     * @param entity the entity with the collection.
+     * @param collection the collection.
+     * @param attribute the attribute that holds the collection.
+     * @param window the window we want.
+     * @return the children in the window, in order.
+     * @throws IllegalStateException if the entity isn't a
+     *         {@link WindowedPrunableEntity}.
+     */
+    static List<?> loadWindow(PrunableEntity entity, Collection<?> collection,
+            PruningPlan.Attribute attribute, CollectionWindow window) {
+        if ( !(entity instanceof WindowedPrunableEntity) ) {
+            throw new IllegalStateException("Can't load a window of " +
+                    attribute.getName() + ": " + entity.getClass().getName() +
+                    " is not a WindowedPrunableEntity");
+        }
+        // Without the element class, we can't check the order, and without
+        // an open session, we can't filter, so the collection is loaded and
+        // the window is taken in memory.
+        Class<?> elementClass = attribute.getElementClass();
+        if ( !(collection instanceof AbstractPersistentCollection)
+                || ((PersistentCollection)collection).wasInitialized()
+                || elementClass == null ) {
+            return window.apply(collection);
+        }
+        SessionImplementor owner = ((AbstractPersistentCollection)collection).getSession();
+        if ( !(owner instanceof Session) || !owner.isOpen() ) {
+            return window.apply(collection);
+        }
+        Session session = (Session)owner;
+        Query query = session.createFilter(collection, window.getFilter(elementClass));
+        query.setFirstResult(window.getFirstResult());
+        if ( window.getPerPage() > 0 ) {
+            query.setMaxResults(window.getPerPage());
+        }
+        List<?> elements = query.list();
+        Number total = (Number)session.createFilter(collection, "select count(*)")
+                                      .uniqueResult();
+        WindowedPrunableEntity windowed = (WindowedPrunableEntity)entity;
+        Map<String, PrunedWindow> windowMap = windowed.getWindowMap();
+        if ( windowMap == null ) {
+            windowMap = new HashMap<String, PrunedWindow>();
+            windowed.setWindowMap(windowMap);
+        }
+        windowMap.put(attribute.getName(),
+                      new PrunedWindow(window, total.longValue(), elements));
+        return elements;
+    }
+
+    /**
+     * Find a window that {@link #loadWindow} loaded for a collection that
+     * hasn't been pruned yet.
+     * @param entity the entity with the collection.
+     * @param name the name of the collection.
+     * @param window the window we want.
+     * @return the loaded window, or <code>null</code> if the window wasn't
+     *         loaded.
+     */
+    static PrunedWindow findLoadedWindow(PrunableEntity entity, String name,
+            CollectionWindow window) {
+        if ( window == null || !(entity instanceof WindowedPrunableEntity) ) {
+            return null;
+        }
+        Map<String, PrunedWindow> windowMap = ((WindowedPrunableEntity)entity).getWindowMap();
+        PrunedWindow loaded = windowMap == null ? null : windowMap.get(name);
+        if ( loaded == null || loaded.getElements() == null || !loaded.isFor(window) ) {
+            return null;
+        }
+        return loaded;
+    }
+
+    /**
+     * Helper method to read the value of an attribute we want to populate.
+     * @param entity the entity with the value.
+     * @param attribute the attribute to read.
+     * @return the value.
+     * @throws IllegalStateException if the value can't be read.
+     */
+    private static Object readValue(PrunableEntity entity,
+            PruningPlan.Attribute attribute) {
+        try {
+            return attribute.getValue(entity);
+        } catch (IllegalStateException e) {
+            String msg = null;
+            msg = "Entity " + entity + " has an inaccessable " +
+            "attribute: " + attribute.getName();
+            LOG.warn(msg);
+            throw new IllegalStateException(msg);
+        } catch (SecurityException e) {
+            String msg = null;
+            msg = "Entity " + entity + " has an inaccessable " +
+            "attribute: " + attribute.getName();
+            LOG.warn(msg);
+            throw new IllegalStateException(msg);
+        } catch (IllegalArgumentException e) {
+            String msg = null;
+            msg = "Entity " + entity + " has an inaccessable " +
+            "attribute: " + attribute.getName();
+            LOG.warn(msg);
+            throw new IllegalStateException(msg);
+        } catch (InvocationTargetException e) {
+            String msg = null;
+            msg = "Entity " + entity + " has an inaccessable " +
+            "attribute: " + attribute.getName();
+            LOG.warn(msg);
+            throw new IllegalStateException(msg);
+        }
+    }
+
+    /**
+     * Sets the most ids {@link #populate(PrunableEntity, PruneSpec)}
+     * and {@link #findPopulated(EntityManager, Class, Collection, PruneSpec)}
+     * will load in a single query.  The default comes from the
+     * {@link #BATCH_SIZE_PROPERTY} system property, or is
+     * {@link #DEFAULT_BATCH_SIZE} if it isn't set.  Databases limit the
+     * size of an <code>IN</code> list, Oracle to 1000, so this shouldn't be
+     * too big.
+     * @param size the batch size.  Values less than 2 turn batching off,
+     *        so every proxy and collection is loaded on its own, and every
+     *        root is fetched on its own.
+     */
+    public static void setBatchSize(int size) {
+        batchSize = size;
+    }
+
+    /**
+     * @return the most ids we'll load in a single query.  See
+     *         {@link #setBatchSize(int)}.
+     */
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * An entity at one level of the graph we're populating, with the spec
+     * and depth to populate it to.
+     */
+    private static final class Level {
+        private final PrunableEntity entity;
+        private final PruneSpec spec;
+        private final int depth;
+
+        private Level(PrunableEntity entity, PruneSpec spec, int depth) {
+            this.entity = entity;
+            this.spec = spec;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * An attribute we need to populate once its batch has been loaded.
+     */
+    private static final class Pending {
+        private final Level level;
+        private final PruningPlan.Attribute attribute;
+        private final Object value;
+
+        private Pending(Level level, PruningPlan.Attribute attribute,
+                Object value) {
+            this.level = level;
+            this.attribute = attribute;
+            this.value = value;
         }
     }
 
@@ -280,76 +759,4 @@ public class EntityUtil {
         }
         return entity;
      }
-    
-    /**
-     * Gets the value from the given field.  We can't just use field.get 
-     * because Hibernate doesn't always store the value in the field. It seems
-     * to store it in some CGLIB field, using proxy methods to get to it. We,
-     * therefore, need to use those same proxies, or we won't be getting the 
-     * correct value.
-     * @param field the field object representing the field with the value
-     *        we want.
-     * @param entity the entity with the value we want
-     * @return the value for the given field in the given entity.
-     * @throws SecurityException
-     * @throws IllegalArgumentException
-     * @throws IllegalAccessException
-     * @throws InvocationTargetException
-     */
-    private static Object getValue(Field field, PrunableEntity entity)
-                   throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-        // we need to call the method to get the proxy...
-        String name = field.getName();
-        name = name.substring(0,1).toUpperCase() + name.substring(1);
-        Class<?> type = field.getType();
-        if ( boolean.class.isAssignableFrom(type)
-                || Boolean.class.isAssignableFrom(type) ) {
-            name = "is" + name;
-        } else {
-            name = "get" + name;
-        }
-        Object value = null;
-        // Get the value.  We need to try using the "get" method first, but
-        // not all fields will have a method (SERIAL_VERSION_UID for example),
-        // so we need to get the actual field value if the method doesn't 
-        // exist.
-        try {
-            Method method = field.getDeclaringClass().getMethod(name);
-            value = method.invoke(entity);
-        } catch (NoSuchMethodException e) {
-            // not all fields will have a getter, so just get it from the
-            // field directly
-            value = field.get(entity);
-        }
-        return value;
-    }
-
-    /**
-     * Sets the value of the given field in the given entity. We can't just 
-     * use field.set because Hibernate doesn't always store the value in the 
-     * field. It seems to store it in some CGLIB field, using proxy methods to
-     * get to it. We, therefore, need to use those same proxies, or we won't 
-     * be setting the correct value.
-     * @param field the field we want to set.
-     * @param entity the entity we want to change
-     * @param value the value to set.
-     * @throws SecurityException 
-     * @throws InvocationTargetException 
-     * @throws IllegalAccessException 
-     * @throws IllegalArgumentException 
-     * @see #getValue(Field, PrunableEntity)
-     */
-    private static void setValue(Field field, PrunableEntity entity, Object value)
-                   throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-        String name = field.getName();
-        name = name.substring(0,1).toUpperCase() + name.substring(1);
-        name = "set" + name;
-        // Try to set the value using the "set" method first.
-        try {
-            Method method = field.getDeclaringClass().getMethod(name, field.getType());
-            method.invoke(entity, new Object[] {value});
-        } catch (NoSuchMethodException e) {
-            field.set(entity, value);
-        }
-    }
 }
@@ -0,0 +1,227 @@
+package net.saliman.entitypruner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * A <code>FetchPlan</code> turns the options for populating an entity into
+ * JPQL queries that load a set of root entities, and everything
+ * {@link EntityUtil#populate(PrunableEntity, PruneSpec)} would have
+ * loaded for them, without touching a single proxy or lazy collection.
+ * <p>
+ * The attributes we fetch are chosen with the same rules that
+ * populateEntity uses: parents are fetched if they are selected, or if
+ * there is no select list and the depth is &gt; 0, and collections are
+ * fetched if they are included, or if there is no include list and the
+ * depth is &gt; 1.
+ * <p>
+ * Fetching more than one collection in a single query multiplies the rows
+ * of each collection by the rows of the others, and Hibernate won't even try
+ * it with more than one bag.  To avoid this, each query fetches at most one
+ * collection.  The first query loads the roots, with a
+ * <code>left join fetch</code> for each parent we want, since parents don't
+ * multiply anything.  Each collection then gets a query of its own, which
+ * joins its way from the roots to the owners of the collection, selects
+ * the owners, and fetches the collection and the parents of its elements.
+ * Hibernate puts the collections into the owners it already loaded, so by
+ * the time the last query runs, the whole graph is in the session.
+ * <p>
+ * Every query has an <code>ids</code> parameter with the ids of the roots.
+ * We can only build plans for entities with a single id attribute; entities
+ * with composite keys aren't supported (see {@link #isSupported()}).
+ * Plans are immutable, so they can be shared between threads.
+ *
+ * @author Steven C. Saliman
+ */
+final class FetchPlan {
+    /** The alias of the root entity in every query */
+    private static final String ROOT = "e0";
+
+    private final Class<?> rootClass;
+    private final List<String> queries;
+
+    /**
+     * Build a plan for populating one type of entity.
+     * @param clazz the class of the root entities.
+     * @param spec the collections and attributes to populate.
+     * @param depth the depth to populate the roots to.
+     * @return the plan.
+     */
+    static FetchPlan forSpec(Class<?> clazz, PruneSpec spec, int depth) {
+        return new FetchPlan(clazz, spec, depth);
+    }
+
+    /**
+     * Build the queries.
+     * @param clazz the class of the root entities.
+     * @param spec the collections and attributes to populate.
+     * @param depth the depth to populate the roots to.
+     */
+    private FetchPlan(Class<?> clazz, PruneSpec spec, int depth) {
+        this.rootClass = clazz;
+        String idName = findIdName(clazz);
+        if ( idName == null ) {
+            this.queries = Collections.emptyList();
+            return;
+        }
+        Builder builder = new Builder(" where " + ROOT + "." + idName + " in (:ids)");
+        String from = " from " + clazz.getName() + " " + ROOT;
+        StringBuilder fetches = new StringBuilder();
+        int rootQuery = builder.reserve();
+        builder.addNode(clazz, spec, depth, ROOT, null, from, fetches);
+        builder.set(rootQuery, "select distinct " + ROOT + from + fetches);
+        this.queries = Collections.unmodifiableList(builder.queries);
+    }
+
+    /**
+     * @return the class of the root entities.
+     */
+    Class<?> getRootClass() {
+        return rootClass;
+    }
+
+    /**
+     * @return <code>true</code> if we could build queries for the class.
+     *         Entities without an id attribute, or with a composite key,
+     *         can't be fetched this way.
+     */
+    boolean isSupported() {
+        return !queries.isEmpty();
+    }
+
+    /**
+     * @return the queries, in the order they should be run.  The first one
+     *         returns the roots.  Every query has an <code>ids</code>
+     *         parameter for the ids of the roots.
+     */
+    List<String> getQueries() {
+        return queries;
+    }
+
+    /**
+     * Helper method to find the name of the attribute we can use in a query
+     * for an entity's id.
+     * @param clazz the class of entity.
+     * @return the name of the id attribute, or <code>null</code> if the
+     *         entity doesn't have exactly one simple id attribute.
+     */
+    private static String findIdName(Class<?> clazz) {
+        PruningPlan plan = PruningPlan.forClass(clazz);
+        PruningPlan.Attribute id = plan.getIdAttribute();
+        if ( id == null || id.isEmbeddedId() ) {
+            return null;
+        }
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.isId() && attribute != id ) {
+                // An IdClass.
+                return null;
+            }
+        }
+        return id.getName();
+    }
+
+    /**
+     * Builds the queries for a plan.  This only exists while the plan is
+     * being built.
+     */
+    private static final class Builder {
+        private final String where;
+        private final List<String> queries = new ArrayList<String>();
+        private int aliases = 1;
+
+        /**
+         * @param where the where clause every query ends with.
+         */
+        private Builder(String where) {
+            this.where = where;
+        }
+
+        /**
+         * Reserve a spot for a query that we can't finish until we've seen
+         * the attributes of its entities, so that the queries end up in the
+         * order we found them.
+         * @return the position of the query.
+         */
+        private int reserve() {
+            queries.add(null);
+            return queries.size() - 1;
+        }
+
+        /**
+         * Finish a query we reserved a spot for.
+         * @param position the query's position.
+         * @param query the query, without the where clause.
+         */
+        private void set(int position, String query) {
+            queries.set(position, query + where);
+        }
+
+        /**
+         * Add the fetches for the attributes of an entity we'll load.
+         * Parents are fetched by the query that loads the entity.  Each
+         * collection gets a query of its own.
+         * @param clazz the class of the entity.
+         * @param spec the collections and attributes to populate.
+         * @param depth the depth to populate the entity to.
+         * @param alias the alias of the entity in the queries.
+         * @param inverse the name of the entity's reference to the owner of
+         *        the collection it came from, which we don't need to fetch,
+         *        or <code>null</code>.
+         * @param from the from clause that makes the alias available to a
+         *        query, without fetching anything.
+         * @param fetches the fetches of the query that loads the entity.
+         */
+        private void addNode(Class<?> clazz, PruneSpec spec, int depth,
+                String alias, String inverse, String from, StringBuilder fetches) {
+            PruningPlan plan = PruningPlan.forClass(clazz);
+            for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                if ( attribute.isTransient() ) {
+                    continue;
+                }
+                String name = attribute.getName();
+                if ( attribute.getKind() == FieldKind.ENTITY ) {
+                    boolean selected = spec.hasSelects() && spec.selects(name);
+                    if ( !(selected || (!spec.hasSelects() && depth > 0))
+                            || name.equals(inverse) ) {
+                        continue;
+                    }
+                    String child = "e" + aliases++;
+                    fetches.append(" left join fetch ").append(alias).append('.')
+                           .append(name).append(' ').append(child);
+                    // Only follow the entity if a path goes through it.
+                    PruneSpec childSpec = spec.child(name);
+                    if ( childSpec != PruneSpec.ALL ) {
+                        addNode(attribute.getType(), childSpec, depth-1, child, null,
+                                from + " join " + alias + "." + name + " " + child,
+                                fetches);
+                    }
+                } else if ( attribute.getKind().isCollection() ) {
+                    boolean included = spec.hasIncludes() && spec.includes(name);
+                    if ( !(included || (!spec.hasIncludes() && depth > 1)) ) {
+                        continue;
+                    }
+                    String child = "e" + aliases++;
+                    StringBuilder childFetches = new StringBuilder();
+                    childFetches.append(" left join fetch ").append(alias).append('.')
+                                .append(name).append(' ').append(child);
+                    int position = reserve();
+                    Class<?> elementClass = attribute.getChildClass();
+                    if ( elementClass == null ) {
+                        elementClass = attribute.getElementClass();
+                    }
+                    if ( elementClass != null
+                            && PrunableEntity.class.isAssignableFrom(elementClass) ) {
+                        // child needs one less than parent
+                        addNode(elementClass, spec.child(name), depth-1, child,
+                                attribute.getMappedBy(),
+                                from + " join " + alias + "." + name + " " + child,
+                                childFetches);
+                    }
+                    set(position, "select distinct " + alias + from + childFetches);
+                }
+            }
+        }
+    }
+}
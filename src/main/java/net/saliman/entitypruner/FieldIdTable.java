@@ -0,0 +1,239 @@
+package net.saliman.entitypruner;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A <code>FieldIdTable</code> is the compact version of an entity's
+ * fieldIdMap, used by entities that implement
+ * {@link CompactPrunableEntity}.  It holds the ids of the uninitialized
+ * parents the {@link EntityPruner} removed from the entity, so it can
+ * restore them when the entity is un-pruned.
+ * <p>
+ * Entries are kept in parallel arrays, sorted by the position of the
+ * attribute in the entity class, which the pruner already knows, so there
+ * are no keys to hash and no map entries to allocate.  <code>Long</code>
+ * and <code>Integer</code> ids are stored as primitive <code>long</code>s.
+ * Every other type of id is stored as a String, the same way it would be in
+ * a fieldIdMap (see {@link IdCodec}).  Tables only grow as entries are
+ * added, so an entity with one proxied parent pays for one entry.
+ * <p>
+ * The table shares the names of the entity's attributes with every other
+ * table for the same class, which lets clients look entries up by name, and
+ * lets the pruner make sure a table still matches the class.  This class is
+ * not thread safe, which is fine, since an entity's table is only used by
+ * the thread pruning the entity.
+ *
+ * @author Steven C. Saliman
+ */
+public final class FieldIdTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /** The names of the entity's attributes, by position */
+    private final String[] names;
+    /** The positions of the attributes we have, in order */
+    private int[] slots;
+    /** The numeric ids, for entries without a string id */
+    private long[] longs;
+    /** The string ids, or <code>null</code> for numeric ids */
+    private String[] strings;
+    private int size;
+
+    /**
+     * Make an empty table.  Only the pruner creates tables.
+     * @param names the names of the entity's attributes, by position.  The
+     *        array is shared, not copied.
+     */
+    FieldIdTable(String[] names) {
+        this.names = names;
+        this.slots = new int[1];
+        this.longs = new long[1];
+        this.strings = new String[1];
+    }
+
+    /**
+     * Record a numeric id.
+     * @param slot the position of the attribute.
+     * @param id the id of the attribute's value.
+     */
+    void putLong(int slot, long id) {
+        int i = insert(slot);
+        longs[i] = id;
+        strings[i] = null;
+    }
+
+    /**
+     * Record an id as a string.
+     * @param slot the position of the attribute.
+     * @param id the string form of the id.
+     */
+    void putString(int slot, String id) {
+        int i = insert(slot);
+        longs[i] = 0;
+        strings[i] = id;
+    }
+
+    /**
+     * @param slot the position of an attribute.
+     * @param name the name of the attribute, which must match the name the
+     *        table has for the slot.
+     * @return <code>true</code> if there is a numeric id for the attribute.
+     */
+    boolean isLong(int slot, String name) {
+        int i = find(slot, name);
+        return i >= 0 && strings[i] == null;
+    }
+
+    /**
+     * @param slot the position of an attribute.
+     * @return the numeric id for the attribute.  Callers should check
+     *         {@link #isLong(int, String)} first.
+     */
+    long getLong(int slot) {
+        return longs[Arrays.binarySearch(slots, 0, size, slot)];
+    }
+
+    /**
+     * Gets the string form of an id.
+     * @param slot the position of an attribute.
+     * @param name the name of the attribute, which must match the name the
+     *        table has for the slot.
+     * @return the string form of the id, or <code>null</code> if there is
+     *         no id for the attribute.
+     */
+    String getString(int slot, String name) {
+        int i = find(slot, name);
+        if ( i < 0 ) {
+            return null;
+        }
+        return strings[i] == null ? Long.toString(longs[i]) : strings[i];
+    }
+
+    /**
+     * Gets the id recorded for an attribute.
+     * @param name the name of the attribute.
+     * @return the string form of the attribute's id, or <code>null</code> if
+     *         there isn't one.
+     */
+    public String get(String name) {
+        int slot = slotOf(name);
+        return slot < 0 ? null : getString(slot, name);
+    }
+
+    /**
+     * Remove the id recorded for an attribute.  Clients that set a pruned
+     * parent to null need to do this, or the pruner will restore the parent
+     * when it un-prunes the entity.
+     * @param name the name of the attribute.
+     * @return the string form of the id that was removed, or
+     *         <code>null</code> if there wasn't one.
+     */
+    public String remove(String name) {
+        int slot = slotOf(name);
+        if ( slot < 0 ) {
+            return null;
+        }
+        int i = Arrays.binarySearch(slots, 0, size, slot);
+        if ( i < 0 ) {
+            return null;
+        }
+        String value = getString(slot, name);
+        int moved = size - i - 1;
+        System.arraycopy(slots, i + 1, slots, i, moved);
+        System.arraycopy(longs, i + 1, longs, i, moved);
+        System.arraycopy(strings, i + 1, strings, i, moved);
+        size--;
+        strings[size] = null;
+        return value;
+    }
+
+    /**
+     * @return the number of ids in the table.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the contents of the table the way they would be in a fieldIdMap,
+     * for clients that don't know about tables.  Changes to the table are
+     * not reflected in the map.
+     * @return an unmodifiable map of attribute names to the string forms of
+     *         their ids.
+     */
+    public Map<String, String> asMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>(size * 2);
+        for ( int i = 0; i < size; i++ ) {
+            String name = names[slots[i]];
+            map.put(name, getString(slots[i], name));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @return the table's contents, in the same form as a fieldIdMap.
+     */
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    /**
+     * Helper method to find the entry for an attribute.
+     * @param slot the position of the attribute.
+     * @param name the name of the attribute.
+     * @return the index of the entry, or -1 if there isn't one, or the
+     *         table's names don't match the attribute.
+     */
+    private int find(int slot, String name) {
+        if ( slot < 0 || slot >= names.length || !names[slot].equals(name) ) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(slots, 0, size, slot);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Helper method to find the position of an attribute.
+     * @param name the name of the attribute.
+     * @return the position, or -1 if the class doesn't have the attribute.
+     */
+    private int slotOf(String name) {
+        for ( int i = 0; i < names.length; i++ ) {
+            if ( names[i].equals(name) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Helper method to find or make the entry for an attribute, keeping the
+     * entries sorted by position.
+     * @param slot the position of the attribute.
+     * @return the index of the entry.
+     */
+    private int insert(int slot) {
+        int i = Arrays.binarySearch(slots, 0, size, slot);
+        if ( i >= 0 ) {
+            return i;
+        }
+        i = -(i + 1);
+        if ( size == slots.length ) {
+            int capacity = size * 2;
+            slots = Arrays.copyOf(slots, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            strings = Arrays.copyOf(strings, capacity);
+        }
+        int moved = size - i;
+        System.arraycopy(slots, i, slots, i + 1, moved);
+        System.arraycopy(longs, i, longs, i + 1, moved);
+        System.arraycopy(strings, i, strings, i + 1, moved);
+        slots[i] = slot;
+        size++;
+        return i;
+    }
+}
@@ -0,0 +1,71 @@
+package net.saliman.entitypruner;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * This enum classifies the attributes of a {@link PrunableEntity} by the
+ * way the {@link EntityPruner} needs to treat them.  An attribute's kind is
+ * determined once, from its declared type, when the {@link PruningPlan} for
+ * a class is built, so the pruner doesn't need to keep asking reflection
+ * what kind of thing it is looking at.
+ *
+ * @author Steven C. Saliman
+ * @see PruningPlan
+ */
+enum FieldKind {
+    /** A Java primitive.  Primitives can't be pruned to null. */
+    PRIMITIVE,
+    /** An ordinary attribute, such as a String or a Date. */
+    SCALAR,
+    /** The attribute holding the entity's primary key. */
+    ID,
+    /** A reference to another {@link PrunableEntity}, usually a parent. */
+    ENTITY,
+    /** A <code>SortedSet</code> of children. */
+    SORTED_SET,
+    /** A <code>Set</code> of children. */
+    SET,
+    /** A <code>List</code> of children. */
+    LIST,
+    /** Some other kind of collection, which the pruner doesn't support. */
+    COLLECTION;
+
+    /**
+     * @return <code>true</code> if this kind represents a collection of
+     *         children.
+     */
+    public boolean isCollection() {
+        return this == SORTED_SET || this == SET || this == LIST
+               || this == COLLECTION;
+    }
+
+    /**
+     * Determine the kind of an attribute from its declared type.  Order is
+     * important here, since a <code>SortedSet</code> is also a
+     * <code>Set</code>.
+     * @param type the declared type of the attribute.
+     * @param id whether or not the attribute holds the primary key.
+     * @return the kind of attribute.
+     */
+    static FieldKind forType(Class<?> type, boolean id) {
+        if ( type.isPrimitive() ) {
+            return PRIMITIVE;
+        } else if ( id ) {
+            return ID;
+        } else if ( PrunableEntity.class.isAssignableFrom(type) ) {
+            return ENTITY;
+        } else if ( SortedSet.class.isAssignableFrom(type) ) {
+            return SORTED_SET;
+        } else if ( Set.class.isAssignableFrom(type) ) {
+            return SET;
+        } else if ( List.class.isAssignableFrom(type) ) {
+            return LIST;
+        } else if ( Collection.class.isAssignableFrom(type) ) {
+            return COLLECTION;
+        }
+        return SCALAR;
+    }
+}
@@ -0,0 +1,40 @@
+package net.saliman.entitypruner;
+
+/**
+ * Entities implement this interface, instead of just {@link PrunableEntity},
+ * to keep their pruning state in a single <code>byte</code> of
+ * {@link PruningFlags} instead of a String.  The {@link EntityPruner} will
+ * read and write the state through these methods, so it never needs to
+ * compare Strings.
+ * <p>
+ * The default value of the flags <b>needs</b> to be
+ * {@link PruningFlags#UNPRUNED_COMPLETE}, for the same reasons the String
+ * state needs to be {@link PruningState#UNPRUNED_COMPLETE}.  Clients that
+ * still use the String state will work as long as the entity converts it,
+ * which is easiest to do with {@link PruningFlags#toState(byte)} in
+ * <code>getPruningState</code> and {@link PruningFlags#fromState(String)} in
+ * <code>setPruningState</code>.
+ * <p>
+ * A value of 0 has no flags.  Pruning doesn't treat it as partial, so an
+ * entity with no state that is pruned completely ends up
+ * {@link PruningFlags#PRUNED_COMPLETE}.  Un-pruning can't tell what a
+ * client left out of an entity with no state, so it ends up
+ * {@link PruningFlags#UNPRUNED_PARTIAL}, just like an entity with a
+ * <code>null</code> String state.
+ *
+ * @author Steven C. Saliman
+ * @see PruningFlags
+ */
+public interface FlaggedPrunableEntity extends PrunableEntity {
+    /**
+     * @return the current pruning state of the entity, as
+     *         {@link PruningFlags}.  The EntityPruner considers 0 to be no
+     *         state at all, the same as a <code>null</code> String state.
+     */
+    public byte getPruningFlags();
+
+    /**
+     * @param pruningFlags the state to set, as {@link PruningFlags}.
+     */
+    public void setPruningFlags(byte pruningFlags);
+}
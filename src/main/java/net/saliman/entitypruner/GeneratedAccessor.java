@@ -0,0 +1,148 @@
+package net.saliman.entitypruner;
+
+/**
+ * This is the base class for generated accessors.  A generated accessor
+ * reads and writes the attributes of one class of entity with plain method
+ * calls and field accesses, selected by the attribute's index, so the JIT
+ * compiler can inline the entity's getters and setters into the pruner.
+ * <p>
+ * Accessors come from two places.  The {@link PrunableEntityProcessor}
+ * writes one for every entity when the application is compiled, and they
+ * are found at runtime through the {@link AccessorRegistry}.  For entities
+ * that weren't compiled with the processor, the {@link AccessorGenerator}
+ * can build one when the application asks for it.
+ * <p>
+ * Not every attribute can be reached from generated code.  Private fields,
+ * for example, can only be written reflectively.  Each accessor records
+ * which attributes each method supports, and plans use their
+ * {@link PropertyAccessor} for the rest.
+ * <p>
+ * This class is only public so that generated classes, which live in the
+ * entity's package, can extend it.  Applications should never use it
+ * directly.
+ *
+ * @author Steven C. Saliman
+ */
+public abstract class GeneratedAccessor {
+    private Class<?> entityClass;
+    private String[] names;
+    private boolean[] gets;
+    private boolean[] sets;
+    private boolean[] fieldSets;
+
+    /**
+     * Constructor for accessors built at runtime, which call
+     * {@link #init(Class, String[], boolean[], boolean[], boolean[])} once
+     * the class has been defined.
+     */
+    protected GeneratedAccessor() {
+    }
+
+    /**
+     * Constructor for accessors written by the annotation processor.
+     * @param entityClass the class of entity this accessor is for.
+     * @param names the names of the attributes, in index order.
+     * @param gets the attributes {@link #get(Object, int)} can read.
+     * @param sets the attributes {@link #set(Object, int, Object)} can write.
+     * @param fieldSets the attributes {@link #setField(Object, int, Object)}
+     *        can write.
+     */
+    protected GeneratedAccessor(Class<?> entityClass, String[] names,
+            boolean[] gets, boolean[] sets, boolean[] fieldSets) {
+        init(entityClass, names, gets, sets, fieldSets);
+    }
+
+    /**
+     * Gets the value of an attribute using the entity's getter.
+     * @param entity the entity with the value we want.
+     * @param index the index of the attribute.
+     * @return the value of the attribute, boxed if it is a primitive.
+     */
+    public abstract Object get(Object entity, int index);
+
+    /**
+     * Sets the value of an attribute using the entity's setter.
+     * @param entity the entity to change.
+     * @param index the index of the attribute.
+     * @param value the new value.
+     */
+    public abstract void set(Object entity, int index, Object value);
+
+    /**
+     * Sets the value of an attribute directly in the field, bypassing the
+     * setter.
+     * @param entity the entity to change.
+     * @param index the index of the attribute.
+     * @param value the new value.
+     */
+    public abstract void setField(Object entity, int index, Object value);
+
+    /**
+     * Record what the accessor is for, and which attributes the generated
+     * methods support.  This is called once, before the accessor is
+     * published.
+     * @param entityClass the class of entity this accessor is for.
+     * @param names the names of the attributes, in index order.
+     * @param gets the attributes {@link #get(Object, int)} can read.
+     * @param sets the attributes {@link #set(Object, int, Object)} can write.
+     * @param fieldSets the attributes {@link #setField(Object, int, Object)}
+     *        can write.
+     */
+    final void init(Class<?> entityClass, String[] names, boolean[] gets,
+            boolean[] sets, boolean[] fieldSets) {
+        this.entityClass = entityClass;
+        this.names = names;
+        this.gets = gets;
+        this.sets = sets;
+        this.fieldSets = fieldSets;
+    }
+
+    /**
+     * @return the class of entity this accessor is for.
+     */
+    Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * Find the index of an attribute.
+     * @param name the name of the attribute.
+     * @return the attribute's index, or -1 if this accessor doesn't know
+     *         about it.
+     */
+    int indexOf(String name) {
+        for ( int i = 0; i < names.length; i++ ) {
+            if ( names[i].equals(name) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index the index of an attribute, or -1.
+     * @return <code>true</code> if {@link #get(Object, int)} can read the
+     *         attribute.
+     */
+    boolean canGet(int index) {
+        return index >= 0 && gets[index];
+    }
+
+    /**
+     * @param index the index of an attribute, or -1.
+     * @return <code>true</code> if {@link #set(Object, int, Object)} can
+     *         write the attribute.
+     */
+    boolean canSet(int index) {
+        return index >= 0 && sets[index];
+    }
+
+    /**
+     * @param index the index of an attribute, or -1.
+     * @return <code>true</code> if {@link #setField(Object, int, Object)}
+     *         can write the attribute.
+     */
+    boolean canSetField(int index) {
+        return index >= 0 && fieldSets[index];
+    }
+}
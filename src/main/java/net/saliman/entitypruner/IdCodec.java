@@ -0,0 +1,486 @@
+package net.saliman.entitypruner;
+
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * An <code>IdCodec</code> turns the primary key of an entity into the
+ * string we store in an entity's fieldIdMap when we prune an uninitialized
+ * proxy, and turns that string back into a primary key when we un-prune.
+ * We use strings because different languages treat numbers differently.
+ * <p>
+ * Codecs are resolved once for each type of id, and cached in the type's
+ * {@link ClassMetadata}, so un-pruning an entity doesn't need to look up
+ * any constructors.  The common id types, <code>Long</code>,
+ * <code>Integer</code>, <code>BigInteger</code>, <code>String</code> and
+ * <code>UUID</code>, are converted directly.  Dates are stored in ISO 8601
+ * format, in UTC, so that they don't depend on the server's time zone.
+ * Any other type is converted with its <code>toString</code> method, and
+ * converted back with a constructor or static <code>valueOf</code> method
+ * that takes a String.  <code>Long</code> and <code>Integer</code> ids can
+ * also be stored as a <code>long</code>, in a {@link FieldIdTable}.
+ * <p>
+ * Composite keys, whether they are mapped with an <code>EmbeddedId</code>
+ * or an <code>IdClass</code>, are stored as the values of the key class'
+ * fields, in order of field name, separated by commas.  Commas and
+ * backslashes in a value are escaped with a backslash, and null values are
+ * stored as <code>\N</code>.
+ *
+ * @author Steven C. Saliman
+ * @see PruningPlan#convertId(String)
+ */
+abstract class IdCodec {
+    /** The format of dates */
+    private static final String DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
+    /** What we store for a null value in a composite key */
+    private static final String NULL = "\\N";
+
+    /** The type of id this codec converts. */
+    private final Class<?> type;
+
+    /**
+     * Gets the codec for a type of id.
+     * @param type the class of the id.
+     * @param composite <code>true</code> if the id is a composite key, which
+     *        should be stored field by field.
+     * @return the codec for the type.  This will never be null.
+     */
+    static IdCodec forType(Class<?> type, boolean composite) {
+        ClassMetadata metadata = ClassMetadata.forClass(type);
+        IdCodec codec = metadata.idCodec;
+        if ( codec == null ) {
+            codec = composite ? new CompositeCodec(type) : simple(type);
+            metadata.idCodec = codec;
+        }
+        return codec;
+    }
+
+    /**
+     * Helper method to pick the codec for a type with a single value.
+     * @param type the class of the id.
+     * @return the codec for the type.
+     */
+    private static IdCodec simple(Class<?> type) {
+        if ( type == Long.class || type == long.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return Long.valueOf(value);
+                }
+
+                @Override
+                boolean isLong() {
+                    return true;
+                }
+
+                @Override
+                Serializable decode(long value) {
+                    return Long.valueOf(value);
+                }
+            };
+        } else if ( type == Integer.class || type == int.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return Integer.valueOf(value);
+                }
+
+                @Override
+                boolean isLong() {
+                    return true;
+                }
+
+                @Override
+                Serializable decode(long value) {
+                    return Integer.valueOf((int)value);
+                }
+            };
+        } else if ( type == BigInteger.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return new BigInteger(value);
+                }
+            };
+        } else if ( type == BigDecimal.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return new BigDecimal(value);
+                }
+            };
+        } else if ( type == String.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return value;
+                }
+            };
+        } else if ( type == UUID.class ) {
+            return new IdCodec(type) {
+                @Override
+                Serializable decode(String value) {
+                    return UUID.fromString(value);
+                }
+            };
+        } else if ( Date.class.isAssignableFrom(type) ) {
+            return new DateCodec(type);
+        }
+        return new StringConstructorCodec(type);
+    }
+
+    /**
+     * Only subclasses can create codecs.
+     * @param type the class of id this codec converts.
+     */
+    private IdCodec(Class<?> type) {
+        this.type = type;
+    }
+
+    /**
+     * @return the type of id this codec converts.
+     */
+    Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * Convert an id to the string we store in the fieldIdMap.
+     * @param id the id, which should not be null.
+     * @return the string form of the id.
+     */
+    String encode(Serializable id) {
+        return id.toString();
+    }
+
+    /**
+     * Convert a string made by {@link #encode(Serializable)} back to an id.
+     * @param value the string form of the id.
+     * @return the id.
+     * @throws IllegalStateException if the string can't be converted.
+     */
+    abstract Serializable decode(String value);
+
+    /**
+     * @return <code>true</code> if ids of this type can be stored as a
+     *         <code>long</code> (see {@link FieldIdTable}).
+     */
+    boolean isLong() {
+        return false;
+    }
+
+    /**
+     * Convert an id stored as a <code>long</code> back to an id.
+     * @param value the id as a <code>long</code>.
+     * @return the id.
+     * @throws IllegalStateException if the value can't be converted.
+     */
+    Serializable decode(long value) {
+        return decode(Long.toString(value));
+    }
+
+    /**
+     * Converts dates, and any subclass of Date with a constructor that
+     * takes milliseconds, such as <code>java.sql.Timestamp</code>.
+     */
+    private static final class DateCodec extends IdCodec {
+        private final Constructor<?> constructor;
+
+        /**
+         * Make the codec.
+         * @param type the class of date.
+         */
+        private DateCodec(Class<?> type) {
+            super(type);
+            Constructor<?> c = null;
+            if ( type != Date.class ) {
+                try {
+                    c = type.getConstructor(long.class);
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException(type +
+                            " can't be constructed from milliseconds");
+                }
+            }
+            this.constructor = c;
+        }
+
+        @Override
+        String encode(Serializable id) {
+            return format().format((Date)id);
+        }
+
+        @Override
+        Serializable decode(String value) {
+            Date date;
+            try {
+                date = format().parse(value);
+            } catch (ParseException e) {
+                String msg = "Can't convert '" + value + "' to a date: ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            }
+            if ( constructor == null ) {
+                return date;
+            }
+            try {
+                return (Serializable)constructor.newInstance(date.getTime());
+            } catch (InstantiationException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (IllegalAccessException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (InvocationTargetException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getCause();
+                throw new IllegalStateException(msg, e.getCause());
+            }
+        }
+
+        /**
+         * Helper method to make a date format.  Formats aren't thread safe,
+         * so we need a new one each time.
+         * @return the format.
+         */
+        private static SimpleDateFormat format() {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    }
+
+    /**
+     * Converts any other type with <code>toString</code>, and a String
+     * constructor or static <code>valueOf</code> method.
+     */
+    private static final class StringConstructorCodec extends IdCodec {
+        private final Constructor<?> constructor;
+        private final Method valueOf;
+
+        /**
+         * Make the codec, finding the constructor or method we'll use.  If
+         * there isn't one, we won't complain until we need to decode an id.
+         * @param type the class of id.
+         */
+        private StringConstructorCodec(Class<?> type) {
+            super(type);
+            Constructor<?> c = null;
+            Method m = null;
+            try {
+                c = type.getConstructor(String.class);
+            } catch (NoSuchMethodException e) {
+                try {
+                    m = type.getMethod("valueOf", String.class);
+                    if ( !Modifier.isStatic(m.getModifiers())
+                            || !type.isAssignableFrom(m.getReturnType()) ) {
+                        m = null;
+                    }
+                } catch (NoSuchMethodException e2) {
+                    // We'll complain if we ever need to decode one.
+                }
+            }
+            this.constructor = c;
+            this.valueOf = m;
+        }
+
+        @Override
+        Serializable decode(String value) {
+            try {
+                if ( constructor != null ) {
+                    return (Serializable)constructor.newInstance(value);
+                } else if ( valueOf != null ) {
+                    return (Serializable)valueOf.invoke(null, value);
+                }
+            } catch (InstantiationException e) {
+                String msg = "Can't convert '" + value + "' to a " +
+                             getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (IllegalAccessException e) {
+                String msg = "Can't convert '" + value + "' to a " +
+                             getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (InvocationTargetException e) {
+                String msg = "Can't convert '" + value + "' to a " +
+                             getType().getName() + ": ";
+                msg = msg + e.getCause();
+                throw new IllegalStateException(msg, e.getCause());
+            }
+            throw new IllegalStateException(getType() +
+                    " can't be constructed from a String");
+        }
+    }
+
+    /**
+     * Converts composite keys one field at a time.
+     */
+    private static final class CompositeCodec extends IdCodec {
+        private final Constructor<?> constructor;
+        private final List<PropertyAccessor> accessors;
+        private final List<IdCodec> codecs;
+
+        /**
+         * Make the codec, resolving the key class' fields and the codecs for
+         * each of them.
+         * @param type the class of the key.
+         * @throws IllegalStateException if the key class doesn't have a
+         *         no-argument constructor.
+         */
+        private CompositeCodec(Class<?> type) {
+            super(type);
+            try {
+                constructor = type.getDeclaredConstructor();
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                String msg = type.getName() + " is a composite key without " +
+                             "a no-argument constructor: ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            }
+            List<Field> fields = new ArrayList<Field>();
+            Class<?> currClazz = type;
+            while ( currClazz != null && !currClazz.equals(Object.class) ) {
+                for ( Field field : currClazz.getDeclaredFields() ) {
+                    int modifiers = field.getModifiers();
+                    if ( !Modifier.isStatic(modifiers)
+                            && !Modifier.isTransient(modifiers) ) {
+                        fields.add(field);
+                    }
+                }
+                currClazz = currClazz.getSuperclass();
+            }
+            // The order of declared fields isn't guaranteed, and the string
+            // may come back to a different JVM, so we go by name.
+            Collections.sort(fields, new Comparator<Field>() {
+                @Override
+                public int compare(Field f1, Field f2) {
+                    return f1.getName().compareTo(f2.getName());
+                }
+            });
+            List<PropertyAccessor> a = new ArrayList<PropertyAccessor>(fields.size());
+            List<IdCodec> c = new ArrayList<IdCodec>(fields.size());
+            for ( Field field : fields ) {
+                a.add(PropertyAccessor.forField(field));
+                c.add(simple(field.getType()));
+            }
+            this.accessors = a;
+            this.codecs = c;
+        }
+
+        @Override
+        String encode(Serializable id) {
+            if ( !getType().isInstance(id) ) {
+                // Not what we expected, so the best we can do is toString.
+                return id.toString();
+            }
+            StringBuilder sb = new StringBuilder();
+            for ( int i = 0; i < accessors.size(); i++ ) {
+                if ( i > 0 ) {
+                    sb.append(',');
+                }
+                Object value;
+                try {
+                    value = accessors.get(i).getFieldValue(id);
+                } catch (InvocationTargetException e) {
+                    String msg = "Can't read " + accessors.get(i).getField() + ": ";
+                    msg = msg + e.getCause();
+                    throw new IllegalStateException(msg, e.getCause());
+                }
+                if ( value == null ) {
+                    sb.append(NULL);
+                } else {
+                    String s = codecs.get(i).encode((Serializable)value);
+                    for ( int j = 0; j < s.length(); j++ ) {
+                        char ch = s.charAt(j);
+                        if ( ch == ',' || ch == '\\' ) {
+                            sb.append('\\');
+                        }
+                        sb.append(ch);
+                    }
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        Serializable decode(String value) {
+            List<String> parts = split(value);
+            if ( parts.size() != accessors.size() ) {
+                throw new IllegalStateException("Can't convert '" + value +
+                        "' to a " + getType().getName() + ": expected " +
+                        accessors.size() + " values, but found " + parts.size());
+            }
+            Object id;
+            try {
+                id = constructor.newInstance();
+                for ( int i = 0; i < parts.size(); i++ ) {
+                    String part = parts.get(i);
+                    Object fieldValue = part == null ? null : codecs.get(i).decode(part);
+                    accessors.get(i).setFieldValue(id, fieldValue);
+                }
+            } catch (InstantiationException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (IllegalAccessException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getMessage();
+                throw new IllegalStateException(msg, e);
+            } catch (InvocationTargetException e) {
+                String msg = "Can't create a " + getType().getName() + ": ";
+                msg = msg + e.getCause();
+                throw new IllegalStateException(msg, e.getCause());
+            }
+            return (Serializable)id;
+        }
+
+        /**
+         * Helper method to split an encoded key into its values, removing
+         * the escapes.
+         * @param value the encoded key.
+         * @return the values, with <code>null</code> for null values.
+         */
+        private static List<String> split(String value) {
+            List<String> parts = new ArrayList<String>();
+            StringBuilder sb = new StringBuilder();
+            boolean isNull = false;
+            for ( int i = 0; i < value.length(); i++ ) {
+                char ch = value.charAt(i);
+                if ( ch == '\\' && i + 1 < value.length() ) {
+                    char next = value.charAt(++i);
+                    if ( next == 'N' && sb.length() == 0 ) {
+                        isNull = true;
+                    } else {
+                        sb.append(next);
+                    }
+                } else if ( ch == ',' ) {
+                    parts.add(isNull ? null : sb.toString());
+                    sb.setLength(0);
+                    isNull = false;
+                } else {
+                    sb.append(ch);
+                }
+            }
+            parts.add(isNull ? null : sb.toString());
+            return parts;
+        }
+    }
+}
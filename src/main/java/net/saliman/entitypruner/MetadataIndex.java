@@ -0,0 +1,593 @@
+package net.saliman.entitypruner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class reads and writes the metadata index, a compact binary file
+ * that records, for each {@link PrunableEntity} in a jar, the bean fields
+ * {@link ReflectionUtil#loadBeanFields(Class, boolean)} would find, in the
+ * same order, and everything the {@link PruningPlan} needs to know about
+ * them from their annotations: the names of their getters and setters,
+ * their types and {@link FieldKind}s, which one is the id, which ones are
+ * transient, and the <code>mappedBy</code> and element class of each
+ * association.  It also records the type of the entity's key.  The index is
+ * written at build time by running this class' <code>main</code> method
+ * over an application's compiled classes (the README shows how), and
+ * stored in the application's jar as {@value #RESOURCE}.  The library's own
+ * jar doesn't have one, since it has no entities.
+ * <p>
+ * At runtime, each class loader's index files are read once, in one
+ * sequential pass, the first time we need metadata for one of its classes.
+ * When an entity is in the index, its plan is built straight from the
+ * entry, without reading any annotations or looking up any fields.  A
+ * field and its accessor methods are only looked up, directly by name, the
+ * first time something needs to use them reflectively, which nothing does
+ * if the entity has a {@link GeneratedAccessor}.  Classes that aren't in
+ * the index are handled with reflection as usual.  If a field in an entry
+ * can't be found, the index is out of date, and we fall back to searching
+ * the class for it.
+ *
+ * @author Steven C. Saliman
+ */
+final class MetadataIndex {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(MetadataIndex.class);
+    /** The name of the index in a jar. */
+    static final String RESOURCE = "META-INF/entity-pruner/metadata.idx";
+    /** The first 4 bytes of an index file: "EPIX". */
+    private static final int MAGIC = 0x45504958;
+    /** The version of the format we read and write. */
+    private static final int VERSION = 2;
+    /** Flag for fields that have a setter as well as a getter. */
+    private static final int WRITABLE = 1;
+    /** Flag for fields whose getter we know. */
+    private static final int GETTER = 2;
+    /** Flag for fields whose setter we know. */
+    private static final int SETTER = 4;
+    /** Flag for fields that are <code>Transient</code>. */
+    private static final int TRANSIENT = 8;
+    /** Flag for the field that holds the id. */
+    private static final int ID = 16;
+    /** Flag for an id that is an <code>EmbeddedId</code>. */
+    private static final int EMBEDDED_ID = 32;
+    /** Flag for associations with a <code>mappedBy</code>. */
+    private static final int MAPPED_BY = 64;
+    /** Flag for fields whose element class we know. */
+    private static final int ELEMENT = 128;
+    /** Flag for classes whose id type we know. */
+    private static final int HAS_ID_TYPE = 1;
+    /** Flag for classes with a composite key. */
+    private static final int COMPOSITE_ID = 2;
+    /** The classes of the primitive types, by name. */
+    private static final Map<String, Class<?>> PRIMITIVES = new HashMap<String, Class<?>>();
+    static {
+        for ( Class<?> type : new Class<?>[] { boolean.class, byte.class, char.class,
+                short.class, int.class, long.class, float.class, double.class } ) {
+            PRIMITIVES.put(type.getName(), type);
+        }
+    }
+
+    /** The entries for each class loader, indexed by class name. */
+    private static final Map<ClassLoader, Map<String, Entry>> INDEXES =
+        new WeakHashMap<ClassLoader, Map<String, Entry>>();
+    /** Whether we use indexes at all.  We don't when we're writing one. */
+    private static volatile boolean enabled = true;
+
+    /**
+     * This is a utility class with only static methods.
+     */
+    private MetadataIndex() {
+    }
+
+    /**
+     * Fill in the cached metadata for a class from the index, if the index
+     * has it.  This only does any work the first time it is called for a
+     * class.
+     * @param clazz the class we need metadata for.
+     * @return <code>true</code> if the class' bean fields and accessors are
+     *         now cached, or <code>false</code> if the caller needs to find
+     *         them with reflection.
+     */
+    static boolean apply(Class<?> clazz) {
+        ClassMetadata metadata = ClassMetadata.forClass(clazz);
+        Boolean indexed = metadata.indexed;
+        if ( indexed == null ) {
+            Entry entry = enabled ? lookup(clazz) : null;
+            indexed = entry != null && apply(clazz, entry, metadata);
+            metadata.indexed = indexed;
+        }
+        return indexed;
+    }
+
+    /**
+     * Find a class' entry in its class loader's index, so a plan can be
+     * built from it.
+     * @param clazz the class.
+     * @return the entry, or <code>null</code> if the class isn't indexed,
+     *         or we're not using indexes.
+     */
+    static Entry find(Class<?> clazz) {
+        return enabled ? lookup(clazz) : null;
+    }
+
+    /**
+     * Look up the field for one of the attributes in an entry.  This is
+     * the only reflection an indexed attribute needs, and it is only done
+     * when something needs the field.
+     * @param clazz the class the entry is for.
+     * @param entry the class' entry in the index.
+     * @param i the position of the attribute in the entry.
+     * @return the field.
+     * @throws IllegalStateException if the class doesn't have the field.
+     */
+    static Field resolveField(Class<?> clazz, Entry entry, int i) {
+        try {
+            return loadClass(clazz, entry.declaringClasses[i])
+                       .getDeclaredField(entry.names[i]);
+        } catch (NoSuchFieldException e) {
+            LOG.warn("The metadata index for " + clazz.getName() + " is out " +
+                     "of date, using reflection instead: " + e);
+        } catch (IllegalStateException e) {
+            LOG.warn("The metadata index for " + clazz.getName() + " is out " +
+                     "of date, using reflection instead: " + e.getMessage());
+        }
+        Field field = ReflectionUtil.getField(clazz, entry.names[i]);
+        if ( field == null ) {
+            throw new IllegalStateException(clazz.getName() + " has no field " +
+                                            "named " + entry.names[i]);
+        }
+        return field;
+    }
+
+    /**
+     * Bind the accessor for one of the attributes in an entry, using the
+     * names of the getter and setter the entry recorded.
+     * @param clazz the class the entry is for.
+     * @param entry the class' entry in the index.
+     * @param i the position of the attribute in the entry.
+     * @param field the attribute's field.
+     * @return the accessor.
+     */
+    static PropertyAccessor resolveAccessor(Class<?> clazz, Entry entry, int i,
+            Field field) {
+        Class<?> declaringClass = field.getDeclaringClass();
+        try {
+            Method getter = null;
+            if ( entry.getters[i] != null ) {
+                getter = declaringClass.getMethod(entry.getters[i]);
+            }
+            Method setter = null;
+            if ( entry.setters[i] != null ) {
+                setter = declaringClass.getMethod(entry.setters[i], field.getType());
+            }
+            return PropertyAccessor.forField(field, getter, setter);
+        } catch (NoSuchMethodException e) {
+            LOG.warn("The metadata index for " + clazz.getName() + " is out " +
+                     "of date, using reflection instead: " + e);
+            return PropertyAccessor.forField(field);
+        }
+    }
+
+    /**
+     * Load a class named in an entry, using the class loader of the class
+     * the entry is for.
+     * @param clazz the class the entry is for.
+     * @param name the name of the class to load, which may be the name of
+     *        a primitive type, or <code>null</code>.
+     * @return the class, or <code>null</code> if the name was
+     *         <code>null</code>.
+     * @throws IllegalStateException if the class can't be loaded.
+     */
+    static Class<?> loadClass(Class<?> clazz, String name) {
+        if ( name == null ) {
+            return null;
+        }
+        if ( name.equals(clazz.getName()) ) {
+            return clazz;
+        }
+        Class<?> primitive = PRIMITIVES.get(name);
+        if ( primitive != null ) {
+            return primitive;
+        }
+        try {
+            return Class.forName(name, false, clazz.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Can't load " + name + " for " +
+                                            clazz.getName() + ": " +
+                                            e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Helper method to find a class' entry in its class loader's index.
+     * @param clazz the class.
+     * @return the entry, or <code>null</code> if the class isn't indexed.
+     */
+    private static Entry lookup(Class<?> clazz) {
+        ClassLoader loader = clazz.getClassLoader();
+        if ( loader == null ) {
+            return null;
+        }
+        Map<String, Entry> entries;
+        synchronized ( INDEXES ) {
+            entries = INDEXES.get(loader);
+            if ( entries == null ) {
+                entries = load(loader);
+                INDEXES.put(loader, entries);
+            }
+        }
+        return entries.get(clazz.getName());
+    }
+
+    /**
+     * Helper method to read every index a class loader can see.  A file we
+     * can't read is logged and skipped.
+     * @param loader the class loader.
+     * @return the entries from all the files, indexed by class name.
+     */
+    private static Map<String, Entry> load(ClassLoader loader) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        try {
+            Enumeration<URL> urls = loader.getResources(RESOURCE);
+            while ( urls.hasMoreElements() ) {
+                URL url = urls.nextElement();
+                InputStream in = url.openStream();
+                try {
+                    entries.putAll(read(in));
+                } catch (IOException e) {
+                    LOG.warn("Can't read the metadata index " + url + ": " +
+                             e.getMessage());
+                } finally {
+                    in.close();
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("Can't find metadata indexes: " + e.getMessage());
+        }
+        LOG.debug("Loaded metadata for " + entries.size() + " classes");
+        return entries;
+    }
+
+    /**
+     * Helper method to resolve an entry's fields and store them in the
+     * class' metadata, for callers that need the fields themselves rather
+     * than a plan.  Accessor methods aren't looked up here; the plan binds
+     * them if it ever needs them.  If a field in the entry doesn't match
+     * the class, nothing is stored.
+     * @param clazz the class.
+     * @param entry the class' entry in the index.
+     * @param metadata the class' metadata.
+     * @return <code>true</code> if the metadata was stored.
+     */
+    private static boolean apply(Class<?> clazz, Entry entry, ClassMetadata metadata) {
+        List<Field> readable = new ArrayList<Field>(entry.names.length);
+        List<Field> writable = new ArrayList<Field>(entry.names.length);
+        try {
+            for ( int i = 0; i < entry.names.length; i++ ) {
+                Field field = loadClass(clazz, entry.declaringClasses[i])
+                                  .getDeclaredField(entry.names[i]);
+                readable.add(field);
+                if ( (entry.flags[i] & WRITABLE) != 0 ) {
+                    writable.add(field);
+                }
+            }
+        } catch (NoSuchFieldException e) {
+            LOG.warn("The metadata index for " + clazz.getName() + " is out " +
+                     "of date, using reflection instead: " + e);
+            return false;
+        } catch (IllegalStateException e) {
+            LOG.warn("The metadata index for " + clazz.getName() + " is out " +
+                     "of date, using reflection instead: " + e.getMessage());
+            return false;
+        }
+        // Later fields hide earlier ones, the same way they would for
+        // ReflectionUtil.getField.
+        for ( Field field : readable ) {
+            metadata.fields.put(field.getName(), field);
+        }
+        metadata.readableBeanFields = readable;
+        metadata.beanFields = writable;
+        return true;
+    }
+
+    /**
+     * Read an index.
+     * @param in the stream with the index.  It is not closed.
+     * @return the entries in the index, indexed by class name.
+     * @throws IOException if the stream can't be read, or isn't an index we
+     *         understand.
+     */
+    static Map<String, Entry> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        if ( data.readInt() != MAGIC ) {
+            throw new IOException("Not a metadata index");
+        }
+        int version = data.readUnsignedShort();
+        if ( version != VERSION ) {
+            throw new IOException("Unsupported metadata index version " + version);
+        }
+        int count = data.readInt();
+        Map<String, Entry> entries = new HashMap<String, Entry>(count * 2);
+        for ( int i = 0; i < count; i++ ) {
+            String className = data.readUTF();
+            int classFlags = data.readUnsignedByte();
+            String idType = null;
+            if ( (classFlags & HAS_ID_TYPE) != 0 ) {
+                idType = data.readUTF();
+            }
+            int size = data.readUnsignedShort();
+            Entry entry = new Entry(size, idType, (classFlags & COMPOSITE_ID) != 0);
+            FieldKind[] kinds = FieldKind.values();
+            for ( int j = 0; j < size; j++ ) {
+                entry.names[j] = data.readUTF();
+                entry.declaringClasses[j] = data.readUTF();
+                entry.flags[j] = data.readUnsignedByte();
+                int kind = data.readUnsignedByte();
+                if ( kind >= kinds.length ) {
+                    throw new IOException("Unknown kind " + kind + " for " +
+                                          className + "." + entry.names[j]);
+                }
+                entry.kinds[j] = kinds[kind];
+                entry.types[j] = data.readUTF();
+                if ( (entry.flags[j] & GETTER) != 0 ) {
+                    entry.getters[j] = data.readUTF();
+                }
+                if ( (entry.flags[j] & SETTER) != 0 ) {
+                    entry.setters[j] = data.readUTF();
+                }
+                if ( (entry.flags[j] & MAPPED_BY) != 0 ) {
+                    entry.mappedBy[j] = data.readUTF();
+                }
+                if ( (entry.flags[j] & ELEMENT) != 0 ) {
+                    entry.elements[j] = data.readUTF();
+                }
+            }
+            entries.put(className, entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Write an index for the given classes, using reflection to build their
+     * plans from their annotations exactly the way we would at runtime.
+     * @param classes the classes to index.
+     * @param out the stream to write to.  It is flushed, but not closed.
+     * @throws IOException if the index can't be written.
+     */
+    static void write(Collection<Class<?>> classes, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(classes.size());
+        for ( Class<?> clazz : classes ) {
+            // The plan's attributes are the readable bean fields, in order.
+            PruningPlan plan = PruningPlan.fromAnnotations(clazz);
+            Set<Field> writable = new HashSet<Field>(ReflectionUtil.loadBeanFields(clazz, false));
+            int classFlags = 0;
+            if ( plan.getIdType() != null ) {
+                classFlags |= HAS_ID_TYPE;
+            }
+            if ( plan.isCompositeId() ) {
+                classFlags |= COMPOSITE_ID;
+            }
+            data.writeUTF(clazz.getName());
+            data.writeByte(classFlags);
+            if ( plan.getIdType() != null ) {
+                data.writeUTF(plan.getIdType().getName());
+            }
+            data.writeShort(plan.getAttributes().size());
+            for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+                Field field = attribute.getField();
+                PropertyAccessor accessor = attribute.getAccessor();
+                Method getter = accessor.getGetterMethod();
+                Method setter = accessor.getSetterMethod();
+                Class<?> element = attribute.getElementClass();
+                int flags = 0;
+                if ( writable.contains(field) ) {
+                    flags |= WRITABLE;
+                }
+                if ( getter != null ) {
+                    flags |= GETTER;
+                }
+                if ( setter != null ) {
+                    flags |= SETTER;
+                }
+                if ( attribute.isTransient() ) {
+                    flags |= TRANSIENT;
+                }
+                if ( attribute.isId() ) {
+                    flags |= ID;
+                }
+                if ( attribute.isEmbeddedId() ) {
+                    flags |= EMBEDDED_ID;
+                }
+                if ( attribute.getMappedBy() != null ) {
+                    flags |= MAPPED_BY;
+                }
+                if ( element != null ) {
+                    flags |= ELEMENT;
+                }
+                data.writeUTF(field.getName());
+                data.writeUTF(field.getDeclaringClass().getName());
+                data.writeByte(flags);
+                data.writeByte(attribute.getKind().ordinal());
+                data.writeUTF(field.getType().getName());
+                if ( getter != null ) {
+                    data.writeUTF(getter.getName());
+                }
+                if ( setter != null ) {
+                    data.writeUTF(setter.getName());
+                }
+                if ( attribute.getMappedBy() != null ) {
+                    data.writeUTF(attribute.getMappedBy());
+                }
+                if ( element != null ) {
+                    data.writeUTF(element.getName());
+                }
+            }
+        }
+        data.flush();
+    }
+
+    /**
+     * Write the index for the entities in one or more directories of
+     * compiled classes.  The classes, and everything they depend on, must
+     * be on the classpath.
+     * @param args the file to write, followed by the class directories to
+     *        search.
+     * @throws IllegalArgumentException if the arguments are missing.
+     * @throws Exception if a class can't be loaded, or the index can't be
+     *         written.
+     */
+    public static void main(String[] args) throws Exception {
+        if ( args.length < 2 ) {
+            String msg = "Usage: MetadataIndex <index file> <class directory>...";
+            LOG.error(msg);
+            throw new IllegalArgumentException(msg);
+        }
+        // An index from the last build could be on the classpath, and we
+        // don't want to copy it.
+        enabled = false;
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        for ( int i = 1; i < args.length; i++ ) {
+            File dir = new File(args[i]);
+            List<String> names = new ArrayList<String>();
+            findClasses(dir, "", names);
+            Collections.sort(names);
+            for ( String name : names ) {
+                Class<?> clazz = Class.forName(name, false, loader);
+                if ( PrunableEntity.class.isAssignableFrom(clazz)
+                        && !clazz.isInterface()
+                        && !Modifier.isAbstract(clazz.getModifiers()) ) {
+                    classes.add(clazz);
+                }
+            }
+        }
+        File file = new File(args[0]);
+        if ( file.getParentFile() != null ) {
+            file.getParentFile().mkdirs();
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(classes, out);
+        } finally {
+            out.close();
+        }
+        LOG.info("Wrote metadata for " + classes.size() + " entities to " + file);
+    }
+
+    /**
+     * Helper method to find the names of the classes in a directory.
+     * @param dir the directory to search.
+     * @param prefix the package of the directory, with a trailing dot.
+     * @param names the list to add the class names to.
+     */
+    private static void findClasses(File dir, String prefix, List<String> names) {
+        File[] files = dir.listFiles();
+        if ( files == null ) {
+            return;
+        }
+        for ( File file : files ) {
+            String name = file.getName();
+            if ( file.isDirectory() ) {
+                findClasses(file, prefix + name + ".", names);
+            } else if ( name.endsWith(".class") && !name.equals("package-info.class") ) {
+                names.add(prefix + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    /**
+     * The index's record of one class.  The arrays are parallel, with one
+     * element for each bean field, in the order
+     * {@link ReflectionUtil#loadBeanFields(Class, boolean)} returns them,
+     * which is also the order of the attributes in the class'
+     * {@link PruningPlan}.
+     */
+    static final class Entry {
+        final String[] names;
+        final String[] declaringClasses;
+        final int[] flags;
+        final FieldKind[] kinds;
+        final String[] types;
+        final String[] getters;
+        final String[] setters;
+        final String[] mappedBy;
+        final String[] elements;
+        /** The name of the type of the key, or <code>null</code>. */
+        final String idType;
+        final boolean compositeId;
+
+        /**
+         * Make an empty entry.
+         * @param size the number of fields.
+         * @param idType the name of the type of the key, or
+         *        <code>null</code> if we don't know it.
+         * @param compositeId whether the key is composite.
+         */
+        private Entry(int size, String idType, boolean compositeId) {
+            names = new String[size];
+            declaringClasses = new String[size];
+            flags = new int[size];
+            kinds = new FieldKind[size];
+            types = new String[size];
+            getters = new String[size];
+            setters = new String[size];
+            mappedBy = new String[size];
+            elements = new String[size];
+            this.idType = idType;
+            this.compositeId = compositeId;
+        }
+
+        /**
+         * @param i the position of a field.
+         * @return <code>true</code> if the field holds the id.
+         */
+        boolean isId(int i) {
+            return (flags[i] & ID) != 0;
+        }
+
+        /**
+         * @param i the position of a field.
+         * @return <code>true</code> if the field is <code>Transient</code>.
+         */
+        boolean isTransient(int i) {
+            return (flags[i] & TRANSIENT) != 0;
+        }
+
+        /**
+         * @param i the position of a field.
+         * @return <code>true</code> if the field is an
+         *         <code>EmbeddedId</code>.
+         */
+        boolean isEmbeddedId(int i) {
+            return (flags[i] & EMBEDDED_ID) != 0;
+        }
+    }
+}
@@ -38,6 +38,10 @@ public interface Options {
      * specific named child collections and exclude the rest.  Invalid 
      * attributes are ignored.  This option has no effect on attributes that
      * are not child collections.
+     * <p>
+     * Names can be paths, like <code>children.grandchildren</code> or
+     * <code>children(grandchildren,pets)</code>, to include collections below
+     * the root entity.  See {@link PruneSpec} for the syntax.
 	 * <p> 
 	 * This option is one of the 3 pruning options. If no pruning options are
 	 * specified, the default is to return whatever the server loaded in the
@@ -52,7 +56,9 @@ public interface Options {
      * The select option tells the entity populator and pruner to include 
      * specific named attributes and exclude the rest.  Invalid attributes 
      * are ignored.  This option has no effect on attributes that are 
-     * child collections.
+     * child collections, unless it is a path through the collection, like
+     * <code>children(code,description)</code>, which selects attributes of
+     * each child.  See {@link PruneSpec} for the syntax.
 	 * <p> 
 	 * This option is one of the 3 pruning options. If no pruning options are
 	 * specified, the default is to return whatever the server loaded in the
@@ -62,6 +68,49 @@ public interface Options {
      * @see #INCLUDE
      */
     public static final String SELECT = "select";
+    /**
+     * The traversal option tells the entity pruner what order to walk the
+     * object graph in.  It must be either {@link #DEPTH_FIRST} (the
+     * default), or {@link #BREADTH_FIRST}.  The order doesn't change the
+     * results, since an entity that can be reached by more than one path is
+     * always pruned to the depth of the shortest one, but breadth-first
+     * order never needs to visit an entity twice to find it, which can be
+     * faster on graphs with a lot of shared entities.
+     * 
+     * @see #DEPTH
+     */
+    public static final String TRAVERSAL = "traversal";
+    /**
+     * Value for the {@link #TRAVERSAL} option that walks the object graph in
+     * depth-first order.
+     */
+    public static final String DEPTH_FIRST = "depth_first";
+    /**
+     * Value for the {@link #TRAVERSAL} option that walks the object graph in
+     * breadth-first order.
+     */
+    public static final String BREADTH_FIRST = "breadth_first";
+    /**
+     * The no_load option tells the entity pruner not to do anything that
+     * could make Hibernate load data while it prunes.  With a value of
+     * <code>true</code>, associations are read straight from their fields
+     * instead of through getters, and so is every attribute of an entity
+     * that was enhanced for lazy properties, such as a lazy LOB.  The
+     * default is <code>false</code>, since entities whose getters compute
+     * values from other fields would see different results.
+     * <p>
+     * Lazy properties that haven't been loaded are never loaded by the
+     * pruner, whether or not this is set.  Basic properties, like LOBs, are
+     * pruned to <code>null</code>, which makes the entity
+     * {@link PruningState#PRUNED_PARTIAL}, and recorded in the entity's
+     * fieldIdMap as {@link PrunableEntity#NOT_LOADED}, so that un-pruning
+     * can tell Hibernate to leave them alone.  Lazy parents are pruned to
+     * <code>null</code> and their ids recorded, just like uninitialized
+     * proxies, if the session still knows them.  Otherwise they, and lazy
+     * collections, are recorded as <code>NOT_LOADED</code> too, and left
+     * alone the same way.
+     */
+    public static final String NO_LOAD = "no_load";
     
     /**
      * The page option tells find operations to return a page other than the 
@@ -0,0 +1,351 @@
+package net.saliman.entitypruner;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * This class provides access to a single attribute of a bean.  The getter,
+ * setter, and the field itself are bound to <code>MethodHandle</code>s once,
+ * the first time the attribute is used, and every access after that is an
+ * <code>invokeExact</code> call, without any method lookups, string
+ * manipulation, or argument arrays.  An access still costs about as much as
+ * invoking a cached <code>Method</code>, which is much more than calling the
+ * getter directly, so plans normally use a {@link GeneratedAccessor}, and
+ * only fall back to these accessors for attributes generated code can't
+ * reach, or for entities we couldn't generate an accessor for.  See
+ * <code>PropertyAccessorBenchmark</code> in the JMH benchmarks for the
+ * difference.
+ * <p>
+ * Like the rest of the Entity Pruner, accessors prefer the bean's get and
+ * set methods over the field itself, because Hibernate doesn't always store
+ * the value in the field.  Sometimes it stores it in a CGLIB or Javassist
+ * proxy, using proxy methods to get to it.  The field is only used when the
+ * bean doesn't have the appropriate method (SERIAL_VERSION_UID for example).
+ * <p>
+ * Accessors are shared by the {@link EntityPruner}, {@link EntityUtil} and
+ * {@link ReflectionUtil}, so each field only needs to be bound once.
+ *
+ * @author Steven C. Saliman
+ */
+final class PropertyAccessor {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(PropertyAccessor.class);
+    /** The type of handle we use to read values */
+    private static final MethodType GETTER_TYPE =
+        MethodType.methodType(Object.class, Object.class);
+    /** The type of handle we use to write values */
+    private static final MethodType SETTER_TYPE =
+        MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Field field;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+    private final MethodHandle fieldGetter;
+    private final MethodHandle fieldSetter;
+    private final Method getterMethod;
+    private final Method setterMethod;
+
+    /**
+     * Gets the accessor for the given field, binding it if this is the first
+     * time we've seen the field.
+     * @param field the field we want to access.
+     * @return the accessor for the field.  This will never be null.
+     * @throws IllegalStateException if the field can't be bound.
+     */
+    static PropertyAccessor forField(Field field) {
+        // Field names are unique within the declaring class, so that class'
+        // metadata is the natural home for the accessor.
+        ConcurrentMap<String, PropertyAccessor> accessors =
+            ClassMetadata.forClass(field.getDeclaringClass()).accessors;
+        PropertyAccessor accessor = accessors.get(field.getName());
+        if ( accessor == null ) {
+            accessor = new PropertyAccessor(field);
+            PropertyAccessor existing = accessors.putIfAbsent(field.getName(), accessor);
+            if ( existing != null ) {
+                accessor = existing;
+            }
+        }
+        return accessor;
+    }
+
+    /**
+     * Gets the accessor for the given field, binding it to methods that have
+     * already been found, if this is the first time we've seen the field.
+     * This is used by the {@link MetadataIndex}, which knows the names of
+     * the accessor methods, so we don't need to search for them.
+     * @param field the field we want to access.
+     * @param getterMethod the bean's getter for the field, or
+     *        <code>null</code> if it doesn't have one.
+     * @param setterMethod the bean's setter for the field, or
+     *        <code>null</code> if it doesn't have one.
+     * @return the accessor for the field.  This will never be null.
+     * @throws IllegalStateException if the field can't be bound.
+     */
+    static PropertyAccessor forField(Field field, Method getterMethod,
+            Method setterMethod) {
+        ConcurrentMap<String, PropertyAccessor> accessors =
+            ClassMetadata.forClass(field.getDeclaringClass()).accessors;
+        PropertyAccessor accessor = accessors.get(field.getName());
+        if ( accessor == null ) {
+            accessor = new PropertyAccessor(field, makeAccessible(getterMethod),
+                                            makeAccessible(setterMethod));
+            PropertyAccessor existing = accessors.putIfAbsent(field.getName(), accessor);
+            if ( existing != null ) {
+                accessor = existing;
+            }
+        }
+        return accessor;
+    }
+
+    /**
+     * Find the accessor methods for a field, and bind the handles.
+     * @param field the field we want to access.
+     */
+    private PropertyAccessor(Field field) {
+        this(field, findMethod(field.getDeclaringClass(), getterName(field), null),
+             findMethod(field.getDeclaringClass(), "set" + suffix(field),
+                        field.getType()));
+    }
+
+    /**
+     * Bind the handles for a field.
+     * @param field the field we want to access.
+     * @param getterMethod the bean's getter for the field, or
+     *        <code>null</code> if it doesn't have one.
+     * @param setterMethod the bean's setter for the field, or
+     *        <code>null</code> if it doesn't have one.
+     */
+    private PropertyAccessor(Field field, Method getterMethod, Method setterMethod) {
+        LOG.trace("PropertyAccessor(" + field.getDeclaringClass().getName() +
+                  "." + field.getName() + ")");
+        this.field = field;
+        // Missing accessors are remembered as null handles here, so the
+        // decision to fall back to the field is only made once per field.
+        this.getterMethod = getterMethod;
+        this.setterMethod = setterMethod;
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean isStatic = Modifier.isStatic(field.getModifiers());
+        try {
+            field.setAccessible(true);
+            MethodHandle fg = lookup.unreflectGetter(field);
+            if ( isStatic ) {
+                // Static fields don't need a target, but we still want all
+                // handles to have the same shape.
+                fg = MethodHandles.dropArguments(fg, 0, Object.class);
+            }
+            this.fieldGetter = fg.asType(GETTER_TYPE);
+            if ( getterMethod != null ) {
+                this.getter = lookup.unreflect(getterMethod).asType(GETTER_TYPE);
+            } else {
+                this.getter = fieldGetter;
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Can't access " + field, e);
+        }
+
+        // Final fields can't be written, so we might not get a field setter.
+        MethodHandle fs = null;
+        try {
+            fs = lookup.unreflectSetter(field);
+            if ( isStatic ) {
+                fs = MethodHandles.dropArguments(fs, 0, Object.class);
+            }
+            fs = fs.asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            fs = null;
+        }
+        this.fieldSetter = fs;
+        MethodHandle s = fieldSetter;
+        if ( setterMethod != null ) {
+            try {
+                s = lookup.unreflect(setterMethod).asType(SETTER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Can't access " + setterMethod, e);
+            }
+        }
+        this.setter = s;
+    }
+
+    /**
+     * @return the field this accessor is for.
+     */
+    Field getField() {
+        return field;
+    }
+
+    /**
+     * Gets the value of the field from the given object, using the getter if
+     * there is one.
+     * @param object the object with the value we want.
+     * @return the value of the field.
+     * @throws InvocationTargetException if the getter throws an exception.
+     */
+    Object getValue(Object object) throws InvocationTargetException {
+        try {
+            return getter.invokeExact(object);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Sets the value of the field in the given object, using the setter if
+     * there is one.
+     * @param object the object to change.
+     * @param value the new value.
+     * @throws IllegalAccessException if there is no setter and the field is
+     *         final.
+     * @throws InvocationTargetException if the setter throws an exception.
+     */
+    void setValue(Object object, Object value) throws IllegalAccessException,
+            InvocationTargetException {
+        if ( setter == null ) {
+            throw new IllegalAccessException("Can't set final field " + field);
+        }
+        try {
+            setter.invokeExact(object, value);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Gets the value directly from the field, bypassing any getter.
+     * @param object the object with the value we want.
+     * @return the value of the field.
+     * @throws InvocationTargetException if the value can't be read.
+     */
+    Object getFieldValue(Object object) throws InvocationTargetException {
+        try {
+            return fieldGetter.invokeExact(object);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * Sets the value directly in the field, bypassing any setter.
+     * @param object the object to change.
+     * @param value the new value.
+     * @throws IllegalAccessException if the field is final.
+     * @throws InvocationTargetException if the value can't be written.
+     */
+    void setFieldValue(Object object, Object value) throws IllegalAccessException,
+            InvocationTargetException {
+        if ( fieldSetter == null ) {
+            throw new IllegalAccessException("Can't set final field " + field);
+        }
+        try {
+            fieldSetter.invokeExact(object, value);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the bean has a public getter for this
+     *         field, <code>false</code> if values are read from the field.
+     */
+    boolean hasGetter() {
+        return getterMethod != null;
+    }
+
+    /**
+     * @return <code>true</code> if the bean has a public setter for this
+     *         field, <code>false</code> if values are written to the field.
+     */
+    boolean hasSetter() {
+        return setterMethod != null;
+    }
+
+    /**
+     * @return the bean's getter for this field, or <code>null</code> if it
+     *         doesn't have one.
+     */
+    Method getGetterMethod() {
+        return getterMethod;
+    }
+
+    /**
+     * @return the bean's setter for this field, or <code>null</code> if it
+     *         doesn't have one.
+     */
+    Method getSetterMethod() {
+        return setterMethod;
+    }
+
+    /**
+     * Helper method to get the name of the getter for a field.  Booleans use
+     * "is" methods, everything else uses "get" methods.
+     * @param field the field.
+     * @return the name of the getter.
+     */
+    private static String getterName(Field field) {
+        Class<?> type = field.getType();
+        if ( boolean.class.isAssignableFrom(type)
+                || Boolean.class.isAssignableFrom(type) ) {
+            return "is" + suffix(field);
+        }
+        return "get" + suffix(field);
+    }
+
+    /**
+     * @param field a field.
+     * @return the field's name with the first letter capitalized, which is
+     *         how it appears in the names of accessor methods.
+     */
+    private static String suffix(Field field) {
+        String name = field.getName();
+        return name.substring(0,1).toUpperCase() + name.substring(1);
+    }
+
+    /**
+     * Helper method to get a public method, returning null if it doesn't
+     * exist.  The method is made accessible so that we can bind it even if
+     * it is declared in a class that isn't public.
+     * @param clazz the class with the method.
+     * @param name the name of the method.
+     * @param parameterType the parameter type of the method, or
+     *        <code>null</code> for a method with no parameters.
+     * @return the method, or <code>null</code>.
+     */
+    private static Method findMethod(Class<?> clazz, String name,
+            Class<?> parameterType) {
+        return makeAccessible(ReflectionUtil.getMethod(clazz, name, parameterType));
+    }
+
+    /**
+     * Helper method to make a method accessible, so that we can bind it even
+     * if it is declared in a class that isn't public.
+     * @param method the method, which may be <code>null</code>.
+     * @return the same method.
+     */
+    private static Method makeAccessible(Method method) {
+        if ( method != null ) {
+            try {
+                method.setAccessible(true);
+            } catch (SecurityException e) {
+                // If we can't make it accessible, we'll try to bind it anyway.
+            }
+        }
+        return method;
+    }
+}
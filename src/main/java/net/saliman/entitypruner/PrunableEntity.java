@@ -25,7 +25,11 @@ import java.util.Map;
  * <p>
  * The fieldIdMap attribute is used by the {@link EntityPruner} to store
  * the field name and ID of proxied parent entities when the parent entity 
- * hasn't been loaded yet.
+ * hasn't been loaded yet.  It is also used to record lazy properties, like
+ * LOBs, and lazy associations that Hibernate hadn't loaded when the entity
+ * was pruned.  These are stored with the value {@link #NOT_LOADED}, and
+ * un-pruning leaves their values in the database alone unless the client
+ * sets a new value.
  * <p>
  * A class wishing to be prunable must have as it's ID a class that has a 
  * <code>toString</code> method and a constructor that takes creates an 
@@ -53,6 +57,12 @@ import java.util.Map;
  * @see EntityPruner for more details about pruning entities.
  */
 public interface PrunableEntity {
+    /**
+     * The value stored in the fieldIdMap for a lazy property or association
+     * that wasn't loaded when the entity was pruned.
+     */
+    public static final String NOT_LOADED = "NOT_LOADED";
+
 	/**
      * @return The current pruning state of the entity.  The EntityPruner
      * considers a null state to be UNPRUNED_PARTIAL.
@@ -0,0 +1,413 @@
+package net.saliman.entitypruner;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * This annotation processor writes a {@link GeneratedAccessor} for every
+ * concrete {@link PrunableEntity} in the code being compiled, and lists them
+ * in <code>META-INF/services/net.saliman.entitypruner.GeneratedAccessor</code>
+ * so the {@link AccessorRegistry} can find them at runtime.  With an
+ * accessor in place, the {@link EntityPruner} and {@link EntityUtil} read
+ * and write the entity's attributes with plain method calls, and don't have
+ * to generate an accessor the first time they see the entity.
+ * <p>
+ * The processor is opt-in.  The main Entity Pruner jar doesn't register it,
+ * so javac never runs it unless asked.  Projects that want accessors can
+ * compile against the jar with the <code>processor</code> classifier, which
+ * registers it, or name it with
+ * <code>-processor net.saliman.entitypruner.PrunableEntityProcessor</code>.
+ * <p>
+ * Only accessors are generated.  Pruning, un-pruning and populating are
+ * still done by the {@link EntityPruner} and {@link EntityUtil}, which use
+ * the accessors when they find them.  The accessors don't replace the scan
+ * that finds each entity's attributes and mappings the first time it is
+ * used, which is still done with reflection.  The {@link MetadataIndex}
+ * moves that scan to build time, and
+ * {@link EntityPrunerHibernateJpa#warmUp(javax.persistence.EntityManagerFactory)}
+ * moves whatever is left to startup.
+ * <p>
+ * The accessor for <code>com.example.Order</code> is
+ * <code>com.example.Order_PrunerAccessor</code>.  It handles each attribute
+ * the same way the pruner would at runtime: through the getter and setter
+ * if they exist, or through the field if it doesn't have them.  Members the
+ * accessor can't reach, like private fields, are left to reflection.
+ *
+ * @author Steven C. Saliman
+ */
+@SupportedAnnotationTypes("*")
+public class PrunableEntityProcessor extends AbstractProcessor {
+    /** The suffix we add to an entity's name to name its accessor */
+    static final String SUFFIX = "_PrunerAccessor";
+    /** The index the registry reads */
+    static final String INDEX = "META-INF/services/" + GeneratedAccessor.class.getName();
+
+    private final Set<String> generated = new TreeSet<String>();
+
+    /**
+     * We don't use anything newer than Java 6 in the code we look at, so we
+     * can claim whatever version the compiler supports.
+     * @return the latest supported version.
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * Write accessors for the entities in this round, and the index once the
+     * last round is done.  We never claim any annotations, since we look at
+     * every class.
+     * @param annotations the annotations in this round.
+     * @param roundEnv the environment for this round.
+     * @return <code>false</code>, always.
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        TypeElement prunable = processingEnv.getElementUtils()
+                .getTypeElement(PrunableEntity.class.getName());
+        if ( prunable == null ) {
+            return false;
+        }
+        for ( TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements()) ) {
+            if ( isEntity(type, prunable) ) {
+                writeAccessor(type);
+            }
+        }
+        if ( roundEnv.processingOver() && !generated.isEmpty() ) {
+            writeIndex();
+        }
+        return false;
+    }
+
+    /**
+     * Helper method to decide if we should write an accessor for a class.
+     * It must be a concrete, top level class that implements
+     * {@link PrunableEntity}.
+     * @param type the class.
+     * @param prunable the <code>PrunableEntity</code> interface.
+     * @return <code>true</code> if the class needs an accessor.
+     */
+    private boolean isEntity(TypeElement type, TypeElement prunable) {
+        if ( type.getKind() != ElementKind.CLASS
+                || type.getNestingKind() != NestingKind.TOP_LEVEL
+                || type.getModifiers().contains(Modifier.ABSTRACT)
+                || type.getSimpleName().toString().endsWith(SUFFIX) ) {
+            return false;
+        }
+        return processingEnv.getTypeUtils().isAssignable(
+                processingEnv.getTypeUtils().erasure(type.asType()),
+                processingEnv.getTypeUtils().erasure(prunable.asType()));
+    }
+
+    /**
+     * Write the accessor for an entity.  Errors are reported as warnings,
+     * since the entity still works without an accessor.
+     * @param type the entity class.
+     */
+    private void writeAccessor(TypeElement type) {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String entityName = type.getQualifiedName().toString();
+        String simpleName = type.getSimpleName() + SUFFIX;
+        String accessorName = packageName.length() == 0
+                ? simpleName : packageName + "." + simpleName;
+
+        List<String> names = new ArrayList<String>();
+        StringBuilder gets = new StringBuilder();
+        StringBuilder sets = new StringBuilder();
+        StringBuilder fieldSets = new StringBuilder();
+        StringBuilder get = new StringBuilder();
+        StringBuilder set = new StringBuilder();
+        StringBuilder setField = new StringBuilder();
+        for ( VariableElement field : loadBeanFields(type) ) {
+            int i = names.size();
+            String name = field.getSimpleName().toString();
+            names.add(name);
+            TypeMirror fieldType = field.asType();
+            String suffix = name.substring(0, 1).toUpperCase() + name.substring(1);
+            String getterName = isBoolean(fieldType) ? "is" + suffix : "get" + suffix;
+            ExecutableElement getter = findMethod(type, getterName, null);
+            ExecutableElement setter = findMethod(type, "set" + suffix, fieldType);
+            boolean fieldReadable = isReachable(type, field);
+            boolean fieldWritable = fieldReadable
+                    && !field.getModifiers().contains(Modifier.FINAL);
+            // Use the same member the PropertyAccessor would, or leave the
+            // attribute to the PropertyAccessor.
+            boolean canGet = getter != null ? isReachable(type, getter) : fieldReadable;
+            boolean canSet = setter != null ? isReachable(type, setter) : fieldWritable;
+            if ( canGet ) {
+                get.append("            case ").append(i).append(": return e.")
+                   .append(getter != null ? getterName + "()" : name).append(";\n");
+            }
+            if ( canSet ) {
+                set.append("            case ").append(i).append(": e.");
+                if ( setter != null ) {
+                    set.append("set").append(suffix).append("(")
+                       .append(cast(fieldType)).append("value);");
+                } else {
+                    set.append(name).append(" = ").append(cast(fieldType))
+                       .append("value;");
+                }
+                set.append(" return;\n");
+            }
+            if ( fieldWritable ) {
+                setField.append("            case ").append(i).append(": e.")
+                        .append(name).append(" = ").append(cast(fieldType))
+                        .append("value; return;\n");
+            }
+            String separator = i == 0 ? "" : ", ";
+            gets.append(separator).append(canGet);
+            sets.append(separator).append(canSet);
+            fieldSets.append(separator).append(fieldWritable);
+        }
+
+        StringBuilder nameList = new StringBuilder();
+        for ( String name : names ) {
+            if ( nameList.length() > 0 ) {
+                nameList.append(", ");
+            }
+            nameList.append('"').append(name).append('"');
+        }
+
+        StringBuilder source = new StringBuilder();
+        if ( packageName.length() > 0 ) {
+            source.append("package ").append(packageName).append(";\n\n");
+        }
+        source.append("/**\n")
+              .append(" * Accessor for {@link ").append(entityName).append("}, written by\n")
+              .append(" * the {@link ").append(getClass().getName()).append("}.\n")
+              .append(" */\n")
+              .append("public final class ").append(simpleName)
+              .append(" extends ").append(GeneratedAccessor.class.getName()).append(" {\n")
+              .append("    public ").append(simpleName).append("() {\n")
+              .append("        super(").append(entityName).append(".class,\n")
+              .append("              new String[] { ").append(nameList).append(" },\n")
+              .append("              new boolean[] { ").append(gets).append(" },\n")
+              .append("              new boolean[] { ").append(sets).append(" },\n")
+              .append("              new boolean[] { ").append(fieldSets).append(" });\n")
+              .append("    }\n\n");
+        appendMethod(source, "public Object get(Object entity, int index)",
+                     entityName, get);
+        appendMethod(source, "public void set(Object entity, int index, Object value)",
+                     entityName, set);
+        appendMethod(source, "public void setField(Object entity, int index, Object value)",
+                     entityName, setField);
+        source.append("}\n");
+
+        try {
+            Writer writer = processingEnv.getFiler()
+                    .createSourceFile(accessorName, type).openWriter();
+            try {
+                writer.write(source.toString());
+            } finally {
+                writer.close();
+            }
+            generated.add(accessorName);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Can't write an accessor for " + entityName + ": " +
+                    e.getMessage(), type);
+        }
+    }
+
+    /**
+     * Helper method to add one of the accessor methods to the source.
+     * @param source the source of the accessor.
+     * @param signature the method's signature.
+     * @param entityName the name of the entity class.
+     * @param cases the cases of the switch.
+     */
+    private void appendMethod(StringBuilder source, String signature,
+            String entityName, StringBuilder cases) {
+        source.append("    @Override\n")
+              .append("    @SuppressWarnings({\"unchecked\", \"rawtypes\"})\n")
+              .append("    ").append(signature).append(" {\n")
+              .append("        ").append(entityName).append(" e = (")
+              .append(entityName).append(")entity;\n")
+              .append("        switch (index) {\n").append(cases)
+              .append("            default: throw new IllegalArgumentException(")
+              .append("\"No generated access for attribute \" + index);\n")
+              .append("        }\n")
+              .append("    }\n\n");
+    }
+
+    /**
+     * Write the index of every accessor we wrote.
+     */
+    private void writeIndex() {
+        try {
+            FileObject file = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", INDEX);
+            Writer writer = file.openWriter();
+            try {
+                for ( String name : generated ) {
+                    writer.write(name);
+                    writer.write("\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Can't write " + INDEX + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Find the attributes of a class the same way
+     * {@link ReflectionUtil#loadBeanFields(Class, boolean)} does when it
+     * includes read-only attributes: fields with a get or is method,
+     * starting with the top parent class.  If a child hides a parent's
+     * field, we only keep the child's.
+     * @param type the class.
+     * @return the fields, in order.
+     */
+    private List<VariableElement> loadBeanFields(TypeElement type) {
+        List<TypeElement> hierarchy = new ArrayList<TypeElement>();
+        for ( TypeElement t = type; t != null; t = superclass(t) ) {
+            hierarchy.add(0, t);
+        }
+        Map<String, VariableElement> fields = new LinkedHashMap<String, VariableElement>();
+        for ( TypeElement t : hierarchy ) {
+            for ( VariableElement field : ElementFilter.fieldsIn(t.getEnclosedElements()) ) {
+                if ( field.getModifiers().contains(Modifier.STATIC) ) {
+                    continue;
+                }
+                String name = field.getSimpleName().toString();
+                String suffix = name.substring(0, 1).toUpperCase() + name.substring(1);
+                if ( findMethod(t, "get" + suffix, null) != null
+                        || findMethod(t, "is" + suffix, null) != null ) {
+                    fields.remove(name);
+                    fields.put(name, field);
+                }
+            }
+        }
+        return new ArrayList<VariableElement>(fields.values());
+    }
+
+    /**
+     * Helper method to find a public method of a class or its parents.
+     * @param type the class.
+     * @param name the name of the method.
+     * @param parameterType the type of the method's only parameter, or
+     *        <code>null</code> for a method with no parameters.
+     * @return the method, or <code>null</code> if there isn't one.
+     */
+    private ExecutableElement findMethod(TypeElement type, String name,
+            TypeMirror parameterType) {
+        for ( TypeElement t = type; t != null; t = superclass(t) ) {
+            for ( ExecutableElement method : ElementFilter.methodsIn(t.getEnclosedElements()) ) {
+                if ( !method.getSimpleName().contentEquals(name)
+                        || !method.getModifiers().contains(Modifier.PUBLIC)
+                        || method.getModifiers().contains(Modifier.STATIC) ) {
+                    continue;
+                }
+                List<? extends VariableElement> parameters = method.getParameters();
+                if ( parameterType == null ) {
+                    if ( parameters.isEmpty() ) {
+                        return method;
+                    }
+                } else if ( parameters.size() == 1
+                        && processingEnv.getTypeUtils().isSameType(
+                               processingEnv.getTypeUtils().erasure(parameters.get(0).asType()),
+                               processingEnv.getTypeUtils().erasure(parameterType)) ) {
+                    return method;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Helper method to decide whether the accessor, which is in the entity's
+     * package, can use a member directly.  The rules are the same ones the
+     * {@link AccessorGenerator} uses.
+     * @param type the entity class.
+     * @param member the field or method.
+     * @return <code>true</code> if the accessor can use the member.
+     */
+    private boolean isReachable(TypeElement type, Element member) {
+        Set<Modifier> modifiers = member.getModifiers();
+        if ( modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC) ) {
+            return false;
+        }
+        if ( modifiers.contains(Modifier.PUBLIC) ) {
+            return true;
+        }
+        return packageOf(type).equals(packageOf(member));
+    }
+
+    /**
+     * @param type a class.
+     * @return the class' parent, or <code>null</code> if it doesn't have one
+     *         we can look at.
+     */
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror parent = type.getSuperclass();
+        if ( parent.getKind() != TypeKind.DECLARED ) {
+            return null;
+        }
+        return (TypeElement)((DeclaredType)parent).asElement();
+    }
+
+    /**
+     * @param element an element.
+     * @return the package the element is in.
+     */
+    private PackageElement packageOf(Element element) {
+        return processingEnv.getElementUtils().getPackageOf(element);
+    }
+
+    /**
+     * @param type a type.
+     * @return <code>true</code> if the type is <code>boolean</code> or
+     *         <code>Boolean</code>, which use "is" methods.
+     */
+    private boolean isBoolean(TypeMirror type) {
+        return type.getKind() == TypeKind.BOOLEAN
+                || type.toString().equals(Boolean.class.getName());
+    }
+
+    /**
+     * Helper method to get the cast that turns an <code>Object</code> into a
+     * value we can assign to a field of the given type.  Primitives are cast
+     * to their wrapper class and unboxed by the compiler.
+     * @param type the type of the field.
+     * @return the cast, with its parentheses.
+     */
+    private String cast(TypeMirror type) {
+        if ( type.getKind().isPrimitive() ) {
+            return "(" + processingEnv.getTypeUtils()
+                    .boxedClass(processingEnv.getTypeUtils().getPrimitiveType(type.getKind()))
+                    .getQualifiedName() + ")";
+        }
+        return "(" + processingEnv.getTypeUtils().erasure(type) + ")";
+    }
+}
@@ -0,0 +1,654 @@
+package net.saliman.entitypruner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A <code>PruneSpec</code> is the compiled form of an options map.  It tells
+ * the {@link EntityPruner} and {@link EntityUtil#populate} which
+ * collections to include, which attributes to select, how deep to go,
+ * what order to walk the graph in, and whether the pruner may load
+ * anything.  See {@link Options} for the meaning of
+ * each option.
+ * <p>
+ * The include and select options are lists of paths, so they can reach
+ * below the root entity.  A path is an attribute name, optionally followed
+ * by a dot and another path, or by a list of paths in parentheses, which
+ * apply to the entities in that attribute.  For example,
+ * <code>children.grandchildren</code> and <code>children(grandchildren)</code>
+ * mean the same thing, and a select of <code>children(code,description)</code>
+ * keeps only the code and description of each child.  A <code>*</code> in a
+ * list means everything at that level, so an include of
+ * <code>*,children.grandchildren</code> keeps all of the root's collections,
+ * but only the grandchildren collection of each child.
+ * <p>
+ * A collection in an include path can be followed by a window in square
+ * brackets, to include only part of it, such as
+ * <code>children[page=2,per_page=50,order=code]</code>.  See
+ * {@link CollectionWindow} for the details, and {@link #getWindow(String)}
+ * for the window of a collection.
+ * <p>
+ * The paths are compiled into a tree of specs, one for each level that was
+ * named in a path, each with its own include and select masks.  The spec
+ * for the entities in an attribute is {@link #child(String)}.  Levels that
+ * weren't named get {@link #ALL}, which is how include and select have
+ * always worked below the root.
+ * <p>
+ * Parsing the options map means splitting and trimming strings and parsing
+ * numbers, so applications that prune the same way over and over again
+ * should build a <code>PruneSpec</code> once and reuse it.  Specs are
+ * immutable, so they are thread safe, and can be kept in constants or
+ * caches.
+ *
+ * @author Steven C. Saliman
+ * @see Options
+ */
+public final class PruneSpec {
+    /** A spec with no options at all. */
+    public static final PruneSpec ALL =
+        new PruneSpec(null, null, null, null, false, 0, false, false);
+    /** Specs for the depths people actually use, so we don't keep making new ones. */
+    private static final PruneSpec[] DEPTHS = new PruneSpec[16];
+    static {
+        for ( int i = 0; i < DEPTHS.length; i++ ) {
+            DEPTHS[i] = new PruneSpec(null, null, null, null, true, i, false, false);
+        }
+    }
+
+    private final Set<String> includes;
+    private final Set<String> selects;
+    private final Map<String, PruneSpec> children;
+    private final Map<String, CollectionWindow> windows;
+    private final boolean depthSet;
+    private final int depth;
+    private final boolean breadthFirst;
+    private final boolean noLoad;
+
+    /**
+     * Compile an options map into a spec.
+     * @param options a map of options and values, patterned after the Ruby
+     *        on Rails conventions.  May be <code>null</code>.
+     * @return the spec for the options.  This will never be null.
+     * @throws IllegalArgumentException if the depth isn't a number, the
+     *         traversal isn't one we know about, no_load isn't
+     *         <code>true</code> or <code>false</code>, or one of the paths
+     *         can't be parsed.
+     */
+    public static PruneSpec fromOptions(Map<String, String> options) {
+        if ( options == null || options.isEmpty() ) {
+            return ALL;
+        }
+        Level root = new Level();
+        if ( options.containsKey(Options.INCLUDE) ) {
+            new PathParser(options.get(Options.INCLUDE), Options.INCLUDE).parse(root);
+        }
+        if ( options.containsKey(Options.SELECT) ) {
+            new PathParser(options.get(Options.SELECT), Options.SELECT).parse(root);
+        }
+        boolean depthSet = false;
+        int depth = 0;
+        if ( options.containsKey(Options.DEPTH) ) {
+            String depthStr = options.get(Options.DEPTH);
+            try {
+                depth = Integer.parseInt(depthStr);
+                depthSet = true;
+            } catch(NumberFormatException nfe) {
+                throw new IllegalArgumentException(depthStr +
+                        " is not a valid depth");
+            }
+        }
+        boolean breadthFirst = false;
+        if ( options.containsKey(Options.TRAVERSAL) ) {
+            String traversalStr = options.get(Options.TRAVERSAL);
+            if ( Options.BREADTH_FIRST.equalsIgnoreCase(traversalStr) ) {
+                breadthFirst = true;
+            } else if ( !Options.DEPTH_FIRST.equalsIgnoreCase(traversalStr) ) {
+                throw new IllegalArgumentException(traversalStr +
+                        " is not a valid traversal");
+            }
+        }
+        boolean noLoad = false;
+        if ( options.containsKey(Options.NO_LOAD) ) {
+            String noLoadStr = options.get(Options.NO_LOAD);
+            if ( "true".equalsIgnoreCase(noLoadStr) ) {
+                noLoad = true;
+            } else if ( !"false".equalsIgnoreCase(noLoadStr) ) {
+                throw new IllegalArgumentException(noLoadStr +
+                        " is not a valid no_load value");
+            }
+        }
+        if ( root.isEmpty() && !breadthFirst && !noLoad ) {
+            if ( !depthSet ) {
+                return ALL;
+            }
+            return forDepth(depth);
+        }
+        return root.compile(depthSet, depth, breadthFirst, noLoad);
+    }
+
+    /**
+     * Get a spec that only has a depth.
+     * @param depth the depth.  1 for just the entity, 2 for children, etc.
+     * @return the spec for the depth.
+     */
+    public static PruneSpec forDepth(int depth) {
+        if ( depth >= 0 && depth < DEPTHS.length ) {
+            return DEPTHS[depth];
+        }
+        return new PruneSpec(null, null, null, null, true, depth, false, false);
+    }
+
+    /**
+     * Create a spec.
+     * @param includes the collections to include, or <code>null</code>.
+     * @param selects the attributes to select, or <code>null</code>.
+     * @param children the specs for the entities in attributes named by a
+     *        path, or <code>null</code> if there aren't any.
+     * @param windows the windows of the collections that have one, or
+     *        <code>null</code> if there aren't any.
+     * @param depthSet whether or not a depth was given.
+     * @param depth the depth, if one was given.
+     * @param breadthFirst whether or not to walk the graph breadth-first.
+     * @param noLoad whether or not to prune without loading anything.
+     */
+    private PruneSpec(Set<String> includes, Set<String> selects,
+            Map<String, PruneSpec> children,
+            Map<String, CollectionWindow> windows, boolean depthSet, int depth,
+            boolean breadthFirst, boolean noLoad) {
+        this.includes = includes;
+        this.selects = selects;
+        this.children = children;
+        this.windows = windows;
+        this.depthSet = depthSet;
+        this.depth = depth;
+        this.breadthFirst = breadthFirst;
+        this.noLoad = noLoad;
+    }
+
+    /**
+     * @return <code>true</code> if the spec has an include list.
+     */
+    public boolean hasIncludes() {
+        return includes != null;
+    }
+
+    /**
+     * Determine if a collection should be included.
+     * @param name the name of the collection.
+     * @return <code>true</code> if there is no include list, or the
+     *         collection is in it.
+     */
+    public boolean includes(String name) {
+        return includes == null || includes.contains(name);
+    }
+
+    /**
+     * @return the collections to include, or <code>null</code> if there is
+     *         no include list.
+     */
+    public Set<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return <code>true</code> if the spec has a select list.
+     */
+    public boolean hasSelects() {
+        return selects != null;
+    }
+
+    /**
+     * Determine if an attribute should be selected.
+     * @param name the name of the attribute.
+     * @return <code>true</code> if there is no select list, or the
+     *         attribute is in it.
+     */
+    public boolean selects(String name) {
+        return selects == null || selects.contains(name);
+    }
+
+    /**
+     * @return the attributes to select, or <code>null</code> if there is no
+     *         select list.
+     */
+    public Set<String> getSelects() {
+        return selects;
+    }
+
+    /**
+     * Gets the spec for the entities in an attribute.  Depth, traversal and
+     * no_load only apply to the root, so the child spec never has any of
+     * them.
+     * @param name the name of the attribute.
+     * @return the spec from the paths that went through the attribute, or
+     *         {@link #ALL} if none did.
+     */
+    public PruneSpec child(String name) {
+        if ( children == null ) {
+            return ALL;
+        }
+        PruneSpec child = children.get(name);
+        return child == null ? ALL : child;
+    }
+
+    /**
+     * Gets the window for a collection, if the include path for the
+     * collection gave one.
+     * @param name the name of the collection.
+     * @return the window, or <code>null</code> if we want the whole
+     *         collection.
+     */
+    public CollectionWindow getWindow(String name) {
+        return windows == null ? null : windows.get(name);
+    }
+
+    /**
+     * @return <code>true</code> if the spec has a depth.
+     */
+    public boolean hasDepth() {
+        return depthSet;
+    }
+
+    /**
+     * Gets the depth of the spec.
+     * @param defaultDepth the depth to use if the spec doesn't have one.
+     * @return the depth.
+     */
+    public int getDepth(int defaultDepth) {
+        return depthSet ? depth : defaultDepth;
+    }
+
+    /**
+     * @return <code>true</code> if the graph should be walked in
+     *         breadth-first order.
+     */
+    public boolean isBreadthFirst() {
+        return breadthFirst;
+    }
+
+    /**
+     * @return <code>true</code> if the graph should be pruned without
+     *         loading anything.
+     */
+    public boolean isNoLoad() {
+        return noLoad;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if ( this == obj ) {
+            return true;
+        }
+        if ( !(obj instanceof PruneSpec) ) {
+            return false;
+        }
+        PruneSpec other = (PruneSpec)obj;
+        return depthSet == other.depthSet && depth == other.depth &&
+               breadthFirst == other.breadthFirst && noLoad == other.noLoad &&
+               (includes == null ? other.includes == null : includes.equals(other.includes)) &&
+               (selects == null ? other.selects == null : selects.equals(other.selects)) &&
+               (children == null ? other.children == null : children.equals(other.children)) &&
+               (windows == null ? other.windows == null : windows.equals(other.windows));
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = depthSet ? depth : -1;
+        hash = 31 * hash + (breadthFirst ? 1 : 0);
+        hash = 31 * hash + (noLoad ? 1 : 0);
+        hash = 31 * hash + (includes == null ? 0 : includes.hashCode());
+        hash = 31 * hash + (selects == null ? 0 : selects.hashCode());
+        hash = 31 * hash + (children == null ? 0 : children.hashCode());
+        hash = 31 * hash + (windows == null ? 0 : windows.hashCode());
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "PruneSpec[include=" + includes + ", select=" + selects +
+               ", depth=" + (depthSet ? Integer.toString(depth) : "none") +
+               ", traversal=" + (breadthFirst ? Options.BREADTH_FIRST : Options.DEPTH_FIRST) +
+               (noLoad ? ", no_load=true" : "") +
+               (children == null ? "" : ", children=" + children) +
+               (windows == null ? "" : ", windows=" + windows) +
+               "]";
+    }
+
+    /**
+     * One level of the tree while the paths are being parsed.
+     */
+    private static final class Level {
+        private Set<String> includes;
+        private boolean includeAll = false;
+        private Set<String> selects;
+        private boolean selectAll = false;
+        private Map<String, Level> children;
+        private Map<String, CollectionWindow> windows;
+
+        /**
+         * Record a name from one of the options at this level.
+         * @param option the option the name came from.
+         * @param name the name, or <code>*</code> for everything.
+         */
+        void add(String option, String name) {
+            mark(option);
+            boolean all = "*".equals(name);
+            if ( Options.INCLUDE.equals(option) ) {
+                includeAll |= all;
+                if ( !all ) {
+                    includes.add(name);
+                }
+            } else {
+                selectAll |= all;
+                if ( !all ) {
+                    selects.add(name);
+                }
+            }
+        }
+
+        /**
+         * Make sure this level has a mask for one of the options, so that
+         * only the names that are added to it are kept.
+         * @param option the option.
+         */
+        void mark(String option) {
+            if ( Options.INCLUDE.equals(option) ) {
+                if ( includes == null ) {
+                    includes = new HashSet<String>();
+                }
+            } else if ( selects == null ) {
+                selects = new HashSet<String>();
+            }
+        }
+
+        /**
+         * Gets the level for the entities in an attribute, creating it if
+         * this is the first path that goes through the attribute.
+         * @param name the name of the attribute.
+         * @return the level for the attribute.
+         */
+        Level child(String name) {
+            if ( children == null ) {
+                children = new HashMap<String, Level>();
+            }
+            Level child = children.get(name);
+            if ( child == null ) {
+                child = new Level();
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        /**
+         * Record the window for a collection at this level.
+         * @param name the name of the collection.
+         * @param window the window.
+         * @return <code>false</code> if the collection already had a
+         *         different window.
+         */
+        boolean window(String name, CollectionWindow window) {
+            if ( windows == null ) {
+                windows = new HashMap<String, CollectionWindow>();
+            }
+            CollectionWindow existing = windows.put(name, window);
+            return existing == null || existing.equals(window);
+        }
+
+        /**
+         * @return <code>true</code> if nothing was said about this level.
+         */
+        boolean isEmpty() {
+            return includes == null && selects == null && children == null;
+        }
+
+        /**
+         * Turn this level, and everything below it, into specs.
+         * @param depthSet whether or not a depth was given.
+         * @param depth the depth, if one was given.
+         * @param breadthFirst whether or not to walk the graph breadth-first.
+         * @param noLoad whether or not to prune without loading anything.
+         * @return the spec for this level.
+         */
+        PruneSpec compile(boolean depthSet, int depth, boolean breadthFirst,
+                boolean noLoad) {
+            Map<String, PruneSpec> childSpecs = null;
+            if ( children != null ) {
+                childSpecs = new HashMap<String, PruneSpec>();
+                for ( Map.Entry<String, Level> entry : children.entrySet() ) {
+                    PruneSpec child = ALL;
+                    if ( !entry.getValue().isEmpty() ) {
+                        child = entry.getValue().compile(false, 0, false, false);
+                    }
+                    childSpecs.put(entry.getKey(), child);
+                }
+                childSpecs = Collections.unmodifiableMap(childSpecs);
+            }
+            Map<String, CollectionWindow> windowMap = null;
+            if ( windows != null ) {
+                windowMap = Collections.unmodifiableMap(windows);
+            }
+            return new PruneSpec(freeze(includes, includeAll),
+                                 freeze(selects, selectAll), childSpecs,
+                                 windowMap, depthSet, depth, breadthFirst,
+                                 noLoad);
+        }
+
+        /**
+         * Helper method to make a mask that can't be changed.
+         * @param names the names in the mask.
+         * @param all whether or not the level had a <code>*</code>.
+         * @return the mask, or <code>null</code> for everything.
+         */
+        private static Set<String> freeze(Set<String> names, boolean all) {
+            if ( names == null || all ) {
+                return null;
+            }
+            return Collections.unmodifiableSet(names);
+        }
+    }
+
+    /**
+     * A recursive descent parser for the paths in an include or select
+     * option.  The grammar is:
+     * <pre>
+     * list   := path ( ',' path )*
+     * path   := name window? ( '.' path | '(' list ')' )?
+     * window := '[' entry ( ',' entry )* ']'
+     * entry  := key '=' value | value
+     * </pre>
+     * Whitespace around names is ignored, and so are empty names, so
+     * <code>"a, ,b"</code> is the same as <code>"a,b"</code>.  Windows are
+     * only allowed in the include option.  An entry without a key adds
+     * another attribute to the order, so <code>[order=code,name]</code>
+     * orders by code, then name.  Each attribute in an order must be a plain
+     * name, optionally followed by <code>:asc</code> or <code>:desc</code>.
+     */
+    private static final class PathParser {
+        private final String text;
+        private final String option;
+        private int pos = 0;
+
+        /**
+         * Create a parser.
+         * @param text the value of the option.
+         * @param option the name of the option, for error messages.
+         */
+        PathParser(String text, String option) {
+            this.text = text == null ? "" : text;
+            this.option = option;
+        }
+
+        /**
+         * Parse the whole option into the given level.
+         * @param root the level for the root entity.
+         * @throws IllegalArgumentException if the option can't be parsed.
+         */
+        void parse(Level root) {
+            // The root gets a mask even if the option had no names.
+            root.mark(option);
+            parseList(root);
+            if ( pos < text.length() ) {
+                throw error();
+            }
+        }
+
+        /**
+         * list := path ( ',' path )*
+         * @param level the level the paths start at.
+         */
+        private void parseList(Level level) {
+            parsePath(level);
+            while ( pos < text.length() && text.charAt(pos) == ',' ) {
+                pos++;
+                parsePath(level);
+            }
+        }
+
+        /**
+         * path := name ( '.' path | '(' list ')' )?
+         * @param level the level the path starts at.
+         */
+        private void parsePath(Level level) {
+            parsePath(level, false);
+        }
+
+        /**
+         * path := name ( '.' path | '(' list ')' )?
+         * @param level the level the path starts at.
+         * @param required whether or not the path can be empty, which it
+         *        can't be after a dot.
+         */
+        private void parsePath(Level level, boolean required) {
+            String name = parseName();
+            if ( name.length() == 0 ) {
+                // An empty name is only allowed if nothing follows it.
+                if ( required || (pos < text.length() &&
+                        ".([".indexOf(text.charAt(pos)) >= 0) ) {
+                    throw error();
+                }
+                return;
+            }
+            level.add(option, name);
+            if ( pos < text.length() && text.charAt(pos) == '[' ) {
+                if ( !Options.INCLUDE.equals(option) || "*".equals(name) ) {
+                    throw error();
+                }
+                pos++;
+                if ( !level.window(name, parseWindow()) ) {
+                    throw error();
+                }
+                skipWhitespace();
+            }
+            if ( pos < text.length() && text.charAt(pos) == '.' ) {
+                pos++;
+                if ( "*".equals(name) ) {
+                    throw error();
+                }
+                parsePath(level.child(name), true);
+            } else if ( pos < text.length() && text.charAt(pos) == '(' ) {
+                pos++;
+                if ( "*".equals(name) ) {
+                    throw error();
+                }
+                parseList(level.child(name));
+                if ( pos >= text.length() || text.charAt(pos) != ')' ) {
+                    throw error();
+                }
+                pos++;
+                skipWhitespace();
+            }
+        }
+
+        /**
+         * window := '[' entry ( ',' entry )* ']'
+         * <p>
+         * The opening bracket has already been read.
+         * @return the window.
+         */
+        private CollectionWindow parseWindow() {
+            int page = 1;
+            int perPage = 0;
+            List<String> order = new ArrayList<String>();
+            String key = null;
+            boolean done = false;
+            while ( !done ) {
+                int start = pos;
+                while ( pos < text.length() && ",]".indexOf(text.charAt(pos)) < 0 ) {
+                    pos++;
+                }
+                if ( pos >= text.length() ) {
+                    throw error();
+                }
+                done = text.charAt(pos) == ']';
+                String entry = text.substring(start, pos).trim();
+                pos++;
+                int equals = entry.indexOf('=');
+                String value = entry;
+                if ( equals >= 0 ) {
+                    key = entry.substring(0, equals).trim();
+                    value = entry.substring(equals + 1).trim();
+                } else if ( !Options.ORDER.equals(key) ) {
+                    // Only the order can have more than one value.
+                    throw error();
+                }
+                if ( value.length() == 0 ) {
+                    throw error();
+                }
+                try {
+                    if ( Options.PAGE.equals(key) ) {
+                        page = Integer.parseInt(value);
+                    } else if ( Options.PER_PAGE.equals(key) ) {
+                        perPage = Integer.parseInt(value);
+                    } else if ( Options.ORDER.equals(key) ) {
+                        if ( !CollectionWindow.isValidOrder(value) ) {
+                            throw error();
+                        }
+                        order.add(value);
+                    } else {
+                        throw error();
+                    }
+                    if ( page < 1 || perPage < 0 ) {
+                        throw error();
+                    }
+                } catch (NumberFormatException e) {
+                    throw error();
+                }
+            }
+            return new CollectionWindow(page, perPage, order);
+        }
+
+        /**
+         * @return the next name, trimmed.  This will be empty if there
+         *         isn't one.
+         */
+        private String parseName() {
+            int start = pos;
+            while ( pos < text.length() && ",.()[".indexOf(text.charAt(pos)) < 0 ) {
+                pos++;
+            }
+            return text.substring(start, pos).trim();
+        }
+
+        /**
+         * Move past any whitespace.
+         */
+        private void skipWhitespace() {
+            while ( pos < text.length() && Character.isWhitespace(text.charAt(pos)) ) {
+                pos++;
+            }
+        }
+
+        /**
+         * @return the exception for a syntax error at the current position.
+         */
+        private IllegalArgumentException error() {
+            return new IllegalArgumentException(text + " is not a valid " +
+                    option + " (at position " + pos + ")");
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package net.saliman.entitypruner;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <code>PrunedWindow</code> records the {@link CollectionWindow} a
+ * collection was pruned to, along with the size of the whole collection, so
+ * a client can page through the rest of it.  The pruner keeps them in the
+ * window map of a {@link WindowedPrunableEntity}, under the name of the
+ * collection.  Un-pruning uses the same map to tell a collection that only
+ * has some of its children from one the client changed, so it never
+ * mistakes the children outside the window for ones that were removed.
+ * <p>
+ * Pruned windows are immutable, so they are thread safe.
+ *
+ * @author Steven C. Saliman
+ * @see CollectionWindow
+ * @see WindowedPrunableEntity
+ */
+public final class PrunedWindow implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int page;
+    private final int perPage;
+    private final List<String> order;
+    private final long total;
+    // The children in the window, while they wait to be pruned.
+    private final transient List<?> elements;
+
+    /**
+     * Create a pruned window.
+     * @param page the page the collection was pruned to, starting at 1.
+     * @param perPage the number of elements on a page, or 0 for all of them.
+     * @param order the attributes the elements were ordered by, each
+     *        optionally followed by <code>:desc</code>.  May be
+     *        <code>null</code> or empty.
+     * @param total the number of elements in the whole collection.
+     */
+    public PrunedWindow(int page, int perPage, List<String> order, long total) {
+        this.page = page;
+        this.perPage = perPage;
+        if ( order == null || order.isEmpty() ) {
+            this.order = Collections.emptyList();
+        } else {
+            this.order = Collections.unmodifiableList(new ArrayList<String>(order));
+        }
+        this.total = total;
+        this.elements = null;
+    }
+
+    /**
+     * Create a pruned window from the window in a spec.
+     * @param window the window the collection was pruned to.
+     * @param total the number of elements in the whole collection.
+     */
+    PrunedWindow(CollectionWindow window, long total) {
+        this(window.getPage(), window.getPerPage(), window.getOrder(), total);
+    }
+
+    /**
+     * Create a window that was loaded, but hasn't been pruned yet.  The
+     * collection it came from is still uninitialized, so the pruner gets
+     * the children in the window from here.
+     * @param window the window that was loaded.
+     * @param total the number of elements in the whole collection.
+     * @param elements the children in the window, in order.
+     */
+    PrunedWindow(CollectionWindow window, long total, List<?> elements) {
+        this.page = window.getPage();
+        this.perPage = window.getPerPage();
+        this.order = window.getOrder();
+        this.total = total;
+        this.elements = elements;
+    }
+
+    /**
+     * @return the page the collection was pruned to, starting at 1.
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * @return the number of elements on a page, or 0 for all of them.
+     */
+    public int getPerPage() {
+        return perPage;
+    }
+
+    /**
+     * @return the attributes the elements were ordered by, each optionally
+     *         followed by <code>:desc</code>.
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    /**
+     * @return the number of elements in the whole collection.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the children that were loaded for the window, or
+     *         <code>null</code> if the window has already been pruned.
+     */
+    List<?> getElements() {
+        return elements;
+    }
+
+    /**
+     * See if this is the same window as the one in a spec.
+     * @param window the window in the spec.
+     * @return <code>true</code> if the page, number per page and order are
+     *         the same.
+     */
+    boolean isFor(CollectionWindow window) {
+        return window != null && page == window.getPage()
+               && perPage == window.getPerPage() && order.equals(window.getOrder());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if ( this == obj ) {
+            return true;
+        }
+        if ( !(obj instanceof PrunedWindow) ) {
+            return false;
+        }
+        PrunedWindow other = (PrunedWindow)obj;
+        return page == other.page && perPage == other.perPage &&
+               total == other.total && order.equals(other.order);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 31 * (31 * page + perPage) + order.hashCode();
+        return 31 * result + (int)(total ^ (total >>> 32));
+    }
+
+    /**
+     * @return the window, in the same form it is given in an include path,
+     *         followed by the total, as in
+     *         <code>page=2,per_page=50,order=code,total=50000</code>.
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(Options.PAGE).append('=').append(page);
+        if ( perPage > 0 ) {
+            text.append(',').append(Options.PER_PAGE).append('=').append(perPage);
+        }
+        for ( int i = 0; i < order.size(); i++ ) {
+            text.append(',');
+            if ( i == 0 ) {
+                text.append(Options.ORDER).append('=');
+            }
+            text.append(order.get(i));
+        }
+        text.append(",total=").append(total);
+        return text.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package net.saliman.entitypruner;
+
+/**
+ * This class defines the pruning states of {@link PruningState} as bits in
+ * a <code>byte</code>, for entities that implement
+ * {@link FlaggedPrunableEntity}, and converts between the two forms.
+ * <p>
+ * A state is made of one of the {@link #PRUNED} or {@link #UNPRUNED} bits,
+ * and the {@link #PARTIAL} bit if the entity is missing some of its
+ * attributes.  A value of 0 means the entity has no state, which the
+ * {@link EntityPruner} treats the same way as a <code>null</code> String
+ * state.  Any other bits are ignored when a state is read.
+ * <p>
+ * The pruner reads and writes every entity's state through this class, so
+ * it only compares bytes.  Entities that still use Strings are converted
+ * when their state is read, and since the pruner always stores the
+ * constants from {@link PruningState}, the conversion is usually an
+ * identity comparison.
+ *
+ * @author Steven C. Saliman
+ * @see PruningState
+ */
+public final class PruningFlags {
+    /** The entity has been pruned. */
+    public static final byte PRUNED = 1;
+    /** The entity has been un-pruned, or came from the database. */
+    public static final byte UNPRUNED = 2;
+    /** The entity is missing some of its attributes. */
+    public static final byte PARTIAL = 4;
+
+    /** The flags for {@link PruningState#PRUNED_COMPLETE}. */
+    public static final byte PRUNED_COMPLETE = PRUNED;
+    /** The flags for {@link PruningState#PRUNED_PARTIAL}. */
+    public static final byte PRUNED_PARTIAL = PRUNED | PARTIAL;
+    /** The flags for {@link PruningState#UNPRUNED_COMPLETE}. */
+    public static final byte UNPRUNED_COMPLETE = UNPRUNED;
+    /** The flags for {@link PruningState#UNPRUNED_PARTIAL}. */
+    public static final byte UNPRUNED_PARTIAL = UNPRUNED | PARTIAL;
+
+    /** The bits that make up a state. */
+    private static final byte STATE_MASK = PRUNED | UNPRUNED | PARTIAL;
+
+    /**
+     * This is a utility class with only static methods.
+     */
+    private PruningFlags() {
+    }
+
+    /**
+     * Convert a String state to flags.
+     * @param state one of the constants from {@link PruningState}.
+     * @return the flags for the state, or 0 if the state is
+     *         <code>null</code> or isn't one we know.
+     */
+    public static byte fromState(String state) {
+        if ( state == null ) {
+            return 0;
+        }
+        // The pruner stores the constants, so try identity first.
+        if ( state == PruningState.UNPRUNED_COMPLETE ) {
+            return UNPRUNED_COMPLETE;
+        } else if ( state == PruningState.PRUNED_COMPLETE ) {
+            return PRUNED_COMPLETE;
+        } else if ( state == PruningState.PRUNED_PARTIAL ) {
+            return PRUNED_PARTIAL;
+        } else if ( state == PruningState.UNPRUNED_PARTIAL ) {
+            return UNPRUNED_PARTIAL;
+        }
+        if ( state.equals(PruningState.UNPRUNED_COMPLETE) ) {
+            return UNPRUNED_COMPLETE;
+        } else if ( state.equals(PruningState.PRUNED_COMPLETE) ) {
+            return PRUNED_COMPLETE;
+        } else if ( state.equals(PruningState.PRUNED_PARTIAL) ) {
+            return PRUNED_PARTIAL;
+        } else if ( state.equals(PruningState.UNPRUNED_PARTIAL) ) {
+            return UNPRUNED_PARTIAL;
+        }
+        return 0;
+    }
+
+    /**
+     * Convert flags to a String state.
+     * @param flags the flags.
+     * @return the matching constant from {@link PruningState}, or
+     *         <code>null</code> if the flags don't have a state.
+     */
+    public static String toState(byte flags) {
+        switch ( flags & STATE_MASK ) {
+            case PRUNED_COMPLETE:
+                return PruningState.PRUNED_COMPLETE;
+            case PRUNED_PARTIAL:
+                return PruningState.PRUNED_PARTIAL;
+            case UNPRUNED_COMPLETE:
+                return PruningState.UNPRUNED_COMPLETE;
+            case UNPRUNED_PARTIAL:
+                return PruningState.UNPRUNED_PARTIAL;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param flags the flags to check.
+     * @return <code>true</code> if the flags are one of the pruned states.
+     */
+    public static boolean isPruned(byte flags) {
+        return (flags & PRUNED) != 0;
+    }
+
+    /**
+     * @param flags the flags to check.
+     * @return <code>true</code> if the flags are one of the un-pruned
+     *         states.
+     */
+    public static boolean isUnpruned(byte flags) {
+        return (flags & UNPRUNED) != 0;
+    }
+
+    /**
+     * @param flags the flags to check.
+     * @return <code>true</code> if the flags are one of the partial states.
+     */
+    public static boolean isPartial(byte flags) {
+        return (flags & PARTIAL) != 0;
+    }
+
+    /**
+     * Gets the state of an entity, converting it if the entity uses
+     * Strings.
+     * @param entity the entity.
+     * @return the entity's state as flags, without any bits that aren't
+     *         part of a state.
+     */
+    static byte get(PrunableEntity entity) {
+        if ( entity instanceof FlaggedPrunableEntity ) {
+            return (byte)(((FlaggedPrunableEntity)entity).getPruningFlags() & STATE_MASK);
+        }
+        return fromState(entity.getPruningState());
+    }
+
+    /**
+     * Sets the state of an entity, converting it if the entity uses
+     * Strings.
+     * @param entity the entity.
+     * @param flags the new state.
+     */
+    static void set(PrunableEntity entity, byte flags) {
+        if ( entity instanceof FlaggedPrunableEntity ) {
+            ((FlaggedPrunableEntity)entity).setPruningFlags(flags);
+        } else {
+            entity.setPruningState(toState(flags));
+        }
+    }
+}
@@ -0,0 +1,1068 @@
+package net.saliman.entitypruner;
+
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.persistence.EmbeddedId;
+import javax.persistence.Embeddable;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Transient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A <code>PruningPlan</code> holds everything the {@link EntityPruner} needs
+ * to know about a class of {@link PrunableEntity} in order to prune or
+ * un-prune instances of it.  Building a plan means walking the class
+ * hierarchy, reading annotations, and looking up accessor methods, which is
+ * expensive, so it is done once per class, and the immutable result is
+ * cached for as long as the class is loaded.
+ * <p>
+ * Plans are normally built from the annotations on the entity's fields, but
+ * when the pruner has Hibernate's mapping metadata (see
+ * {@link AssociationGraph}), it builds plans from that instead, which also
+ * works for entities mapped with XML or method annotations.  When the
+ * entity is in a {@link MetadataIndex}, the attributes, their kinds and
+ * their associations come from the index, and each attribute's field and
+ * accessor methods aren't looked up until something actually needs them,
+ * which it doesn't if the entity has a generated accessor.
+ * <p>
+ * Each attribute in the plan knows its own kind (see {@link FieldKind}),
+ * the getter and setter that should be used to access it, whether or not it
+ * is transient or the primary key, and for bidirectional collections, the
+ * name of the child's attribute that refers back to the parent.  This lets
+ * the pruner process an entity without doing any string manipulation or
+ * method lookups.  The child's parent field is resolved and checked once for
+ * each class of parent and child that we see (see
+ * {@link Attribute#getInverse(Class, Class)}), including the ones that turn
+ * out to be broken.
+ * <p>
+ * {@link #generated()} gives a copy of the plan that reads and writes
+ * attributes through a {@link GeneratedAccessor}, which calls the entity's
+ * methods directly instead of through method handles.  That is the plan
+ * {@link #withDefaultAccessor()} gives the pruner and {@link EntityUtil}.
+ * Entities compiled with the {@link PrunableEntityProcessor} already have
+ * an accessor, and the rest have one generated the first time they are
+ * used.
+ *
+ * @author Steven C. Saliman
+ * @see EntityPrunerHibernateJpa
+ */
+final class PruningPlan {
+    /** logger for the class */
+    private static final Logger LOG = LoggerFactory.getLogger(PruningPlan.class);
+    /** Whether entities without a registered accessor get a generated one */
+    private static final boolean GENERATE_ACCESSORS = !"false".equalsIgnoreCase(
+        System.getProperty(EntityPrunerHibernateJpa.GENERATE_ACCESSORS_PROPERTY));
+
+    private final Class<?> entityClass;
+    private final List<Attribute> attributes;
+    /** The names of the attributes, by position, shared by FieldIdTables */
+    private final String[] attributeNames;
+    private final Attribute idAttribute;
+    private final Class<?> idType;
+    private final boolean compositeId;
+    private final IdCodec idCodec;
+    /** The plan that uses a generated accessor, once we've asked for it */
+    private volatile PruningPlan generatedPlan;
+    /** The plan to use by default, once we've decided what it is */
+    private volatile PruningPlan defaultPlan;
+
+    /**
+     * Gets the plan for the given class, building it if this is the first
+     * time we've seen the class.
+     * @param clazz the class of entity we want to prune.
+     * @return the plan for the class.  This will never be null.
+     */
+    static PruningPlan forClass(Class<?> clazz) {
+        // Plans are kept in the class' metadata so they go away with the
+        // class.  Two threads could build the same plan at the same time, but
+        // that is harmless because they are immutable.
+        ClassMetadata metadata = ClassMetadata.forClass(clazz);
+        PruningPlan plan = metadata.pruningPlan;
+        if ( plan == null ) {
+            plan = new PruningPlan(clazz, null, MetadataIndex.find(clazz));
+            metadata.pruningPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * Build a plan for the given class from its annotations, without looking
+     * in the {@link MetadataIndex}, and without caching it.  This is what
+     * goes into the index.
+     * @param clazz the class of entity.
+     * @return the plan for the class.
+     */
+    static PruningPlan fromAnnotations(Class<?> clazz) {
+        return new PruningPlan(clazz, null, null);
+    }
+
+    /**
+     * Build a plan for the given class from its entry in the
+     * {@link MetadataIndex}, without caching it.
+     * @param clazz the class of entity.
+     * @param entry the class' entry in the index.
+     * @return the plan for the class.
+     */
+    static PruningPlan fromIndex(Class<?> clazz, MetadataIndex.Entry entry) {
+        return new PruningPlan(clazz, null, entry);
+    }
+
+    /**
+     * Build a plan for the given class using Hibernate's mapping metadata
+     * instead of the class' annotations.  These plans are cached by the
+     * {@link AssociationGraph} that has the node.
+     * @param clazz the class of entity we want to prune.
+     * @param node the graph's node for the class.
+     * @return the plan for the class.
+     */
+    static PruningPlan forNode(Class<?> clazz, AssociationGraph.Node node) {
+        return new PruningPlan(clazz, node, MetadataIndex.find(clazz));
+    }
+
+    /**
+     * Build the plan for a class.
+     * @param clazz the class of entity.
+     * @param node the association graph's node for the class, or
+     *        <code>null</code> if we need to use the class' annotations.
+     * @param entry the class' entry in the metadata index, or
+     *        <code>null</code> if we need to find its fields with
+     *        reflection.
+     */
+    private PruningPlan(Class<?> clazz, AssociationGraph.Node node,
+            MetadataIndex.Entry entry) {
+        LOG.trace("PruningPlan(" + clazz.getName() + ")");
+        this.entityClass = clazz;
+        List<Attribute> list;
+        if ( entry != null ) {
+            list = new ArrayList<Attribute>(entry.names.length);
+            for ( int i = 0; i < entry.names.length; i++ ) {
+                list.add(new Attribute(clazz, entry, i, node));
+            }
+        } else {
+            List<Field> fields = ReflectionUtil.loadBeanFields(clazz, true);
+            list = new ArrayList<Attribute>(fields.size());
+            for ( Field field : fields ) {
+                list.add(new Attribute(clazz, field, node, list.size()));
+            }
+        }
+        String[] names = new String[list.size()];
+        Attribute id = null;
+        for ( Attribute attribute : list ) {
+            if ( id == null && attribute.isId() ) {
+                id = attribute;
+            }
+            names[attribute.getSlot()] = attribute.getName();
+        }
+        this.attributes = Collections.unmodifiableList(list);
+        this.attributeNames = names;
+        this.idAttribute = id;
+        if ( entry != null && node == null ) {
+            // The index already worked out the key from the annotations.
+            this.idType = MetadataIndex.loadClass(clazz, entry.idType);
+            this.compositeId = entry.compositeId;
+        } else {
+            this.idType = resolveIdType(clazz, node, id);
+            this.compositeId = idType != null && isComposite(clazz, id, idType);
+        }
+        this.idCodec = resolveIdCodec(clazz, idType, compositeId);
+    }
+
+    /**
+     * Helper method to find the type of this class of entity's primary key.
+     * If the entity has an <code>IdClass</code>, that is the type.
+     * @param clazz the class of entity.
+     * @param node the association graph's node for the class, or
+     *        <code>null</code>.
+     * @param id the id attribute, or <code>null</code> if there isn't one.
+     * @return the type, or <code>null</code> if we don't know it.
+     */
+    private static Class<?> resolveIdType(Class<?> clazz,
+            AssociationGraph.Node node, Attribute id) {
+        for ( Class<?> c = clazz; c != null; c = c.getSuperclass() ) {
+            IdClass idClass = c.getAnnotation(IdClass.class);
+            if ( idClass != null ) {
+                return idClass.value();
+            }
+        }
+        if ( node != null && node.getIdClass() != null ) {
+            return node.getIdClass();
+        }
+        return id == null ? null : id.getType();
+    }
+
+    /**
+     * Helper method to see if this class of entity has a composite key,
+     * which it does if it has an <code>IdClass</code>, or an
+     * <code>EmbeddedId</code>.
+     * @param clazz the class of entity.
+     * @param id the id attribute, or <code>null</code> if there isn't one.
+     * @param idType the type of the key.
+     * @return <code>true</code> if the key is composite.
+     */
+    private static boolean isComposite(Class<?> clazz, Attribute id, Class<?> idType) {
+        for ( Class<?> c = clazz; c != null; c = c.getSuperclass() ) {
+            if ( c.getAnnotation(IdClass.class) != null ) {
+                return true;
+            }
+        }
+        return (id != null && id.isEmbeddedId())
+               || idType.getAnnotation(Embeddable.class) != null;
+    }
+
+    /**
+     * Helper method to find the codec we'll use to store the ids of this
+     * class of entity in a fieldIdMap.
+     * @param clazz the class of entity.
+     * @param idType the type of the entity's primary key, or
+     *        <code>null</code> if we don't know it.
+     * @param composite whether the key is composite.
+     * @return the codec, or <code>null</code> if we don't know the type of
+     *         the entity's id.
+     */
+    private static IdCodec resolveIdCodec(Class<?> clazz, Class<?> idType,
+            boolean composite) {
+        if ( idType == null ) {
+            return null;
+        }
+        try {
+            return IdCodec.forType(idType, composite);
+        } catch (IllegalStateException e) {
+            LOG.debug(clazz.getName() + " has an id that can't be stored in " +
+                      "a fieldIdMap: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Build a copy of a plan whose attributes use a generated accessor
+     * wherever it supports them.  Attributes are matched to the accessor by
+     * name, since an accessor written by the annotation processor may not
+     * list them in the same order as the plan.
+     * @param plan the plan to copy.
+     * @param accessor the generated accessor for the plan's class.
+     */
+    private PruningPlan(PruningPlan plan, GeneratedAccessor accessor) {
+        this.entityClass = plan.entityClass;
+        List<Attribute> list = new ArrayList<Attribute>(plan.attributes.size());
+        Attribute id = null;
+        for ( Attribute attribute : plan.attributes ) {
+            Attribute copy = new Attribute(attribute, accessor,
+                    accessor.indexOf(attribute.getName()));
+            if ( attribute == plan.idAttribute ) {
+                id = copy;
+            }
+            list.add(copy);
+        }
+        this.attributes = Collections.unmodifiableList(list);
+        this.attributeNames = plan.attributeNames;
+        this.idAttribute = id;
+        this.idType = plan.idType;
+        this.compositeId = plan.compositeId;
+        this.idCodec = plan.idCodec;
+        this.generatedPlan = this;
+        this.defaultPlan = this;
+    }
+
+    /**
+     * Gets a version of this plan that uses a {@link GeneratedAccessor} for
+     * the entity class, generating the accessor if this is the first time
+     * we've needed it.  If the accessor can't be generated, this plan is
+     * returned, so callers don't need to care whether generation worked.
+     * @return the plan with generated access, or this plan.
+     */
+    PruningPlan generated() {
+        PruningPlan plan = generatedPlan;
+        if ( plan == null ) {
+            GeneratedAccessor accessor = AccessorGenerator.forClass(entityClass, attributes);
+            plan = accessor == null ? this : new PruningPlan(this, accessor);
+            generatedPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * Gets the plan the pruner and {@link EntityUtil} use by default, which
+     * is the generated plan.  If the annotation processor wrote an accessor
+     * for the entity class, it costs nothing to use it.  Otherwise we
+     * generate one, unless the
+     * {@link EntityPrunerHibernateJpa#GENERATE_ACCESSORS_PROPERTY} system
+     * property is <code>false</code>, in which case this plan, and its
+     * {@link PropertyAccessor}s, are used instead.
+     * @return the generated plan, or this plan.
+     */
+    PruningPlan withDefaultAccessor() {
+        PruningPlan plan = defaultPlan;
+        if ( plan == null ) {
+            if ( GENERATE_ACCESSORS || AccessorRegistry.lookup(entityClass) != null ) {
+                plan = generated();
+            } else {
+                plan = this;
+            }
+            defaultPlan = plan;
+        }
+        return plan;
+    }
+
+    /**
+     * @return the class this plan is for.
+     */
+    Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    /**
+     * @return the attributes of the entity, in the same order as
+     *         {@link ReflectionUtil#loadBeanFields(Class, boolean)}.
+     */
+    List<Attribute> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * @return the attribute holding the entity's primary key, or
+     *         <code>null</code> if the entity doesn't have an <code>Id</code>
+     *         annotation.
+     */
+    Attribute getIdAttribute() {
+        return idAttribute;
+    }
+
+    /**
+     * @return the type of the entity's primary key, or <code>null</code> if
+     *         we don't know it.
+     */
+    Class<?> getIdType() {
+        return idType;
+    }
+
+    /**
+     * @return <code>true</code> if the entity has a composite key.
+     */
+    boolean isCompositeId() {
+        return compositeId;
+    }
+
+    /**
+     * Convert an id of this class of entity to the string we store in a
+     * fieldIdMap.
+     * @param id the id, which should not be null.
+     * @return the string form of the id.
+     * @see IdCodec
+     */
+    String formatId(Serializable id) {
+        if ( idCodec == null ) {
+            return id.toString();
+        }
+        return idCodec.encode(id);
+    }
+
+    /**
+     * @return a new, empty {@link FieldIdTable} for entities of this class.
+     */
+    FieldIdTable newFieldIdTable() {
+        return new FieldIdTable(attributeNames);
+    }
+
+    /**
+     * Record the id of an entity of this class in a {@link FieldIdTable}.
+     * Ids that fit in a <code>long</code> are stored as one.
+     * @param table the table to change.
+     * @param attribute the attribute that held the entity, in the plan for
+     *        the table's owner.
+     * @param id the id, which should not be null.
+     */
+    void storeId(FieldIdTable table, Attribute attribute, Serializable id) {
+        if ( idCodec != null && idCodec.isLong()
+                && (id instanceof Long || id instanceof Integer) ) {
+            table.putLong(attribute.getSlot(), ((Number)id).longValue());
+        } else {
+            table.putString(attribute.getSlot(), formatId(id));
+        }
+    }
+
+    /**
+     * Gets the id of an entity of this class from a {@link FieldIdTable}.
+     * @param table the table with the id.
+     * @param attribute the attribute that held the entity, in the plan for
+     *        the table's owner.
+     * @return the id, or <code>null</code> if the table doesn't have one
+     *         for the attribute.
+     * @throws IllegalStateException if the id can't be converted.
+     */
+    Serializable loadId(FieldIdTable table, Attribute attribute) {
+        int slot = attribute.getSlot();
+        if ( idCodec != null && table.isLong(slot, attribute.getName()) ) {
+            return idCodec.decode(table.getLong(slot));
+        }
+        String id = table.getString(slot, attribute.getName());
+        return id == null ? null : convertId(id);
+    }
+
+    /**
+     * Convert a string form of an id back to the type of this entity's
+     * primary key.  If the entity has no id attribute, the string is
+     * returned as-is.
+     * @param id the string form of the id, from {@link #formatId(Serializable)}.
+     * @return the id converted to the correct type.
+     * @throws IllegalStateException if the id type can't be built from a
+     *         string.
+     */
+    Serializable convertId(String id) {
+        if ( idAttribute == null && idCodec == null ) {
+            return id;
+        }
+        if ( idCodec == null ) {
+            throw new IllegalStateException(idAttribute.getType() +
+                    " can't be constructed from a String");
+        }
+        return idCodec.decode(id);
+    }
+
+    /**
+     * This class holds the pre-resolved information about a single attribute
+     * of an entity.
+     */
+    static final class Attribute {
+        private final Binding binding;
+        private final int slot;
+        private final String name;
+        private final FieldKind kind;
+        private final boolean transientField;
+        private final boolean id;
+        private final boolean embeddedId;
+        private final String role;
+        private final String mappedBy;
+        /** The child class, or <code>null</code> to use the element class */
+        private final Class<?> childClass;
+        /** The resolved inverses, indexed by owner class, then child class */
+        private final ConcurrentMap<Class<?>, ConcurrentMap<Class<?>, Inverse>> inverses;
+        private final GeneratedAccessor generated;
+        private final int index;
+        private final boolean generatedGet;
+        private final boolean generatedSet;
+        private final boolean generatedSetField;
+
+        /**
+         * Resolve everything we need to know about an attribute.  If we have
+         * Hibernate's mapping for the owner, it tells us what is persistent
+         * and how associations are mapped.  Otherwise, we have to read the
+         * field's annotations.
+         * @param owner the class of entity that has the attribute.
+         * @param field the field for the attribute.
+         * @param node the association graph's node for the owner, or
+         *        <code>null</code>.
+         * @param slot the position of the attribute in the plan.
+         */
+        private Attribute(Class<?> owner, Field field, AssociationGraph.Node node,
+                int slot) {
+            this.binding = new Binding(field);
+            this.slot = slot;
+            this.name = field.getName();
+            this.embeddedId = field.getAnnotation(EmbeddedId.class) != null;
+            String m = null;
+            Class<?> childClazz = null;
+            if ( node != null ) {
+                AssociationGraph.Edge edge = node.getEdge(name);
+                this.id = name.equals(node.getIdName());
+                this.transientField = !node.isPersistent(name);
+                if ( edge != null && edge.getRole() != null ) {
+                    this.role = edge.getRole();
+                } else {
+                    this.role = owner.getName() + "." + name;
+                }
+                if ( edge != null ) {
+                    m = edge.getInverseName();
+                    childClazz = edge.getTargetClass();
+                }
+            } else {
+                this.id = field.getAnnotation(Id.class) != null || embeddedId;
+                this.transientField = field.getAnnotation(Transient.class) != null;
+                this.role = owner.getName() + "." + name;
+
+                // See if the field has a OneToMany or OneToOne annotation
+                // with a "mappedBy" which indicates a bidirectional
+                // association.
+                OneToMany oneToMany = field.getAnnotation(OneToMany.class);
+                if ( oneToMany != null ) {
+                    m = oneToMany.mappedBy();
+                } else {
+                    OneToOne oneToOne = field.getAnnotation(OneToOne.class);
+                    if ( oneToOne != null ) {
+                        m = oneToOne.mappedBy();
+                    }
+                }
+                if ( m != null && m.length() == 0 ) {
+                    m = null;
+                }
+            }
+            this.kind = FieldKind.forType(field.getType(), id);
+            this.mappedBy = m;
+            this.childClass = childClazz;
+            this.inverses = new ConcurrentHashMap<Class<?>, ConcurrentMap<Class<?>, Inverse>>();
+            this.generated = null;
+            this.index = -1;
+            this.generatedGet = false;
+            this.generatedSet = false;
+            this.generatedSetField = false;
+        }
+
+        /**
+         * Build an attribute from an entry in the metadata index, which
+         * already knows everything the annotations would tell us.  If we
+         * have Hibernate's mapping for the owner, it still decides what is
+         * persistent and how associations are mapped.  The field isn't
+         * looked up until something needs it.
+         * @param owner the class of entity that has the attribute.
+         * @param entry the owner's entry in the index.
+         * @param position the position of the attribute in the entry, which
+         *        is also its position in the plan.
+         * @param node the association graph's node for the owner, or
+         *        <code>null</code>.
+         */
+        private Attribute(Class<?> owner, MetadataIndex.Entry entry, int position,
+                AssociationGraph.Node node) {
+            this.binding = new Binding(owner, entry, position);
+            this.slot = position;
+            this.name = entry.names[position];
+            this.embeddedId = entry.isEmbeddedId(position);
+            String m = null;
+            Class<?> childClazz = null;
+            if ( node != null ) {
+                AssociationGraph.Edge edge = node.getEdge(name);
+                this.id = name.equals(node.getIdName());
+                this.transientField = !node.isPersistent(name);
+                if ( edge != null && edge.getRole() != null ) {
+                    this.role = edge.getRole();
+                } else {
+                    this.role = owner.getName() + "." + name;
+                }
+                if ( edge != null ) {
+                    m = edge.getInverseName();
+                    childClazz = edge.getTargetClass();
+                }
+            } else {
+                this.id = entry.isId(position);
+                this.transientField = entry.isTransient(position);
+                this.role = owner.getName() + "." + name;
+                m = entry.mappedBy[position];
+            }
+            if ( id == entry.isId(position) ) {
+                this.kind = entry.kinds[position];
+            } else {
+                // Hibernate disagrees with the annotations about the id.
+                this.kind = FieldKind.forType(binding.getType(), id);
+            }
+            this.mappedBy = m;
+            this.childClass = childClazz;
+            this.inverses = new ConcurrentHashMap<Class<?>, ConcurrentMap<Class<?>, Inverse>>();
+            this.generated = null;
+            this.index = -1;
+            this.generatedGet = false;
+            this.generatedSet = false;
+            this.generatedSetField = false;
+        }
+
+        /**
+         * Copy an attribute, using a generated accessor for whatever it
+         * supports.
+         * @param other the attribute to copy.
+         * @param generated the generated accessor for the owning class.
+         * @param index the attribute's index in the generated accessor, or
+         *        -1 if the accessor doesn't know about it.
+         */
+        private Attribute(Attribute other, GeneratedAccessor generated, int index) {
+            // Share the binding and the inverses, so the copy doesn't
+            // resolve them again.
+            this.binding = other.binding;
+            this.slot = other.slot;
+            this.name = other.name;
+            this.kind = other.kind;
+            this.transientField = other.transientField;
+            this.id = other.id;
+            this.embeddedId = other.embeddedId;
+            this.role = other.role;
+            this.mappedBy = other.mappedBy;
+            this.childClass = other.childClass;
+            this.inverses = other.inverses;
+            this.generated = generated;
+            this.index = index;
+            this.generatedGet = generated.canGet(index);
+            this.generatedSet = generated.canSet(index);
+            this.generatedSetField = generated.canSetField(index);
+        }
+
+        /**
+         * @return the underlying field, which has already been made
+         *         accessible.  If the attribute came from the metadata
+         *         index, this looks the field up the first time it is
+         *         called.
+         */
+        Field getField() {
+            return binding.getField();
+        }
+
+        /**
+         * @return the accessor that reads and writes the attribute
+         *         reflectively, which is bound the first time it is needed.
+         */
+        PropertyAccessor getAccessor() {
+            return binding.getAccessor();
+        }
+
+        /**
+         * @return <code>true</code> if this attribute reads its value through
+         *         a generated accessor.
+         */
+        boolean isGenerated() {
+            return generatedGet;
+        }
+
+        /**
+         * @return the position of the attribute in the plan, which is also
+         *         its key in a {@link FieldIdTable}.
+         */
+        int getSlot() {
+            return slot;
+        }
+
+        /**
+         * @return the name of the attribute.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return the declared type of the attribute.
+         */
+        Class<?> getType() {
+            return binding.getType();
+        }
+
+        /**
+         * @return the kind of attribute this is.
+         */
+        FieldKind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return <code>true</code> if the attribute has a
+         *         <code>Transient</code> annotation.
+         */
+        boolean isTransient() {
+            return transientField;
+        }
+
+        /**
+         * @return <code>true</code> if the attribute has an <code>Id</code>
+         *         or <code>EmbeddedId</code> annotation.
+         */
+        boolean isId() {
+            return id;
+        }
+
+        /**
+         * @return <code>true</code> if the attribute has an
+         *         <code>EmbeddedId</code> annotation.
+         */
+        boolean isEmbeddedId() {
+            return embeddedId;
+        }
+
+        /**
+         * @return the Hibernate role of the attribute, which is the name of
+         *         the owning class followed by the attribute name.
+         */
+        String getRole() {
+            return role;
+        }
+
+        /**
+         * @return the name of the child's attribute that refers back to the
+         *         owning entity, or <code>null</code> if this attribute is not
+         *         a bidirectional association.
+         */
+        String getMappedBy() {
+            return mappedBy;
+        }
+
+        /**
+         * @return the child's field that refers back to the owning entity,
+         *         if we could resolve it from the declared element type of
+         *         the collection, or <code>null</code> if we couldn't.
+         */
+        Field getInverseField() {
+            return binding.getInverseField(getChildClass(), mappedBy);
+        }
+
+        /**
+         * @return the declared class of the child(ren) held in this
+         *         attribute, or <code>null</code> if we don't know it.  This is
+         *         only resolved for bidirectional associations.
+         */
+        Class<?> getChildClass() {
+            if ( childClass != null || mappedBy == null ) {
+                return childClass;
+            }
+            return binding.getElementClass();
+        }
+
+        /**
+         * @return the declared class of the element(s) held in this
+         *         attribute, from the generic type of a collection, or the
+         *         type of the field otherwise, or <code>null</code> if it
+         *         can't be determined.
+         */
+        Class<?> getElementClass() {
+            return binding.getElementClass();
+        }
+
+        /**
+         * Gets the child's field that refers back to the owning entity, for
+         * a particular class of owner and child.  The answer is worked out
+         * the first time we see the two classes together, and remembered,
+         * whether the field is usable or not, so that we don't search the
+         * child's class hierarchy for every entity we prune.
+         * @param ownerClazz the class of the (de-proxied) owning entity.
+         * @param childClazz the class of the child.
+         * @return the child's parent field, or <code>null</code> if this
+         *         attribute is not a bidirectional association.
+         */
+        Inverse getInverse(Class<?> ownerClazz, Class<?> childClazz) {
+            if ( mappedBy == null ) {
+                return null;
+            }
+            ConcurrentMap<Class<?>, Inverse> byChild = inverses.get(ownerClazz);
+            if ( byChild == null ) {
+                byChild = new ConcurrentHashMap<Class<?>, Inverse>();
+                ConcurrentMap<Class<?>, Inverse> existing =
+                    inverses.putIfAbsent(ownerClazz, byChild);
+                if ( existing != null ) {
+                    byChild = existing;
+                }
+            }
+            Inverse inverse = byChild.get(childClazz);
+            if ( inverse == null ) {
+                inverse = findInverse(ownerClazz, childClazz);
+                Inverse existing = byChild.putIfAbsent(childClazz, inverse);
+                if ( existing != null ) {
+                    inverse = existing;
+                }
+            }
+            return inverse;
+        }
+
+        /**
+         * Helper method to resolve and check the child's parent field.  We
+         * usually already resolved it from the collection's element type,
+         * but if the child is of some unexpected type, we'll look for it in
+         * the child's class hierarchy.
+         * @param ownerClazz the class of the owning entity.
+         * @param childClazz the class of the child.
+         * @return the result, which will have a problem if the field can't
+         *         be found, or can't hold the owner.
+         */
+        private Inverse findInverse(Class<?> ownerClazz, Class<?> childClazz) {
+            Field childsParent = getInverseField();
+            if ( childsParent == null ||
+                    !childsParent.getDeclaringClass().isAssignableFrom(childClazz) ) {
+                childsParent = resolveInverse(childClazz, mappedBy);
+            }
+            if ( childsParent == null ) {
+                return new Inverse(null, "can't be found");
+            }
+            if ( !ownerClazz.isAssignableFrom(childsParent.getType()) ) {
+                return new Inverse(null, "is the wrong type");
+            }
+            return new Inverse(PropertyAccessor.forField(childsParent), null);
+        }
+
+        /**
+         * Gets the value of this attribute from the given entity.  We can't
+         * just use field.get because Hibernate doesn't always store the value
+         * in the field, so we use the getter if there is one, and only fall
+         * back to the field (SERIAL_VERSION_UID for example), when there
+         * isn't.
+         * @param entity the entity with the value we want.
+         * @return the value of the attribute.
+         * @throws InvocationTargetException
+         */
+        Object getValue(Object entity) throws InvocationTargetException {
+            if ( generatedGet ) {
+                try {
+                    return generated.get(entity, index);
+                } catch (RuntimeException e) {
+                    throw new InvocationTargetException(e);
+                }
+            }
+            return binding.getAccessor().getValue(entity);
+        }
+
+        /**
+         * Gets the value of this attribute directly from the field,
+         * bypassing the getter.
+         * @param entity the entity with the value we want.
+         * @return the value of the field.
+         * @throws InvocationTargetException
+         */
+        Object getFieldValue(Object entity) throws InvocationTargetException {
+            return binding.getAccessor().getFieldValue(entity);
+        }
+
+        /**
+         * Sets the value of this attribute in the given entity, using the
+         * setter if there is one.
+         * @param entity the entity to change.
+         * @param value the new value.
+         * @throws IllegalAccessException
+         * @throws InvocationTargetException
+         * @see #getValue(Object)
+         */
+        void setValue(Object entity, Object value) throws IllegalAccessException,
+                InvocationTargetException {
+            if ( generatedSet ) {
+                try {
+                    generated.set(entity, index, value);
+                } catch (RuntimeException e) {
+                    throw new InvocationTargetException(e);
+                }
+                return;
+            }
+            binding.getAccessor().setValue(entity, value);
+        }
+
+        /**
+         * Sets the value of this attribute directly in the field, bypassing
+         * the setter.
+         * @param entity the entity to change.
+         * @param value the new value.
+         * @throws IllegalAccessException
+         * @throws InvocationTargetException
+         */
+        void setFieldValue(Object entity, Object value) throws IllegalAccessException,
+                InvocationTargetException {
+            if ( generatedSetField ) {
+                try {
+                    generated.setField(entity, index, value);
+                } catch (RuntimeException e) {
+                    throw new InvocationTargetException(e);
+                }
+                return;
+            }
+            binding.getAccessor().setFieldValue(entity, value);
+        }
+
+        /**
+         * Helper method to figure out the type of the child(ren) held in a
+         * field from the generic type of the collection (or the type of the
+         * field for a OneToOne).
+         * @param field the field holding the child(ren).
+         * @return the class of the child(ren), or <code>null</code> if it
+         *         can't be determined.
+         */
+        static Class<?> elementClass(Field field) {
+            Type genericType = field.getGenericType();
+            if ( genericType instanceof ParameterizedType ) {
+                Type[] args = ((ParameterizedType)genericType).getActualTypeArguments();
+                if ( args.length == 1 && args[0] instanceof Class ) {
+                    return (Class<?>)args[0];
+                }
+            } else if ( !field.getType().isInterface() ) {
+                return field.getType();
+            }
+            return null;
+        }
+
+        /**
+         * Helper method to find the field in a child class that refers back
+         * to the parent in a bidirectional association.
+         * @param childClazz the class of the child(ren), if we know it.
+         * @param mappedBy the name of the child's parent field.
+         * @return the child's parent field, or <code>null</code> if it can't
+         *         be determined.
+         */
+        private static Field resolveInverse(Class<?> childClazz, String mappedBy) {
+            if ( mappedBy == null || childClazz == null ) {
+                return null;
+            }
+            Field inverse = ReflectionUtil.getField(childClazz, mappedBy);
+            if ( inverse != null ) {
+                inverse.setAccessible(true);
+            }
+            return inverse;
+        }
+    }
+
+    /**
+     * This class binds an attribute to its field and reflective accessor.
+     * An attribute built from annotations starts out with its field, but one
+     * built from the {@link MetadataIndex} only has the names the index
+     * recorded, and looks the field up the first time it is needed.  An
+     * entity with a generated accessor may never need it at all.  A binding
+     * is shared by an attribute and its generated copy, so nothing is
+     * looked up twice.
+     * <p>
+     * Two threads may race to resolve the same thing, but they will get the
+     * same answer, so the only cost is some repeated work.
+     */
+    private static final class Binding {
+        private final Class<?> owner;
+        private final MetadataIndex.Entry entry;
+        private final int position;
+        private volatile Field field;
+        private volatile PropertyAccessor accessor;
+        private volatile Class<?> type;
+        private volatile Class<?> elementClass;
+        private volatile boolean elementResolved;
+        private volatile Field inverseField;
+        private volatile boolean inverseResolved;
+
+        /**
+         * Bind an attribute to a field we already have.
+         * @param field the field for the attribute.
+         */
+        private Binding(Field field) {
+            field.setAccessible(true);
+            this.owner = field.getDeclaringClass();
+            this.entry = null;
+            this.position = -1;
+            this.field = field;
+            this.type = field.getType();
+        }
+
+        /**
+         * Bind an attribute to an entry in the metadata index.
+         * @param owner the class of entity that has the attribute.
+         * @param entry the owner's entry in the index.
+         * @param position the position of the attribute in the entry.
+         */
+        private Binding(Class<?> owner, MetadataIndex.Entry entry, int position) {
+            this.owner = owner;
+            this.entry = entry;
+            this.position = position;
+        }
+
+        /**
+         * @return the field, which has been made accessible.
+         */
+        private Field getField() {
+            Field f = field;
+            if ( f == null ) {
+                f = MetadataIndex.resolveField(owner, entry, position);
+                f.setAccessible(true);
+                field = f;
+            }
+            return f;
+        }
+
+        /**
+         * @return the reflective accessor for the attribute.
+         */
+        private PropertyAccessor getAccessor() {
+            PropertyAccessor a = accessor;
+            if ( a == null ) {
+                if ( entry == null ) {
+                    a = PropertyAccessor.forField(getField());
+                } else {
+                    a = MetadataIndex.resolveAccessor(owner, entry, position, getField());
+                }
+                accessor = a;
+            }
+            return a;
+        }
+
+        /**
+         * @return the declared type of the attribute.
+         */
+        private Class<?> getType() {
+            Class<?> t = type;
+            if ( t == null ) {
+                t = MetadataIndex.loadClass(owner, entry.types[position]);
+                type = t;
+            }
+            return t;
+        }
+
+        /**
+         * @return the declared class of the element(s) held in the
+         *         attribute, or <code>null</code> if it can't be determined.
+         */
+        private Class<?> getElementClass() {
+            if ( !elementResolved ) {
+                if ( entry == null ) {
+                    elementClass = Attribute.elementClass(field);
+                } else if ( entry.elements[position] != null ) {
+                    elementClass = MetadataIndex.loadClass(owner, entry.elements[position]);
+                }
+                elementResolved = true;
+            }
+            return elementClass;
+        }
+
+        /**
+         * @param childClazz the declared class of the child(ren).
+         * @param mappedBy the name of the child's parent field.
+         * @return the child's parent field, or <code>null</code> if it can't
+         *         be determined.
+         */
+        private Field getInverseField(Class<?> childClazz, String mappedBy) {
+            if ( !inverseResolved ) {
+                inverseField = Attribute.resolveInverse(childClazz, mappedBy);
+                inverseResolved = true;
+            }
+            return inverseField;
+        }
+    }
+
+    /**
+     * The resolved child's parent field of a bidirectional association, for
+     * one class of owner and child, or the reason it couldn't be resolved.
+     */
+    static final class Inverse {
+        private final PropertyAccessor accessor;
+        private final String problem;
+
+        /**
+         * Create a result.
+         * @param accessor the accessor for the child's parent field, or
+         *        <code>null</code> if it isn't usable.
+         * @param problem what is wrong with the field, or <code>null</code>
+         *        if it is usable.
+         */
+        private Inverse(PropertyAccessor accessor, String problem) {
+            this.accessor = accessor;
+            this.problem = problem;
+        }
+
+        /**
+         * @return the accessor for the child's parent field, or
+         *         <code>null</code> if there is a problem.
+         */
+        PropertyAccessor getAccessor() {
+            return accessor;
+        }
+
+        /**
+         * @return what is wrong with the child's parent field, such as
+         *         "can't be found", or <code>null</code> if it is usable.
+         */
+        String getProblem() {
+            return problem;
+        }
+    }
+}
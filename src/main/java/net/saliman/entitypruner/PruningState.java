@@ -11,6 +11,10 @@ package net.saliman.entitypruner;
  * Server code should not allow updates to an entity in an UNPRUNED_PARTIAL
  * state because it would result in a lot of fields being set incorrectly to
  * null in the database.
+ * <p>
+ * Entities that would rather not keep a String for their state can
+ * implement {@link FlaggedPrunableEntity}, which uses the same states encoded
+ * as {@link PruningFlags}.
  *  
  * @author Steven C. Saliman
  * @see EntityPruner for more details about pruning entities.
@@ -4,9 +4,9 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,9 +16,8 @@ import org.slf4j.LoggerFactory;
  * @author Steven C. Saliman
  */
 public class ReflectionUtil {
-	// caches to try and avoid the performance hit of reflection.
-	private static Map<String, List<Field>> beanFieldMap = new ConcurrentHashMap<String, List<Field>>();
-    private static Map<String, Field>fieldMap = new ConcurrentHashMap<String, Field>();
+	// Results are cached in each class' ClassMetadata to try and avoid the
+	// performance hit of reflection.
 	/** logger for the class */
     private static final Logger LOG = LoggerFactory.getLogger(ReflectionUtil.class);
 
@@ -67,17 +66,22 @@ public class ReflectionUtil {
             return new ArrayList<Field>();
         }
         
-        // The hash key must include whether or not we wanted read-only fields
-        // or not because some callers will want them, others won't, and we
-        // need a place for both lists.
-        String className = clazz.getName();
-        String hashKey = className + Boolean.toString(includeReadOnly);
+        // Some callers will want read-only fields, others won't, so the
+        // metadata has a place for both lists.
+        ClassMetadata metadata = ClassMetadata.forClass(clazz);
     	// First, let's see if we can get lucky in the cache.
-    	if ( beanFieldMap.containsKey(hashKey)) {
-    		return beanFieldMap.get(hashKey);
-    	}
+        List<Field> cached = includeReadOnly ? metadata.readableBeanFields
+                                             : metadata.beanFields;
+        if ( cached != null ) {
+            return cached;
+        }
+        // Entities in a metadata index don't need to be scanned.
+        if ( MetadataIndex.apply(clazz) ) {
+            return includeReadOnly ? metadata.readableBeanFields
+                                   : metadata.beanFields;
+        }
 
-        LOG.trace("loadBeanFields(" + className + ")");
+        LOG.trace("loadBeanFields(" + clazz.getName() + ")");
         // start with the parent, then add this class' fields. We need a 
         // separate list so that we don't wind up with the same object
         // stored for multiple classes.
@@ -103,7 +107,11 @@ public class ReflectionUtil {
                 fieldList.add(fields[i]);
             }
         }
-        beanFieldMap.put(hashKey, fieldList);
+        if ( includeReadOnly ) {
+            metadata.readableBeanFields = fieldList;
+        } else {
+            metadata.beanFields = fieldList;
+        }
         return fieldList;
     }
     
@@ -121,9 +129,13 @@ public class ReflectionUtil {
     		return null;
     	}
     	
-    	String fullName = clazz.getName() + "." + name;
-    	if ( fieldMap.containsKey(fullName)) {
-    		return fieldMap.get(fullName);
+    	ClassMetadata metadata = ClassMetadata.forClass(clazz);
+    	Field cached = metadata.fields.get(name);
+    	if ( cached == null && MetadataIndex.apply(clazz) ) {
+    		cached = metadata.fields.get(name);
+    	}
+    	if ( cached != null ) {
+    		return cached;
     	}
     	// Try to get it from the superclass first.
     	Field field = getField(clazz.getSuperclass(), name);
@@ -135,7 +147,7 @@ public class ReflectionUtil {
     		}
     	}
     	if ( field != null ) {
-    		fieldMap.put(fullName, field);
+    		metadata.fields.put(name, field);
     	}
     	return field;
     }
@@ -157,58 +169,77 @@ public class ReflectionUtil {
 	 */
 	public static Object getFieldValue(Field field, Object object)
 	               throws SecurityException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-	    // we need to call the method to get the proxy...
-	    String name = field.getName();
-	    name = name.substring(0,1).toUpperCase() + name.substring(1);
-	    Class<?> type = field.getType();
-	    if ( boolean.class.isAssignableFrom(type)
-	            || Boolean.class.isAssignableFrom(type) ) {
-	        name = "is" + name;
-	    } else {
-	        name = "get" + name;
-	    }
-	    Object value = null;
-	    // Get the value.  We need to try using the "get" method first, but
-	    // not all fields will have a method (SERIAL_VERSION_UID for example),
-	    // so we need to get the actual field value if the method doesn't 
-	    // exist.
-	    try {
-	        Method method = field.getDeclaringClass().getMethod(name);
-	        value = method.invoke(object);
-	    } catch (NoSuchMethodException e) {
-	        // not all fields will have a getter, so just get it from the
-	        // field directly
-	        value = field.get(object);
-	    }
-	    return value;
+	    return PropertyAccessor.forField(field).getValue(object);
 	}
 
 	/**
-     * Helper method that wraps the <code>getMethod</code> method of the Java
-     * reflection api.  It catches any exceptions and returns null.  This keeps
-     * the calling code clean.
+     * Helper method that finds a public accessor method in a class, the same
+     * way the <code>getMethod</code> method of the Java reflection api would,
+     * but without throwing an exception when the method doesn't exist.
+     * Fields without accessors are common, and filling in stack traces for
+     * each one adds up, so this method looks the method up in an index of
+     * the class' public methods, which is built once per class.
      * @param clazz the class to check
      * @param name the name of the method we want.
      * @param parameterType the parameter type for the method we want.  Since
      *        this class will only ever be called on to get accessors, we'll
-     *        never need more than one type.
+     *        never need more than one type.  Use <code>null</code> for a
+     *        method with no parameters.
+     * @return the method, or <code>null</code> if the class doesn't have a
+     *         public method with that name and parameter type.
      */
-    private static Method getMethod(Class<?> clazz, String name, 
-                             Class<?> parameterType) {
-        Method m = null;
-        try {
-            // An empty array is not the same as a null
+    static Method getMethod(Class<?> clazz, String name,
+                            Class<?> parameterType) {
+        List<Method> candidates = loadPublicMethods(clazz).get(name);
+        if ( candidates == null ) {
+            return null;
+        }
+        Method found = null;
+        for ( Method m : candidates ) {
+            Class<?>[] types = m.getParameterTypes();
+            boolean matches;
             if ( parameterType == null ) {
-                m = clazz.getMethod(name, new Class<?>[] {});
+                matches = types.length == 0;
             } else {
-                m = clazz.getMethod(name, parameterType);
+                matches = types.length == 1 && types[0].equals(parameterType);
+            }
+            // Covariant overrides show up more than once.  Like getMethod, 
+            // we want the one with the most specific return type, which is
+            // never the bridge method.
+            if ( matches && (found == null || 
+                    found.getReturnType().isAssignableFrom(m.getReturnType())) ) {
+                found = m;
             }
-        } catch (SecurityException e) {
-            // No need to do anything here.
-        } catch (NoSuchMethodException e) {
-            // no need to do anything here either.
         }
-        return m;
+        return found;
     }
 
+    /**
+     * Helper method to index the public methods of a class by name.
+     * @param clazz the class whose methods we want.
+     * @return a map of method names to the public methods with that name.
+     */
+    private static Map<String, List<Method>> loadPublicMethods(Class<?> clazz) {
+        ClassMetadata metadata = ClassMetadata.forClass(clazz);
+        Map<String, List<Method>> methods = metadata.publicMethods;
+        if ( methods != null ) {
+            return methods;
+        }
+        methods = new HashMap<String, List<Method>>();
+        try {
+            for ( Method m : clazz.getMethods() ) {
+                List<Method> list = methods.get(m.getName());
+                if ( list == null ) {
+                    list = new ArrayList<Method>(1);
+                    methods.put(m.getName(), list);
+                }
+                list.add(m);
+            }
+        } catch (SecurityException e) {
+            // No need to do anything here, the class just has no accessors
+            // that we can use.
+        }
+        metadata.publicMethods = methods;
+        return methods;
+    }
 }
@@ -0,0 +1,527 @@
+package net.saliman.entitypruner;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>Traversal</code> is the work queue the {@link EntityPruner} uses to
+ * walk an object graph without recursion.  Each step is an entity and the
+ * depth it should be processed to.  While an entity is being processed, the
+ * entities it refers to are added to the traversal, and they are scheduled
+ * once the caller asks for the next step.
+ * <p>
+ * Each step also carries the {@link PruneSpec} for the entity, which comes
+ * from the path that reached it.
+ * <p>
+ * A traversal also remembers every entity it has visited, by identity, along
+ * with the best (largest) depth the entity has been reached with so far.
+ * An entity that is reached again with a depth that isn't any better is
+ * skipped, which is how we deal with cycles in the graph.  An entity that
+ * is reached again with a better depth is processed again, so every entity
+ * ends up being processed to the depth of the shortest path to it, no
+ * matter what order the graph is walked in.  An entity that is reached
+ * again with a spec it hasn't been processed with yet is also processed
+ * again, so that it ends up with only what every path to it wants to keep,
+ * again no matter what the order was.  It is processed to the best depth
+ * it has been reached with, even if the new path is shorter.  Since the traversal keeps
+ * track of all this, the pruner doesn't need to look at an entity's pruning
+ * state to know if it has already been there, and it only needs to set the
+ * state once, when the traversal is done.
+ * <p>
+ * In depth-first order, the entities found while processing a step are
+ * processed before anything that was already waiting, in the order they
+ * were found.  In breadth-first order, every entity at one level is
+ * processed before any entity at the next level.  Since breadth-first order
+ * always reaches an entity by its shortest path first, it never has to
+ * process an entity twice.
+ * <p>
+ * Either way, the Java stack never grows with the size or depth of the
+ * graph.  A traversal is meant to be used by a single thread for a single
+ * call to the pruner.
+ * <p>
+ * To prune a batch of entities on several threads, each thread gets its own
+ * traversal for its share of the roots, and they all share a
+ * {@link VisitTable}, so an entity reachable from roots on different
+ * threads still has a single visit.  The table guards each entity with a
+ * lock, and the caller must hold the lock from {@link #getLock} while it
+ * processes the entity.  Nobody ever holds more than one of these locks at
+ * a time, so they can't deadlock.  That means a step can't write to any
+ * other entity, so clearing a child's reference back to its parent goes
+ * through {@link #detach}, which waits until the parent's lock has been
+ * released.
+ *
+ * @author Steven C. Saliman
+ */
+final class Traversal {
+    /** The steps waiting to be processed */
+    private final ArrayDeque<Step> work = new ArrayDeque<Step>();
+    /** The steps found while processing the current step */
+    private final List<Step> found = new ArrayList<Step>();
+    /** What we know about each entity we've visited, by identity */
+    private final Map<PrunableEntity, Visit> visitMap =
+        new IdentityHashMap<PrunableEntity, Visit>();
+    /** The visits, in the order the entities were first visited */
+    private final List<Visit> visits = new ArrayList<Visit>();
+    private final boolean breadthFirst;
+    /** The visits shared with other traversals, if there are any */
+    private final VisitTable table;
+    /**
+     * Children to detach from their parents once the parent is unlocked,
+     * each followed by the accessor for its parent attribute
+     */
+    private final List<Object> detached = new ArrayList<Object>();
+
+    /**
+     * Start a traversal that processes every entity with
+     * {@link PruneSpec#ALL}.
+     * @param root the entity where the traversal starts.
+     * @param depth the depth to process the root entity to.
+     * @param breadthFirst <code>true</code> to visit the graph in
+     *        breadth-first order, <code>false</code> for depth-first order.
+     */
+    Traversal(PrunableEntity root, int depth, boolean breadthFirst) {
+        this(root, depth, PruneSpec.ALL, breadthFirst);
+    }
+
+    /**
+     * Start a traversal.
+     * @param root the entity where the traversal starts.
+     * @param depth the depth to process the root entity to.
+     * @param spec the spec for the root entity.
+     * @param breadthFirst <code>true</code> to visit the graph in
+     *        breadth-first order, <code>false</code> for depth-first order.
+     */
+    Traversal(PrunableEntity root, int depth, PruneSpec spec,
+            boolean breadthFirst) {
+        this.breadthFirst = breadthFirst;
+        this.table = null;
+        work.addLast(new Step(root, depth, spec));
+    }
+
+    /**
+     * Start a traversal of several roots.  They are all processed with the
+     * same depth and spec, and an entity that can be reached from more than
+     * one of them is processed to the depth of the shortest path from any of
+     * them.
+     * @param roots the entities where the traversal starts.  Nulls are
+     *        ignored.
+     * @param depth the depth to process each root entity to.
+     * @param spec the spec for each root entity.
+     * @param breadthFirst <code>true</code> to visit the graph in
+     *        breadth-first order, <code>false</code> for depth-first order.
+     * @param table the visits shared with the traversals running on other
+     *        threads, or <code>null</code> if this traversal is on its own.
+     */
+    Traversal(Collection<? extends PrunableEntity> roots, int depth,
+            PruneSpec spec, boolean breadthFirst, VisitTable table) {
+        this.breadthFirst = breadthFirst;
+        this.table = table;
+        for ( PrunableEntity root : roots ) {
+            if ( root != null ) {
+                work.addLast(new Step(root, depth, spec));
+            }
+        }
+    }
+
+    /**
+     * Add an entity that was found while processing the current step, to
+     * be processed with {@link PruneSpec#ALL}.
+     * @param entity the entity to process.  Nulls are ignored.
+     * @param depth the depth to process it to.
+     */
+    void add(PrunableEntity entity, int depth) {
+        add(entity, depth, PruneSpec.ALL);
+    }
+
+    /**
+     * Add an entity that was found while processing the current step.
+     * @param entity the entity to process.  Nulls are ignored.
+     * @param depth the depth to process it to.
+     * @param spec the spec to process it with.
+     */
+    void add(PrunableEntity entity, int depth, PruneSpec spec) {
+        if ( entity != null ) {
+            found.add(new Step(entity, depth, spec));
+        }
+    }
+
+    /**
+     * Schedules everything found since the last call, then gets the next
+     * step to process.  Entities that have already been processed to at
+     * least the depth of their step, with the same spec, are skipped.
+     * @return the next step, or <code>null</code> when the traversal is
+     *         done.
+     */
+    Step next() {
+        applyDetached();
+        if ( breadthFirst ) {
+            for ( int i = 0; i < found.size(); i++ ) {
+                work.addLast(found.get(i));
+            }
+        } else {
+            // Push in reverse, so that the first entity found is processed
+            // first, just like recursive calls would.
+            for ( int i = found.size() - 1; i >= 0; i-- ) {
+                work.addFirst(found.get(i));
+            }
+        }
+        found.clear();
+        Step step = work.pollFirst();
+        while ( step != null ) {
+            boolean process;
+            if ( table == null ) {
+                process = schedule(step, visitMap);
+            } else {
+                synchronized ( table.getLock(step.entity) ) {
+                    process = schedule(step, table.getVisits(step.entity));
+                }
+            }
+            if ( process ) {
+                return step;
+            }
+            step = work.pollFirst();
+        }
+        return null;
+    }
+
+    /**
+     * Schedules everything found since the last call, then gets every step
+     * at the next level of the graph, for callers that need to look at a
+     * whole level before they process any of it.  This only makes sense in
+     * breadth-first order, where the steps waiting to be processed are
+     * always exactly one level.
+     * @return the steps at the next level, or an empty list when the
+     *         traversal is done.
+     */
+    List<Step> nextLevel() {
+        List<Step> level = new ArrayList<Step>();
+        for ( Step step = next(); step != null; step = next() ) {
+            level.add(step);
+        }
+        return level;
+    }
+
+    /**
+     * Helper method to decide if a step needs to be processed, and to
+     * record the visit if it does.
+     * @param step the step.
+     * @param map the visits that might have the step's entity.
+     * @return <code>true</code> if the step needs to be processed.
+     */
+    private boolean schedule(Step step, Map<PrunableEntity, Visit> map) {
+        Visit visit = map.get(step.entity);
+        if ( visit == null ) {
+            visit = new Visit(step.entity, step.depth);
+            visit.addSpec(step.spec);
+            map.put(step.entity, visit);
+            visits.add(visit);
+            step.visit = visit;
+            return true;
+        }
+        boolean newSpec = visit.addSpec(step.spec);
+        if ( step.depth > visit.depth || newSpec ) {
+            // A new spec doesn't make a shallower path any better, so the
+            // entity is processed to the deepest depth it has been reached
+            // with, or we'd drop collections a deeper path kept.
+            visit.depth = Math.max(visit.depth, step.depth);
+            step.depth = visit.depth;
+            step.visit = visit;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Gets the lock that must be held while processing an entity.
+     * @param entity the entity.
+     * @return the lock, or <code>null</code> if this traversal isn't sharing
+     *         its visits with other threads, and no lock is needed.
+     */
+    Object getLock(PrunableEntity entity) {
+        return table == null ? null : table.getLock(entity);
+    }
+
+    /**
+     * Clear a child's reference back to the entity being processed.  If
+     * this traversal is on its own, this happens right away.  Otherwise it
+     * happens when the next step is requested, under the child's lock.
+     * @param child the child.
+     * @param parentAccessor the accessor for the child's parent attribute.
+     * @throws IllegalStateException if the reference can't be cleared.
+     */
+    void detach(PrunableEntity child, PropertyAccessor parentAccessor) {
+        if ( table == null ) {
+            clear(child, parentAccessor);
+        } else {
+            detached.add(child);
+            detached.add(parentAccessor);
+        }
+    }
+
+    /**
+     * Helper method to clear the references that were detached while the
+     * last step was processed.
+     */
+    private void applyDetached() {
+        for ( int i = 0; i < detached.size(); i += 2 ) {
+            Object child = detached.get(i);
+            synchronized ( table.getLock((PrunableEntity)child) ) {
+                clear(child, (PropertyAccessor)detached.get(i + 1));
+            }
+        }
+        detached.clear();
+    }
+
+    /**
+     * Helper method to clear a child's parent reference.
+     * @param child the child.
+     * @param parentAccessor the accessor for the child's parent attribute.
+     * @throws IllegalStateException if the reference can't be cleared.
+     */
+    private void clear(Object child, PropertyAccessor parentAccessor) {
+        try {
+            parentAccessor.setFieldValue(child, null);
+        } catch (IllegalAccessException e) {
+            String msg = "Error pruning an instance of " + child.getClass() +
+                         ": " + e.getMessage();
+            throw new IllegalStateException(msg, e);
+        } catch (InvocationTargetException e) {
+            String msg = "Error pruning an instance of " + child.getClass() +
+                         ": " + e.getMessage();
+            throw new IllegalStateException(msg, e);
+        }
+    }
+
+    /**
+     * @return what we know about each entity we've visited, in the order
+     *         they were first visited.
+     */
+    List<Visit> getVisits() {
+        return visits;
+    }
+
+    /**
+     * The visits for traversals that run on different threads at the same
+     * time.  The entities are spread over a fixed number of stripes, each
+     * with its own lock and its own identity map, so threads working on
+     * different entities rarely wait for each other.
+     */
+    static final class VisitTable {
+        private static final int STRIPES = 64;
+        private final Object[] locks = new Object[STRIPES];
+        private final List<Map<PrunableEntity, Visit>> maps =
+            new ArrayList<Map<PrunableEntity, Visit>>(STRIPES);
+
+        /**
+         * Create an empty table.
+         */
+        VisitTable() {
+            for ( int i = 0; i < STRIPES; i++ ) {
+                locks[i] = new Object();
+                maps.add(new IdentityHashMap<PrunableEntity, Visit>());
+            }
+        }
+
+        /**
+         * @param entity an entity.
+         * @return the lock that guards the entity and its visit.
+         */
+        Object getLock(PrunableEntity entity) {
+            return locks[stripe(entity)];
+        }
+
+        /**
+         * Gets the visits in the entity's stripe.  The caller must hold the
+         * entity's lock.
+         * @param entity an entity.
+         * @return the map that has, or will have, the entity's visit.
+         */
+        private Map<PrunableEntity, Visit> getVisits(PrunableEntity entity) {
+            return maps.get(stripe(entity));
+        }
+
+        /**
+         * @param entity an entity.
+         * @return the stripe the entity belongs to.
+         */
+        private int stripe(PrunableEntity entity) {
+            int hash = System.identityHashCode(entity);
+            return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+        }
+    }
+
+    /**
+     * A single step in the traversal.
+     */
+    static final class Step {
+        private final PrunableEntity entity;
+        private int depth;
+        private final PruneSpec spec;
+        private Visit visit;
+
+        /**
+         * Create a step.
+         * @param entity the entity to process.
+         * @param depth the depth to process it to.
+         * @param spec the spec to process it with.
+         */
+        private Step(PrunableEntity entity, int depth, PruneSpec spec) {
+            this.entity = entity;
+            this.depth = depth;
+            this.spec = spec == null ? PruneSpec.ALL : spec;
+        }
+
+        /**
+         * @return the entity to process.
+         */
+        PrunableEntity getEntity() {
+            return entity;
+        }
+
+        /**
+         * @return the depth to process the entity to.  1 for just the
+         *         entity, 2 for its children, etc.
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return the spec to process the entity with.
+         */
+        PruneSpec getSpec() {
+            return spec;
+        }
+
+        /**
+         * @return what we know about the entity so far.  This is only set
+         *         once the step has been returned by {@link Traversal#next()}.
+         */
+        Visit getVisit() {
+            return visit;
+        }
+    }
+
+    /**
+     * What a traversal knows about a single entity.  The pruner uses this
+     * to remember things it can't finish until it knows the entity's final
+     * depth.
+     */
+    static final class Visit {
+        private final PrunableEntity entity;
+        private final byte initialFlags;
+        private int depth;
+        private boolean partial = false;
+        private List<PruningPlan.Attribute> deferred = null;
+        private PruneSpec spec = null;
+        private List<PruneSpec> moreSpecs = null;
+
+        /**
+         * Create a visit.
+         * @param entity the entity that was visited.
+         * @param depth the depth it was first visited with.
+         */
+        private Visit(PrunableEntity entity, int depth) {
+            this.entity = entity;
+            this.depth = depth;
+            this.initialFlags = PruningFlags.get(entity);
+        }
+
+        /**
+         * @return the entity that was visited.
+         */
+        PrunableEntity getEntity() {
+            return entity;
+        }
+
+        /**
+         * @return the entity's pruning state when we first visited it, as
+         *         {@link PruningFlags}.
+         */
+        byte getInitialFlags() {
+            return initialFlags;
+        }
+
+        /**
+         * @return the best depth the entity has been visited with.
+         */
+        int getDepth() {
+            return depth;
+        }
+
+        /**
+         * @return <code>true</code> if some attribute of the entity has been
+         *         left out.
+         */
+        boolean isPartial() {
+            return partial;
+        }
+
+        /**
+         * Record that some attribute of the entity has been left out.
+         */
+        void setPartial() {
+            partial = true;
+        }
+
+        /**
+         * Remember an attribute that can't be processed until we know the
+         * entity's final depth.
+         * @param attribute the attribute.
+         */
+        void defer(PruningPlan.Attribute attribute) {
+            if ( deferred == null ) {
+                deferred = new ArrayList<PruningPlan.Attribute>(2);
+            }
+            if ( !deferred.contains(attribute) ) {
+                deferred.add(attribute);
+            }
+        }
+
+        /**
+         * Record a spec the entity is being processed with.  Almost every
+         * entity only ever sees one spec, so we only make a list for the
+         * rest when we have to.  Specs are compared by identity, since they
+         * all come from the same tree.
+         * @param newSpec the spec.
+         * @return <code>true</code> if the entity hadn't been processed with
+         *         the spec yet.
+         */
+        private boolean addSpec(PruneSpec newSpec) {
+            if ( spec == null ) {
+                spec = newSpec;
+                return true;
+            }
+            if ( spec == newSpec ) {
+                return false;
+            }
+            if ( moreSpecs == null ) {
+                moreSpecs = new ArrayList<PruneSpec>(2);
+            } else {
+                for ( PruneSpec s : moreSpecs ) {
+                    if ( s == newSpec ) {
+                        return false;
+                    }
+                }
+            }
+            moreSpecs.add(newSpec);
+            return true;
+        }
+
+        /**
+         * @return the attributes that were deferred, which may be empty.
+         */
+        List<PruningPlan.Attribute> getDeferred() {
+            if ( deferred == null ) {
+                return Collections.emptyList();
+            }
+            return deferred;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package net.saliman.entitypruner;
+
+import java.util.Map;
+
+/**
+ * Entities implement this interface, instead of just {@link PrunableEntity},
+ * to have collections pruned to a {@link CollectionWindow}.  When a
+ * collection is pruned to a window, the {@link EntityPruner} puts a
+ * {@link PrunedWindow}, with the page, the number per page, the order and
+ * the size of the whole collection, in the entity's window map under the
+ * name of the collection.  The pruner won't prune a collection to a window
+ * unless it can record it, because un-pruning needs the map to know that
+ * the collection is incomplete.
+ * <p>
+ * Like the fieldIdMap, the window map <b>must</b> be sent to the client
+ * with the entity, and the client <b>must</b> send it back unchanged.
+ * Implementations should mark it as transient so it doesn't end up in the
+ * database.
+ *
+ * @author Steven C. Saliman
+ * @see PrunedWindow
+ */
+public interface WindowedPrunableEntity extends PrunableEntity {
+    /**
+     * @return the map of collection names to the windows they were pruned
+     *         to, or <code>null</code> if the entity doesn't have one yet.
+     */
+    public Map<String, PrunedWindow> getWindowMap();
+
+    /**
+     * @param windowMap the map of collection names to windows to use.
+     */
+    public void setWindowMap(Map<String, PrunedWindow> windowMap);
+}
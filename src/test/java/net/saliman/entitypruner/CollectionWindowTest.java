@@ -0,0 +1,285 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.collection.PersistentCollection;
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests that a {@link CollectionWindow} takes the right children out of a
+ * collection that is already in memory, and that the pruner records it.
+ * This doesn't need a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class CollectionWindowTest {
+    /**
+     * Children should be ordered by each attribute in turn, with nulls
+     * first in either direction, before the page is taken.
+     */
+    @Test
+    public void apply() {
+        List<TestSetChildEntity> children = new ArrayList<TestSetChildEntity>();
+        children.add(child("b", "2"));
+        children.add(child("a", "1"));
+        children.add(child("b", "1"));
+        children.add(child(null, "3"));
+        CollectionWindow window = new CollectionWindow(2, 2,
+                Arrays.asList("code:desc", "description"));
+        List<Object> page = window.apply(children);
+        assertEquals("Wrong number of children", 2, page.size());
+        assertEquals("Wrong first child", "2", ((TestSetChildEntity)page.get(0)).getDescription());
+        assertEquals("Wrong second child", "a", ((TestSetChildEntity)page.get(1)).getCode());
+        window = new CollectionWindow(1, 1, Arrays.asList("code:desc"));
+        assertEquals("Null should come first when descending", null,
+                     ((TestSetChildEntity)window.apply(children).get(0)).getCode());
+
+        window = new CollectionWindow(1, 0, Arrays.asList("code", "description"));
+        page = window.apply(children);
+        assertEquals("Wrong number of children", 4, page.size());
+        assertEquals("Wrong first child", "3", ((TestSetChildEntity)page.get(0)).getDescription());
+        assertEquals("Wrong last child", "2", ((TestSetChildEntity)page.get(3)).getDescription());
+    }
+
+    /**
+     * Pages past the end should be empty, and windows without an order keep
+     * the order of the collection.
+     */
+    @Test
+    public void pages() {
+        List<String> elements = Arrays.asList("c", "a", "b");
+        CollectionWindow window = new CollectionWindow(2, 2, null);
+        assertEquals("Wrong page", Arrays.<Object>asList("b"), window.apply(elements));
+        window = new CollectionWindow(3, 2, null);
+        assertEquals("Page should be empty", Collections.emptyList(), window.apply(elements));
+        assertEquals("Wrong description", "page=3,per_page=2,total=3",
+                     new PrunedWindow(window, elements.size()).toString());
+        window = new CollectionWindow(100000000, 50, null);
+        assertEquals("First result should stop at the largest int", Integer.MAX_VALUE,
+                     window.getFirstResult());
+        assertEquals("Far page should be empty", Collections.emptyList(), window.apply(elements));
+        window = new CollectionWindow(1, Integer.MAX_VALUE, null);
+        assertEquals("Big page should have everything", elements.size(),
+                     window.apply(elements).size());
+        assertEquals("Shouldn't have a filter", "", window.getFilter(TestSetChildEntity.class));
+    }
+
+    /**
+     * Ordering by an attribute the children don't have should fail.
+     */
+    @Test
+    public void badOrder() {
+        List<TestSetChildEntity> children = new ArrayList<TestSetChildEntity>();
+        children.add(child("a", "1"));
+        children.add(child("b", "2"));
+        CollectionWindow window = new CollectionWindow(1, 0, Arrays.asList("size"));
+        try {
+            window.apply(children);
+            fail("Should have rejected the order");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        try {
+            window.getFilter(TestSetChildEntity.class);
+            fail("Should have rejected the order in the filter");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        window = new CollectionWindow(1, 0, Arrays.asList("parent"));
+        try {
+            window.getFilter(TestSetChildEntity.class);
+            fail("Shouldn't order by an association");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Order entries that aren't plain attribute names should be rejected
+     * before they get anywhere near a query.
+     */
+    @Test
+    public void badOrderText() {
+        String[] bad = { "code) x", "code desc", "code:sideways", "1code", "" };
+        for ( String order : bad ) {
+            try {
+                new CollectionWindow(1, 0, Arrays.asList(order));
+                fail("Should have rejected " + order);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertTrue("Should allow a direction", CollectionWindow.isValidOrder("code:DESC"));
+    }
+
+    /**
+     * Pruning a collection to a window should record the window in the
+     * window map, not the fieldIdMap, and un-pruning should treat the
+     * collection as one that was never loaded.
+     */
+    @Test
+    public void pruneToWindow() {
+        TestSetParentEntity parent = new TestSetParentEntity();
+        parent.setId(new BigInteger("-1"));
+        parent.setCode("parent");
+        Set<TestSetChildEntity> children = new HashSet<TestSetChildEntity>();
+        for ( String code : Arrays.asList("c", "a", "b") ) {
+            TestSetChildEntity child = child(code, code);
+            child.setParent(parent);
+            children.add(child);
+        }
+        parent.setChildren(children);
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children[page=1,per_page=2,order=code]");
+        options.put(Options.DEPTH, "2");
+        EntityPrunerHibernateJpa pruner = new EntityPrunerHibernateJpa();
+        pruner.prune(parent, options);
+
+        assertEquals("Parent should be partial", PruningState.PRUNED_PARTIAL,
+                     parent.getPruningState());
+        assertEquals("Wrong number of children", 2, parent.getChildren().size());
+        assertEquals("Wrong first child", "a",
+                     parent.getChildren().iterator().next().getCode());
+        assertTrue("Window shouldn't be in the fieldIdMap",
+                   parent.getFieldIdMap() == null
+                   || !parent.getFieldIdMap().containsKey("children"));
+        PrunedWindow window = parent.getWindowMap().get("children");
+        assertNotNull("Window should have been recorded", window);
+        assertEquals("Wrong page", 1, window.getPage());
+        assertEquals("Wrong number per page", 2, window.getPerPage());
+        assertEquals("Wrong order", Arrays.asList("code"), window.getOrder());
+        assertEquals("Wrong total", 3, window.getTotal());
+
+        List<TestSetChildEntity> sent = new ArrayList<TestSetChildEntity>(parent.getChildren());
+        pruner.entityManager = entityManager();
+        pruner.unprune(parent);
+        assertTrue("Windowed collection should be replaced",
+                   parent.getChildren() instanceof PersistentCollection);
+        assertFalse("Windowed collection shouldn't look loaded",
+                    ((PersistentCollection)parent.getChildren()).wasInitialized());
+        for ( TestSetChildEntity child : sent ) {
+            assertSame("Child should have its parent back", parent, child.getParent());
+        }
+    }
+
+    /**
+     * A window on an entity that can't record it should be rejected.
+     */
+    @Test
+    public void pruneToWindowUnrecorded() {
+        PlainParentEntity parent = new PlainParentEntity();
+        parent.setCode("parent");
+        Set<TestSetChildEntity> children = new HashSet<TestSetChildEntity>();
+        children.add(child("a", "1"));
+        parent.setChildren(children);
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children[per_page=1]");
+        options.put(Options.DEPTH, "2");
+        try {
+            new EntityPrunerHibernateJpa().prune(parent, options);
+            fail("Should have rejected the window");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Helper method to make an entity manager that only has a delegate,
+     * which is all un-pruning needs when there's nothing to load.
+     * @return the entity manager.
+     */
+    private EntityManager entityManager() {
+        return (EntityManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EntityManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ( method.getName().equals("getDelegate") ) {
+                    return new Object();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * Helper method to make a child.
+     * @param code the child's code.
+     * @param description the child's description.
+     * @return the child.
+     */
+    private TestSetChildEntity child(String code, String description) {
+        TestSetChildEntity child = new TestSetChildEntity();
+        child.setCode(code);
+        child.setDescription(description);
+        return child;
+    }
+
+    /**
+     * A parent that has a collection, but no window map.
+     */
+    private static class PlainParentEntity implements PrunableEntity {
+        private String pruningState = PruningState.UNPRUNED_COMPLETE;
+        private Map<String, String> fieldIdMap;
+        private String code;
+        private Set<TestSetChildEntity> children;
+
+        public String getCode() {
+            return code;
+        }
+
+        public void setCode(String code) {
+            this.code = code;
+        }
+
+        public Set<TestSetChildEntity> getChildren() {
+            return children;
+        }
+
+        public void setChildren(Set<TestSetChildEntity> children) {
+            this.children = children;
+        }
+
+        public String getPruningState() {
+            return pruningState;
+        }
+
+        public void setPruningState(String pruningState) {
+            this.pruningState = pruningState;
+        }
+
+        public Map<String, String> getFieldIdMap() {
+            return fieldIdMap;
+        }
+
+        public void setFieldIdMap(Map<String, String> fieldIdMap) {
+            this.fieldIdMap = fieldIdMap;
+        }
+
+        public boolean isPersistent() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests pruning batches of entities with
+ * {@link EntityPrunerHibernateJpa#prune(java.util.Collection, PruneSpec, ForkJoinPool)}.
+ * Pruning doesn't need a database, so these tests build their graphs in
+ * memory.  The roots are children, and many of them share each parent, so
+ * the parents are reached from roots that end up on different threads.
+ *
+ * @author Steven C. Saliman
+ */
+public class EntityPrunerBatchTest {
+    private static final int PARENTS = 20;
+    private static final int CHILDREN = 100;
+    private EntityPrunerHibernateJpa pruner;
+    private ForkJoinPool pool;
+    private List<TestSetParentEntity> parents;
+    private List<TestSetChildEntity> children;
+
+    /**
+     * Build the graph and a pruner that prunes anything but tiny batches in
+     * parallel.
+     */
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+        pruner = new EntityPrunerHibernateJpa();
+        EntityPrunerHibernateJpa.setParallelThreshold(10);
+        parents = new ArrayList<TestSetParentEntity>();
+        children = new ArrayList<TestSetChildEntity>();
+        for ( int i = 0; i < PARENTS; i++ ) {
+            TestSetParentEntity parent = new TestSetParentEntity();
+            parent.setCode("parent" + i);
+            parent.setChildren(new HashSet<TestSetChildEntity>());
+            parents.add(parent);
+        }
+        for ( int i = 0; i < PARENTS * CHILDREN; i++ ) {
+            TestSetParentEntity parent = parents.get(i % PARENTS);
+            TestSetChildEntity child = new TestSetChildEntity();
+            child.setCode("child" + i);
+            child.setParent(parent);
+            parent.getChildren().add(child);
+            children.add(child);
+        }
+    }
+
+    /**
+     * Shut down the pool, and put the threshold back.
+     */
+    @After
+    public void tearDown() {
+        pool.shutdown();
+        EntityPrunerHibernateJpa.setParallelThreshold(
+                EntityPrunerHibernateJpa.DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Every entity should be pruned exactly the way a single traversal would
+     * have pruned it, even though the parents are shared between threads.
+     */
+    @Test
+    public void pruneParallel() {
+        pruner.prune(children, PruneSpec.ALL, pool);
+        verify();
+        assertFalse("Pool should still be running", pool.isShutdown());
+    }
+
+    /**
+     * Batches below the threshold should get the same results on the
+     * caller's thread.
+     */
+    @Test
+    public void pruneBelowThreshold() {
+        EntityPrunerHibernateJpa.setParallelThreshold(Integer.MAX_VALUE);
+        pruner.prune(children, PruneSpec.ALL, pool);
+        verify();
+    }
+
+    /**
+     * Without a pool, big batches should be pruned on the caller's thread.
+     */
+    @Test
+    public void pruneWithoutPool() {
+        pruner.prune(children, PruneSpec.ALL, null);
+        verify();
+    }
+
+    /**
+     * The two argument version should prune big batches on the caller's
+     * thread.
+     */
+    @Test
+    public void pruneDefault() {
+        pruner.prune(children, PruneSpec.ALL);
+        verify();
+    }
+
+    /**
+     * Nulls in the batch should be ignored, and so should empty batches.
+     */
+    @Test
+    public void pruneNulls() {
+        List<TestSetChildEntity> batch = new ArrayList<TestSetChildEntity>();
+        pruner.prune(batch, null, pool);
+        batch.add(null);
+        batch.addAll(children);
+        batch.add(null);
+        pruner.prune(batch, null, pool);
+        verify();
+    }
+
+    /**
+     * Helper method to make sure the graph was pruned.
+     */
+    private void verify() {
+        for ( TestSetChildEntity child : children ) {
+            assertNull("Child's parent should have been cleared",
+                       child.getParent());
+            assertEquals("Wrong child state", PruningState.PRUNED_COMPLETE,
+                         child.getPruningState());
+        }
+        for ( TestSetParentEntity parent : parents ) {
+            assertEquals("Wrong parent state", PruningState.PRUNED_COMPLETE,
+                         parent.getPruningState());
+            assertTrue("Children should have been replaced",
+                       parent.getChildren() instanceof HashSet);
+            assertEquals("Wrong number of children", CHILDREN,
+                         parent.getChildren().size());
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package net.saliman.entitypruner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.math.BigInteger;
@@ -11,6 +13,9 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import javax.persistence.EntityManager;
+
+import net.saliman.entitypruner.testhelper.BaseEntity;
 import net.saliman.entitypruner.testhelper.DatabaseType;
 import net.saliman.entitypruner.testhelper.junit.AbstractSpringContainerTest;
 import net.saliman.entitypruner.testhelper.junit.Transactable;
@@ -20,6 +25,7 @@ import net.saliman.entitypruner.testhelper.set.TestSetParentDao;
 import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
 import net.saliman.entitypruner.testhelper.set.TestSetUniChildDao;
 import net.saliman.entitypruner.testhelper.set.TestSetUniChildEntity;
+import org.hibernate.Session;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -660,5 +666,160 @@ public class EntityPrunerHibernateJpaOracleSpringSetTest extends AbstractSpringC
 	        	deleteData();
 	        };
 	    });
-	}	
+	}
+
+	/**
+	 * Populate and prune a parent in one call, and make sure it comes out the
+	 * same as a parent that was populated with EntityUtil and then pruned
+	 * with the same options.  Nothing in the fused graph should still be
+	 * attached to the session when populateAndPrune returns.
+	 * @throws Exception if anything goes badly.
+	 */
+	@Test
+	public void populateAndPruneMatchesPopulateThenPrune() throws Exception {
+	    options = new HashMap<String, String>();
+	    options.put(Options.INCLUDE, "children");
+	    options.put(Options.DEPTH, "2");
+	    final TestSetParentEntity[] expected = new TestSetParentEntity[1];
+	    final boolean[] attached = new boolean[1];
+	    runInTransaction(new Transactable() {
+            @Override
+	        public void run() throws Exception {
+	                deleteData(); // in case some other test did a commit.
+	                createData();
+	                parent = parentDao.findById(TEST_ID);
+	                pruner.populateAndPrune(parent, options);
+	                attached[0] = parentDao.contains(parent);
+	                for ( TestSetChildEntity c : parent.getChildren() ) {
+	                    attached[0] = attached[0] || childDao.contains(c);
+	                }
+	        };
+	    });
+	    assertTrue("populateAndPrune left the graph attached to the session",
+	            !attached[0]);
+	    runInTransaction(new Transactable() {
+            @Override
+	        public void run() throws Exception {
+	                expected[0] = parentDao.findById(TEST_ID);
+	                EntityUtil.populateEntity(expected[0], options);
+	        };
+	    });
+	    pruner.prune(expected[0], options);
+
+	    assertEquals("Parent is in the wrong pruning state",
+	            expected[0].getPruningState(), parent.getPruningState());
+	    assertEquals("Parent recorded different ids",
+	            expected[0].getFieldIdMap(), parent.getFieldIdMap());
+	    assertNull("The uniChildren weren't included, so they should be pruned",
+	            parent.getUniChildren());
+	    assertNotNull("The children were included, so they should be loaded",
+	            parent.getChildren());
+	    assertEquals("Parent has the wrong number of children",
+	            expected[0].getChildren().size(), parent.getChildren().size());
+	    Map<String, TestSetChildEntity> expectedChildren = new HashMap<String, TestSetChildEntity>();
+	    for ( TestSetChildEntity c : expected[0].getChildren() ) {
+	        expectedChildren.put(c.getCode(), c);
+	    }
+	    for ( TestSetChildEntity c : parent.getChildren() ) {
+	        TestSetChildEntity e = expectedChildren.get(c.getCode());
+	        assertNotNull("Unexpected child " + c.getCode(), e);
+	        assertEquals("Child " + c.getCode() + " is in the wrong pruning state",
+	                e.getPruningState(), c.getPruningState());
+	        assertEquals("Child " + c.getCode() + " recorded different ids",
+	                e.getFieldIdMap(), c.getFieldIdMap());
+	        assertEquals("Child " + c.getCode() + " has a different parent reference",
+	                e.getParent() == null, c.getParent() == null);
+	    }
+	    runInTransaction(new Transactable() {
+            @Override
+	        public void run() throws Exception {
+	        	deleteData();
+	        };
+	    });
+	}
+
+    /**
+     * The association graph should describe the entities the way Hibernate
+     * mapped them: the inverse side of the bidirectional children, the
+     * element types of the collections, and which attributes are
+     * persistent.  Plans for classes Hibernate doesn't map should come from
+     * their annotations.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void associationGraph() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                EntityManager entityManager = parentDao.getEntityManager();
+                Session session = (Session)entityManager.getDelegate();
+                AssociationGraph graph = AssociationGraph.build(session.getSessionFactory());
+                AssociationGraph.Node node = graph.getNode(TestSetParentEntity.class);
+                assertNotNull("Parent should be in the graph", node);
+                assertEquals("Wrong id name", "id", node.getIdName());
+                assertEquals("Wrong id class", BigInteger.class, node.getIdClass());
+                assertTrue("Children should be persistent", node.isPersistent("children"));
+                assertFalse("Transient children should not be persistent",
+                        node.isPersistent("transChildren"));
+                assertNull("Transient children should not be an edge",
+                        node.getEdge("transChildren"));
+
+                AssociationGraph.Edge children = node.getEdge("children");
+                assertEquals("Wrong role", TestSetParentEntity.class.getName() + ".children",
+                        children.getRole());
+                assertEquals("Wrong element type", TestSetChildEntity.class,
+                        children.getTargetClass());
+                assertEquals("Wrong inverse", "parent", children.getInverseName());
+                AssociationGraph.Edge uniChildren = node.getEdge("uniChildren");
+                assertEquals("Wrong element type", TestSetUniChildEntity.class,
+                        uniChildren.getTargetClass());
+                assertNull("Unidirectional children shouldn't have an inverse",
+                        uniChildren.getInverseName());
+
+                AssociationGraph.Edge parentEdge =
+                    graph.getNode(TestSetChildEntity.class).getEdge("parent");
+                assertNull("A many-to-one has no role", parentEdge.getRole());
+                assertEquals("Wrong parent type", TestSetParentEntity.class,
+                        parentEdge.getTargetClass());
+                assertNull("A many-to-one has no inverse", parentEdge.getInverseName());
+
+                // A proxy's class isn't mapped, but its superclass is.
+                Object proxy = entityManager.getReference(TestSetParentEntity.class, TEST_ID);
+                assertSame("Proxy should use the parent's node", node,
+                        graph.getNode(proxy.getClass()));
+
+                // Plans built from the graph get their associations from it.
+                PruningPlan plan = graph.getPlan(TestSetParentEntity.class);
+                PruningPlan.Attribute attribute = findAttribute(plan, "children");
+                assertEquals("Wrong mappedBy", "parent", attribute.getMappedBy());
+                assertEquals("Wrong child class", TestSetChildEntity.class,
+                        attribute.getChildClass());
+                assertTrue("Transient children should be transient",
+                        findAttribute(plan, "transChildren").isTransient());
+
+                // Classes Hibernate doesn't map fall back to annotations.
+                assertNull("BaseEntity isn't mapped", graph.getNode(BaseEntity.class));
+                assertSame("Should have used the annotation plan",
+                        PruningPlan.forClass(BaseEntity.class),
+                        graph.getPlan(BaseEntity.class));
+                assertEquals("Wrong id from the annotations", "id",
+                        graph.getPlan(BaseEntity.class).getIdAttribute().getName());
+            }
+        });
+    }
+
+    /**
+     * Find an attribute in a plan.
+     * @param plan the plan to search.
+     * @param name the name of the attribute.
+     * @return the attribute, or <code>null</code> if the plan doesn't have it.
+     */
+    private static PruningPlan.Attribute findAttribute(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                return attribute;
+            }
+        }
+        return null;
+    }
 }
@@ -0,0 +1,262 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import javax.persistence.EntityManager;
+
+import org.hibernate.bytecode.javassist.FieldHandled;
+import org.hibernate.bytecode.javassist.FieldHandler;
+import org.hibernate.intercept.FieldInterceptionHelper;
+import org.hibernate.intercept.FieldInterceptor;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests pruning entities with lazy properties Hibernate hasn't loaded, with
+ * and without no-load mode (see {@link Options#NO_LOAD}).  We don't need a
+ * database for this, since we can give an entity a Hibernate interceptor
+ * ourselves, which is what Hibernate does to entities that were enhanced for
+ * lazy properties.
+ *
+ * @author Steven C. Saliman
+ */
+public class EntityPrunerNoLoadTest {
+    private static final PruneSpec NO_LOAD =
+        PruneSpec.fromOptions(Collections.singletonMap(Options.NO_LOAD, "true"));
+    private EntityPrunerHibernateJpa pruner;
+    private LazyParentEntity parent;
+
+    /**
+     * Make a parent whose clob hasn't been loaded, and a child that refers
+     * to it.
+     */
+    @Before
+    public void setUp() {
+        pruner = new EntityPrunerHibernateJpa();
+        parent = new LazyParentEntity();
+        parent.setCode("parent");
+        parent.setClobValue("not really loaded");
+        FieldInterceptionHelper.injectFieldInterceptor(parent,
+                LazyParentEntity.class.getName(),
+                Collections.singleton("clobValue"), null);
+    }
+
+    /**
+     * The unloaded clob should be pruned without calling any getters, and
+     * recorded so we can restore it.  Since the parent is missing the clob,
+     * it is partial.
+     */
+    @Test
+    public void pruneUnloaded() {
+        TestSetChildEntity child = new TestSetChildEntity();
+        child.setCode("child");
+        child.setParent(parent);
+        pruner.prune(child, NO_LOAD);
+        assertEquals("Wrong child state", PruningState.PRUNED_COMPLETE,
+                     child.getPruningState());
+        assertEquals("Wrong parent state", PruningState.PRUNED_PARTIAL,
+                     parent.getPruningState());
+        assertNull("Clob should have been pruned", parent.clobValue());
+        assertEquals("Clob should have been recorded", PrunableEntity.NOT_LOADED,
+                     parent.getFieldIdMap().get("clobValue"));
+        assertEquals("Code should have been kept", "parent", parent.code());
+        assertEquals("Getters shouldn't have been called", 0, parent.calls);
+    }
+
+    /**
+     * Without no-load mode, the getters are used for properties that were
+     * loaded, but the unloaded clob is still left out.
+     */
+    @Test
+    public void pruneWithGetters() {
+        pruner.prune(parent, PruneSpec.ALL);
+        assertEquals("Wrong parent state", PruningState.PRUNED_PARTIAL,
+                     parent.getPruningState());
+        assertNull("Clob should have been pruned", parent.clobValue());
+        assertEquals("Clob should have been recorded", PrunableEntity.NOT_LOADED,
+                     parent.getFieldIdMap().get("clobValue"));
+        assertEquals("Only the code getter should have been called", 1,
+                     parent.calls);
+    }
+
+    /**
+     * Un-pruning should give the entity an interceptor that still thinks
+     * the clob hasn't been loaded, so Hibernate won't save the null, unless
+     * the client gave us a new value.
+     */
+    @Test
+    public void unpruneUnloaded() {
+        pruner.prune(parent, NO_LOAD);
+        pruner.entityManager = entityManager();
+        pruner.unprune(parent);
+        assertEquals("Wrong parent state", PruningState.UNPRUNED_PARTIAL,
+                     parent.getPruningState());
+        FieldInterceptor interceptor =
+            FieldInterceptionHelper.extractFieldInterceptor(parent);
+        assertNotNull("Parent should have an interceptor", interceptor);
+        assertFalse("Clob shouldn't be loaded",
+                    interceptor.isInitialized("clobValue"));
+        assertTrue("Code should be loaded", interceptor.isInitialized("code"));
+
+        setUp();
+        pruner.prune(parent, NO_LOAD);
+        parent.setClobValue("changed");
+        parent.setFieldHandler(null);
+        pruner.entityManager = entityManager();
+        pruner.unprune(parent);
+        assertNull("Changed clob shouldn't be intercepted",
+                   FieldInterceptionHelper.extractFieldInterceptor(parent));
+    }
+
+    /**
+     * Lazy associations Hibernate hasn't loaded should be recorded instead
+     * of just being dropped, and un-pruning should tell Hibernate they still
+     * haven't been loaded, so it doesn't mistake them for associations the
+     * client removed.
+     */
+    @Test
+    public void roundTripUnloadedAssociations() {
+        parent.setId(new BigInteger("-1"));
+        FieldInterceptionHelper.injectFieldInterceptor(parent,
+                LazyParentEntity.class.getName(),
+                new HashSet<String>(Arrays.asList("clobValue", "children")), null);
+        LazyChildEntity child = new LazyChildEntity();
+        child.setId(new BigInteger("-2"));
+        child.setCode("child");
+        child.setParent(parent);
+        FieldInterceptionHelper.injectFieldInterceptor(child,
+                LazyChildEntity.class.getName(),
+                Collections.singleton("parent"), null);
+        pruner.prune(child, NO_LOAD);
+        assertNull("Parent should have been pruned", child.getParent());
+        assertEquals("Parent should have been recorded", PrunableEntity.NOT_LOADED,
+                     child.getFieldIdMap().get("parent"));
+        pruner.prune(parent, NO_LOAD);
+        assertNull("Children should have been pruned", parent.getChildren());
+        assertEquals("Children should have been recorded", PrunableEntity.NOT_LOADED,
+                     parent.getFieldIdMap().get("children"));
+
+        pruner.entityManager = entityManager();
+        pruner.unprune(child);
+        pruner.unprune(parent);
+        assertNull("Parent should have been left alone", child.getParent());
+        assertNull("Children should have been left alone", parent.getChildren());
+        assertEquals("Wrong child state", PruningState.UNPRUNED_COMPLETE,
+                     child.getPruningState());
+        assertEquals("Wrong parent state", PruningState.UNPRUNED_PARTIAL,
+                     parent.getPruningState());
+        FieldInterceptor interceptor =
+            FieldInterceptionHelper.extractFieldInterceptor(child);
+        assertNotNull("Child should have an interceptor", interceptor);
+        assertFalse("Parent shouldn't be loaded", interceptor.isInitialized("parent"));
+        interceptor = FieldInterceptionHelper.extractFieldInterceptor(parent);
+        assertNotNull("Parent should have an interceptor", interceptor);
+        assertFalse("Children shouldn't be loaded", interceptor.isInitialized("children"));
+        assertFalse("Clob shouldn't be loaded", interceptor.isInitialized("clobValue"));
+    }
+
+    /**
+     * Helper method to make an entity manager that only has a delegate,
+     * which is all un-pruning needs when there's nothing to load.
+     * @return the entity manager.
+     */
+    private EntityManager entityManager() {
+        return (EntityManager)Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { EntityManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ( method.getName().equals("getDelegate") ) {
+                    return new Object();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    /**
+     * A child that looks like it was enhanced by Hibernate.
+     */
+    public static class LazyChildEntity extends TestSetChildEntity
+                                        implements FieldHandled {
+        private static final long serialVersionUID = 1L;
+        private transient FieldHandler handler;
+
+        @Override
+        public FieldHandler getFieldHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setFieldHandler(FieldHandler handler) {
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * A parent that looks like it was enhanced by Hibernate, and counts the
+     * calls to its getters.
+     */
+    public static class LazyParentEntity extends TestSetParentEntity
+                                         implements FieldHandled {
+        private static final long serialVersionUID = 1L;
+        private transient FieldHandler handler;
+        private int calls;
+
+        @Override
+        public String getCode() {
+            calls++;
+            return super.getCode();
+        }
+
+        @Override
+        public String getClobValue() {
+            calls++;
+            return super.getClobValue();
+        }
+
+        /**
+         * @return the code, without counting the call.
+         */
+        public String code() {
+            int saved = calls;
+            String code = getCode();
+            calls = saved;
+            return code;
+        }
+
+        /**
+         * @return the clob, without counting the call.
+         */
+        public String clobValue() {
+            int saved = calls;
+            String clob = getClobValue();
+            calls = saved;
+            return clob;
+        }
+
+        @Override
+        public FieldHandler getFieldHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setFieldHandler(FieldHandler handler) {
+            this.handler = handler;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.TestClass;
+import net.saliman.entitypruner.testhelper.list.TestListChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests {@link EntityPrunerHibernateJpa#warmUp(EntityManagerFactory, ForkJoinPool)}.
+ * Warm-up only needs the factory's metamodel, so these tests use a factory
+ * that only knows what its entities are, instead of a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class EntityPrunerWarmUpTest {
+    private EntityPrunerHibernateJpa pruner;
+    private ForkJoinPool pool;
+    private EntityManagerFactory factory;
+
+    /**
+     * Build a pruner, and a factory that manages three entities and one
+     * class that isn't a {@link PrunableEntity}.
+     */
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(2);
+        pruner = new EntityPrunerHibernateJpa();
+        factory = factory(TestSetParentEntity.class, TestSetChildEntity.class,
+                          TestListChildEntity.class, TestClass.class);
+    }
+
+    /**
+     * Shut down the pool.
+     */
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    /**
+     * Every prunable entity should have a plan when we're done.
+     */
+    @Test
+    public void warmUp() {
+        assertEquals("Wrong number of classes prepared", 3,
+                     pruner.warmUp(factory));
+        verify();
+    }
+
+    /**
+     * Warming up in parallel should prepare the same classes.
+     */
+    @Test
+    public void warmUpParallel() {
+        assertEquals("Wrong number of classes prepared", 3,
+                     pruner.warmUp(factory, pool));
+        verify();
+    }
+
+    /**
+     * Helper method to make sure the entities have plans, and that pruning
+     * uses them instead of building new ones.
+     */
+    private void verify() {
+        PruningPlan plan = ClassMetadata.forClass(TestSetChildEntity.class).pruningPlan;
+        assertNotNull("Should have built the plan", plan);
+        assertNotNull("Should have built the parent's plan",
+                      ClassMetadata.forClass(TestSetParentEntity.class).pruningPlan);
+        assertNotNull("Should have built the list child's plan",
+                      ClassMetadata.forClass(TestListChildEntity.class).pruningPlan);
+        assertSame("Should have cached the plan", plan,
+                   PruningPlan.forClass(TestSetChildEntity.class));
+    }
+
+    /**
+     * Helper method to build a factory whose metamodel has the given
+     * entities.  Nothing else in the factory works.
+     * @param classes the classes of the entities.
+     * @return the factory.
+     */
+    private EntityManagerFactory factory(Class<?>... classes) {
+        final Set<EntityType<?>> entities = new HashSet<EntityType<?>>();
+        for ( Class<?> clazz : classes ) {
+            entities.add(stub(EntityType.class, "getJavaType", clazz));
+        }
+        Metamodel metamodel = stub(Metamodel.class, "getEntities", entities);
+        return stub(EntityManagerFactory.class, "getMetamodel", metamodel);
+    }
+
+    /**
+     * Helper method to build an object that returns a value from one method
+     * and fails on all the others.
+     * @param type the interface to implement.
+     * @param name the name of the method that works.
+     * @param value the value the method returns.
+     * @return the object.
+     */
+    private <T> T stub(Class<T> type, final String name, final Object value) {
+        Object stub = Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { type }, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ( method.getName().equals(name) ) {
+                            return value;
+                        } else if ( method.getName().equals("hashCode") ) {
+                            return System.identityHashCode(proxy);
+                        } else if ( method.getName().equals("equals") ) {
+                            return proxy == args[0];
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+        return type.cast(stub);
+    }
+}
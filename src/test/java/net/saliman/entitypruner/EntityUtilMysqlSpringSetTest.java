@@ -1,6 +1,9 @@
 package net.saliman.entitypruner;
 
 import net.saliman.entitypruner.testhelper.DatabaseType;
+import net.saliman.entitypruner.testhelper.TestKey;
+import net.saliman.entitypruner.testhelper.TestKeyedEntity;
+import net.saliman.entitypruner.testhelper.TestTaggedEntity;
 import net.saliman.entitypruner.testhelper.junit.AbstractSpringContainerTest;
 import net.saliman.entitypruner.testhelper.junit.Transactable;
 import net.saliman.entitypruner.testhelper.set.TestSetChildDao;
@@ -10,13 +13,18 @@ import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
 import net.saliman.entitypruner.testhelper.set.TestSetUniChildDao;
 import net.saliman.entitypruner.testhelper.set.TestSetUniChildEntity;
 import org.hibernate.collection.PersistentSet;
+import org.hibernate.proxy.HibernateProxy;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import javax.persistence.EntityManager;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -72,6 +80,13 @@ public class EntityUtilMysqlSpringSetTest extends AbstractSpringContainerTest {
         "insert into test_child(id, test_parent_id, code, description, " +
         "                       create_user, update_user) " +
         "values(?, ?, ?, ?, ?, ?)";
+    private static final String KEY_CODE = "JKEY";
+    private static final String KEYED_SQL =
+        "insert into test_keyed(code, seq, description) values(?, ?, ?)";
+    private static final String TAGGED_SQL =
+        "insert into test_tagged(id, code, color) values(?, ?, ?)";
+    private static final String TAG_SQL =
+        "insert into test_tagged_tag(test_tagged_id, tag) values(?, ?)";
     private static final String UNI_CHILD_SQL =
         "insert into test_uni_child(id, test_parent_id, code, description, " +
         "                       create_user, update_user) " +
@@ -133,6 +148,16 @@ public class EntityUtilMysqlSpringSetTest extends AbstractSpringContainerTest {
     	// Insert a parent with no children at all.
     	executeUpdate(PARENT_SQL, -3, "PARENT3", 0,
     			"Test parent with no Children", USER, USER);
+
+    	// Insert some entities the batch loader can't handle.
+    	executeUpdate(KEYED_SQL, KEY_CODE, 1, "Keyed 1");
+    	executeUpdate(KEYED_SQL, KEY_CODE, 2, "Keyed 2");
+    	executeUpdate(TAGGED_SQL, -1, "JTAGGED1", "RED");
+    	executeUpdate(TAG_SQL, -1, "TAG1");
+    	executeUpdate(TAG_SQL, -1, "TAG2");
+    	executeUpdate(TAGGED_SQL, -2, "JTAGGED2", "BLUE");
+    	executeUpdate(TAG_SQL, -2, "TAG1");
+    	executeUpdate(TAG_SQL, -2, "TAG3");
     }
 
     /**
@@ -146,6 +171,12 @@ public class EntityUtilMysqlSpringSetTest extends AbstractSpringContainerTest {
         executeUpdate(sql);
         sql = "delete from test_parent where create_user = '" + USER + "'";
         executeUpdate(sql);
+        sql = "delete from test_keyed where code = '" + KEY_CODE + "'";
+        executeUpdate(sql);
+        sql = "delete from test_tagged_tag where test_tagged_id < 0";
+        executeUpdate(sql);
+        sql = "delete from test_tagged where id < 0";
+        executeUpdate(sql);
     }
     
     /**
@@ -583,4 +614,254 @@ public class EntityUtilMysqlSpringSetTest extends AbstractSpringContainerTest {
     		}
     	});
     }
+
+    /**
+     * Populate a windowed collection.  Only the window should be loaded, so
+     * the collection should stay uninitialized, and pruning should keep
+     * just the children in the window, in order.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void populateEntityWindow() throws Exception {
+        options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children[page=1,per_page=2,order=code:desc]");
+        options.put(Options.DEPTH, "2");
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                parent = parentDao.findById(TEST_ID);
+                EntityUtil.populateEntity(parent, options);
+                assertFalse("Children should not be loaded for a window",
+                        EntityUtil.initialized(parent.getChildren()));
+                PrunedWindow window = parent.getWindowMap().get("children");
+                assertNotNull("The window should have been loaded", window);
+                assertEquals("Wrong total", 3, window.getTotal());
+            }
+        });
+        new EntityPrunerHibernateJpa().prune(parent, options);
+        assertEquals("Wrong number of children", 2, parent.getChildren().size());
+        Iterator<TestSetChildEntity> i = parent.getChildren().iterator();
+        assertEquals("Wrong first child", "CHILD3", i.next().getCode());
+        assertEquals("Wrong second child", "CHILD2", i.next().getCode());
+        assertEquals("Parent should be partial", PruningState.PRUNED_PARTIAL,
+                parent.getPruningState());
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData();
+            }
+        });
+    }
+
+    /**
+     * Helper method to find the parents the tests create.
+     * @return the parents, in order of their ids.
+     */
+    private List<TestSetParentEntity> findParents() {
+        List<TestSetParentEntity> parents = new ArrayList<TestSetParentEntity>();
+        for ( int id = -1; id >= -3; id-- ) {
+            parents.add(parentDao.findById(BigInteger.valueOf(id)));
+        }
+        return parents;
+    }
+
+    /**
+     * The batch loader should load every collection of the same role with
+     * one query, no matter how many owners there are, so populating a list
+     * of parents takes one statement for each type of thing at each level.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void batchLoaderOneQueryPerType() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                List<TestSetParentEntity> parents = findParents();
+                BatchLoader loader = new BatchLoader(EntityUtil.DEFAULT_BATCH_SIZE);
+                for ( TestSetParentEntity p : parents ) {
+                    loader.add(p.getChildren());
+                    loader.add(p.getUniChildren());
+                }
+                assertEquals("Should have run one query for each role",
+                        2, loader.load());
+                assertTrue("Loader should be empty after loading", loader.isEmpty());
+                for ( TestSetParentEntity p : parents ) {
+                    assertTrue("Children should be initialized by the batch",
+                            EntityUtil.initialized(p.getChildren()));
+                    assertTrue("UniChildren should be initialized by the batch",
+                            EntityUtil.initialized(p.getUniChildren()));
+                }
+            }
+        });
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData();
+                createData();
+                // The children's parents are already loaded, so the levels
+                // below the first don't need anything.
+                options = new HashMap<String, String>();
+                options.put(Options.DEPTH, "3");
+                assertEquals("Wrong number of statements", 2,
+                        EntityUtil.populateEntities(findParents(), options));
+            }
+        });
+    }
+
+    /**
+     * The batch loader should never put more than the batch size in a
+     * query, and populateEntities should use the size from setBatchSize.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void batchLoaderChunks() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                BatchLoader loader = new BatchLoader(2);
+                for ( TestSetParentEntity p : findParents() ) {
+                    loader.add(p.getChildren());
+                    loader.add(p.getUniChildren());
+                }
+                assertEquals("Should have run two chunks for each role",
+                        4, loader.load());
+            }
+        });
+        int batchSize = EntityUtil.getBatchSize();
+        EntityUtil.setBatchSize(2);
+        try {
+            runInTransaction(new Transactable() {
+                @Override
+                public void run() throws Exception {
+                    deleteData();
+                    createData();
+                    options = new HashMap<String, String>();
+                    options.put(Options.DEPTH, "2");
+                    assertEquals("Wrong number of statements", 4,
+                            EntityUtil.populateEntities(findParents(), options));
+                }
+            });
+        } finally {
+            EntityUtil.setBatchSize(batchSize);
+        }
+    }
+
+    /**
+     * Entities with composite keys can't be loaded by id in a batch, so the
+     * batch loader should leave their proxies alone.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void batchLoaderCompositeKey() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                EntityManager entityManager = parentDao.getEntityManager();
+                List<TestKeyedEntity> keyed = new ArrayList<TestKeyedEntity>();
+                BatchLoader loader = new BatchLoader(EntityUtil.DEFAULT_BATCH_SIZE);
+                for ( int seq = 1; seq <= 2; seq++ ) {
+                    TestKeyedEntity entity = entityManager.getReference(
+                            TestKeyedEntity.class, new TestKey(KEY_CODE, seq));
+                    assertTrue("Should have gotten a proxy",
+                            entity instanceof HibernateProxy);
+                    loader.add(entity);
+                    keyed.add(entity);
+                }
+                assertEquals("Shouldn't batch composite keys", 0, loader.load());
+                for ( TestKeyedEntity entity : keyed ) {
+                    assertTrue("Proxy should still be uninitialized",
+                            ((HibernateProxy)entity).getHibernateLazyInitializer()
+                                .isUninitialized());
+                    // It still loads on its own.
+                    assertEquals("Wrong description", "Keyed " + entity.getKey().getSeq(),
+                            entity.getDescription());
+                }
+            }
+        });
+    }
+
+    /**
+     * A collection inside a component can't be fetched into its owner by
+     * name, so the batch loader should leave it alone.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void batchLoaderComponentCollection() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                EntityManager entityManager = parentDao.getEntityManager();
+                List<TestTaggedEntity> tagged = new ArrayList<TestTaggedEntity>();
+                BatchLoader loader = new BatchLoader(EntityUtil.DEFAULT_BATCH_SIZE);
+                for ( int id = -1; id >= -2; id-- ) {
+                    TestTaggedEntity entity = entityManager.find(
+                            TestTaggedEntity.class, BigInteger.valueOf(id));
+                    assertFalse("Tags should not be initialized",
+                            EntityUtil.initialized(entity.getLabels().getTags()));
+                    loader.add(entity.getLabels().getTags());
+                    tagged.add(entity);
+                }
+                assertEquals("Shouldn't batch component collections", 0, loader.load());
+                for ( TestTaggedEntity entity : tagged ) {
+                    assertFalse("Tags should still be uninitialized",
+                            EntityUtil.initialized(entity.getLabels().getTags()));
+                    // They still load on their own.
+                    assertEquals("Wrong number of tags", 2,
+                            entity.getLabels().getTags().size());
+                }
+            }
+        });
+    }
+
+    /**
+     * populateEntities should count the statements it runs in the session:
+     * one for each collection it has to load on its own, and two for a
+     * window.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void populateEntitiesCount() throws Exception {
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData(); // in case some other test did a commit.
+                createData();
+                // A single parent has nothing to batch with.
+                parent = parentDao.findById(TEST_ID);
+                options = new HashMap<String, String>();
+                options.put(Options.DEPTH, "2");
+                List<TestSetParentEntity> parents = new ArrayList<TestSetParentEntity>();
+                parents.add(parent);
+                assertEquals("Wrong number of statements", 2,
+                        EntityUtil.populateEntities(parents, options));
+                // Nothing is left to load the second time.
+                assertEquals("Wrong number of statements when loaded", 0,
+                        EntityUtil.populateEntities(parents, options));
+            }
+        });
+        runInTransaction(new Transactable() {
+            @Override
+            public void run() throws Exception {
+                deleteData();
+                createData();
+                parent = parentDao.findById(TEST_ID);
+                options = new HashMap<String, String>();
+                options.put(Options.INCLUDE, "children[page=1,per_page=2,order=code]");
+                List<TestSetParentEntity> parents = new ArrayList<TestSetParentEntity>();
+                parents.add(parent);
+                assertEquals("Wrong number of statements for a window", 2,
+                        EntityUtil.populateEntities(parents, options));
+            }
+        });
+    }
 }
@@ -0,0 +1,99 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests the queries a {@link FetchPlan} builds from population options.
+ * This doesn't need a database, since we only look at the JPQL.
+ *
+ * @author Steven C. Saliman
+ */
+public class FetchPlanTest {
+    private static final String PARENT = TestSetParentEntity.class.getName();
+    private static final String CHILD = TestSetChildEntity.class.getName();
+
+    /**
+     * A depth of 2 should fetch each persistent collection in a query of
+     * its own, and leave out the transient one.  The children's parent is
+     * the owner of the collection, so it shouldn't be fetched again.
+     */
+    @Test
+    public void depthTwo() {
+        FetchPlan plan = FetchPlan.forSpec(TestSetParentEntity.class,
+                                           PruneSpec.forDepth(2), 2);
+        assertTrue("Should be supported", plan.isSupported());
+        List<String> queries = plan.getQueries();
+        assertEquals("Wrong number of queries", 3, queries.size());
+        assertEquals("Wrong root query",
+                     "select distinct e0 from " + PARENT + " e0 where e0.id in (:ids)",
+                     queries.get(0));
+        assertEquals("Wrong children query",
+                     "select distinct e0 from " + PARENT + " e0 " +
+                     "left join fetch e0.children e1 where e0.id in (:ids)",
+                     queries.get(1));
+        assertEquals("Wrong uniChildren query",
+                     "select distinct e0 from " + PARENT + " e0 " +
+                     "left join fetch e0.uniChildren e2 where e0.id in (:ids)",
+                     queries.get(2));
+    }
+
+    /**
+     * Parents should be fetched by the query that loads their children, and
+     * a depth of 1 shouldn't fetch any collections.
+     */
+    @Test
+    public void parents() {
+        FetchPlan plan = FetchPlan.forSpec(TestSetChildEntity.class,
+                                           PruneSpec.ALL, 1);
+        List<String> queries = plan.getQueries();
+        assertEquals("Wrong number of queries", 1, queries.size());
+        assertEquals("Wrong root query",
+                     "select distinct e0 from " + CHILD + " e0 " +
+                     "left join fetch e0.parent e1 where e0.id in (:ids)",
+                     queries.get(0));
+    }
+
+    /**
+     * Paths should be followed through parents, and collections under a
+     * parent should be reached by joining through the parent.
+     */
+    @Test
+    public void paths() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.SELECT, "parent");
+        options.put(Options.INCLUDE, "parent.children");
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        FetchPlan plan = FetchPlan.forSpec(TestSetChildEntity.class, spec, 0);
+        List<String> queries = plan.getQueries();
+        assertEquals("Wrong number of queries", 2, queries.size());
+        assertEquals("Wrong root query",
+                     "select distinct e0 from " + CHILD + " e0 " +
+                     "left join fetch e0.parent e1 where e0.id in (:ids)",
+                     queries.get(0));
+        assertEquals("Wrong children query",
+                     "select distinct e1 from " + CHILD + " e0 join e0.parent e1 " +
+                     "left join fetch e1.children e2 where e0.id in (:ids)",
+                     queries.get(1));
+    }
+
+    /**
+     * Entities without an id can't be fetched by id.
+     */
+    @Test
+    public void unsupported() {
+        FetchPlan plan = FetchPlan.forSpec(String.class, PruneSpec.ALL, 1);
+        assertFalse("Shouldn't be supported", plan.isSupported());
+        assertTrue("Shouldn't have queries", plan.getQueries().isEmpty());
+    }
+}
@@ -0,0 +1,85 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests the {@link FieldIdTable} that compact entities use instead of a
+ * fieldIdMap.  This doesn't need a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class FieldIdTableTest {
+
+    /**
+     * Entries should be kept in order no matter what order they are added
+     * in, and should be found by position or by name.
+     */
+    @Test
+    public void putAndGet() {
+        FieldIdTable table = new FieldIdTable(new String[] { "a", "b", "c", "d" });
+        table.putString(2, "two");
+        table.putLong(0, 1234567890123L);
+        table.putLong(3, 3);
+        assertEquals("Wrong size", 3, table.size());
+        assertTrue("a should be numeric", table.isLong(0, "a"));
+        assertEquals("Wrong number", 1234567890123L, table.getLong(0));
+        assertFalse("c shouldn't be numeric", table.isLong(2, "c"));
+        assertEquals("Wrong string", "two", table.getString(2, "c"));
+        assertEquals("Wrong string for a number", "1234567890123", table.get("a"));
+        assertNull("b shouldn't have an id", table.get("b"));
+        assertNull("Should check the name", table.getString(2, "b"));
+        assertNull("Unknown attribute shouldn't have an id", table.get("e"));
+
+        table.putString(0, "replaced");
+        assertEquals("Replacing shouldn't change the size", 3, table.size());
+        assertFalse("a shouldn't be numeric any more", table.isLong(0, "a"));
+        Map<String, String> map = table.asMap();
+        assertEquals("Wrong map", "{a=replaced, c=two, d=3}", map.toString());
+
+        assertEquals("Wrong removed value", "two", table.remove("c"));
+        assertNull("Should have removed c", table.get("c"));
+        assertEquals("Wrong size after remove", 2, table.size());
+        assertEquals("Wrong d after remove", "3", table.get("d"));
+        assertNull("Nothing to remove", table.remove("b"));
+    }
+
+    /**
+     * The plan should store numeric ids as numbers, and convert them back
+     * to the right type.
+     */
+    @Test
+    public void planIds() {
+        PruningPlan plan = PruningPlan.forClass(TestSetChildEntity.class);
+        PruningPlan.Attribute parent = null;
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals("parent") ) {
+                parent = attribute;
+            }
+        }
+        FieldIdTable table = plan.newFieldIdTable();
+        PruningPlan parentPlan = PruningPlan.forClass(TestSetParentEntity.class);
+        assertNull("Empty table shouldn't have an id",
+                   parentPlan.loadId(table, parent));
+        parentPlan.storeId(table, parent, new BigInteger("12345"));
+        assertEquals("Wrong id", new BigInteger("12345"),
+                     parentPlan.loadId(table, parent));
+        assertFalse("BigIntegers should be stored as strings",
+                    table.isLong(parent.getSlot(), "parent"));
+        assertEquals("Wrong map", "12345", table.asMap().get("parent"));
+
+        IdCodec codec = IdCodec.forType(Integer.class, false);
+        assertTrue("Integers should fit in a long", codec.isLong());
+        assertEquals("Wrong Integer", Integer.valueOf(7), codec.decode(7L));
+    }
+}
@@ -0,0 +1,134 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests that plans using a {@link GeneratedAccessor} read and write the
+ * same values as plans using reflection.  Like {@link PruningPlanTest}, this
+ * doesn't need a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class GeneratedAccessorTest {
+
+    /**
+     * An entity the annotation processor skips, because it isn't a top
+     * level class, so it never gets a registered accessor.
+     */
+    public static class UnregisteredEntity extends TestSetChildEntity {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Helper method to find an attribute by name.
+     * @param plan the plan with the attribute.
+     * @param name the name of the attribute we want.
+     * @return the attribute, or null if it isn't in the plan.
+     */
+    private PruningPlan.Attribute find(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The generated plan should be built once, and it should be its own
+     * generated plan.
+     */
+    @Test
+    public void generatedPlan() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        PruningPlan generated = plan.generated();
+        assertNotSame("Should have gotten a new plan", plan, generated);
+        assertSame("Should have cached the generated plan", generated,
+                   plan.generated());
+        assertSame("Generated plan should be its own generated plan",
+                   generated, generated.generated());
+        assertEquals("Wrong number of attributes", plan.getAttributes().size(),
+                     generated.getAttributes().size());
+        assertEquals("Wrong id attribute", "id",
+                     generated.getIdAttribute().getName());
+        assertTrue("Should have generated access to the code",
+                   find(generated, "code").isGenerated());
+        assertTrue("Should have generated access to the inherited id",
+                   find(generated, "id").isGenerated());
+        assertFalse("Reflective plan shouldn't use generated access",
+                    find(plan, "code").isGenerated());
+    }
+
+    /**
+     * Values written through the generated accessor should be visible to the
+     * entity's getters, and the other way around, including primitives.
+     */
+    @Test
+    public void getAndSet() throws Exception {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class).generated();
+        TestSetParentEntity entity = new TestSetParentEntity();
+        find(plan, "code").setValue(entity, "CODE");
+        assertEquals("Wrong code", "CODE", entity.getCode());
+        find(plan, "intValue").setValue(entity, 42);
+        assertEquals("Wrong int", 42, entity.getIntValue());
+        assertEquals("Wrong boxed int", Integer.valueOf(42),
+                     find(plan, "intValue").getValue(entity));
+        byte[] blob = new byte[] { 1, 2, 3 };
+        find(plan, "blobValue").setValue(entity, blob);
+        assertArrayEquals("Wrong blob", blob,
+                          (byte[])find(plan, "blobValue").getValue(entity));
+        entity.setAffirmative(Boolean.TRUE);
+        assertEquals("Wrong boolean", Boolean.TRUE,
+                     find(plan, "affirmative").getValue(entity));
+        entity.setId(BigInteger.TEN);
+        assertEquals("Wrong id", BigInteger.TEN,
+                     find(plan, "id").getValue(entity));
+    }
+
+    /**
+     * Private fields can't be written by generated code, so field writes
+     * should fall back to reflection and still work.
+     */
+    @Test
+    public void fieldFallback() throws Exception {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class).generated();
+        TestSetParentEntity entity = new TestSetParentEntity();
+        entity.setChildren(new HashSet<TestSetChildEntity>());
+        find(plan, "children").setFieldValue(entity, null);
+        assertNull("Should have cleared the children", entity.getChildren());
+    }
+
+    /**
+     * Entities without a registered accessor should have one generated for
+     * their default plan, so the default path never goes through method
+     * handles for attributes generated code can reach.
+     */
+    @Test
+    public void defaultPlanGenerated() throws Exception {
+        assertNull("Nested entities shouldn't be registered",
+                   AccessorRegistry.lookup(UnregisteredEntity.class));
+        PruningPlan plan = PruningPlan.forClass(UnregisteredEntity.class);
+        PruningPlan defaultPlan = plan.withDefaultAccessor();
+        assertSame("Should have used the generated plan", plan.generated(),
+                   defaultPlan);
+        assertTrue("Should have generated access to the code",
+                   find(defaultPlan, "code").isGenerated());
+        UnregisteredEntity entity = new UnregisteredEntity();
+        find(defaultPlan, "code").setValue(entity, "CODE");
+        assertEquals("Wrong code", "CODE", entity.getCode());
+    }
+}
@@ -0,0 +1,115 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests the {@link IdCodec}s that store ids in a fieldIdMap.  This doesn't
+ * need a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class IdCodecTest {
+
+    /**
+     * A composite key, like an <code>IdClass</code> would be.
+     */
+    static class CompositeKey implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String code;
+        private Long number;
+        private String note;
+    }
+
+    /**
+     * Helper method to convert an id to a string and back.
+     * @param type the type of id.
+     * @param id the id.
+     * @return the converted id.
+     */
+    private Serializable roundTrip(Class<?> type, Serializable id) {
+        IdCodec codec = IdCodec.forType(type, false);
+        return codec.decode(codec.encode(id));
+    }
+
+    /**
+     * The common id types should come back as they went in.
+     */
+    @Test
+    public void simpleTypes() {
+        assertEquals("Wrong Long", Long.valueOf(987654321L),
+                     roundTrip(Long.class, 987654321L));
+        assertEquals("Wrong long", Long.valueOf(5L),
+                     roundTrip(long.class, 5L));
+        assertEquals("Wrong Integer", Integer.valueOf(-7),
+                     roundTrip(Integer.class, -7));
+        assertEquals("Wrong BigInteger", new BigInteger("12345678901234567890"),
+                     roundTrip(BigInteger.class, new BigInteger("12345678901234567890")));
+        assertEquals("Wrong String", "abc", roundTrip(String.class, "abc"));
+        UUID uuid = UUID.randomUUID();
+        assertEquals("Wrong UUID", uuid, roundTrip(UUID.class, uuid));
+        assertEquals("Wrong Short", Short.valueOf((short)3),
+                     roundTrip(Short.class, (short)3));
+        assertSame("Should have cached the codec", IdCodec.forType(Long.class, false),
+                   IdCodec.forType(Long.class, false));
+    }
+
+    /**
+     * Dates should be stored in ISO format, and come back as the same type.
+     */
+    @Test
+    public void dates() {
+        Date date = new Date(1234567890123L);
+        IdCodec codec = IdCodec.forType(Date.class, false);
+        assertEquals("Wrong format", "2009-02-13T23:31:30.123Z", codec.encode(date));
+        assertEquals("Wrong date", date, codec.decode(codec.encode(date)));
+        Serializable timestamp = roundTrip(Timestamp.class, new Timestamp(date.getTime()));
+        assertEquals("Wrong type", Timestamp.class, timestamp.getClass());
+        assertEquals("Wrong timestamp", date.getTime(), ((Timestamp)timestamp).getTime());
+    }
+
+    /**
+     * Composite keys should be stored field by field, escaping separators.
+     */
+    @Test
+    public void composite() {
+        CompositeKey key = new CompositeKey();
+        key.code = "a,b\\c";
+        key.number = 42L;
+        IdCodec codec = IdCodec.forType(CompositeKey.class, true);
+        String value = codec.encode(key);
+        assertEquals("Wrong encoding", "a\\,b\\\\c,\\N,42", value);
+        CompositeKey copy = (CompositeKey)codec.decode(value);
+        assertEquals("Wrong code", key.code, copy.code);
+        assertEquals("Wrong number", key.number, copy.number);
+        assertNull("Wrong note", copy.note);
+        try {
+            codec.decode("only one");
+            fail("Should have rejected the wrong number of values");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Plans should use the codec for their id type.
+     */
+    @Test
+    public void plan() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        assertEquals("Wrong id", new BigInteger("-1"), plan.convertId("-1"));
+        assertEquals("Wrong string", "-1", plan.formatId(new BigInteger("-1")));
+    }
+}
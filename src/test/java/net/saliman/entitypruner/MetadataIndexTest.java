@@ -0,0 +1,147 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests reading and writing the {@link MetadataIndex}.  This doesn't need a
+ * database, or an index on the classpath.
+ *
+ * @author Steven C. Saliman
+ */
+public class MetadataIndexTest {
+
+    /**
+     * An index should read back exactly the fields reflection finds, in the
+     * same order.
+     */
+    @Test
+    public void roundTrip() throws Exception {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        classes.add(TestSetParentEntity.class);
+        classes.add(TestSetChildEntity.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MetadataIndex.write(classes, out);
+        Map<String, MetadataIndex.Entry> entries =
+            MetadataIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals("Wrong number of entries", 2, entries.size());
+        for ( Class<?> clazz : classes ) {
+            MetadataIndex.Entry entry = entries.get(clazz.getName());
+            assertNotNull("Missing entry for " + clazz.getName(), entry);
+            assertArrayEquals("Wrong fields for " + clazz.getName(),
+                              names(ReflectionUtil.loadBeanFields(clazz, true)),
+                              entry.names);
+        }
+        MetadataIndex.Entry entry = entries.get(TestSetChildEntity.class.getName());
+        int parent = Arrays.asList(entry.names).indexOf("parent");
+        assertEquals("Wrong getter", "getParent", entry.getters[parent]);
+        assertEquals("Wrong setter", "setParent", entry.setters[parent]);
+        assertEquals("Wrong declaring class", TestSetChildEntity.class.getName(),
+                     entry.declaringClasses[parent]);
+        int id = Arrays.asList(entry.names).indexOf("id");
+        assertEquals("Wrong declaring class for the inherited id",
+                     ReflectionUtil.getField(TestSetChildEntity.class, "id")
+                         .getDeclaringClass().getName(),
+                     entry.declaringClasses[id]);
+        assertNull("Unknown class shouldn't have an entry",
+                   entries.get(String.class.getName()));
+    }
+
+    /**
+     * An index should record everything the plan needs from the
+     * annotations, so a plan built from it is the same as one built with
+     * reflection.
+     */
+    @Test
+    public void associationsAndIds() throws Exception {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        classes.add(TestSetParentEntity.class);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MetadataIndex.write(classes, out);
+        MetadataIndex.Entry entry =
+            MetadataIndex.read(new ByteArrayInputStream(out.toByteArray()))
+                .get(TestSetParentEntity.class.getName());
+        List<String> names = Arrays.asList(entry.names);
+        int children = names.indexOf("children");
+        assertEquals("Wrong kind", FieldKind.SET, entry.kinds[children]);
+        assertEquals("Wrong mappedBy", "parent", entry.mappedBy[children]);
+        assertEquals("Wrong element class", TestSetChildEntity.class.getName(),
+                     entry.elements[children]);
+        int uniChildren = names.indexOf("uniChildren");
+        assertNull("Unidirectional association shouldn't have a mappedBy",
+                   entry.mappedBy[uniChildren]);
+        assertTrue("Transient field should be flagged",
+                   entry.isTransient(names.indexOf("transChildren")));
+        int id = names.indexOf("id");
+        assertTrue("Id should be flagged", entry.isId(id));
+        assertEquals("Wrong kind for the id", FieldKind.ID, entry.kinds[id]);
+        assertEquals("Wrong id type", BigInteger.class.getName(), entry.idType);
+
+        PruningPlan reflected = PruningPlan.fromAnnotations(TestSetParentEntity.class);
+        PruningPlan indexed = PruningPlan.fromIndex(TestSetParentEntity.class, entry);
+        assertEquals("Wrong id type", reflected.getIdType(), indexed.getIdType());
+        assertEquals("Wrong number of attributes", reflected.getAttributes().size(),
+                     indexed.getAttributes().size());
+        for ( int i = 0; i < entry.names.length; i++ ) {
+            PruningPlan.Attribute expected = reflected.getAttributes().get(i);
+            PruningPlan.Attribute actual = indexed.getAttributes().get(i);
+            String name = expected.getName();
+            assertEquals("Wrong name", name, actual.getName());
+            assertEquals("Wrong kind for " + name, expected.getKind(), actual.getKind());
+            assertEquals("Wrong transient flag for " + name,
+                         expected.isTransient(), actual.isTransient());
+            assertEquals("Wrong id flag for " + name, expected.isId(), actual.isId());
+            assertEquals("Wrong mappedBy for " + name,
+                         expected.getMappedBy(), actual.getMappedBy());
+            assertEquals("Wrong child class for " + name,
+                         expected.getChildClass(), actual.getChildClass());
+            assertEquals("Wrong field for " + name,
+                         expected.getField(), actual.getField());
+        }
+    }
+
+    /**
+     * Something that isn't an index should be rejected.
+     */
+    @Test
+    public void badIndex() {
+        try {
+            MetadataIndex.read(new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6 }));
+            fail("Should have rejected the index");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Helper method to get the names of some fields.
+     * @param fields the fields.
+     * @return the names, in the same order.
+     */
+    private String[] names(List<Field> fields) {
+        String[] names = new String[fields.size()];
+        for ( int i = 0; i < names.length; i++ ) {
+            names[i] = fields.get(i).getName();
+        }
+        return names;
+    }
+}
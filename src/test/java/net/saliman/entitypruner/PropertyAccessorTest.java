@@ -0,0 +1,100 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Field;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.AbstractGreatGrandparent;
+import net.saliman.entitypruner.testhelper.TestClass;
+
+/**
+ * Tests that {@link PropertyAccessor} reads and writes attributes the same
+ * way the old reflective code did: through accessors when they exist, and
+ * through the field when they don't.  We'll use the same classes here as we
+ * use for the ReflectionUtil tests.
+ *
+ * @author Steven C. Saliman
+ */
+public class PropertyAccessorTest {
+
+    /**
+     * Accessors should be bound once and cached.
+     */
+    @Test
+    public void forFieldCached() {
+        Field f = ReflectionUtil.getField(TestClass.class, "i");
+        assertSame("Should have gotten the cached accessor",
+                   PropertyAccessor.forField(f), PropertyAccessor.forField(f));
+    }
+
+    /**
+     * Read and write a primitive through its get and set methods.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void primitive() throws Exception {
+        TestClass t = new TestClass();
+        PropertyAccessor accessor =
+            PropertyAccessor.forField(ReflectionUtil.getField(TestClass.class, "i"));
+        accessor.setValue(t, Integer.valueOf(5));
+        assertEquals("Didn't set the value", 5, t.getI());
+        assertEquals("Didn't get the value", Integer.valueOf(5), accessor.getValue(t));
+    }
+
+    /**
+     * Booleans use an "is" method.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void bool() throws Exception {
+        TestClass t = new TestClass();
+        t.setBool(true);
+        PropertyAccessor accessor =
+            PropertyAccessor.forField(ReflectionUtil.getField(TestClass.class, "bool"));
+        assertEquals("Didn't get the value", Boolean.TRUE, accessor.getValue(t));
+    }
+
+    /**
+     * A field whose getter is private should be read from the field.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void noGetter() throws Exception {
+        TestClass t = new TestClass();
+        t.setNoGetter(2.5);
+        PropertyAccessor accessor =
+            PropertyAccessor.forField(ReflectionUtil.getField(TestClass.class, "noGetter"));
+        assertEquals("Didn't get the value from the field", Double.valueOf(2.5),
+                     accessor.getValue(t));
+        assertEquals("Didn't get the value from the field", Double.valueOf(2.5),
+                     accessor.getFieldValue(t));
+        assertFalse("Shouldn't have found a getter", accessor.hasGetter());
+        assertTrue("Should have found a setter", accessor.hasSetter());
+    }
+
+    /**
+     * Static final fields can be read, but not written.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void staticFinal() throws Exception {
+        TestClass t = new TestClass();
+        PropertyAccessor accessor = PropertyAccessor.forField(
+                ReflectionUtil.getField(TestClass.class, "DATE"));
+        assertEquals("Didn't get the static value",
+                     Integer.valueOf(AbstractGreatGrandparent.DATE),
+                     accessor.getValue(t));
+        try {
+            accessor.setValue(t, Integer.valueOf(0));
+            fail("Shouldn't be able to set a static final field");
+        } catch (IllegalAccessException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.BaseEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests the accessors the {@link PrunableEntityProcessor} writes.  The
+ * processor runs when the test entities are compiled, since the Entity
+ * Pruner is on the test classpath, so these tests just need to make sure
+ * the {@link AccessorRegistry} finds the accessors, and that they work.
+ *
+ * @author Steven C. Saliman
+ */
+public class PrunableEntityProcessorTest {
+
+    /**
+     * Helper method to find an attribute by name.
+     * @param plan the plan with the attribute.
+     * @param name the name of the attribute we want.
+     * @return the attribute, or null if it isn't in the plan.
+     */
+    private PruningPlan.Attribute find(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Concrete entities should have registered accessors, and abstract ones
+     * shouldn't.
+     */
+    @Test
+    public void registered() {
+        GeneratedAccessor accessor = AccessorRegistry.lookup(TestSetParentEntity.class);
+        assertNotNull("Should have found an accessor", accessor);
+        assertEquals("Accessor has the wrong name",
+                     TestSetParentEntity.class.getName() +
+                     PrunableEntityProcessor.SUFFIX,
+                     accessor.getClass().getName());
+        assertSame("Accessor is for the wrong class", TestSetParentEntity.class,
+                   accessor.getEntityClass());
+        assertNull("Abstract classes shouldn't have accessors",
+                   AccessorRegistry.lookup(BaseEntity.class));
+    }
+
+    /**
+     * The default plan for a registered entity should use the accessor
+     * without being asked.
+     */
+    @Test
+    public void defaultPlan() {
+        PruningPlan plan = PruningPlan.forClass(TestSetChildEntity.class);
+        PruningPlan registered = plan.withDefaultAccessor();
+        assertSame("Should have used the generated plan", plan.generated(),
+                   registered);
+        assertTrue("Should have generated access to the parent",
+                   find(registered, "parent").isGenerated());
+        assertTrue("Should have generated access to the inherited id",
+                   find(registered, "id").isGenerated());
+    }
+
+    /**
+     * Values should go through the entity's getters and setters, and field
+     * writes to private fields should fall back to reflection.
+     */
+    @Test
+    public void getAndSet() throws Exception {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class)
+            .withDefaultAccessor();
+        TestSetParentEntity entity = new TestSetParentEntity();
+        find(plan, "intValue").setValue(entity, 5);
+        assertEquals("Wrong int", 5, entity.getIntValue());
+        assertEquals("Wrong boxed int", Integer.valueOf(5),
+                     find(plan, "intValue").getValue(entity));
+        entity.setChildren(new HashSet<TestSetChildEntity>());
+        find(plan, "children").setFieldValue(entity, null);
+        assertNull("Should have cleared the children", entity.getChildren());
+        Map<String, String> ids = new HashMap<String, String>();
+        find(plan, "fieldIdMap").setValue(entity, ids);
+        assertSame("Wrong id map", ids, entity.getFieldIdMap());
+        assertFalse("Static fields shouldn't be attributes",
+                    AccessorRegistry.lookup(TestSetParentEntity.class)
+                        .indexOf("serialVersionUID") >= 0);
+    }
+}
@@ -0,0 +1,264 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+
+/**
+ * Tests that a {@link PruneSpec} parses options the same way the pruner
+ * always has.
+ *
+ * @author Steven C. Saliman
+ */
+public class PruneSpecTest {
+    /**
+     * No options should give us the shared spec with no options.
+     */
+    @Test
+    public void noOptions() {
+        assertSame("Null options should be ALL", PruneSpec.ALL,
+                   PruneSpec.fromOptions(null));
+        assertSame("Empty options should be ALL", PruneSpec.ALL,
+                   PruneSpec.fromOptions(new HashMap<String, String>()));
+        assertFalse("ALL shouldn't have a depth", PruneSpec.ALL.hasDepth());
+        assertEquals("Wrong default depth", 7, PruneSpec.ALL.getDepth(7));
+        assertTrue("ALL should include everything",
+                   PruneSpec.ALL.includes("children"));
+        assertTrue("ALL should select everything",
+                   PruneSpec.ALL.selects("name"));
+    }
+
+    /**
+     * Includes and selects should be split and trimmed.
+     */
+    @Test
+    public void includeAndSelect() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children, others");
+        options.put(Options.SELECT, " name ");
+        options.put(Options.DEPTH, "3");
+        options.put(Options.TRAVERSAL, Options.BREADTH_FIRST);
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        assertTrue("Should have included children", spec.includes("children"));
+        assertTrue("Should have included others", spec.includes("others"));
+        assertFalse("Shouldn't have included parent", spec.includes("parent"));
+        assertTrue("Should have selected name", spec.selects("name"));
+        assertFalse("Shouldn't have selected code", spec.selects("code"));
+        assertEquals("Wrong depth", 3, spec.getDepth(1));
+        assertTrue("Should have been breadth first", spec.isBreadthFirst());
+        assertEquals("Same options should make equal specs", spec,
+                     PruneSpec.fromOptions(options));
+        assertEquals("Equal specs should have equal hash codes",
+                     spec.hashCode(), PruneSpec.fromOptions(options).hashCode());
+    }
+
+    /**
+     * Small depths should be shared.
+     */
+    @Test
+    public void depthShared() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.DEPTH, "2");
+        assertSame("Depth spec should be shared", PruneSpec.forDepth(2),
+                   PruneSpec.fromOptions(options));
+        assertEquals("Large depths should still work", 100,
+                     PruneSpec.forDepth(100).getDepth(1));
+    }
+
+    /**
+     * A bad depth should be rejected when the spec is built, not when it is
+     * used.
+     */
+    @Test
+    public void badDepth() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.DEPTH, "deep");
+        try {
+            PruneSpec.fromOptions(options);
+            fail("Should have rejected the depth");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The no_load option should only be set on the root, and anything but
+     * true or false should be rejected when the spec is built.
+     */
+    @Test
+    public void noLoad() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.NO_LOAD, "TRUE");
+        options.put(Options.INCLUDE, "children");
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        assertTrue("Should have been no-load", spec.isNoLoad());
+        assertFalse("Children shouldn't be no-load",
+                    spec.child("children").isNoLoad());
+        assertFalse("ALL shouldn't be no-load", PruneSpec.ALL.isNoLoad());
+        options.put(Options.NO_LOAD, "false");
+        assertFalse("Shouldn't have been no-load",
+                    PruneSpec.fromOptions(options).isNoLoad());
+        options.put(Options.NO_LOAD, "maybe");
+        try {
+            PruneSpec.fromOptions(options);
+            fail("Should have rejected the no_load value");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * The sets in a spec can't be changed.
+     */
+    @Test(expected=UnsupportedOperationException.class)
+    public void immutable() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children");
+        PruneSpec.fromOptions(options).getIncludes().add("parent");
+    }
+
+    /**
+     * Dotted and parenthesized paths should build the same tree, with each
+     * level's names in that level's mask.
+     */
+    @Test
+    public void paths() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children.grandchildren, others");
+        options.put(Options.SELECT, "children( code , description ), parent.name");
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        assertTrue("Should have included children", spec.includes("children"));
+        assertFalse("Shouldn't have included grandchildren at the root",
+                    spec.includes("grandchildren"));
+        assertTrue("Should have selected parent", spec.selects("parent"));
+        assertFalse("Shouldn't have selected code at the root",
+                    spec.selects("code"));
+        PruneSpec children = spec.child("children");
+        assertTrue("Children should include grandchildren",
+                   children.includes("grandchildren"));
+        assertFalse("Children shouldn't include others",
+                    children.includes("others"));
+        assertTrue("Children should select code", children.selects("code"));
+        assertTrue("Children should select description",
+                   children.selects("description"));
+        assertFalse("Children shouldn't select name", children.selects("name"));
+        assertFalse("Child specs shouldn't have a depth", children.hasDepth());
+        assertFalse("Parent should have no include mask",
+                    spec.child("parent").hasIncludes());
+        assertTrue("Parent should select name",
+                   spec.child("parent").selects("name"));
+        assertSame("Unnamed levels should get ALL", PruneSpec.ALL,
+                   spec.child("others"));
+        assertSame("Grandchildren should get ALL", PruneSpec.ALL,
+                   children.child("grandchildren"));
+
+        Map<String, String> dotted = new HashMap<String, String>();
+        dotted.put(Options.INCLUDE, "children(grandchildren),others");
+        dotted.put(Options.SELECT, "children.code,children.description,parent(name)");
+        assertEquals("Both forms should make the same spec", spec,
+                     PruneSpec.fromOptions(dotted));
+    }
+
+    /**
+     * A <code>*</code> should remove the mask at its level, but not below.
+     */
+    @Test
+    public void wildcard() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.SELECT, "*, children(code)");
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        assertFalse("Root shouldn't have a select mask", spec.hasSelects());
+        assertTrue("Root should select anything", spec.selects("name"));
+        assertFalse("Children should still have a mask",
+                    spec.child("children").selects("name"));
+    }
+
+    /**
+     * Paths that don't parse should be rejected.
+     */
+    @Test
+    public void badPaths() {
+        String[] bad = { "children(code", "children)", "children.", ".code",
+                         "*.code", "children(code)x" };
+        for ( String path : bad ) {
+            Map<String, String> options = new HashMap<String, String>();
+            options.put(Options.INCLUDE, path);
+            try {
+                PruneSpec.fromOptions(options);
+                fail("Should have rejected " + path);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * A window after an included collection should be parsed into the
+     * spec, and the collection should still be included.
+     */
+    @Test
+    public void windows() {
+        Map<String, String> options = new HashMap<String, String>();
+        options.put(Options.INCLUDE, "children[page=2,per_page=50,order=code:desc,description]," +
+                                     "others[order=name](grandchildren[per_page=5])");
+        PruneSpec spec = PruneSpec.fromOptions(options);
+        assertTrue("Should include children", spec.includes("children"));
+        CollectionWindow window = spec.getWindow("children");
+        assertEquals("Wrong page", 2, window.getPage());
+        assertEquals("Wrong per page", 50, window.getPerPage());
+        assertEquals("Wrong order", Arrays.asList("code:desc", "description"),
+                     window.getOrder());
+        assertEquals("Wrong first result", 50, window.getFirstResult());
+        assertEquals("Wrong filter", "order by case when this.code is null then 0 else 1 end, " +
+                     "this.code desc, case when this.description is null then 0 else 1 end, " +
+                     "this.description",
+                     window.getFilter(TestSetChildEntity.class));
+        assertEquals("Wrong text", "page=2,per_page=50,order=code:desc,description",
+                     window.toString());
+        assertEquals("Wrong others window",
+                     new CollectionWindow(1, 0, Arrays.asList("name")),
+                     spec.getWindow("others"));
+        assertEquals("Wrong grandchildren window", 5,
+                     spec.child("others").getWindow("grandchildren").getPerPage());
+        assertNull("Shouldn't have a window", spec.child("children").getWindow("others"));
+    }
+
+    /**
+     * Windows that don't parse, or that aren't on an included collection,
+     * should be rejected.
+     */
+    @Test
+    public void badWindows() {
+        String[][] bad = { { Options.INCLUDE, "children[page=2" },
+                           { Options.INCLUDE, "children[size=2]" },
+                           { Options.INCLUDE, "children[page=0]" },
+                           { Options.INCLUDE, "children[per_page=x]" },
+                           { Options.INCLUDE, "*[page=2]" },
+                           { Options.INCLUDE, "[page=2]" },
+                           { Options.INCLUDE, "children[page=1],children[page=2]" },
+                           { Options.INCLUDE, "children[order=code) x]" },
+                           { Options.INCLUDE, "children[order=code:sideways]" },
+                           { Options.SELECT, "parent[page=2]" } };
+        for ( String[] option : bad ) {
+            Map<String, String> options = new HashMap<String, String>();
+            options.put(option[0], option[1]);
+            try {
+                PruneSpec.fromOptions(options);
+                fail("Should have rejected " + option[1]);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests the {@link PruningFlags}, and the way they adapt entities that keep
+ * their state in a String.  This doesn't need a database.
+ *
+ * @author Steven C. Saliman
+ */
+public class PruningFlagsTest {
+
+    /**
+     * A minimal entity that keeps its state in flags.
+     */
+    private static class FlaggedEntity implements FlaggedPrunableEntity {
+        private byte pruningFlags = PruningFlags.UNPRUNED_COMPLETE;
+        private Map<String, String> fieldIdMap;
+
+        public byte getPruningFlags() {
+            return pruningFlags;
+        }
+
+        public void setPruningFlags(byte pruningFlags) {
+            this.pruningFlags = pruningFlags;
+        }
+
+        public String getPruningState() {
+            return PruningFlags.toState(pruningFlags);
+        }
+
+        public void setPruningState(String pruningState) {
+            this.pruningFlags = PruningFlags.fromState(pruningState);
+        }
+
+        public Map<String, String> getFieldIdMap() {
+            return fieldIdMap;
+        }
+
+        public void setFieldIdMap(Map<String, String> fieldIdMap) {
+            this.fieldIdMap = fieldIdMap;
+        }
+
+        public boolean isPersistent() {
+            return false;
+        }
+    }
+
+    /**
+     * Every String state should convert to flags and back to the same
+     * constant.
+     */
+    @Test
+    public void conversions() {
+        String[] states = { PruningState.PRUNED_COMPLETE, PruningState.PRUNED_PARTIAL,
+                            PruningState.UNPRUNED_COMPLETE, PruningState.UNPRUNED_PARTIAL };
+        for ( String state : states ) {
+            assertSame("Wrong state for " + state, state,
+                       PruningFlags.toState(PruningFlags.fromState(state)));
+            assertEquals("Copies of " + state + " should convert too",
+                         PruningFlags.fromState(state),
+                         PruningFlags.fromState(new String(state)));
+        }
+        assertEquals("Null should have no state", 0, PruningFlags.fromState(null));
+        assertEquals("Unknown states should have no state", 0,
+                     PruningFlags.fromState("SOMETHING_ELSE"));
+        assertNull("No flags should have no state", PruningFlags.toState((byte)0));
+        assertEquals("Other bits should be ignored", PruningState.PRUNED_PARTIAL,
+                     PruningFlags.toState((byte)(PruningFlags.PRUNED_PARTIAL | 8)));
+        assertTrue("Should be pruned", PruningFlags.isPruned(PruningFlags.PRUNED_PARTIAL));
+        assertTrue("Should be partial", PruningFlags.isPartial(PruningFlags.PRUNED_PARTIAL));
+        assertFalse("Shouldn't be unpruned",
+                    PruningFlags.isUnpruned(PruningFlags.PRUNED_PARTIAL));
+        assertTrue("Should be unpruned",
+                   PruningFlags.isUnpruned(PruningFlags.UNPRUNED_COMPLETE));
+        assertFalse("Shouldn't be partial",
+                    PruningFlags.isPartial(PruningFlags.UNPRUNED_COMPLETE));
+    }
+
+    /**
+     * Entities with flags should have them used directly, and entities with
+     * Strings should have them converted.
+     */
+    @Test
+    public void adapter() {
+        FlaggedEntity flagged = new FlaggedEntity();
+        PruningFlags.set(flagged, PruningFlags.PRUNED_PARTIAL);
+        assertEquals("Wrong flags", PruningFlags.PRUNED_PARTIAL, flagged.getPruningFlags());
+        flagged.setPruningFlags((byte)(PruningFlags.PRUNED_COMPLETE | 8));
+        assertEquals("Should have ignored the other bit", PruningFlags.PRUNED_COMPLETE,
+                     PruningFlags.get(flagged));
+
+        TestSetParentEntity entity = new TestSetParentEntity();
+        entity.setPruningState(PruningState.UNPRUNED_PARTIAL);
+        assertEquals("Wrong flags from the String", PruningFlags.UNPRUNED_PARTIAL,
+                     PruningFlags.get(entity));
+        PruningFlags.set(entity, PruningFlags.PRUNED_COMPLETE);
+        assertSame("Wrong String", PruningState.PRUNED_COMPLETE, entity.getPruningState());
+    }
+}
@@ -0,0 +1,164 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetChildEntity;
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests that a {@link PruningPlan} classifies the attributes of an entity
+ * correctly.  This test doesn't need a database, since plans are built
+ * entirely from the entity classes.
+ *
+ * @author Steven C. Saliman
+ */
+public class PruningPlanTest {
+
+    /**
+     * Helper method to find an attribute by name.
+     * @param plan the plan with the attribute.
+     * @param name the name of the attribute we want.
+     * @return the attribute, or null if it isn't in the plan.
+     */
+    private PruningPlan.Attribute find(PruningPlan plan, String name) {
+        for ( PruningPlan.Attribute attribute : plan.getAttributes() ) {
+            if ( attribute.getName().equals(name) ) {
+                return attribute;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Plans should be built once and cached.
+     */
+    @Test
+    public void forClassCached() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        assertNotNull("Should have gotten a plan", plan);
+        assertSame("Should have gotten the cached plan", plan,
+                   PruningPlan.forClass(TestSetParentEntity.class));
+        assertEquals("Plan is for the wrong class", TestSetParentEntity.class,
+                     plan.getEntityClass());
+    }
+
+    /**
+     * Make sure each kind of attribute is classified correctly.
+     */
+    @Test
+    public void kinds() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        assertEquals("Wrong number of attributes",
+                     ReflectionUtil.loadBeanFields(TestSetParentEntity.class, true).size(),
+                     plan.getAttributes().size());
+        assertEquals("id has the wrong kind", FieldKind.ID,
+                     find(plan, "id").getKind());
+        assertSame("Wrong id attribute", find(plan, "id"), plan.getIdAttribute());
+        assertEquals("intValue has the wrong kind", FieldKind.PRIMITIVE,
+                     find(plan, "intValue").getKind());
+        assertEquals("code has the wrong kind", FieldKind.SCALAR,
+                     find(plan, "code").getKind());
+        assertEquals("children has the wrong kind", FieldKind.SET,
+                     find(plan, "children").getKind());
+        assertTrue("children should be a collection",
+                     find(plan, "children").getKind().isCollection());
+        assertTrue("transChildren should be transient",
+                   find(plan, "transChildren").isTransient());
+        assertFalse("children should not be transient",
+                   find(plan, "children").isTransient());
+
+        plan = PruningPlan.forClass(TestSetChildEntity.class);
+        assertEquals("parent has the wrong kind", FieldKind.ENTITY,
+                     find(plan, "parent").getKind());
+    }
+
+    /**
+     * Bidirectional associations should know the child's parent field, and
+     * unidirectional ones shouldn't.
+     */
+    @Test
+    public void mappedBy() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        PruningPlan.Attribute children = find(plan, "children");
+        assertEquals("Wrong mappedBy", "parent", children.getMappedBy());
+        assertNotNull("Should have resolved the inverse field",
+                      children.getInverseField());
+        assertEquals("Resolved the wrong inverse field", TestSetChildEntity.class,
+                     children.getInverseField().getDeclaringClass());
+        PruningPlan.Attribute uniChildren = find(plan, "uniChildren");
+        assertNull("Unidirectional children shouldn't have a mappedBy",
+                   uniChildren.getMappedBy());
+        assertNull("Unidirectional children shouldn't have an inverse",
+                   uniChildren.getInverseField());
+        assertEquals("Wrong role", TestSetParentEntity.class.getName() +
+                     ".children", children.getRole());
+    }
+
+    /**
+     * The child's parent field should be resolved once for each class of
+     * owner and child, whether it can be used or not.
+     */
+    @Test
+    public void inverseCached() {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        PruningPlan.Attribute children = find(plan, "children");
+        assertEquals("Wrong child class", TestSetChildEntity.class,
+                     children.getChildClass());
+        PruningPlan.Inverse inverse =
+            children.getInverse(TestSetParentEntity.class, TestSetChildEntity.class);
+        assertNull("Inverse should be usable", inverse.getProblem());
+        assertEquals("Wrong inverse field", "parent",
+                     inverse.getAccessor().getField().getName());
+        assertSame("Should have cached the inverse", inverse,
+                   children.getInverse(TestSetParentEntity.class,
+                                       TestSetChildEntity.class));
+        assertSame("Generated plan should share the inverse", inverse,
+                   find(plan.generated(), "children")
+                       .getInverse(TestSetParentEntity.class,
+                                   TestSetChildEntity.class));
+
+        PruningPlan.Inverse missing =
+            children.getInverse(TestSetParentEntity.class, String.class);
+        assertEquals("Should not have found the field", "can't be found",
+                     missing.getProblem());
+        assertNull("Missing inverse shouldn't have an accessor",
+                   missing.getAccessor());
+        assertSame("Should have cached the missing inverse", missing,
+                   children.getInverse(TestSetParentEntity.class, String.class));
+        assertEquals("Should have rejected the wrong owner", "is the wrong type",
+                     children.getInverse(TestSetChildEntity.class,
+                                         TestSetChildEntity.class).getProblem());
+        assertNull("Unidirectional children shouldn't have an inverse",
+                   find(plan, "uniChildren")
+                       .getInverse(TestSetParentEntity.class,
+                                   TestSetChildEntity.class));
+    }
+
+    /**
+     * Make sure we can get and set values, and convert ids.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void accessors() throws Exception {
+        PruningPlan plan = PruningPlan.forClass(TestSetParentEntity.class);
+        TestSetParentEntity entity = new TestSetParentEntity();
+        find(plan, "code").setValue(entity, "CODE");
+        assertEquals("Didn't set the value", "CODE", entity.getCode());
+        assertEquals("Didn't get the value", "CODE",
+                     find(plan, "code").getValue(entity));
+        find(plan, "affirmative").setValue(entity, Boolean.TRUE);
+        assertEquals("Didn't get a boolean value", Boolean.TRUE,
+                     find(plan, "affirmative").getValue(entity));
+        assertEquals("Didn't convert the id", new BigInteger("-1"),
+                     plan.convertId("-1"));
+    }
+}
@@ -1,11 +1,18 @@
 package net.saliman.entitypruner;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
 import java.util.List;
 import java.util.Set;
 
@@ -193,4 +200,89 @@ public class ReflectionUtilTest {
     	Field f = ReflectionUtil.getField(TestClass.class, null);
     	assertNull("Shouldn't have gotten a field", f);
     }
+
+    /**
+     * Try getting public accessor methods, including inherited ones.
+     */
+    @Test
+    public void getMethodGood() {
+        Method m = ReflectionUtil.getMethod(TestClass.class, "isBool", null);
+        assertNotNull("Failed to get method", m);
+        assertEquals("Got wrong method", "isBool", m.getName());
+        m = ReflectionUtil.getMethod(TestClass.class, "setI", int.class);
+        assertNotNull("Failed to get method with a parameter", m);
+        m = ReflectionUtil.getMethod(TestClass.class, "getString", null);
+        assertNotNull("Failed to get inherited method", m);
+    }
+
+    /**
+     * Methods that aren't public, or don't have matching parameters, should
+     * not be found.
+     */
+    @Test
+    public void getMethodMissing() {
+        assertNull("Shouldn't have gotten a private method",
+                   ReflectionUtil.getMethod(TestClass.class, "getNoGetter", null));
+        assertNull("Shouldn't have gotten a method with the wrong parameter",
+                   ReflectionUtil.getMethod(TestClass.class, "setI", long.class));
+        assertNull("Shouldn't have gotten a method that doesn't exist",
+                   ReflectionUtil.getMethod(TestClass.class, "getNothing", null));
+    }
+
+    /**
+     * Bean fields with and without read-only fields are cached separately,
+     * and asking for one doesn't give us the other.
+     */
+    @Test
+    public void loadBeanFieldsCached() {
+        List<Field> readWrite = ReflectionUtil.loadBeanFields(TestClass.class, false);
+        List<Field> readable = ReflectionUtil.loadBeanFields(TestClass.class, true);
+        assertNotSame("Read-only fields should be cached separately",
+                      readWrite, readable);
+        assertSame("Should have gotten the cached list", readWrite,
+                   ReflectionUtil.loadBeanFields(TestClass.class, false));
+        assertSame("Should have gotten the cached list", readable,
+                   ReflectionUtil.loadBeanFields(TestClass.class, true));
+    }
+
+    /**
+     * Simulate a redeploy: load our test classes in a class loader of their
+     * own, fill all the caches with them, then throw the class loader away.
+     * The caches must not keep the class loader from being garbage
+     * collected.
+     * @throws Exception if anything goes badly.
+     */
+    @Test
+    public void redeployDoesNotLeak() throws Exception {
+        WeakReference<ClassLoader> ref = loadInThrowawayLoader();
+        for ( int i = 0; i < 50 && ref.get() != null; i++ ) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("The caches kept the class loader alive", ref.get());
+    }
+
+    /**
+     * Helper method to load TestClass in a new class loader and run it
+     * through the caches.  This needs to be a separate method so that none
+     * of the local variables referring to the loader are left on the stack.
+     * @return a weak reference to the class loader we used.
+     * @throws Exception if anything goes badly.
+     */
+    private WeakReference<ClassLoader> loadInThrowawayLoader() throws Exception {
+        URL location = TestClass.class.getProtectionDomain().getCodeSource().getLocation();
+        ClassLoader loader = new URLClassLoader(new URL[] { location }, null);
+        Class<?> clazz = loader.loadClass(TestClass.class.getName());
+        assertNotSame("Should have loaded a new class", TestClass.class, clazz);
+        List<Field> fields = ReflectionUtil.loadBeanFields(clazz, true);
+        assertFalse("Should have found fields", fields.isEmpty());
+        assertNotNull("Didn't find the field",
+                      ReflectionUtil.getField(clazz, "i"));
+        Object instance = clazz.newInstance();
+        for ( Field field : fields ) {
+            ReflectionUtil.getFieldValue(field, instance);
+        }
+        PruningPlan.forClass(clazz);
+        return new WeakReference<ClassLoader>(loader);
+    }
 }
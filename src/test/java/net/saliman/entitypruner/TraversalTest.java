@@ -0,0 +1,158 @@
+package net.saliman.entitypruner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import net.saliman.entitypruner.testhelper.set.TestSetParentEntity;
+
+/**
+ * Tests that a {@link Traversal} hands out entities in the right order.
+ * Each test builds the same graph: a root with children a and b, where a
+ * has a child c.
+ *
+ * @author Steven C. Saliman
+ */
+public class TraversalTest {
+    private PrunableEntity root = new TestSetParentEntity();
+    private PrunableEntity a = new TestSetParentEntity();
+    private PrunableEntity b = new TestSetParentEntity();
+    private PrunableEntity c = new TestSetParentEntity();
+
+    /**
+     * Depth first order should visit entities the same way recursion would:
+     * root, a, c, b.
+     */
+    @Test
+    public void depthFirst() {
+        Traversal traversal = new Traversal(root, 3, false);
+        Traversal.Step step = traversal.next();
+        assertSame("Should have started with the root", root, step.getEntity());
+        assertEquals("Wrong root depth", 3, step.getDepth());
+        traversal.add(a, 2);
+        traversal.add(b, 2);
+        step = traversal.next();
+        assertSame("Should have gotten the first child", a, step.getEntity());
+        traversal.add(c, 1);
+        step = traversal.next();
+        assertSame("Should have gone down before across", c, step.getEntity());
+        assertEquals("Wrong grandchild depth", 1, step.getDepth());
+        step = traversal.next();
+        assertSame("Should have gotten the second child", b, step.getEntity());
+        assertNull("Should have been done", traversal.next());
+    }
+
+    /**
+     * Breadth first order should visit each level before the next: root, a,
+     * b, c.
+     */
+    @Test
+    public void breadthFirst() {
+        Traversal traversal = new Traversal(root, 3, true);
+        assertSame("Should have started with the root", root,
+                   traversal.next().getEntity());
+        traversal.add(a, 2);
+        traversal.add(b, 2);
+        assertSame("Should have gotten the first child", a,
+                   traversal.next().getEntity());
+        traversal.add(c, 1);
+        assertSame("Should have gone across before down", b,
+                   traversal.next().getEntity());
+        assertSame("Should have gotten the grandchild", c,
+                   traversal.next().getEntity());
+        assertNull("Should have been done", traversal.next());
+    }
+
+    /**
+     * Nulls aren't worth visiting.
+     */
+    @Test
+    public void nullIgnored() {
+        Traversal traversal = new Traversal(root, 1, false);
+        traversal.next();
+        traversal.add(null, 0);
+        assertNull("Shouldn't have gotten a step for a null", traversal.next());
+    }
+
+    /**
+     * An entity reached again with a better depth should be processed again,
+     * and one reached with a depth that isn't any better should be skipped.
+     * Either way, there should only be one visit for each entity.
+     */
+    @Test
+    public void revisit() {
+        Traversal traversal = new Traversal(root, 5, false);
+        Traversal.Step step = traversal.next();
+        traversal.add(a, 1);
+        traversal.add(b, 4);
+        step = traversal.next();
+        assertSame("Should have gotten a", a, step.getEntity());
+        Traversal.Visit visit = step.getVisit();
+        step = traversal.next();
+        assertSame("Should have gotten b", b, step.getEntity());
+        traversal.add(a, 3);
+        traversal.add(root, 4);
+        step = traversal.next();
+        assertSame("Should have revisited a", a, step.getEntity());
+        assertEquals("Wrong depth for the revisit", 3, step.getDepth());
+        assertSame("Should have reused the visit", visit, step.getVisit());
+        assertEquals("Visit should have the best depth", 3, visit.getDepth());
+        traversal.add(b, 2);
+        assertNull("Shouldn't have revisited with a worse depth",
+                   traversal.next());
+        assertEquals("Wrong number of visits", 3, traversal.getVisits().size());
+    }
+
+    /**
+     * The visit should remember the entity's state from before we touched
+     * it, and deferred attributes.
+     */
+    @Test
+    public void visitState() {
+        root.setPruningState(PruningState.PRUNED_PARTIAL);
+        Traversal traversal = new Traversal(root, 1, false);
+        Traversal.Visit visit = traversal.next().getVisit();
+        root.setPruningState(PruningState.UNPRUNED_COMPLETE);
+        assertEquals("Wrong initial state", PruningFlags.PRUNED_PARTIAL,
+                     visit.getInitialFlags());
+        assertEquals("Shouldn't have deferred anything", 0,
+                     visit.getDeferred().size());
+        PruningPlan.Attribute attribute =
+            PruningPlan.forClass(TestSetParentEntity.class).getAttributes().get(0);
+        visit.defer(attribute);
+        visit.defer(attribute);
+        assertEquals("Should have deferred the attribute once", 1,
+                     visit.getDeferred().size());
+    }
+
+    /**
+     * An entity reached again with a spec it hasn't seen should be processed
+     * again, even if the depth is no better, but not for a spec it has.
+     * The revisit should keep the deepest depth the entity was reached with.
+     */
+    @Test
+    public void revisitSpec() {
+        PruneSpec spec = PruneSpec.forDepth(20);
+        Traversal traversal = new Traversal(root, 3, false);
+        traversal.next();
+        traversal.add(a, 2);
+        Traversal.Step step = traversal.next();
+        assertSame("Should have gotten a", a, step.getEntity());
+        assertSame("Should have gotten the default spec", PruneSpec.ALL,
+                   step.getSpec());
+        traversal.add(a, 1, spec);
+        step = traversal.next();
+        assertSame("Should have revisited a for the new spec", a,
+                   step.getEntity());
+        assertSame("Wrong spec", spec, step.getSpec());
+        assertEquals("Should have kept the deeper depth", 2, step.getDepth());
+        assertEquals("Visit should have the best depth", 2,
+                     step.getVisit().getDepth());
+        traversal.add(a, 1);
+        traversal.add(a, 1, spec);
+        assertNull("Shouldn't have revisited for a spec it has seen",
+                   traversal.next());
+    }
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 
 import javax.ejb.Local;
+import javax.persistence.EntityManager;
 
 /**
  * This is a base Data Access Object that defines basic interactions with the
@@ -195,4 +196,19 @@ public interface BaseDao<T extends BaseEntity> {
      * @param entity the entity to evict.
      */
     public void evict(T entity);
+
+    /**
+     * Checks whether a {@link Persistable} instance is still attached to the
+     * JPA session.
+     * @param entity the entity to check.
+     * @return <code>true</code> if the session is managing the entity.
+     */
+    public boolean contains(T entity);
+
+    /**
+     * Gets the EntityManager this DAO uses, for tests that need to work with
+     * entities that don't have a DAO of their own.
+     * @return the EntityManager.
+     */
+    public EntityManager getEntityManager();
 }
@@ -326,6 +326,28 @@ public class BaseDaoJpa<T extends BaseEntity> implements BaseDao<T> {
 
     }
 
+    /**
+     * Checks whether a {@link Persistable} instance is still attached to the
+     * JPA session.
+     * @param entity the entity to check.
+     * @return <code>true</code> if the session is managing the entity.
+     */
+	@Override
+    public boolean contains(T entity) {
+	    LOG.trace("contains(T)");
+        return entityManager.contains(entity);
+    }
+
+    /**
+     * Gets the EntityManager this DAO uses, for tests that need to work with
+     * entities that don't have a DAO of their own.
+     * @return the EntityManager.
+     */
+	@Override
+    public EntityManager getEntityManager() {
+        return entityManager;
+    }
+
     /**
 	 * Helper method subclasses can use to create a JPA Query. By using this
 	 * helper, subclasses don't need to know how to set up paging.
@@ -16,6 +16,8 @@ import javax.persistence.Version;
 import net.saliman.entitypruner.EntityPruner;
 import net.saliman.entitypruner.EntityUtil;
 import net.saliman.entitypruner.PrunableEntity;
+import net.saliman.entitypruner.PrunedWindow;
+import net.saliman.entitypruner.WindowedPrunableEntity;
 
 /**
  * BaseEntity is the base class for all JPA Entities. An Entity represents a 
@@ -85,7 +87,7 @@ import net.saliman.entitypruner.PrunableEntity;
  * @see EntityUtil
  */
 @MappedSuperclass
-public abstract class BaseEntity implements Serializable, PrunableEntity {
+public abstract class BaseEntity implements Serializable, WindowedPrunableEntity {
     /** serial version UID */
     private static final long serialVersionUID = 4L;
 
@@ -107,13 +109,16 @@ public abstract class BaseEntity implements Serializable, PrunableEntity {
     @Column(name="version")
     private Long version;
     
-    // These next 2 are for the EntityPruner
+    // These next 3 are for the EntityPruner
     @Transient
     private String pruningState;
 
     @Transient
     private Map<String, String> fieldIdMap;
 
+    @Transient
+    private Map<String, PrunedWindow> windowMap;
+
     /**
      * The default constructor
      */
@@ -194,6 +199,22 @@ public abstract class BaseEntity implements Serializable, PrunableEntity {
         this.fieldIdMap = fieldIdMap;
     }
 
+    /**
+     * @return the windowMap for the EntityPruner to use.
+     */
+    @Override
+    public Map<String, PrunedWindow> getWindowMap() {
+        return windowMap;
+    }
+
+    /**
+     * @param windowMap the windowMap to set from the EntityPruner
+     */
+    @Override
+    public void setWindowMap(Map<String, PrunedWindow> windowMap) {
+        this.windowMap = windowMap;
+    }
+
     /**
      * Determine if the Entity has been persisted.  For this class, and its
      * subclasses, this means it has an ID.
@@ -0,0 +1,89 @@
+package net.saliman.entitypruner.testhelper;
+
+import com.google.common.base.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import java.io.Serializable;
+
+/**
+ * This class only exists to test the EntityPruner code.  It is the
+ * composite key of a {@link TestKeyedEntity}.
+ *
+ * @author Steven C. Saliman
+ * @see TestKeyedEntity
+ */
+@Embeddable
+public class TestKey implements Serializable {
+    /** Serial version ID */
+    private static final long serialVersionUID = 1L;
+
+    @Column(name="code")
+    private String code;
+
+    @Column(name="seq")
+    private Integer seq;
+
+    /** default constructor */
+    public TestKey() {
+        super();
+    }
+
+    /**
+     * Make a key.
+     * @param code the code.
+     * @param seq the sequence number within the code.
+     */
+    public TestKey(String code, Integer seq) {
+        this.code = code;
+        this.seq = seq;
+    }
+
+    /**
+     * @return the code
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @param code the code to set
+     */
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the sequence number within the code
+     */
+    public Integer getSeq() {
+        return seq;
+    }
+
+    /**
+     * @param seq the sequence number to set
+     */
+    public void setSeq(Integer seq) {
+        this.seq = seq;
+    }
+
+    public String toString() {
+        return Objects.toStringHelper(this).add("code", code).add("seq", seq).toString();
+    }
+
+    public boolean equals(Object other) {
+        if ( other == this ) {
+            return true;
+        }
+        if ( !(other instanceof TestKey) ) {
+            return false;
+        }
+        TestKey castOther = (TestKey) other;
+        return Objects.equal(this.code, castOther.code)
+               && Objects.equal(this.seq, castOther.seq);
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(code, seq);
+    }
+}
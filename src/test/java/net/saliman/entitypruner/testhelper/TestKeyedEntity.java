@@ -0,0 +1,116 @@
+package net.saliman.entitypruner.testhelper;
+
+import com.google.common.base.Objects;
+import net.saliman.entitypruner.PrunableEntity;
+
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import javax.persistence.Transient;
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * This class only exists to test the EntityPruner code.  It has a composite
+ * key, so it can't be loaded in batches by id.
+ *
+ * @author Steven C. Saliman
+ * @see TestKey
+ */
+@Entity
+@Table(name="test_keyed")
+public class TestKeyedEntity implements Serializable, PrunableEntity {
+    /** Serial version ID */
+    private static final long serialVersionUID = 1L;
+
+    @EmbeddedId
+    private TestKey key;
+
+    @Column(name="description")
+    private String description;
+
+    // These next 2 are for the EntityPruner
+    @Transient
+    private String pruningState;
+
+    @Transient
+    private Map<String, String> fieldIdMap;
+
+    /** default constructor */
+    public TestKeyedEntity() {
+        super();
+    }
+
+    /**
+     * @return the key
+     */
+    public TestKey getKey() {
+        return key;
+    }
+
+    /**
+     * @param key the key to set
+     */
+    public void setKey(TestKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return the description
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @param description the description to set
+     */
+    public void setDescription(String description) {
+        this.description = description;
+    }
+
+    @Override
+    public String getPruningState() {
+        return pruningState;
+    }
+
+    @Override
+    public void setPruningState(String pruningState) {
+        this.pruningState = pruningState;
+    }
+
+    @Override
+    public Map<String, String> getFieldIdMap() {
+        return fieldIdMap;
+    }
+
+    @Override
+    public void setFieldIdMap(Map<String, String> fieldIdMap) {
+        this.fieldIdMap = fieldIdMap;
+    }
+
+    @Override
+    public boolean isPersistent() {
+        return key != null;
+    }
+
+    // Hibernate Required Code
+    public String toString() {
+        return Objects.toStringHelper(this).add("key", key).toString();
+    }
+
+    public boolean equals(Object other) {
+        if ( other == this ) {
+            return true;
+        }
+        if ( !(other instanceof TestKeyedEntity) ) {
+            return false;
+        }
+        return Objects.equal(this.getKey(), ((TestKeyedEntity)other).getKey());
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(getKey());
+    }
+}
@@ -0,0 +1,61 @@
+package net.saliman.entitypruner.testhelper;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Embeddable;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import java.io.Serializable;
+import java.util.Set;
+
+/**
+ * This class only exists to test the EntityPruner code.  It is a component
+ * of a {@link TestTaggedEntity} with a collection inside it, which Hibernate
+ * gives a role with the component's name in the middle.
+ *
+ * @author Steven C. Saliman
+ * @see TestTaggedEntity
+ */
+@Embeddable
+public class TestLabels implements Serializable {
+    /** Serial version ID */
+    private static final long serialVersionUID = 1L;
+
+    @Column(name="color")
+    private String color;
+
+    @ElementCollection(fetch=FetchType.LAZY)
+    @CollectionTable(name="test_tagged_tag",
+                     joinColumns=@JoinColumn(name="test_tagged_id"))
+    @Column(name="tag")
+    private Set<String> tags;
+
+    /**
+     * @return the color
+     */
+    public String getColor() {
+        return color;
+    }
+
+    /**
+     * @param color the color to set
+     */
+    public void setColor(String color) {
+        this.color = color;
+    }
+
+    /**
+     * @return the tags
+     */
+    public Set<String> getTags() {
+        return tags;
+    }
+
+    /**
+     * @param tags the tags to set
+     */
+    public void setTags(Set<String> tags) {
+        this.tags = tags;
+    }
+}
@@ -0,0 +1,82 @@
+package net.saliman.entitypruner.testhelper;
+
+import com.google.common.base.Objects;
+
+import javax.persistence.Column;
+import javax.persistence.Embedded;
+import javax.persistence.Entity;
+import javax.persistence.Table;
+import java.io.Serializable;
+
+/**
+ * This class only exists to test the EntityPruner code.  Its tags are a
+ * collection inside a component, which can't be fetched into the entity by
+ * name.
+ *
+ * @author Steven C. Saliman
+ * @see TestLabels
+ */
+@Entity
+@Table(name="test_tagged")
+public class TestTaggedEntity extends BaseEntity implements Serializable {
+    /** Serial version ID */
+    private static final long serialVersionUID = 1L;
+
+    @Column(name="code")
+    private String code;
+
+    @Embedded
+    private TestLabels labels;
+
+    /** default constructor */
+    public TestTaggedEntity() {
+        super();
+    }
+
+    /**
+     * @return the code
+     */
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * @param code the code to set
+     */
+    public void setCode(String code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the labels
+     */
+    public TestLabels getLabels() {
+        return labels;
+    }
+
+    /**
+     * @param labels the labels to set
+     */
+    public void setLabels(TestLabels labels) {
+        this.labels = labels;
+    }
+
+    // Hibernate Required Code
+    public String toString() {
+        return Objects.toStringHelper(this).add("id", getId()).toString();
+    }
+
+    public boolean equals(Object other) {
+        if ( other == this ) {
+            return true;
+        }
+        if ( !(other instanceof TestTaggedEntity) ) {
+            return false;
+        }
+        return Objects.equal(this.getCode(), ((TestTaggedEntity)other).getCode());
+    }
+
+    public int hashCode() {
+        return Objects.hashCode(getCode());
+    }
+}